@@ -0,0 +1,31 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+/**
+ * The interface implemented by the fixture classes of
+ * {@link RuntimeBenchmark}.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public interface Computation {
+    int value( int x );
+    Integer ref( int x );
+}
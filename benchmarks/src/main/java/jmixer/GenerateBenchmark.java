@@ -0,0 +1,98 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.factory.Factory;
+
+/**
+ * End to end benchmark of {@link MixinClassGenerator#generate}.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenerateBenchmark {
+
+    @Param({"10","50"})
+    public int methods;
+
+    @Param({"2","8"})
+    public int mixins;
+
+    @Param({"1","4"})
+    public int chainDepth;
+
+    @Param({"1","4"})
+    public int overloads;
+
+    @Param({"4"})
+    public int fields;
+
+    private Factory factory;
+    private CtClass<?> pristine;
+    private CtClass<?>[] srcClasses;
+    private CtClass<?> target;
+
+    @Setup(Level.Trial)
+    public void build() throws Exception {
+        SourceGenerator sg =
+            new SourceGenerator(methods,mixins,chainDepth,overloads,fields);
+        factory = sg.build();
+        pristine = factory.Class().get(SourceGenerator.TARGET);
+        srcClasses = new CtClass<?>[mixins];
+        for (int i = 0; i < mixins; i++) {
+            srcClasses[i] = factory.Class().get(SourceGenerator.getMixinName(i));
+        }
+    }
+
+    /**
+     * Weave a fresh copy of the target class at each invocation.
+     */
+    @Setup(Level.Invocation)
+    public void copyTarget() {
+        target = Benchmarks.copy(pristine);
+    }
+
+    @Benchmark
+    public CtClass<?> generate() {
+        new MixinClassGenerator(factory).generate(target,srcClasses);
+        return target;
+    }
+}
@@ -0,0 +1,260 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtPackageReference;
+
+/**
+ * Benchmarks of the phases of {@link MixinClassGenerator#generate}, each on
+ * its own: analysis of the mixed classes, conflict lookup (naming of the
+ * mixed methods), method insertion, _super_ resolution and field rewriting.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhaseBenchmark {
+
+    @Param({"10","50"})
+    public int methods;
+
+    @Param({"8"})
+    public int mixins;
+
+    @Param({"1","4"})
+    public int chainDepth;
+
+    @Param({"1","4"})
+    public int overloads;
+
+    @Param({"4"})
+    public int fields;
+
+    Factory factory;
+    CtClass<?> pristine;
+    CtClass<?>[] srcClasses;
+    MixinTemplate[] templates;
+
+    /** The tables for resolving the _super_ calls of each mixed class. */
+    SignatureTable[] supers;
+
+    String targetName;
+    CtPackageReference targetPackage;
+
+    @Setup(Level.Trial)
+    public void build() throws Exception {
+
+        SourceGenerator sg =
+            new SourceGenerator(methods,mixins,chainDepth,overloads,fields);
+        factory = sg.build();
+        pristine = factory.Class().get(SourceGenerator.TARGET);
+        targetName = pristine.getSimpleName();
+        targetPackage = factory.Package().createReference(pristine.getPackage());
+
+        srcClasses = new CtClass<?>[mixins];
+        templates = new MixinTemplate[mixins];
+        for (int i = 0; i < mixins; i++) {
+            srcClasses[i] = factory.Class().get(SourceGenerator.getMixinName(i));
+            templates[i] = new MixinTemplate(srcClasses[i]);
+        }
+
+        supers = new SignatureTable[mixins];
+        SignatureTable sigs = new SignatureTable();
+        for (int i = mixins-1; i > -1 ; i--) {
+            for (CtMethod<?> method : templates[i].getMethods()) {
+                sigs.insert(method,i);
+            }
+            supers[i] = sigs.snapshot(i);
+        }
+    }
+
+    /**
+     * The elements modified by a benchmark, copied at each invocation.
+     */
+    @State(Scope.Thread)
+    public static class Copies {
+
+        CtClass<?> target;
+
+        /** The copies of the methods of each mixed class. */
+        List<List<CtMethod<?>>> methods;
+
+        @Setup(Level.Invocation)
+        public void copy( PhaseBenchmark b ) {
+            target = Benchmarks.copy(b.pristine);
+            methods = new ArrayList<List<CtMethod<?>>>();
+            for (MixinTemplate template : b.templates) {
+                List<CtMethod<?>> copies = new ArrayList<CtMethod<?>>();
+                for (CtMethod<?> method : template.getMethods()) {
+                    copies.add(b.factory.Core().clone(method));
+                }
+                methods.add(copies);
+            }
+        }
+    }
+
+    /**
+     * Analyze the mixed classes, i.e. compute their templates.
+     */
+    @Benchmark
+    public MixinTemplate[] templates() {
+        MixinTemplate[] ts = new MixinTemplate[srcClasses.length];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = new MixinTemplate(srcClasses[i]);
+        }
+        return ts;
+    }
+
+    /**
+     * Name the mixed methods and the methods closing the chains.
+     */
+    @Benchmark
+    public SignatureTable conflictLookup() {
+        SignatureTable sigs = new SignatureTable();
+        for (int i = templates.length-1; i > -1 ; i--) {
+            for (CtMethod<?> method : templates[i].getMethods()) {
+                sigs.insert(method,i);
+            }
+        }
+        for (int i = templates.length-1; i > -1 ; i--) {
+            for (CtMethod<?> stub : templates[i].getStubs()) {
+                SignatureTable.Chain chain = sigs.get(stub);
+                if( chain != null && ! chain.isClosed() ) {
+                    sigs.insert(stub,-1);
+                    chain.close();
+                }
+            }
+        }
+        return sigs;
+    }
+
+    /**
+     * Copy, rename and insert the mixed methods in the target class. The
+     * copies share the references which are not rewritten.
+     */
+    @Benchmark
+    public CtClass<?> methodInsertion( Copies copies ) {
+        MixinClassGenerator mcg = new MixinClassGenerator(factory);
+        SignatureTable sigs = new SignatureTable();
+        for (int i = templates.length-1; i > -1 ; i--) {
+            for (CtMethod<?> method : templates[i].getMethods()) {
+                mcg.insertMethod(
+                    method,templates[i].getCloner(),copies.target,sigs,i);
+            }
+        }
+        return copies.target;
+    }
+
+    /**
+     * Same as {@link #methodInsertion(Copies)} with deep copies of the mixed
+     * methods. Compare the gc.alloc.rate.norm values reported by -prof gc.
+     */
+    @Benchmark
+    public CtClass<?> methodInsertionDeepCopy( Copies copies ) {
+        MixinClassGenerator mcg = new MixinClassGenerator(factory);
+        SignatureTable sigs = new SignatureTable();
+        for (int i = templates.length-1; i > -1 ; i--) {
+            for (CtMethod<?> method : templates[i].getMethods()) {
+                mcg.insertMethod(method,null,copies.target,sigs,i);
+            }
+        }
+        return copies.target;
+    }
+
+    /**
+     * Rewrite the _super_ and _this_ calls and the type references of the
+     * mixed methods, with the signatures resolved by the templates.
+     */
+    @Benchmark
+    public List<List<CtMethod<?>>> superResolution( Copies copies ) {
+        for (int i = 0; i < templates.length; i++) {
+            MixinRewriter rewriter =
+                new MixinRewriter(
+                    srcClasses[i].getQualifiedName(), targetName, targetPackage,
+                    supers[i], i, templates[i] );
+            for (CtMethod<?> method : copies.methods.get(i)) {
+                rewriter.scan(method);
+            }
+        }
+        return copies.methods;
+    }
+
+    /**
+     * Same as {@link #superResolution(Copies)} but resolving the declaration
+     * of the called method for each _super_ call.
+     */
+    @Benchmark
+    public List<List<CtMethod<?>>> superResolutionNoTemplate( Copies copies ) {
+        for (int i = 0; i < templates.length; i++) {
+            MixinRewriter rewriter =
+                new MixinRewriter(
+                    srcClasses[i].getQualifiedName(), targetName, targetPackage,
+                    supers[i], i );
+            for (CtMethod<?> method : copies.methods.get(i)) {
+                rewriter.scan(method);
+            }
+        }
+        return copies.methods;
+    }
+
+    /**
+     * Copy the mixed fields in the target class and rewrite their
+     * initializers.
+     */
+    @Benchmark
+    public CtClass<?> fieldRewriting( Copies copies ) {
+        for (int i = 0; i < templates.length; i++) {
+            MixinRewriter rewriter =
+                new MixinRewriter(
+                    srcClasses[i].getQualifiedName(), targetName, targetPackage,
+                    supers[i], i, templates[i] );
+            for (CtField<?> field : templates[i].getFields()) {
+                CtField<?> newField = factory.Field().create(copies.target,field);
+                rewriter.scan(newField);
+            }
+        }
+        return copies.target;
+    }
+}
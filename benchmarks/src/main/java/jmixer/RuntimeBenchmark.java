@@ -0,0 +1,100 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the code generated for _super_ chains (private name$99
+ * methods and empty methods closing the chains) compared with hand-written
+ * equivalents, see {@link RuntimeFixtures}.
+ *
+ * Each invocation calls 4 receivers from a single call site. With the mono
+ * call site, the receivers are the same instance. With the mega call site,
+ * they are instances of 4 distinct classes. The value benchmark returns a
+ * primitive type and the ref benchmark a reference type.
+ *
+ * To see where inlining budgets are exceeded, run with:
+ * -jvmArgsAppend "-XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining"
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RuntimeBenchmark {
+
+    @Param({"woven","flattened","flat","inheritance"})
+    public String kind;
+
+    @Param({"1","2","5","10","20"})
+    public int depth;
+
+    @Param({"mono","mega"})
+    public String callSite;
+
+    final private static int RECEIVERS = 4;
+
+    private Computation[] receivers;
+    private int x = 7;
+
+    @Setup(Level.Trial)
+    public void create() throws Exception {
+        boolean mega = callSite.equals("mega");
+        Computation[] cs = RuntimeFixtures.create(kind,depth,mega?RECEIVERS:1);
+        receivers = new Computation[RECEIVERS];
+        for (int i = 0; i < RECEIVERS; i++) {
+            receivers[i] = cs[i % cs.length];
+        }
+    }
+
+    @Benchmark
+    public int value() {
+        int r = 0;
+        for (Computation c : receivers) {
+            r += c.value(x);
+        }
+        return r;
+    }
+
+    @Benchmark
+    public void ref( Blackhole bh ) {
+        for (Computation c : receivers) {
+            bh.consume(c.ref(x));
+        }
+    }
+}
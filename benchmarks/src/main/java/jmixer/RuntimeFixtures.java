@@ -0,0 +1,259 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import spoon.Launcher;
+import spoon.OutputType;
+import spoon.compiler.Environment;
+import spoon.compiler.SpoonCompiler;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.visitor.DefaultJavaPrettyPrinter;
+import spoon.support.JavaOutputProcessor;
+
+/**
+ * This class generates, compiles and loads the fixture classes of
+ * {@link RuntimeBenchmark}. Each fixture computes, for a chain of the given
+ * depth, r = r*31 + x + k for k from 0 to depth-1, starting from r = 0:
+ * <ul>
+ * <li>woven: each step is a mixed class calling _super_, woven with
+ * {@link MixinClassGenerator} and printed by Spoon,</li>
+ * <li>flattened: the same, woven with flattened chains,</li>
+ * <li>flat: a hand-written method computing all the steps,</li>
+ * <li>inheritance: a hand-written class hierarchy, each step calling
+ * super.</li>
+ * </ul>
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class RuntimeFixtures {
+
+    final public static String PACKAGE = "fixture";
+
+    /**
+     * Return instances of the given kind of fixture.
+     *
+     * @param kind      woven, flattened, flat or inheritance
+     * @param depth     the depth of the chain
+     * @param variants  the number of distinct fixture classes, each with its
+     *                  own constants
+     */
+    public static Computation[] create( String kind, int depth, int variants )
+    throws Exception {
+
+        File dir = Files.createTempDirectory("jmixer-fixture").toFile();
+        File src = new File(dir,"src");
+        File pkg = new File(src,PACKAGE);
+        pkg.mkdirs();
+
+        String[] names = new String[variants];
+        for (int v = 0; v < variants; v++) {
+            if( kind.equals("woven") || kind.equals("flattened") ) {
+                names[v] = writeWoven(pkg,depth,v);
+            }
+            else if( kind.equals("flat") ) {
+                names[v] = writeFlat(pkg,depth,v);
+            }
+            else if( kind.equals("inheritance") ) {
+                names[v] = writeInheritance(pkg,depth,v);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown fixture "+kind);
+            }
+        }
+
+        if( kind.equals("woven") || kind.equals("flattened") ) {
+            File out = new File(dir,"woven");
+            weave(src,out,names,kind.equals("flattened"));
+            src = out;
+        }
+
+        File classes = new File(dir,"classes");
+        compile(src,classes);
+
+        ClassLoader loader =
+            new URLClassLoader(
+                new URL[]{classes.toURI().toURL()},
+                Computation.class.getClassLoader() );
+        Computation[] cs = new Computation[variants];
+        for (int v = 0; v < variants; v++) {
+            Class<?> c = loader.loadClass(PACKAGE+'.'+names[v]);
+            cs[v] = (Computation) c.getDeclaredConstructor().newInstance();
+        }
+        return cs;
+    }
+
+    private static String writeWoven( File pkg, int depth, int v )
+    throws Exception {
+
+        for (int k = 0; k < depth; k++) {
+            String name = "Step"+v+"_"+k;
+            int c = k+v;
+            write(pkg,name,
+                "package "+PACKAGE+";\n"+
+                "public abstract class "+name+" implements jmixer.Computation {\n"+
+                "    public int value( int x ) {\n"+
+                "        return _super_value(x) * 31 + x + "+c+";\n"+
+                "    }\n"+
+                "    protected abstract int _super_value( int x );\n"+
+                "    public Integer ref( int x ) {\n"+
+                "        Integer r = _super_ref(x);\n"+
+                "        return (r == null ? 0 : r.intValue()) * 31 + x + "+c+";\n"+
+                "    }\n"+
+                "    protected abstract Integer _super_ref( int x );\n"+
+                "}\n");
+        }
+
+        String name = "Woven"+v;
+        write(pkg,name,
+            "package "+PACKAGE+";\n"+
+            "public class "+name+" {\n"+
+            "}\n");
+        return name;
+    }
+
+    private static String writeFlat( File pkg, int depth, int v )
+    throws Exception {
+
+        StringBuilder value = new StringBuilder();
+        for (int k = 0; k < depth; k++) {
+            value.append("        r = r * 31 + x + "+(k+v)+";\n");
+        }
+        String name = "Flat"+v;
+        write(pkg,name,
+            "package "+PACKAGE+";\n"+
+            "public class "+name+" implements jmixer.Computation {\n"+
+            "    public int value( int x ) {\n"+
+            "        int r = 0;\n"+
+            value+
+            "        return r;\n"+
+            "    }\n"+
+            "    public Integer ref( int x ) {\n"+
+            "        int r = 0;\n"+
+            value+
+            "        return r;\n"+
+            "    }\n"+
+            "}\n");
+        return name;
+    }
+
+    private static String writeInheritance( File pkg, int depth, int v )
+    throws Exception {
+
+        String parent = null;
+        String name = null;
+        for (int k = 0; k < depth; k++) {
+            name = "Level"+v+"_"+k;
+            int c = k+v;
+            String value =
+                parent == null ? "0" : "super.value(x)";
+            String ref =
+                parent == null ? "null" : "super.ref(x)";
+            write(pkg,name,
+                "package "+PACKAGE+";\n"+
+                "public class "+name+
+                (parent == null ? " implements jmixer.Computation" : " extends "+parent)+
+                " {\n"+
+                "    public int value( int x ) {\n"+
+                "        return "+value+" * 31 + x + "+c+";\n"+
+                "    }\n"+
+                "    public Integer ref( int x ) {\n"+
+                "        Integer r = "+ref+";\n"+
+                "        return (r == null ? 0 : r.intValue()) * 31 + x + "+c+";\n"+
+                "    }\n"+
+                "}\n");
+            parent = name;
+        }
+        return name;
+    }
+
+    /**
+     * Mix the Step classes in the Woven classes and print the result.
+     */
+    private static void weave(
+            File src, File out, String[] names, boolean flatten )
+    throws Exception {
+
+        SpoonCompiler comp = new Launcher().createCompiler();
+        comp.addInputSource(src);
+        comp.setSourceClasspath(
+            System.getProperty("java.class.path").split(File.pathSeparator));
+        comp.build();
+
+        Factory factory = comp.getFactory();
+        for (int v = 0; v < names.length; v++) {
+            CtClass<?> target = factory.Class().get(PACKAGE+'.'+names[v]);
+            List<CtClass<?>> steps = new ArrayList<CtClass<?>>();
+            for (int k = 0; ; k++) {
+                CtClass<?> step = factory.Class().get(PACKAGE+".Step"+v+"_"+k);
+                if( step == null ) {
+                    break;
+                }
+                steps.add(step);
+            }
+            MixinClassGenerator mcg = new MixinClassGenerator(factory);
+            mcg.setFlattenChains(flatten);
+            mcg.generate(target,steps.toArray(new CtClass<?>[steps.size()]));
+        }
+
+        Environment env = factory.getEnvironment();
+        env.setDefaultFileGenerator(
+            new JavaOutputProcessor(out,new DefaultJavaPrettyPrinter(env)));
+        comp.generateProcessedSourceFiles(OutputType.CLASSES);
+    }
+
+    private static void compile( File src, File classes ) throws Exception {
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if( javac == null ) {
+            throw new IllegalStateException("The fixtures must be run with a JDK");
+        }
+
+        List<String> args = new ArrayList<String>();
+        args.addAll(Arrays.asList(
+            "-nowarn", "-d", classes.getPath(),
+            "-cp", System.getProperty("java.class.path") ));
+        File[] files = new File(src,PACKAGE).listFiles();
+        for (File file : files) {
+            args.add(file.getPath());
+        }
+        classes.mkdirs();
+        int status = javac.run(null,null,null,args.toArray(new String[args.size()]));
+        if( status != 0 ) {
+            throw new IllegalStateException("Error compiling the fixtures in "+src);
+        }
+    }
+
+    private static void write( File pkg, String name, String content )
+    throws Exception {
+        Files.write(new File(pkg,name+".java").toPath(),content.getBytes("UTF-8"));
+    }
+}
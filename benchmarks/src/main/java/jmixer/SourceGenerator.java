@@ -0,0 +1,156 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import spoon.Launcher;
+import spoon.compiler.SpoonCompiler;
+import spoon.reflect.factory.Factory;
+
+/**
+ * This class generates the source code of a synthetic target class and of
+ * synthetic mixed classes for benchmarking the weaver.
+ *
+ * Each mixed class defines <code>methods</code> method names, each with
+ * <code>overloads</code> overloaded versions and <code>fields</code> fields.
+ * Mixed classes are grouped by <code>chainDepth</code>: the classes of a group
+ * define the same methods, which then form _super_ chains of this depth.
+ * Each method calls _super_ and accesses a _this_ field of the target class.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class SourceGenerator {
+
+    /** The package of the generated classes. */
+    final public static String PACKAGE = "bench";
+
+    final public static String TARGET = PACKAGE+".Target";
+
+    /** The parameter types of the overloaded methods. */
+    final private static String[][] PTYPES = {
+        {"int","a"}, {"long","(int)a"}, {"String","a.length()"},
+        {"double","(int)a"}, {"int[]","a.length"}, {"Object","a.hashCode()"},
+        {"char","a"}, {"java.util.List<String>","a.size()"},
+    };
+
+    private int methods;
+    private int mixins;
+    private int chainDepth;
+    private int overloads;
+    private int fields;
+
+    /**
+     * @param methods     the number of method names in each mixed class
+     * @param mixins      the number of mixed classes
+     * @param chainDepth  the number of mixed classes defining the same methods
+     * @param overloads   the number of overloaded versions of each method
+     *                    (up to 8)
+     * @param fields      the number of fields in each mixed class
+     */
+    public SourceGenerator(
+            int methods, int mixins, int chainDepth, int overloads, int fields ) {
+
+        this.methods = methods;
+        this.mixins = mixins;
+        this.chainDepth = Math.max(1,chainDepth);
+        this.overloads = Math.min(Math.max(1,overloads),PTYPES.length);
+        this.fields = fields;
+    }
+
+    /**
+     * Return the qualified name of the given mixed class.
+     */
+    public static String getMixinName( int i ) {
+        return PACKAGE+".Mixin"+i;
+    }
+
+    public String generateTarget() {
+        return
+            "package "+PACKAGE+";\n"+
+            "public class Target {\n"+
+            "    protected int state;\n"+
+            "}\n";
+    }
+
+    public String generateMixin( int i ) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package "+PACKAGE+";\n");
+        sb.append("public abstract class Mixin"+i+" {\n");
+        sb.append("    protected int _this_state;\n");
+        for (int f = 0; f < fields; f++) {
+            sb.append("    private int f"+f+" = "+f+" + _this_state;\n");
+        }
+
+        int group = i / chainDepth;
+        for (int m = 0; m < methods; m++) {
+            String name = "m"+m+"g"+group;
+            for (int o = 0; o < overloads; o++) {
+                String ptype = PTYPES[o][0];
+                String expr = PTYPES[o][1];
+                String field = fields == 0 ? "0" : "f"+((m+o)%fields);
+                sb.append("    public int "+name+"( "+ptype+" a ) {\n");
+                sb.append("        _this_state += "+field+";\n");
+                sb.append("        return "+expr+" + _super_"+name+"(a);\n");
+                sb.append("    }\n");
+                sb.append("    protected abstract int _super_"+name+"( "+ptype+" a );\n");
+            }
+        }
+
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Write the generated source files in the given directory.
+     */
+    public void generate( File dir ) throws IOException {
+        File pkg = new File(dir,PACKAGE);
+        pkg.mkdirs();
+        write(new File(pkg,"Target.java"),generateTarget());
+        for (int i = 0; i < mixins; i++) {
+            write(new File(pkg,"Mixin"+i+".java"),generateMixin(i));
+        }
+    }
+
+    private static void write( File file, String content ) throws IOException {
+        Files.write(file.toPath(),content.getBytes("UTF-8"));
+    }
+
+    /**
+     * Generate the source files in a temporary directory and return a Spoon
+     * model built from them.
+     */
+    public Factory build() throws Exception {
+        File dir = Files.createTempDirectory("jmixer-bench").toFile();
+        generate(dir);
+        SpoonCompiler comp = new Launcher().createCompiler();
+        comp.addInputSource(dir);
+        comp.build();
+        return comp.getFactory();
+    }
+
+    public int getMixins() {
+        return mixins;
+    }
+}
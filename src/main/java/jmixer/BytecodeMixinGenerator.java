@@ -0,0 +1,1300 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.TypePath;
+import org.objectweb.asm.commons.FieldRemapper;
+import org.objectweb.asm.commons.MethodRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+
+/**
+ * This class implements the mixin algorithm on compiled classes. It does not
+ * need a source model and can mix classes only available in class files,
+ * e.g. in jar files.
+ *
+ * The semantics is the one of {@link MixinClassGenerator}: _this_ members are
+ * required from the target class, mixed methods sharing a same signature are
+ * chained following the name$99 scheme, _super_ calls are redirected to the
+ * next method in the chain, and each chain is closed by an empty method.
+ * Additionally:
+ * <ul>
+ * <li>the initialization code of the no-argument constructor of a mixed class
+ * (e.g. its field initializers) is inserted in the constructors of the
+ * target class after the call to the super constructor, and its static
+ * initializer at the beginning of the static initializer of the target
+ * class,</li>
+ * <li>calls to private methods of a mixed class are redirected to the renamed
+ * copies of these methods,</li>
+ * <li>abstract methods are not copied,</li>
+ * <li>mixed classes with nested or anonymous classes are not supported,</li>
+ * <li>type arguments given by the annotation are not supported,</li>
+ * <li>the @{@link Mixin} annotation is removed from the woven class, as it is
+ * consumed with the source model, so that woven classes are not woven
+ * again.</li>
+ * </ul>
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class BytecodeMixinGenerator {
+
+    /** The descriptor of the {@link Mixin} annotation. */
+    final public static String MIXIN_DESC = Type.getDescriptor(Mixin.class);
+
+    final private static int API = Opcodes.ASM9;
+
+    /** The descriptor of the {@link Mixin} annotation in a class file. */
+    final private static byte[] MIXIN_BYTES = getBytes(MIXIN_DESC);
+
+    private ClassLoader loader;
+
+    /**
+     * @param loader  the class loader used to retrieve the mixed classes which
+     *                are not found in the woven directory and to compute the
+     *                common super classes of the types of the woven code
+     */
+    public BytecodeMixinGenerator( ClassLoader loader ) {
+        this.loader = loader;
+    }
+
+    /**
+     * Mix the specified classes in the target class.
+     *
+     * @param target      the class file of the target class
+     * @param srcClasses  the class files of the classes to mix
+     * @return            the class file of the woven target class
+     * @throws IllegalArgumentException
+     *      if the annotation of the target class gives type arguments
+     */
+    public byte[] generate( byte[] target, byte[]... srcClasses ) {
+
+        ClassInfo t = ClassInfo.read(target);
+        checkTypeArguments(t);
+        ClassInfo[] srcs = new ClassInfo[srcClasses.length];
+        for (int i = 0; i < srcs.length; i++) {
+            srcs[i] = ClassInfo.read(srcClasses[i]);
+            if( srcs[i].name.equals(t.name) ) {
+                final String msg =
+                    Type.getObjectType(t.name).getClassName()+
+                    " is both a target class and a mixed class";
+                throw new IllegalArgumentException(msg);
+            }
+            if( ! srcs[i].nested.isEmpty() ) {
+                final String msg =
+                    "Mixed class "+Type.getObjectType(srcs[i].name).getClassName()+
+                    " defines nested classes "+srcs[i].nested;
+                throw new IllegalArgumentException(msg);
+            }
+        }
+
+        /*
+         * Name the mixed methods and resolve the _super_ calls before
+         * writing anything, as with the source model.
+         */
+        SignatureTable sigs = new SignatureTable();
+        List<Map<String,String>> renames = new ArrayList<Map<String,String>>();
+        SignatureTable[] supers = new SignatureTable[srcs.length];
+        for (int i = 0; i < srcs.length; i++) {
+            renames.add(null);
+        }
+        for (int i = srcs.length-1; i > -1 ; i--) {
+            Map<String,String> names = new HashMap<String,String>();
+            for (Member m : srcs[i].methods) {
+                if( m.isCode() && ! m.isAbstract() ) {
+                    names.put(m.name+m.desc,sigs.insert(key(m.name,m.desc),m.name,i));
+                }
+            }
+            renames.set(i,names);
+            supers[i] = sigs.snapshot(i);
+        }
+
+        /*
+         * For each abstract _super_... method, add an empty method to cleanly
+         * close the chain.
+         */
+        List<Member> stubs = new ArrayList<Member>();
+        for (int i = srcs.length-1; i > -1 ; i--) {
+            for (Member m : srcs[i].methods) {
+                if( ! m.isAbstract() || ! m.name.startsWith(MixinClassGenerator.SUPER) ) {
+                    continue;
+                }
+                String name = m.name.substring(MixinClassGenerator.SUPER.length());
+                String key = key(name,m.desc);
+                SignatureTable.Chain chain = sigs.getByKey(key);
+                if( chain == null || chain.isClosed() ) {
+                    continue;
+                }
+                Member stub = new Member();
+                stub.access = Opcodes.ACC_PRIVATE | (m.access & Opcodes.ACC_STATIC);
+                stub.name = sigs.insert(key,name,-1);
+                stub.desc = new SimpleRemapper(srcs[i].name,t.name).mapMethodDesc(m.desc);
+                stubs.add(stub);
+                chain.close();
+            }
+        }
+
+        ClassWriter cw = new LoaderClassWriter(ClassWriter.COMPUTE_FRAMES);
+        new ClassReader(target).accept(
+            new TargetAdapter(cw,t,srcs,srcClasses,renames,supers,stubs),
+            ClassReader.SKIP_FRAMES);
+        return cw.toByteArray();
+    }
+
+    /**
+     * Weave, in place, the class files of a directory annotated with
+     * @{@link Mixin}. This is meant to be run as a post-compilation step.
+     *
+     * @param dir  the root directory of the class files
+     * @return     the woven class files
+     */
+    public List<File> generate( File dir ) throws IOException {
+
+        List<File> files = new ArrayList<File>();
+        listClassFiles(dir,files);
+
+        /*
+         * Read all the mixed classes before weaving any target.
+         */
+        Map<File,byte[][]> targets = new LinkedHashMap<File,byte[][]>();
+        Set<String> mixed = new HashSet<String>();
+        Map<String,File> woven = new HashMap<String,File>();
+        for (File file : files) {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            List<String> mixins = getMixins(bytes);
+            if( mixins.isEmpty() ) {
+                continue;
+            }
+            byte[][] classes = new byte[mixins.size()+1][];
+            classes[0] = bytes;
+            for (int i = 0; i < mixins.size(); i++) {
+                classes[i+1] = readClass(dir,mixins.get(i));
+                mixed.add(mixins.get(i));
+            }
+            targets.put(file,classes);
+            woven.put(new ClassReader(bytes).getClassName(),file);
+        }
+        for (String name : woven.keySet()) {
+            if( mixed.contains(name) ) {
+                final String msg =
+                    Type.getObjectType(name).getClassName()+
+                    " is both a target class and a mixed class";
+                throw new IllegalArgumentException(msg);
+            }
+        }
+
+        for (Map.Entry<File,byte[][]> entry : targets.entrySet()) {
+            byte[][] classes = entry.getValue();
+            byte[][] srcClasses = new byte[classes.length-1][];
+            System.arraycopy(classes,1,srcClasses,0,srcClasses.length);
+            byte[] bytes = generate(classes[0],srcClasses);
+            Files.write(entry.getKey().toPath(),bytes);
+        }
+
+        return new ArrayList<File>(targets.keySet());
+    }
+
+    /**
+     * Return the internal names of the classes referenced by the @{@link
+     * Mixin} annotation of the given class, if any.
+     *
+     * @throws IllegalArgumentException
+     *      if the annotation gives type arguments: generic mixed classes are
+     *      only specialized with the source model
+     */
+    public static List<String> getMixins( byte[] classfile ) {
+
+        /*
+         * Skip the classes which do not contain the descriptor of the
+         * annotation without parsing them.
+         */
+        if( ! contains(classfile,MIXIN_BYTES) ) {
+            return new ArrayList<String>();
+        }
+
+        ClassInfo info = new ClassInfo();
+        new ClassReader(classfile).accept(
+            info,
+            ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES |
+            ClassReader.SKIP_DEBUG );
+        checkTypeArguments(info);
+        return info.mixins;
+    }
+
+    private static void checkTypeArguments( ClassInfo info ) {
+        if( ! info.typeArguments.isEmpty() ) {
+            final String msg =
+                Type.getObjectType(info.name).getClassName()+
+                " gives type arguments "+info.typeArguments+
+                " which are not supported by bytecode weaving";
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    private static boolean contains( byte[] bytes, byte[] pattern ) {
+        int last = bytes.length - pattern.length;
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while( j < pattern.length && bytes[i+j] == pattern[j] ) {
+                j++;
+            }
+            if( j == pattern.length ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Weave the classes of a directory annotated with @{@link Mixin}.
+     *
+     * Usage: BytecodeMixinGenerator classes-directory [classpath]
+     */
+    public static void main( String[] args ) throws IOException {
+
+        if( args.length == 0 ) {
+            System.err.println(
+                "Usage: "+BytecodeMixinGenerator.class.getName()+
+                " classes-directory [classpath]");
+            return;
+        }
+
+        File dir = new File(args[0]);
+        List<URL> urls = new ArrayList<URL>();
+        urls.add(dir.toURI().toURL());
+        if( args.length > 1 ) {
+            for (String path : args[1].split(File.pathSeparator)) {
+                urls.add(new File(path).toURI().toURL());
+            }
+        }
+        ClassLoader loader =
+            new URLClassLoader(
+                urls.toArray(new URL[urls.size()]),
+                BytecodeMixinGenerator.class.getClassLoader() );
+
+        List<File> files = new BytecodeMixinGenerator(loader).generate(dir);
+        for (File file : files) {
+            System.out.println("Woven: "+file);
+        }
+    }
+
+    private byte[] readClass( File dir, String name ) throws IOException {
+
+        File file = new File(dir,name.replace('/',File.separatorChar)+".class");
+        if( file.isFile() ) {
+            return Files.readAllBytes(file.toPath());
+        }
+
+        byte[] bytes = getClassFile(name);
+        if( bytes == null ) {
+            throw new IOException("Mixed class "+name+" not found");
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the class file of the given class found by the class loader of
+     * this generator, or <code>null</code> if the class file is not found.
+     * The class is not loaded.
+     *
+     * @param name  the internal name of the class
+     */
+    public byte[] getClassFile( String name ) throws IOException {
+
+        InputStream is = loader.getResourceAsStream(name+".class");
+        if( is == null ) {
+            return null;
+        }
+        try {
+            byte[] buf = new byte[4096];
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            for (int n = is.read(buf); n != -1; n = is.read(buf)) {
+                baos.write(buf,0,n);
+            }
+            return baos.toByteArray();
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    private static void listClassFiles( File dir, List<File> files ) {
+        File[] children = dir.listFiles();
+        if( children == null ) {
+            return;
+        }
+        for (File child : children) {
+            if( child.isDirectory() ) {
+                listClassFiles(child,files);
+            }
+            else if( child.getName().endsWith(".class") ) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static byte[] getBytes( String ascii ) {
+        byte[] bytes = new byte[ascii.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ascii.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the key, in a {@link SignatureTable}, of the signature made of
+     * the given method name and descriptor.
+     */
+    private static String key( String name, String desc ) {
+        List<String> ptypes = new ArrayList<String>();
+        for (Type ptype : Type.getArgumentTypes(desc)) {
+            ptypes.add(ptype.getClassName());
+        }
+        return SignatureTable.key(name,ptypes);
+    }
+
+    /**
+     * A class writer which computes the common super classes of the types of
+     * the woven code from the class files found by the class loader of the
+     * generator. Classes are not loaded: the target class may be in the
+     * middle of being loaded, e.g. when weaving at load time. As with
+     * {@link ClassWriter}, a class whose class file is not found raises a
+     * {@link TypeNotPresentException}.
+     */
+    private class LoaderClassWriter extends ClassWriter {
+
+        LoaderClassWriter( int flags ) {
+            super(flags);
+        }
+
+        @Override
+        protected String getCommonSuperClass( String type1, String type2 ) {
+
+            Set<String> supers1 = new HashSet<String>();
+            for (String t = type1; t != null; t = getSuperName(t)) {
+                if( t == INTERFACE ) {
+                    return "java/lang/Object";
+                }
+                supers1.add(t);
+            }
+            for (String t = type2; t != null; t = getSuperName(t)) {
+                if( t == INTERFACE ) {
+                    return "java/lang/Object";
+                }
+                if( supers1.contains(t) ) {
+                    return t;
+                }
+            }
+            return "java/lang/Object";
+        }
+
+        /**
+         * Return the super class of the given class, {@link #INTERFACE} for
+         * an interface, or <code>null</code> for java/lang/Object.
+         *
+         * @throws TypeNotPresentException  if the class file is not found
+         */
+        private String getSuperName( String type ) {
+            byte[] bytes;
+            try {
+                bytes = getClassFile(type);
+            }
+            catch( IOException ioe ) {
+                throw new TypeNotPresentException(type,ioe);
+            }
+            if( bytes == null ) {
+                throw new TypeNotPresentException(type,null);
+            }
+            ClassReader cr = new ClassReader(bytes);
+            if( (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0 ) {
+                return INTERFACE;
+            }
+            return cr.getSuperName();
+        }
+    }
+
+    /** The marker returned by getSuperName for interfaces. */
+    final private static String INTERFACE = new String("interface");
+
+    /**
+     * A method or a field of a class.
+     */
+    private static class Member {
+
+        int access;
+        String name;
+        String desc;
+
+        /** The number of local variables of a method. */
+        int maxLocals;
+
+        boolean isAbstract() {
+            return (access & Opcodes.ACC_ABSTRACT) != 0;
+        }
+
+        boolean isPrivate() {
+            return (access & Opcodes.ACC_PRIVATE) != 0;
+        }
+
+        /** Whether this is a method which is not an initializer. */
+        boolean isCode() {
+            return ! name.equals("<init>") && ! name.equals("<clinit>");
+        }
+    }
+
+    /**
+     * The members of a class and the classes mixed in it.
+     */
+    private static class ClassInfo extends ClassVisitor {
+
+        int version;
+        String name;
+        String superName;
+        String[] interfaces;
+        List<Member> methods = new ArrayList<Member>();
+        List<Member> fields = new ArrayList<Member>();
+        List<String> mixins = new ArrayList<String>();
+        List<String> typeArguments = new ArrayList<String>();
+        List<String> nested = new ArrayList<String>();
+
+        private ClassInfo() {
+            super(API);
+        }
+
+        static ClassInfo read( byte[] classfile ) {
+            ClassInfo info = new ClassInfo();
+            new ClassReader(classfile).accept(
+                info, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
+            return info;
+        }
+
+        Member getMethod( String name, String desc ) {
+            for (Member m : methods) {
+                if( m.name.equals(name) && m.desc.equals(desc) ) {
+                    return m;
+                }
+            }
+            return null;
+        }
+
+        Member getField( String name ) {
+            for (Member m : fields) {
+                if( m.name.equals(name) ) {
+                    return m;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void visit(
+                int version, int access, String name, String signature,
+                String superName, String[] interfaces ) {
+            this.version = version;
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation( String desc, boolean visible ) {
+            if( ! desc.equals(MIXIN_DESC) ) {
+                return null;
+            }
+            return new AnnotationVisitor(API) {
+                @Override
+                public AnnotationVisitor visitArray( final String element ) {
+                    return new AnnotationVisitor(API) {
+                        @Override
+                        public void visit( String name, Object value ) {
+                            if( element.equals("value") ) {
+                                mixins.add(((Type)value).getInternalName());
+                            }
+                            else {
+                                typeArguments.add(((Type)value).getClassName());
+                            }
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public void visitInnerClass(
+                String name, String outerName, String innerName, int access ) {
+            if( name.startsWith(this.name+'$') ) {
+                nested.add(name);
+            }
+        }
+
+        @Override
+        public FieldVisitor visitField(
+                int access, String name, String desc, String signature,
+                Object value ) {
+            Member m = new Member();
+            m.access = access;
+            m.name = name;
+            m.desc = desc;
+            fields.add(m);
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(
+                int access, String name, String desc, String signature,
+                String[] exceptions ) {
+            final Member m = new Member();
+            m.access = access;
+            m.name = name;
+            m.desc = desc;
+            methods.add(m);
+            return new MethodVisitor(API) {
+                @Override
+                public void visitMaxs( int maxStack, int maxLocals ) {
+                    m.maxLocals = maxLocals;
+                }
+            };
+        }
+    }
+
+    /**
+     * This visitor copies the target class and inserts the members of the
+     * mixed classes.
+     */
+    private static class TargetAdapter extends ClassVisitor {
+
+        private ClassInfo target;
+        private ClassInfo[] srcs;
+        private byte[][] srcClasses;
+        private List<Map<String,String>> renames;
+        private SignatureTable[] supers;
+        private List<Member> stubs;
+        private boolean hasClinit;
+
+        TargetAdapter(
+                ClassVisitor cv, ClassInfo target, ClassInfo[] srcs,
+                byte[][] srcClasses, List<Map<String,String>> renames,
+                SignatureTable[] supers, List<Member> stubs ) {
+
+            super(API,cv);
+            this.target = target;
+            this.srcs = srcs;
+            this.srcClasses = srcClasses;
+            this.renames = renames;
+            this.supers = supers;
+            this.stubs = stubs;
+        }
+
+        @Override
+        public void visit(
+                int version, int access, String name, String signature,
+                String superName, String[] interfaces ) {
+
+            /*
+             * Add implemented interfaces.
+             */
+            Set<String> itfs = new LinkedHashSet<String>();
+            for (String itf : interfaces) {
+                itfs.add(itf);
+            }
+            for (int i = srcs.length-1; i > -1 ; i--) {
+                for (String itf : srcs[i].interfaces) {
+                    itfs.add(itf);
+                }
+                if( (srcs[i].version & 0xFFFF) > (version & 0xFFFF) ) {
+                    version = srcs[i].version;
+                }
+            }
+
+            super.visit(
+                version, access, name, signature, superName,
+                itfs.toArray(new String[itfs.size()]));
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation( String desc, boolean visible ) {
+            /*
+             * The annotation is consumed: weaving the class again would
+             * insert the mixed members a second time.
+             */
+            if( desc.equals(MIXIN_DESC) ) {
+                return null;
+            }
+            return super.visitAnnotation(desc,visible);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(
+                int access, String name, String desc, String signature,
+                String[] exceptions ) {
+
+            MethodVisitor mv =
+                super.visitMethod(access,name,desc,signature,exceptions);
+            int maxLocals = target.getMethod(name,desc).maxLocals;
+            if( name.equals("<init>") ) {
+                return new ConstructorAdapter(mv,maxLocals);
+            }
+            if( name.equals("<clinit>") ) {
+                hasClinit = true;
+                return new StaticInitializerAdapter(mv,maxLocals);
+            }
+            return mv;
+        }
+
+        @Override
+        public void visitEnd() {
+
+            for (int i = srcs.length-1; i > -1 ; i--) {
+                new ClassReader(srcClasses[i]).accept(
+                    new MixinInserter(cv,i), ClassReader.SKIP_FRAMES);
+            }
+
+            for (Member stub : stubs) {
+                MethodVisitor mv =
+                    cv.visitMethod(stub.access,stub.name,stub.desc,null,null);
+                mv.visitCode();
+                Type rt = Type.getReturnType(stub.desc);
+                switch( rt.getSort() ) {
+                    case Type.VOID:
+                        break;
+                    case Type.CHAR:
+                        mv.visitIntInsn(Opcodes.BIPUSH,' ');
+                        break;
+                    case Type.BOOLEAN:
+                    case Type.BYTE:
+                    case Type.SHORT:
+                    case Type.INT:
+                        mv.visitInsn(Opcodes.ICONST_0);
+                        break;
+                    case Type.LONG:
+                        mv.visitInsn(Opcodes.LCONST_0);
+                        break;
+                    case Type.FLOAT:
+                        mv.visitInsn(Opcodes.FCONST_0);
+                        break;
+                    case Type.DOUBLE:
+                        mv.visitInsn(Opcodes.DCONST_0);
+                        break;
+                    default:
+                        mv.visitInsn(Opcodes.ACONST_NULL);
+                }
+                mv.visitInsn(rt.getOpcode(Opcodes.IRETURN));
+                mv.visitMaxs(0,0);
+                mv.visitEnd();
+            }
+
+            if( ! hasClinit && hasStaticInitializer() ) {
+                MethodVisitor mv =
+                    cv.visitMethod(Opcodes.ACC_STATIC,"<clinit>","()V",null,null);
+                mv.visitCode();
+                inline(mv,"<clinit>",0);
+                mv.visitInsn(Opcodes.RETURN);
+                mv.visitMaxs(0,0);
+                mv.visitEnd();
+            }
+
+            super.visitEnd();
+        }
+
+        private boolean hasStaticInitializer() {
+            for (ClassInfo src : srcs) {
+                if( src.getMethod("<clinit>","()V") != null ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Insert in the given method the initialization code of the mixed
+         * classes.
+         *
+         * @param mv         the method where code is inserted
+         * @param name       <init> or <clinit>
+         * @param maxLocals  the number of local variables of the method
+         */
+        private void inline( MethodVisitor mv, final String name, int maxLocals ) {
+            for (int i = srcs.length-1; i > -1 ; i--) {
+                final int current = i;
+                final ClassInfo src = srcs[i];
+                final MethodVisitor target =
+                    new MixinMethodAdapter(
+                        new MethodRemapper(
+                            mv, new SimpleRemapper(src.name,this.target.name) ),
+                        current );
+                final int offset = Math.max(maxLocals-1,0);
+                final Label end = new Label();
+                new ClassReader(srcClasses[i]).accept(
+                    new ClassVisitor(API) {
+                        @Override
+                        public MethodVisitor visitMethod(
+                                int access, String mname, String desc,
+                                String signature, String[] exceptions ) {
+                            if( mname.equals(name) && desc.equals("()V") ) {
+                                return new InitializerInliner(
+                                    target, name.equals("<init>") ? src.superName : null,
+                                    offset, end );
+                            }
+                            return null;
+                        }
+                    },
+                    ClassReader.SKIP_FRAMES);
+                mv.visitLabel(end);
+            }
+        }
+
+        /**
+         * This visitor inserts the initialization code of the mixed classes
+         * in a constructor of the target class after the call to the super
+         * constructor. Constructors which call another constructor of the
+         * target class are left unchanged.
+         */
+        private class ConstructorAdapter extends MethodVisitor {
+
+            private int maxLocals;
+
+            /** The number of instances of the super class being created. */
+            private int pending;
+
+            private boolean inlined;
+
+            ConstructorAdapter( MethodVisitor mv, int maxLocals ) {
+                super(API,mv);
+                this.maxLocals = maxLocals;
+            }
+
+            @Override
+            public void visitTypeInsn( int opcode, String type ) {
+                if( opcode == Opcodes.NEW && type.equals(target.superName) ) {
+                    pending++;
+                }
+                super.visitTypeInsn(opcode,type);
+            }
+
+            @Override
+            public void visitMethodInsn(
+                    int opcode, String owner, String name, String desc,
+                    boolean itf ) {
+                super.visitMethodInsn(opcode,owner,name,desc,itf);
+                if( opcode == Opcodes.INVOKESPECIAL && name.equals("<init>") &&
+                    owner.equals(target.superName) && ! inlined ) {
+                    if( pending > 0 ) {
+                        pending--;
+                    }
+                    else {
+                        inline(mv,"<init>",maxLocals);
+                        inlined = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * This visitor inserts the static initializers of the mixed classes at
+         * the beginning of the static initializer of the target class.
+         */
+        private class StaticInitializerAdapter extends MethodVisitor {
+
+            private int maxLocals;
+
+            StaticInitializerAdapter( MethodVisitor mv, int maxLocals ) {
+                super(API,mv);
+                this.maxLocals = maxLocals;
+            }
+
+            @Override
+            public void visitCode() {
+                super.visitCode();
+                inline(mv,"<clinit>",maxLocals+1);
+            }
+        }
+
+        /**
+         * This visitor inserts the fields and methods of a mixed class in the
+         * target class.
+         */
+        private class MixinInserter extends ClassVisitor {
+
+            private ClassVisitor out;
+            private int current;
+            private ClassInfo src;
+            private Remapper remapper;
+
+            /**
+             * @param out      the visitor of the target class
+             * @param current  the position of the mixed class
+             */
+            MixinInserter( ClassVisitor out, int current ) {
+                super(API);
+                this.out = out;
+                this.current = current;
+                this.src = srcs[current];
+                this.remapper = new SimpleRemapper(src.name,target.name);
+            }
+
+            /**
+             * Insert all fields from the source class to the target class.
+             * Skip fields with a _this_ prefix.
+             */
+            @Override
+            public FieldVisitor visitField(
+                    int access, String name, String desc, String signature,
+                    Object value ) {
+
+                if( name.startsWith(MixinClassGenerator.THIS) ) {
+                    return null;
+                }
+                if( target.getField(name) != null ) {
+                    final String msg =
+                        "Field "+name+" mixed from "+
+                        Type.getObjectType(src.name).getClassName()+
+                        " is already defined in "+
+                        Type.getObjectType(target.name).getClassName();
+                    throw new IllegalArgumentException(msg);
+                }
+
+                FieldVisitor fv =
+                    out.visitField(
+                        access, name, remapper.mapDesc(desc),
+                        remapper.mapSignature(signature,true), value );
+                return new FieldRemapper(fv,remapper);
+            }
+
+            /**
+             * Insert the method, renamed following the name$99 scheme.
+             */
+            @Override
+            public MethodVisitor visitMethod(
+                    int access, String name, String desc, String signature,
+                    String[] exceptions ) {
+
+                String newName = renames.get(current).get(name+desc);
+                if( newName == null ) {
+                    // Initializer or abstract method
+                    return null;
+                }
+                String newDesc = remapper.mapMethodDesc(desc);
+                if( target.getMethod(newName,newDesc) != null ) {
+                    // Defined by the target class
+                    return null;
+                }
+
+                if( ! newName.equals(name) ) {
+                    access &= ~(Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED);
+                    access |= Opcodes.ACC_PRIVATE;
+                }
+
+                MethodVisitor mv =
+                    out.visitMethod(
+                        access, newName, newDesc,
+                        remapper.mapSignature(signature,false),
+                        exceptions == null ? null : remapper.mapTypes(exceptions) );
+                return new MixinMethodAdapter(new MethodRemapper(mv,remapper),current);
+            }
+        }
+
+        /**
+         * This visitor rewrites the code mixed from a source class:
+         * <ul>
+         * <li>the _this_ prefix is removed from invoked methods and accessed
+         * fields,</li>
+         * <li>calls to _super_ methods are redirected to the next method in the
+         * name$99 chain,</li>
+         * <li>calls to private methods are redirected to their renamed
+         * copies,</li>
+         * <li>super calls to the methods of the super class of the source
+         * class are redirected to the super class of the target class.</li>
+         * </ul>
+         * Type references to the source class are replaced by the next visitor.
+         */
+        private class MixinMethodAdapter extends MethodVisitor {
+
+            private int current;
+            private ClassInfo src;
+
+            MixinMethodAdapter( MethodVisitor mv, int current ) {
+                super(API,mv);
+                this.current = current;
+                this.src = srcs[current];
+            }
+
+            @Override
+            public void visitFieldInsn(
+                    int opcode, String owner, String name, String desc ) {
+                if( owner.equals(src.name) &&
+                    name.startsWith(MixinClassGenerator.THIS) ) {
+                    name = name.substring(MixinClassGenerator.THIS.length());
+                }
+                super.visitFieldInsn(opcode,owner,name,desc);
+            }
+
+            @Override
+            public void visitMethodInsn(
+                    int opcode, String owner, String name, String desc,
+                    boolean itf ) {
+
+                if( owner.equals(src.superName) &&
+                    opcode == Opcodes.INVOKESPECIAL && ! name.equals("<init>") ) {
+                    owner = target.superName;
+                }
+                else if( owner.equals(src.name) ) {
+                    if( name.startsWith(MixinClassGenerator.THIS) ) {
+                        name = name.substring(MixinClassGenerator.THIS.length());
+                    }
+                    else if( name.startsWith(MixinClassGenerator.SUPER) ) {
+                        name = getSuperName(name,desc);
+                        if( opcode != Opcodes.INVOKESTATIC ) {
+                            opcode = Opcodes.INVOKESPECIAL;
+                        }
+                    }
+                    else {
+                        name = getPrivateName(name,desc);
+                    }
+                }
+
+                super.visitMethodInsn(opcode,owner,name,desc,itf);
+            }
+
+            @Override
+            public void visitInvokeDynamicInsn(
+                    String name, String desc, Handle bsm, Object... bsmArgs ) {
+                Object[] args = new Object[bsmArgs.length];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = bsmArgs[i];
+                    if( bsmArgs[i] instanceof Handle ) {
+                        Handle h = (Handle) bsmArgs[i];
+                        if( h.getOwner().equals(src.name) ) {
+                            String hname = h.getName();
+                            if( hname.startsWith(MixinClassGenerator.THIS) ) {
+                                hname = hname.substring(MixinClassGenerator.THIS.length());
+                            }
+                            else {
+                                hname = getPrivateName(hname,h.getDesc());
+                            }
+                            args[i] =
+                                new Handle(
+                                    h.getTag(), h.getOwner(), hname, h.getDesc(),
+                                    h.isInterface() );
+                        }
+                    }
+                }
+                super.visitInvokeDynamicInsn(name,desc,bsm,args);
+            }
+
+            /**
+             * Return the name of the method following, in the name$99 chain,
+             * the "base" method, i.e. the method with the same signature
+             * inserted by the currently mixed class.
+             */
+            private String getSuperName( String name, String desc ) {
+                String invMethName =
+                    name.substring(MixinClassGenerator.SUPER.length());
+                SignatureTable.Chain chain =
+                    supers[current].getByKey(key(invMethName,desc));
+                if( chain == null || chain.getOwner() != current ) {
+                    /*
+                     * The mixed method calls _super_ but does not define a
+                     * corresponding base method.
+                     */
+                    final String msg =
+                        "A base method associated to the "+MixinClassGenerator.SUPER+
+                        invMethName+" call should have been found";
+                    throw new RuntimeException(msg);
+                }
+                return chain.getSuperName();
+            }
+
+            /**
+             * Return the name of the copy of the given method if it is a
+             * private method of the source class.
+             */
+            private String getPrivateName( String name, String desc ) {
+                Member m = src.getMethod(name,desc);
+                if( m == null || ! m.isPrivate() ) {
+                    return name;
+                }
+                String newName = renames.get(current).get(name+desc);
+                return newName == null ? name : newName;
+            }
+        }
+    }
+
+    /**
+     * This visitor copies the code of an initializer of a mixed class, without
+     * its call to the super constructor. Local variables are shifted after
+     * the ones of the method where the code is inserted and return
+     * instructions jump to the end of the inserted code.
+     */
+    private static class InitializerInliner extends MethodVisitor {
+
+        /** The super class of the mixed class, null for a static initializer. */
+        private String superName;
+        private int offset;
+        private Label end;
+
+        /** Whether the call to the super constructor has been visited. */
+        private boolean started;
+
+        private int pending;
+        private Set<Label> labels = new HashSet<Label>();
+
+        InitializerInliner(
+                MethodVisitor mv, String superName, int offset, Label end ) {
+            super(API,mv);
+            this.superName = superName;
+            this.offset = offset;
+            this.started = superName == null;
+            this.end = end;
+        }
+
+        private int shift( int var ) {
+            return var == 0 && superName != null ? 0 : var+offset;
+        }
+
+        @Override
+        public void visitParameter( String name, int access ) {
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotationDefault() {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation( String desc, boolean visible ) {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitTypeAnnotation(
+                int typeRef, TypePath typePath, String desc, boolean visible ) {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitParameterAnnotation(
+                int parameter, String desc, boolean visible ) {
+            return null;
+        }
+
+        @Override
+        public void visitAttribute( Attribute attr ) {
+        }
+
+        @Override
+        public void visitCode() {
+        }
+
+        @Override
+        public void visitFrame(
+                int type, int nLocal, Object[] local, int nStack, Object[] stack ) {
+        }
+
+        @Override
+        public void visitInsn( int opcode ) {
+            if( ! started ) {
+                return;
+            }
+            if( opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN ) {
+                super.visitJumpInsn(Opcodes.GOTO,end);
+                return;
+            }
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn( int opcode, int operand ) {
+            if( started ) {
+                super.visitIntInsn(opcode,operand);
+            }
+        }
+
+        @Override
+        public void visitVarInsn( int opcode, int var ) {
+            if( started ) {
+                super.visitVarInsn(opcode,shift(var));
+            }
+        }
+
+        @Override
+        public void visitTypeInsn( int opcode, String type ) {
+            if( ! started ) {
+                if( opcode == Opcodes.NEW && type.equals(superName) ) {
+                    pending++;
+                }
+                return;
+            }
+            super.visitTypeInsn(opcode,type);
+        }
+
+        @Override
+        public void visitFieldInsn(
+                int opcode, String owner, String name, String desc ) {
+            if( started ) {
+                super.visitFieldInsn(opcode,owner,name,desc);
+            }
+        }
+
+        @Override
+        public void visitMethodInsn(
+                int opcode, String owner, String name, String desc,
+                boolean itf ) {
+            if( ! started ) {
+                if( opcode == Opcodes.INVOKESPECIAL && name.equals("<init>") &&
+                    owner.equals(superName) ) {
+                    if( pending > 0 ) {
+                        pending--;
+                    }
+                    else {
+                        started = true;
+                    }
+                }
+                return;
+            }
+            super.visitMethodInsn(opcode,owner,name,desc,itf);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(
+                String name, String desc, Handle bsm, Object... bsmArgs ) {
+            if( started ) {
+                super.visitInvokeDynamicInsn(name,desc,bsm,bsmArgs);
+            }
+        }
+
+        @Override
+        public void visitJumpInsn( int opcode, Label label ) {
+            if( started ) {
+                super.visitJumpInsn(opcode,label);
+            }
+        }
+
+        @Override
+        public void visitLabel( Label label ) {
+            if( started ) {
+                labels.add(label);
+                super.visitLabel(label);
+            }
+        }
+
+        @Override
+        public void visitLdcInsn( Object value ) {
+            if( started ) {
+                super.visitLdcInsn(value);
+            }
+        }
+
+        @Override
+        public void visitIincInsn( int var, int increment ) {
+            if( started ) {
+                super.visitIincInsn(shift(var),increment);
+            }
+        }
+
+        @Override
+        public void visitTableSwitchInsn(
+                int min, int max, Label dflt, Label... labels ) {
+            if( started ) {
+                super.visitTableSwitchInsn(min,max,dflt,labels);
+            }
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(
+                Label dflt, int[] keys, Label[] labels ) {
+            if( started ) {
+                super.visitLookupSwitchInsn(dflt,keys,labels);
+            }
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn( String desc, int dims ) {
+            if( started ) {
+                super.visitMultiANewArrayInsn(desc,dims);
+            }
+        }
+
+        @Override
+        public AnnotationVisitor visitInsnAnnotation(
+                int typeRef, TypePath typePath, String desc, boolean visible ) {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitTryCatchAnnotation(
+                int typeRef, TypePath typePath, String desc, boolean visible ) {
+            return null;
+        }
+
+        @Override
+        public void visitLocalVariable(
+                String name, String desc, String signature, Label start,
+                Label end, int index ) {
+        }
+
+        @Override
+        public AnnotationVisitor visitLocalVariableAnnotation(
+                int typeRef, TypePath typePath, Label[] start, Label[] end,
+                int[] index, String desc, boolean visible ) {
+            return null;
+        }
+
+        @Override
+        public void visitLineNumber( int line, Label start ) {
+            if( labels.contains(start) ) {
+                super.visitLineNumber(line,start);
+            }
+        }
+
+        @Override
+        public void visitMaxs( int maxStack, int maxLocals ) {
+        }
+
+        @Override
+        public void visitEnd() {
+        }
+    }
+}
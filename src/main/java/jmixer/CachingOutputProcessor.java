@@ -0,0 +1,152 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import spoon.Launcher;
+import spoon.reflect.declaration.CtPackage;
+import spoon.reflect.declaration.CtSimpleType;
+import spoon.reflect.visitor.PrettyPrinter;
+import spoon.support.JavaOutputProcessor;
+
+/**
+ * A Java output processor which writes the woven classes found in a
+ * {@link WeavingCache} verbatim, and which stores the classes woven during
+ * the current run in the cache. It also leaves unchanged the source files of
+ * the classes which have already been written, e.g. by the streaming mode of
+ * {@link MixinProcessor}.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class CachingOutputProcessor extends JavaOutputProcessor {
+
+    private WeavingCache cache;
+
+    /** The cached woven source code of the classes which were not woven. */
+    private Map<String,byte[]> hits = new HashMap<String,byte[]>();
+
+    /** The cache keys of the classes woven during the current run. */
+    private Map<String,String> misses = new HashMap<String,String>();
+
+    /** The classes whose source file has already been written. */
+    private Set<String> written = new HashSet<String>();
+
+    /**
+     * @param cache  the weaving cache or <code>null</code> if no class is
+     *               cached
+     */
+    public CachingOutputProcessor(
+            File outputDirectory, PrettyPrinter printer, WeavingCache cache ) {
+        super(outputDirectory,printer);
+        this.cache = cache;
+    }
+
+    /**
+     * Record that the given class has not been woven and that its woven
+     * source code is the given cached one.
+     */
+    public void addHit( CtSimpleType<?> type, byte[] woven ) {
+        hits.put(type.getQualifiedName(),woven);
+    }
+
+    /**
+     * Record that the given class has been woven and that its source code
+     * must be stored in the cache with the given key.
+     */
+    public void addMiss( CtSimpleType<?> type, String key ) {
+        misses.put(type.getQualifiedName(),key);
+    }
+
+    /**
+     * Record that the source file of the given class has been written and
+     * must be left unchanged.
+     */
+    public void addWritten( CtSimpleType<?> type ) {
+        written.add(type.getQualifiedName());
+    }
+
+    @Override
+    public void process( CtSimpleType<?> type ) {
+
+        if( ! type.isTopLevel() ) {
+            super.process(type);
+            return;
+        }
+
+        String qname = type.getQualifiedName();
+        File file = getJavaFile(type);
+
+        if( written.contains(qname) ) {
+            if( ! getCreatedFiles().contains(file) ) {
+                getCreatedFiles().add(file);
+            }
+            return;
+        }
+
+        byte[] woven = hits.get(qname);
+        if( woven != null ) {
+            try {
+                file.getParentFile().mkdirs();
+                Files.write(file.toPath(),woven);
+                if( ! getCreatedFiles().contains(file) ) {
+                    getCreatedFiles().add(file);
+                }
+            }
+            catch( IOException ioe ) {
+                Launcher.logger.error(ioe.getMessage(),ioe);
+            }
+            getPrinter().reset();
+            return;
+        }
+
+        super.process(type);
+
+        String key = misses.get(qname);
+        if( key != null ) {
+            try {
+                cache.put(key,Files.readAllBytes(file.toPath()));
+            }
+            catch( IOException ioe ) {
+                Launcher.logger.error(ioe.getMessage(),ioe);
+            }
+        }
+    }
+
+    /**
+     * Return the file where the source code of the given top-level type is
+     * written.
+     */
+    private File getJavaFile( CtSimpleType<?> type ) {
+        CtPackage pack = type.getPackage();
+        File dir = getOutputDirectory();
+        if( ! pack.getQualifiedName().equals(CtPackage.TOP_LEVEL_PACKAGE_NAME) ) {
+            String path = pack.getQualifiedName().replace('.',File.separatorChar);
+            dir = new File(dir,path);
+        }
+        return new File(dir,type.getSimpleName()+".java");
+    }
+}
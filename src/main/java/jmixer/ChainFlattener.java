@@ -0,0 +1,461 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtLiteral;
+import spoon.reflect.code.CtLocalVariable;
+import spoon.reflect.code.CtNewClass;
+import spoon.reflect.code.CtReturn;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtTargetedAccess;
+import spoon.reflect.code.CtThisAccess;
+import spoon.reflect.code.CtVariableAccess;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtParameter;
+import spoon.reflect.declaration.CtSimpleType;
+import spoon.reflect.declaration.CtVariable;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtVariableReference;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+/**
+ * This class flattens the name$99 chains generated in a target class:
+ * <ul>
+ * <li>calls to the empty methods closing the chains are replaced by the
+ * value they return (or removed for void methods) and the empty methods are
+ * removed,</li>
+ * <li>a private method of a chain which is called once, from the same
+ * class, in tail position (return name$99(...);) or in statement position
+ * (name$99(...);), is inlined in its caller and removed.</li>
+ * </ul>
+ *
+ * The parameters of an inlined method become local variables initialized
+ * with the arguments, and its local variables are renamed when they clash
+ * with the ones of the caller. Its accesses to the fields hidden by the
+ * variables of the caller are qualified with <code>this</code>. Its doc
+ * comment is dropped: the caller keeps its own. A chain is left unchanged
+ * wherever flattening is not safe, e.g. when _super_ is called in the
+ * middle of an expression, when the called method is also called
+ * elsewhere, is synchronized or generic, or declares local or anonymous
+ * classes.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+class ChainFlattener {
+
+    private CtClass<?> target;
+    private Factory factory;
+
+    /** The private methods of the chains, in insertion order. */
+    private List<CtMethod<?>> methods = new ArrayList<CtMethod<?>>();
+
+    /** The empty methods closing the chains. */
+    private Set<CtMethod<?>> stubs =
+        Collections.newSetFromMap(
+            new IdentityHashMap<CtMethod<?>,Boolean>());
+
+    private int inlined;
+    private int removedStubs;
+
+    /**
+     * @param target  the target class
+     */
+    public ChainFlattener( CtClass<?> target ) {
+        this.target = target;
+        this.factory = target.getFactory();
+    }
+
+    /**
+     * Record a private method inserted in a chain.
+     */
+    public void addMethod( CtMethod<?> method ) {
+        methods.add(method);
+    }
+
+    /**
+     * Record an empty method closing a chain.
+     */
+    public void addStub( CtMethod<?> stub ) {
+        methods.add(stub);
+        stubs.add(stub);
+    }
+
+    /**
+     * Flatten the recorded chains. Methods are processed from the end of the
+     * chains: the callee of a method has been flattened when the method is
+     * inlined.
+     */
+    public void flatten() {
+        
+        /*
+         * The parents of the elements of cloned methods are not initialized.
+         */
+        target.updateAllParentsBelow();
+        
+        for (int i = methods.size()-1; i > -1; i--) {
+            CtMethod<?> method = methods.get(i);
+            if( stubs.contains(method) ) {
+                removeStub(method);
+            }
+            else {
+                inline(method);
+            }
+        }
+    }
+
+    /**
+     * Return the number of chain methods which have been inlined.
+     */
+    public int getInlined() {
+        return inlined;
+    }
+
+    /**
+     * Return the number of empty methods which have been removed.
+     */
+    public int getRemovedStubs() {
+        return removedStubs;
+    }
+
+    /**
+     * Replace the calls to the given empty method by the value it returns and
+     * remove the method once it is no longer called.
+     */
+    private void removeStub( CtMethod<?> stub ) {
+
+        List<CtInvocation<?>> calls = getCalls(stub);
+        if( calls == null ) {
+            return;
+        }
+
+        List<CtStatement> statements = stub.getBody().getStatements();
+        CtLiteral<?> value = null;
+        if( ! statements.isEmpty() ) {
+            CtStatement st = statements.get(0);
+            if( statements.size() > 1 || !(st instanceof CtReturn) ||
+                !(((CtReturn<?>)st).getReturnedExpression() instanceof CtLiteral) ) {
+                return;
+            }
+            value = (CtLiteral<?>) ((CtReturn<?>)st).getReturnedExpression();
+        }
+
+        int remaining = calls.size();
+        for (CtInvocation<?> call : calls) {
+
+            if( ! isPure(call.getArguments()) ) {
+                continue;
+            }
+
+            CtElement parent = call.getParent();
+            if( parent instanceof CtBlock ) {
+                ((CtBlock<?>)parent).removeStatement(call);
+            }
+            else if( value != null ) {
+                CtLiteral<?> lit = factory.Core().clone(value);
+                call.replace(lit);
+            }
+            else {
+                continue;
+            }
+            remaining--;
+        }
+
+        if( remaining == 0 ) {
+            target.removeMethod(stub);
+            removedStubs++;
+        }
+    }
+
+    /**
+     * Inline the given method in its single caller if this is safe.
+     */
+    private void inline( CtMethod<?> method ) {
+
+        if( ! isInlinable(method) ) {
+            return;
+        }
+        List<CtInvocation<?>> calls = getCalls(method);
+        if( calls == null || calls.size() != 1 ) {
+            return;
+        }
+        CtInvocation<?> call = calls.get(0);
+
+        CtMethod<?> caller = call.getParent(CtMethod.class);
+        if( caller == null || caller == method ||
+            caller.getDeclaringType() != target ) {
+            return;
+        }
+
+        /*
+         * The call must be in tail position or in statement position.
+         */
+        CtElement parent = call.getParent();
+        CtStatement site;
+        if( parent instanceof CtReturn &&
+            ((CtReturn<?>)parent).getReturnedExpression() == call ) {
+            site = (CtStatement) parent;
+        }
+        else if( parent instanceof CtBlock ) {
+            site = call;
+            if( hasReturn(method) &&
+                ( ! method.getType().getQualifiedName().equals("void") ||
+                  parent != caller.getBody() ||
+                  caller.getBody().getLastStatement() != call ) ) {
+                return;
+            }
+        }
+        else {
+            return;
+        }
+        if( !(site.getParent() instanceof CtBlock) ) {
+            return;
+        }
+        CtBlock<?> block = (CtBlock<?>) site.getParent();
+
+        /*
+         * Rename the variables of the inlined method which clash with names
+         * used by the caller.
+         */
+        Set<String> callerNames = new HashSet<String>();
+        for (CtVariable<?> var : caller.getElements(new TypeFilter<CtVariable<?>>(CtVariable.class))) {
+            callerNames.add(var.getSimpleName());
+        }
+        Set<String> callerVariables = new HashSet<String>(callerNames);
+        for (CtField<?> field : target.getFields()) {
+            callerNames.add(field.getSimpleName());
+        }
+        Set<String> used = new HashSet<String>(callerNames);
+        for (CtVariable<?> var : method.getElements(new TypeFilter<CtVariable<?>>(CtVariable.class))) {
+            used.add(var.getSimpleName());
+        }
+
+        /*
+         * The unqualified accesses to the fields hidden by the variables of
+         * the caller are qualified with this. Static fields can not be
+         * qualified: the method is not inlined.
+         */
+        for (CtFieldAccess<?> access : method.getBody().getElements(new TypeFilter<CtFieldAccess<?>>(CtFieldAccess.class))) {
+            if( access.getTarget() == null &&
+                access.getVariable().isStatic() &&
+                callerVariables.contains(access.getVariable().getSimpleName()) ) {
+                return;
+            }
+        }
+
+        CtBlock<?> body = factory.Core().clone(method.getBody());
+        for (CtFieldAccess<?> access : body.getElements(new TypeFilter<CtFieldAccess<?>>(CtFieldAccess.class))) {
+            if( access.getTarget() == null &&
+                callerVariables.contains(access.getVariable().getSimpleName()) ) {
+                CtThisAccess<?> self =
+                    factory.Code().createThisAccess(target.getReference());
+                access.setTarget((CtExpression)self);
+                self.setParent(access);
+            }
+        }
+        Map<String,String> names = new HashMap<String,String>();
+        for (CtVariable<?> var : method.getElements(new TypeFilter<CtVariable<?>>(CtVariable.class))) {
+            String name = var.getSimpleName();
+            if( callerNames.contains(name) && ! names.containsKey(name) ) {
+                names.put(name,rename(name,used));
+            }
+        }
+        for (CtVariable<?> var : body.getElements(new TypeFilter<CtVariable<?>>(CtVariable.class))) {
+            String name = names.get(var.getSimpleName());
+            if( name != null ) {
+                var.setSimpleName(name);
+            }
+        }
+        for (CtVariableAccess<?> access : body.getElements(new TypeFilter<CtVariableAccess<?>>(CtVariableAccess.class))) {
+            CtVariableReference<?> ref = access.getVariable();
+            if( ref instanceof CtFieldReference ) {
+                continue;
+            }
+            String name = names.get(ref.getSimpleName());
+            if( name != null ) {
+                ref.setSimpleName(name);
+            }
+        }
+
+        /*
+         * The parameters become local variables initialized with the
+         * arguments, followed by the statements of the inlined method.
+         */
+        List<CtStatement> inlinedStatements = new ArrayList<CtStatement>();
+        List<CtExpression<?>> args = call.getArguments();
+        List<CtParameter<?>> params = method.getParameters();
+        for (int i = 0; i < params.size(); i++) {
+            CtParameter<?> param = params.get(i);
+            CtLocalVariable<?> var =
+                factory.Code().createLocalVariable(
+                    factory.Core().clone(param.getType()),
+                    getName(names,param.getSimpleName()),
+                    (CtExpression) args.get(i) );
+            if( param.hasModifier(ModifierKind.FINAL) ) {
+                var.addModifier(ModifierKind.FINAL);
+            }
+            inlinedStatements.add(var);
+        }
+        inlinedStatements.addAll(body.getStatements());
+
+        List<CtStatement> statements = block.getStatements();
+        int index = indexOf(statements,site);
+        statements.remove(index);
+        statements.addAll(index,inlinedStatements);
+        for (CtStatement st : inlinedStatements) {
+            st.setParent(block);
+        }
+        block.updateAllParentsBelow();
+
+        target.removeMethod(method);
+        inlined++;
+    }
+
+    /**
+     * Return the calls to the given method in the target class or
+     * <code>null</code> if the calls can not be told apart from the calls to
+     * other methods, i.e. if another method has the same name and the same
+     * number of parameters, or if the method has a variable arity.
+     */
+    private List<CtInvocation<?>> getCalls( CtMethod<?> method ) {
+
+        String name = method.getSimpleName();
+        int arity = method.getParameters().size();
+        for (CtParameter<?> param : method.getParameters()) {
+            if( param.isVarArgs() ) {
+                return null;
+            }
+        }
+        for (CtMethod<?> other : target.getMethods()) {
+            if( other != method && other.getSimpleName().equals(name) &&
+                other.getParameters().size() == arity ) {
+                return null;
+            }
+        }
+
+        List<CtInvocation<?>> calls = new ArrayList<CtInvocation<?>>();
+        for (CtInvocation<?> call : target.getElements(new TypeFilter<CtInvocation<?>>(CtInvocation.class))) {
+            if( call.getExecutable().getSimpleName().equals(name) &&
+                call.getArguments().size() == arity ) {
+                CtExpression<?> t = call.getTarget();
+                if( t != null && !(t instanceof CtThisAccess) ) {
+                    return null;
+                }
+                calls.add(call);
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * Return whether the body of the given method can be copied in another
+     * method of the target class.
+     */
+    private static boolean isInlinable( CtMethod<?> method ) {
+
+        if( method.getBody() == null ||
+            ! method.getFormalTypeParameters().isEmpty() ||
+            method.hasModifier(ModifierKind.SYNCHRONIZED) ||
+            method.hasModifier(ModifierKind.NATIVE) ) {
+            return false;
+        }
+        if( ! method.getElements(new TypeFilter<CtNewClass<?>>(CtNewClass.class)).isEmpty() ||
+            ! method.getBody().getElements(new TypeFilter<CtSimpleType<?>>(CtSimpleType.class)).isEmpty() ) {
+            return false;
+        }
+        for (CtStatement st : method.getElements(new TypeFilter<CtStatement>(CtStatement.class))) {
+            if( st.getLabel() != null ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasReturn( CtMethod<?> method ) {
+        return ! method.getElements(new TypeFilter<CtReturn<?>>(CtReturn.class)).isEmpty();
+    }
+
+    /**
+     * Return whether evaluating the given expressions has no side effect.
+     */
+    private static boolean isPure( List<CtExpression<?>> exprs ) {
+        for (CtExpression<?> expr : exprs) {
+            if( expr instanceof CtLiteral || expr instanceof CtThisAccess ) {
+                continue;
+            }
+            if( expr instanceof CtTargetedAccess ) {
+                CtExpression<?> t = ((CtTargetedAccess<?>)expr).getTarget();
+                if( t == null || t instanceof CtThisAccess ) {
+                    continue;
+                }
+                return false;
+            }
+            if( expr instanceof CtVariableAccess ) {
+                continue;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static String getName( Map<String,String> names, String name ) {
+        String newName = names.get(name);
+        return newName == null ? name : newName;
+    }
+
+    /**
+     * Return a name based on the given one and not already used.
+     */
+    private static String rename( String name, Set<String> used ) {
+        for (int i = 0; ; i++) {
+            String newName = name + MixinClassGenerator.MIXED_METH_SEP + i;
+            if( ! used.contains(newName) ) {
+                used.add(newName);
+                return newName;
+            }
+        }
+    }
+
+    private static int indexOf( List<CtStatement> statements, CtStatement st ) {
+        for (int i = 0; i < statements.size(); i++) {
+            if( statements.get(i) == st ) {
+                return i;
+            }
+        }
+        throw new IllegalStateException(st+" not found in its parent block");
+    }
+}
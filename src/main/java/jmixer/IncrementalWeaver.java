@@ -0,0 +1,494 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spoon.Launcher;
+import spoon.compiler.SpoonCompiler;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.declaration.CtAnnotation;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtSimpleType;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class weaves target classes in a model which is kept between
+ * successive changes of the source files. When a mixed class changes, only
+ * the methods generated from the changed methods are woven again. When the
+ * signatures, the fields or the interfaces of a mixed class change, the
+ * affected target classes are woven again from their original (not woven)
+ * version. When a target class changes, it is woven again from its new
+ * version with the classes listed by its new @{@link Mixin} annotation.
+ *
+ * The generic mixed classes are bound to the type arguments given by the
+ * @{@link Mixin} annotation of each target class, as with
+ * {@link MixinProcessor}. The modes of the processor which only change the
+ * target classes, i.e. chain flattening, lock isolation and field layout,
+ * can be enabled: the targets are then woven again instead of having their
+ * method bodies rewritten, so that the result is the one of the processor.
+ * The modes which change the mixed classes, i.e. delegation and shared
+ * statics, are not supported.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class IncrementalWeaver {
+
+    private Factory factory;
+    private MixinDependencyGraph graph = new MixinDependencyGraph();
+
+    /** Target class name -> names of the mixed classes. */
+    private Map<String,String[]> mixins = new LinkedHashMap<String,String[]>();
+
+    /** Target class name -> target class before weaving. */
+    private Map<String,CtClass<?>> originals = new HashMap<String,CtClass<?>>();
+
+    /** The type arguments of the generic classes mixed in each target class. */
+    private Map<CtClass<?>,List<CtTypeReference<?>>> typeArguments =
+        new IdentityHashMap<CtClass<?>,List<CtTypeReference<?>>>();
+
+    private boolean flattenChains;
+    private boolean lockIsolation;
+    private boolean fieldLayout;
+
+    /**
+     * @param factory  the factory of the model where targets are woven
+     */
+    public IncrementalWeaver( Factory factory ) {
+        this.factory = factory;
+    }
+
+    public Factory getFactory() {
+        return factory;
+    }
+
+    public MixinDependencyGraph getDependencyGraph() {
+        return graph;
+    }
+
+    /**
+     * Flatten the chains of the woven classes, see
+     * {@link MixinClassGenerator#setFlattenChains(boolean)}.
+     */
+    public void setFlattenChains( boolean flattenChains ) {
+        this.flattenChains = flattenChains;
+    }
+
+    public boolean isFlattenChains() {
+        return flattenChains;
+    }
+
+    /**
+     * Isolate the synchronized methods of the mixed classes, see
+     * {@link MixinLocks}.
+     */
+    public void setLockIsolation( boolean lockIsolation ) {
+        this.lockIsolation = lockIsolation;
+    }
+
+    public boolean isLockIsolation() {
+        return lockIsolation;
+    }
+
+    /**
+     * Lay out the mixed fields, see {@link MixinLayout}.
+     */
+    public void setFieldLayout( boolean fieldLayout ) {
+        this.fieldLayout = fieldLayout;
+    }
+
+    public boolean isFieldLayout() {
+        return fieldLayout;
+    }
+
+    /**
+     * Return the names of the classes mixed in the given target class, or
+     * <code>null</code> if the class is not a target class.
+     */
+    public String[] getMixedClasses( String targetName ) {
+        String[] names = mixins.get(targetName);
+        return names == null ? null : names.clone();
+    }
+
+    /**
+     * Return whether the given class is a target class or a mixed class, i.e.
+     * whether a change of the class is handled by {@link #update(CtClass)}.
+     */
+    public boolean isTracked( String name ) {
+        return mixins.containsKey(name) || graph.isMixed(name);
+    }
+
+    /**
+     * Mix the specified classes in each target class and record the
+     * dependencies between the mixed classes and the target classes.
+     *
+     * @param targets      the target classes and the classes to mix in each
+     * @param parallelism  the number of threads
+     */
+    public void weave( Map<CtClass<?>,CtClass<?>[]> targets, int parallelism ) {
+
+        for (Map.Entry<CtClass<?>,CtClass<?>[]> entry : targets.entrySet()) {
+            CtClass<?> target = entry.getKey();
+            CtClass<?>[] srcClasses = entry.getValue();
+            String[] names = new String[srcClasses.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = srcClasses[i].getQualifiedName();
+            }
+            mixins.put(target.getQualifiedName(),names);
+            originals.put(
+                target.getQualifiedName(), factory.Core().clone(target) );
+            setTypeArguments(target,SpoonHelper.getTypeArguments(target));
+        }
+
+        MixinClassGenerator mcg = createGenerator();
+        mcg.generateAll(targets,parallelism);
+    }
+
+    /**
+     * Parse the given changed source files and update the target classes
+     * which depend on the classes they define.
+     *
+     * Spoon can not update a model in place: the changed files are parsed in
+     * a separate model with no classpath and the changed classes are copied
+     * in the woven model.
+     *
+     * @param changed  the changed source files
+     * @return         the target classes which have been updated
+     */
+    public Set<CtClass<?>> update( List<File> changed ) throws Exception {
+
+        SpoonCompiler comp = new Launcher().createCompiler();
+        comp.getFactory().getEnvironment().setNoClasspath(true);
+        for (File file : changed) {
+            comp.addInputSource(file);
+        }
+        comp.build();
+
+        Set<CtClass<?>> updated = new LinkedHashSet<CtClass<?>>();
+        for (CtSimpleType<?> type : comp.getFactory().Type().getAll()) {
+            if( type instanceof CtClass ) {
+                updated.addAll(update((CtClass<?>)type));
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Update the target classes which depend on the given changed class.
+     *
+     * @param changed  the new version of a mixed class or of a target class
+     * @return         the target classes which have been updated
+     */
+    public Set<CtClass<?>> update( CtClass<?> changed ) {
+
+        String name = changed.getQualifiedName();
+        CtClass<?> copy = factory.Core().clone(changed);
+        new FactoryRebinder(factory).scan(copy);
+
+        Set<CtClass<?>> updated = new LinkedHashSet<CtClass<?>>();
+
+        /*
+         * A target class changed: weave it again from its new version, with
+         * the classes and the type arguments of its new annotation.
+         */
+        if( mixins.containsKey(name) ) {
+            CtClass<?> target = factory.Class().get(name);
+            String[] names = SpoonHelper.getMixedClassNames(copy);
+            if( names == null ) {
+                graph.removeTarget(target);
+                mixins.remove(name);
+                originals.remove(name);
+                typeArguments.remove(target);
+                replaceMembers(target,copy);
+                target.setDocComment(copy.getDocComment());
+                updated.add(target);
+                return updated;
+            }
+            originals.put(name,copy);
+            mixins.put(name,names);
+            setTypeArguments(target,SpoonHelper.getTypeArguments(copy));
+            reweave(target);
+            updated.add(target);
+            return updated;
+        }
+
+        if( ! graph.isMixed(name) ) {
+            return updated;
+        }
+
+        CtClass<?> src = factory.Class().get(name);
+        Set<CtClass<?>> targets = graph.getTargets(name);
+
+        if( ! isSameStructure(src,copy) || hasLazyState(targets) ||
+            isSpecialized(src,targets) ||
+            flattenChains || lockIsolation || fieldLayout ) {
+
+            /*
+             * Replace the mixed class and weave all its targets again.
+             * The bodies mixed in targets with holders, specialized for type
+             * arguments, or transformed by a mode, are rewritten when
+             * weaving.
+             */
+            replaceMembers(src,copy);
+            for (CtClass<?> target : targets) {
+                reweave(target);
+            }
+            updated.addAll(targets);
+            return updated;
+        }
+
+        /*
+         * Only method bodies changed: update the methods generated from the
+         * changed methods.
+         */
+        Map<String,CtMethod<?>> newMeths = getMethodsBySignature(copy);
+        for (CtMethod<?> method : src.getMethods()) {
+
+            CtMethod<?> newMeth = newMeths.get(SignatureTable.key(method));
+            if( method.getBody() == null ||
+                method.getBody().toString().equals(newMeth.getBody().toString()) ) {
+                continue;
+            }
+
+            for (MixinDependencyGraph.Derived d : graph.getDerivedMethods(method)) {
+                CtClass<?> target = d.getTarget();
+                CtBlock<?> body = factory.Core().clone(newMeth.getBody());
+                MixinRewriter rewriter =
+                    new MixinRewriter(
+                        name, target.getSimpleName(),
+                        factory.Package().createReference(target.getPackage()),
+                        graph.getSuperTable(name,target),
+                        graph.getPosition(name,target) );
+                rewriter.scan(body);
+                d.getMethod().setBody((CtBlock)body);
+                body.setParent(d.getMethod());
+                body.updateAllParentsBelow();
+                updated.add(target);
+            }
+
+            CtBlock<?> body = newMeth.getBody();
+            method.setBody((CtBlock)body);
+            body.setParent(method);
+        }
+
+        return updated;
+    }
+
+    /**
+     * Weave again the given target class from its original version.
+     */
+    private void reweave( CtClass<?> target ) {
+
+        String name = target.getQualifiedName();
+        graph.removeTarget(target);
+
+        CtClass<?> original = factory.Core().clone(originals.get(name));
+        replaceMembers(target,original);
+        target.setDocComment(original.getDocComment());
+
+        String[] names = mixins.get(name);
+        CtClass<?>[] srcClasses = new CtClass<?>[names.length];
+        for (int i = 0; i < names.length; i++) {
+            srcClasses[i] = factory.Class().get(names[i]);
+            if( srcClasses[i] == null ) {
+                final String msg =
+                    "Mixed class "+names[i]+" of "+name+" not found in the model";
+                throw new IllegalArgumentException(msg);
+            }
+        }
+
+        MixinClassGenerator mcg = createGenerator();
+        mcg.generate(target,srcClasses);
+    }
+
+    /**
+     * Return a generator recording the dependencies in the graph of this
+     * weaver and configured with its modes.
+     */
+    private MixinClassGenerator createGenerator() {
+        MixinClassGenerator mcg = new MixinClassGenerator(factory);
+        mcg.setDependencyGraph(graph);
+        mcg.setTypeArguments(typeArguments);
+        mcg.setFlattenChains(flattenChains);
+        if( lockIsolation ) {
+            mcg.setLocks(new MixinLocks(factory));
+        }
+        if( fieldLayout ) {
+            mcg.setLayout(new MixinLayout(factory));
+        }
+        return mcg;
+    }
+
+    private void setTypeArguments(
+            CtClass<?> target, List<CtTypeReference<?>> arguments ) {
+        if( arguments == null ) {
+            typeArguments.remove(target);
+        }
+        else {
+            typeArguments.put(target,arguments);
+        }
+    }
+
+    /**
+     * Return whether some {@link LazyState} class is mixed in one of the
+     * given target classes.
+     */
+    private boolean hasLazyState( Set<CtClass<?>> targets ) {
+        for (CtClass<?> target : targets) {
+            for (String name : mixins.get(target.getQualifiedName())) {
+                CtClass<?> src = factory.Class().get(name);
+                if( src != null && MixinHolders.isLazy(src) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return whether the given generic mixed class is bound to type arguments
+     * in one of the given target classes.
+     */
+    private boolean isSpecialized( CtClass<?> src, Set<CtClass<?>> targets ) {
+        if( src.getFormalTypeParameters().isEmpty() ) {
+            return false;
+        }
+        for (CtClass<?> target : targets) {
+            if( typeArguments.containsKey(target) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the annotations, methods, fields and implemented interfaces of
+     * a class by the ones of another version of the same class.
+     */
+    private static void replaceMembers( CtClass<?> c, CtClass<?> version ) {
+
+        for (CtMethod<?> method : version.getMethods()) {
+            method.setParent(c);
+        }
+        for (CtField<?> field : version.getFields()) {
+            field.setParent(c);
+        }
+        c.setMethods(version.getMethods());
+        c.getFields().clear();
+        c.getFields().addAll(version.getFields());
+        c.setSuperInterfaces(version.getSuperInterfaces());
+        for (CtAnnotation<?> annotation : version.getAnnotations()) {
+            annotation.setParent(c);
+        }
+        c.setAnnotations(version.getAnnotations());
+    }
+
+    /**
+     * Return whether two versions of a mixed class define the same methods
+     * (signatures and modifiers), the same fields and the same interfaces.
+     * Method bodies are not compared.
+     */
+    private static boolean isSameStructure( CtClass<?> c, CtClass<?> version ) {
+
+        Map<String,CtMethod<?>> meths = getMethodsBySignature(c);
+        Map<String,CtMethod<?>> newMeths = getMethodsBySignature(version);
+        if( ! meths.keySet().equals(newMeths.keySet()) ) {
+            return false;
+        }
+        for (Map.Entry<String,CtMethod<?>> entry : meths.entrySet()) {
+            CtMethod<?> meth = entry.getValue();
+            CtMethod<?> newMeth = newMeths.get(entry.getKey());
+            if( ! meth.getModifiers().equals(newMeth.getModifiers()) ||
+                ! meth.getType().toString().equals(newMeth.getType().toString()) ) {
+                return false;
+            }
+        }
+
+        if( ! toStrings(c.getFields()).equals(toStrings(version.getFields())) ) {
+            return false;
+        }
+
+        List<String> itfs = new ArrayList<String>();
+        for (CtTypeReference<?> itf : c.getSuperInterfaces()) {
+            itfs.add(itf.toString());
+        }
+        List<String> newItfs = new ArrayList<String>();
+        for (CtTypeReference<?> itf : version.getSuperInterfaces()) {
+            newItfs.add(itf.toString());
+        }
+        return itfs.equals(newItfs);
+    }
+
+    private static Map<String,CtMethod<?>> getMethodsBySignature( CtClass<?> c ) {
+        Map<String,CtMethod<?>> meths = new HashMap<String,CtMethod<?>>();
+        for (CtMethod<?> method : c.getMethods()) {
+            meths.put(SignatureTable.key(method),method);
+        }
+        return meths;
+    }
+
+    private static List<String> toStrings( List<? extends CtElement> elements ) {
+        List<String> strings = new ArrayList<String>();
+        for (CtElement element : elements) {
+            strings.add(element.toString());
+        }
+        return strings;
+    }
+
+    /**
+     * Set the factory of all the elements and references of a tree copied
+     * from another model.
+     */
+    private static class FactoryRebinder extends CtScanner {
+
+        private Factory factory;
+
+        FactoryRebinder( Factory factory ) {
+            this.factory = factory;
+        }
+
+        @Override
+        protected void enter( CtElement e ) {
+            e.setFactory(factory);
+        }
+
+        @Override
+        public void scan( CtReference reference ) {
+            if( reference != null ) {
+                reference.setFactory(factory);
+            }
+            super.scan(reference);
+        }
+    }
+}
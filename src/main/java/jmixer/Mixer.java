@@ -0,0 +1,360 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * This class composes mixins at runtime. For example:
+ *
+ * <pre>
+ * Class&lt;? extends Bird&gt; c =
+ *     Mixer.compose(Bird.class, Flying.class, Swimming.class);
+ * </pre>
+ *
+ * returns a subclass of Bird in which Flying and Swimming are mixed with the
+ * semantics of the @{@link Mixin} annotation. The subclass defines the public
+ * and protected constructors of Bird.
+ *
+ * Composed classes are defined as hidden classes in the package of the base
+ * class (or of the first mixed class if the base class is a java.* class)
+ * when the JVM supports them (Java 15 or later), and else in a new class
+ * loader. In both cases, they can be unloaded once evicted from the cache.
+ *
+ * Composed classes are cached under the base class and the ordered mixed
+ * classes. The cache is bounded and evicts the least recently used classes.
+ * Concurrent requests for the same composition generate it once.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class Mixer {
+
+    /** The default number of composed classes kept in the cache. */
+    final public static int DEFAULT_CACHE_SIZE = 128;
+
+    final private static Mixer DEFAULT = new Mixer(DEFAULT_CACHE_SIZE);
+
+    final private static AtomicInteger counter = new AtomicInteger();
+
+    private Map<List<Class<?>>,FutureTask<Class<?>>> cache;
+    private AtomicInteger generated = new AtomicInteger();
+
+    /**
+     * @param cacheSize  the maximum number of composed classes in the cache
+     */
+    public Mixer( final int cacheSize ) {
+        cache =
+            new LinkedHashMap<List<Class<?>>,FutureTask<Class<?>>>(16,0.75f,true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<List<Class<?>>,FutureTask<Class<?>>> eldest ) {
+                    return size() > cacheSize;
+                }
+            };
+    }
+
+    /**
+     * Return a subclass of the base class in which the given classes are
+     * mixed, using the default cache.
+     *
+     * @param base    the base class (or interface)
+     * @param mixins  the classes to mix
+     */
+    public static <T> Class<? extends T> compose( Class<T> base, Class<?>... mixins ) {
+        return DEFAULT.get(base,mixins);
+    }
+
+    /**
+     * Return a subclass of the base class in which the given classes are
+     * mixed.
+     *
+     * @param base    the base class (or interface)
+     * @param mixins  the classes to mix
+     */
+    public <T> Class<? extends T> get( final Class<T> base, final Class<?>... mixins ) {
+
+        List<Class<?>> key = new ArrayList<Class<?>>();
+        key.add(base);
+        key.addAll(Arrays.asList(mixins));
+
+        FutureTask<Class<?>> task;
+        boolean owner = false;
+        synchronized(cache) {
+            task = cache.get(key);
+            if( task == null ) {
+                task =
+                    new FutureTask<Class<?>>(
+                        new Callable<Class<?>>() {
+                            public Class<?> call() throws Exception {
+                                generated.incrementAndGet();
+                                return generate(base,mixins);
+                            }
+                        }
+                    );
+                cache.put(key,task);
+                owner = true;
+            }
+        }
+
+        /*
+         * The composition is generated by the first caller, outside the lock
+         * of the cache. Other callers wait for it.
+         */
+        if( owner ) {
+            task.run();
+        }
+
+        try {
+            Class<?> c = task.get();
+            return c.asSubclass(base);
+        }
+        catch( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        }
+        catch( ExecutionException ee ) {
+            synchronized(cache) {
+                if( cache.get(key) == task ) {
+                    cache.remove(key);
+                }
+            }
+            Throwable cause = ee.getCause();
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Return the number of composed classes generated so far.
+     */
+    public int getGenerated() {
+        return generated.get();
+    }
+
+    /**
+     * Return the number of composed classes in the cache.
+     */
+    public int size() {
+        synchronized(cache) {
+            return cache.size();
+        }
+    }
+
+    private static Class<?> generate( Class<?> base, Class<?>[] mixins )
+    throws Exception {
+
+        Class<?> host = base;
+        if( base.getName().startsWith("java.") ) {
+            if( mixins.length == 0 ) {
+                final String msg =
+                    "Can not compose "+base.getName()+" without mixed classes";
+                throw new IllegalArgumentException(msg);
+            }
+            host = mixins[0];
+        }
+
+        String name =
+            Type.getInternalName(host)+"$$Mixin$"+counter.incrementAndGet();
+        byte[] target = createTarget(name,base);
+
+        byte[][] srcClasses = new byte[mixins.length][];
+        for (int i = 0; i < mixins.length; i++) {
+            srcClasses[i] = getClassFile(mixins[i]);
+        }
+
+        ClassLoader loader = getClassLoader(host);
+        byte[] bytes = new BytecodeMixinGenerator(loader).generate(target,srcClasses);
+        return define(host,name,bytes);
+    }
+
+    /**
+     * Return the class file of a class extending (or implementing) the base
+     * class and defining its public and protected constructors.
+     */
+    private static byte[] createTarget( String name, Class<?> base ) {
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        String superName =
+            base.isInterface() ?
+            "java/lang/Object" : Type.getInternalName(base);
+        String[] interfaces =
+            base.isInterface() ?
+            new String[]{Type.getInternalName(base)} : new String[0];
+        cw.visit(
+            Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null,
+            superName, interfaces );
+
+        List<Constructor<?>> ctors = new ArrayList<Constructor<?>>();
+        if( base.isInterface() ) {
+            ctors.add(null);
+        }
+        else {
+            for (Constructor<?> ctor : base.getDeclaredConstructors()) {
+                int mod = ctor.getModifiers();
+                if( Modifier.isPublic(mod) || Modifier.isProtected(mod) ) {
+                    ctors.add(ctor);
+                }
+            }
+        }
+
+        for (Constructor<?> ctor : ctors) {
+            String desc =
+                ctor == null ? "()V" : Type.getConstructorDescriptor(ctor);
+            String[] exceptions = null;
+            if( ctor != null && ctor.getExceptionTypes().length != 0 ) {
+                Class<?>[] ets = ctor.getExceptionTypes();
+                exceptions = new String[ets.length];
+                for (int i = 0; i < ets.length; i++) {
+                    exceptions[i] = Type.getInternalName(ets[i]);
+                }
+            }
+            MethodVisitor mv =
+                cw.visitMethod(Opcodes.ACC_PUBLIC,"<init>",desc,null,exceptions);
+            mv.visitCode();
+            mv.visitVarInsn(Opcodes.ALOAD,0);
+            int var = 1;
+            for (Type t : Type.getArgumentTypes(desc)) {
+                mv.visitVarInsn(t.getOpcode(Opcodes.ILOAD),var);
+                var += t.getSize();
+            }
+            mv.visitMethodInsn(
+                Opcodes.INVOKESPECIAL, superName, "<init>", desc, false );
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0,0);
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] getClassFile( Class<?> c ) throws IOException {
+        BytecodeMixinGenerator bmg = new BytecodeMixinGenerator(getClassLoader(c));
+        byte[] bytes = bmg.getClassFile(Type.getInternalName(c));
+        if( bytes == null ) {
+            throw new IOException("Class file of "+c.getName()+" not found");
+        }
+        return bytes;
+    }
+
+    private static ClassLoader getClassLoader( Class<?> c ) {
+        ClassLoader loader = c.getClassLoader();
+        return loader == null ? ClassLoader.getSystemClassLoader() : loader;
+    }
+
+    /**
+     * Define the composed class as a hidden class in the package of the host
+     * class, or in a new class loader if hidden classes are not supported.
+     */
+    private static Class<?> define( Class<?> host, String name, byte[] bytes )
+    throws Exception {
+
+        if( DEFINE_HIDDEN_CLASS != null ) {
+            try {
+                Object lookup =
+                    PRIVATE_LOOKUP_IN.invoke(null,host,MethodHandles.lookup());
+                Object options = Array.newInstance(CLASS_OPTION,0);
+                MethodHandles.Lookup hidden =
+                    (MethodHandles.Lookup)
+                    DEFINE_HIDDEN_CLASS.invoke(lookup,bytes,true,options);
+                return hidden.lookupClass();
+            }
+            catch( InvocationTargetException ite ) {
+                Throwable cause = ite.getCause();
+                if( cause instanceof Exception ) {
+                    throw (Exception) cause;
+                }
+                throw (Error) cause;
+            }
+        }
+
+        ComposedClassLoader loader = new ComposedClassLoader(getClassLoader(host));
+        return loader.define(name.replace('/','.'),bytes);
+    }
+
+    /*
+     * The Java 15 API for defining hidden classes, retrieved by reflection
+     * since JMixer is compiled for Java 8.
+     */
+    final private static Method PRIVATE_LOOKUP_IN;
+    final private static Method DEFINE_HIDDEN_CLASS;
+    final private static Class<?> CLASS_OPTION;
+    static {
+        Method privateLookupIn = null;
+        Method defineHiddenClass = null;
+        Class<?> classOption = null;
+        try {
+            privateLookupIn =
+                MethodHandles.class.getMethod(
+                    "privateLookupIn", Class.class, MethodHandles.Lookup.class );
+            classOption =
+                Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            defineHiddenClass =
+                MethodHandles.Lookup.class.getMethod(
+                    "defineHiddenClass", byte[].class, boolean.class,
+                    Array.newInstance(classOption,0).getClass() );
+        }
+        catch( Exception e ) {
+            // Hidden classes are not supported: use class loaders
+            privateLookupIn = null;
+            defineHiddenClass = null;
+        }
+        PRIVATE_LOOKUP_IN = privateLookupIn;
+        DEFINE_HIDDEN_CLASS = defineHiddenClass;
+        CLASS_OPTION = classOption;
+    }
+
+    /**
+     * A class loader defining a single composed class.
+     */
+    private static class ComposedClassLoader extends ClassLoader {
+
+        ComposedClassLoader( ClassLoader parent ) {
+            super(parent);
+        }
+
+        Class<?> define( String name, byte[] bytes ) {
+            return defineClass(name,bytes,0,bytes.length);
+        }
+    }
+}
@@ -23,8 +23,17 @@ package jmixer;
  * This annotation defines the classes that are mixed into the class that is
  * annotated.
  * 
+ * The type arguments of the generic mixed classes are given, in the order of
+ * the mixed classes and of their type parameters, by
+ * <code>typeArguments</code>. When a type argument is a primitive type, the
+ * methods and fields of the mixed class are specialized for this type, e.g.
+ * <code>@Mixin(value={Accumulating.class}, typeArguments={long.class})</code>
+ * mixes <code>Accumulating&lt;T&gt;</code> with <code>long</code> in place of
+ * <code>T</code>. The mixed classes are raw when no type arguments are given.
+ * 
  * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
  */
 public @interface Mixin {
 	Class<?>[] value();
+	Class<?>[] typeArguments() default {};
 }
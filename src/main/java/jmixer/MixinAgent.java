@@ -0,0 +1,103 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+
+/**
+ * A Java agent which weaves the classes annotated with @{@link Mixin} when
+ * they are loaded. Usage:
+ *
+ * <pre>
+ * java -javaagent:jmixer.jar[=options] ...
+ * </pre>
+ *
+ * where options is a comma separated list of:
+ * <ul>
+ * <li>cache=dir: the directory of the persistent cache of woven classes,</li>
+ * <li>size=n: the number of entries of the in-memory cache,</li>
+ * <li>report=false: do not report the time spent weaving on exit.</li>
+ * </ul>
+ * The ASM library must be available on the class path.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinAgent {
+
+    private static MixinTransformer transformer;
+
+    public static void premain( String args, Instrumentation inst ) {
+
+        String cacheDirectory = null;
+        int size = MixinTransformer.DEFAULT_CACHE_SIZE;
+        boolean report = true;
+
+        if( args != null ) {
+            for (String arg : args.split(",")) {
+                int eq = arg.indexOf('=');
+                String name = eq == -1 ? arg : arg.substring(0,eq);
+                String value = eq == -1 ? "" : arg.substring(eq+1);
+                if( name.equals("cache") ) {
+                    cacheDirectory = value;
+                }
+                else if( name.equals("size") ) {
+                    size = Integer.parseInt(value);
+                }
+                else if( name.equals("report") ) {
+                    report = Boolean.parseBoolean(value);
+                }
+                else if( name.length() != 0 ) {
+                    System.err.println("jmixer: unknown agent option "+name);
+                }
+            }
+        }
+
+        WeavingCache cache = null;
+        if( cacheDirectory != null ) {
+            cache = new WeavingCache(new File(cacheDirectory),".class");
+        }
+        transformer = new MixinTransformer(cache,size);
+        inst.addTransformer(transformer);
+
+        if( report ) {
+            Runtime.getRuntime().addShutdownHook(
+                new Thread() {
+                    @Override
+                    public void run() {
+                        System.err.println(transformer);
+                    }
+                }
+            );
+        }
+    }
+
+    public static void agentmain( String args, Instrumentation inst ) {
+        premain(args,inst);
+    }
+
+    /**
+     * Return the transformer installed by the agent, or <code>null</code> if
+     * the agent is not running.
+     */
+    public static MixinTransformer getTransformer() {
+        return transformer;
+    }
+}
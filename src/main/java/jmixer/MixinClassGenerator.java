@@ -19,16 +19,27 @@
 
 package jmixer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import spoon.reflect.code.CtBlock;
-import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtExpression;
 import spoon.reflect.code.CtInvocation;
-import spoon.reflect.code.CtLiteral;
 import spoon.reflect.code.CtReturn;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtSuperAccess;
 import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
 import spoon.reflect.declaration.CtField;
 import spoon.reflect.declaration.CtMethod;
 import spoon.reflect.declaration.CtParameter;
@@ -38,9 +49,6 @@ import spoon.reflect.reference.CtExecutableReference;
 import spoon.reflect.reference.CtFieldReference;
 import spoon.reflect.reference.CtPackageReference;
 import spoon.reflect.reference.CtTypeReference;
-import spoon.reflect.visitor.Query;
-import spoon.reflect.visitor.filter.AbstractFilter;
-import spoon.reflect.visitor.filter.ReferenceTypeFilter;
 
 /**
  * This class implements the mixin algorithm.
@@ -57,17 +65,224 @@ public class MixinClassGenerator {
 
     /** The separator for mixed method names. */
     final public static char MIXED_METH_SEP = '$';
-  
+    
   
     private Factory factory;
+    
+    /** The graph recording the generated methods (may be null). */
+    private MixinDependencyGraph graph;
+    
+    /** The templates of the mixed classes. */
+    private MixinTemplateCache templates;
+    
+    /** Whether the name$99 chains are flattened. */
+    private boolean flattenChains;
+    
+    /** Whether the mixed methods are delegated to shared implementations. */
+    private boolean delegation;
+    
+    /** Whether the static fields of the mixed classes are shared. */
+    private boolean sharedStatics;
+    
+    /** The metrics of the woven targets (may be null). */
+    private WeavingMetrics metrics;
+    
+    /** Records the mixed members to be finalized (may be null). */
+    private MixinFinalizer finalizer;
+    
+    /** Skips the classes mixed in superclasses (may be null). */
+    private MixinHierarchy hierarchy;
+    
+    /** The lock isolation of the synchronized mixed methods (may be null). */
+    private MixinLocks locks;
+    
+    /** The holders of the state of the {@link LazyState} mixed classes. */
+    private MixinHolders holders;
+    
+    /** The layout of the mixed fields (may be null). */
+    private MixinLayout layout;
+    
+    /** Target class -> type arguments of its mixed classes (may be null). */
+    private Map<CtClass<?>,List<CtTypeReference<?>>> typeArguments;
   
     /**
      * @param factory  a Spoon factory to retrieve and generate code
      */
     public MixinClassGenerator( Factory factory ) {
         this.factory = factory;
+        this.templates = new MixinTemplateCache(factory);
+        this.holders = new MixinHolders(factory);
+    }
+    
+    /**
+     * Share the given templates of the mixed classes, e.g. between the
+     * generators of a same run.
+     */
+    public void setTemplateCache( MixinTemplateCache templates ) {
+        this.templates = templates;
+    }
+    
+    public MixinTemplateCache getTemplateCache() {
+        return templates;
+    }
+    
+    /**
+     * Record the dependencies between the mixed classes and the target
+     * classes in the given graph when generating code.
+     */
+    public void setDependencyGraph( MixinDependencyGraph graph ) {
+        this.graph = graph;
+    }
+    
+    public MixinDependencyGraph getDependencyGraph() {
+        return graph;
+    }
+    
+    /**
+     * Flatten the name$99 chains generated in the target classes (disabled by
+     * default). The methods of a chain which are called with _super_ in tail
+     * or in statement position are inlined in their caller, and the empty
+     * methods closing the chains are removed. See {@link ChainFlattener}.
+     * 
+     * The methods recorded in the dependency graph are the ones generated
+     * before flattening: flattened targets are woven again, not updated in
+     * place, by {@link IncrementalWeaver}.
+     */
+    public void setFlattenChains( boolean flattenChains ) {
+        this.flattenChains = flattenChains;
+    }
+    
+    public boolean isFlattenChains() {
+        return flattenChains;
+    }
+    
+    /**
+     * Delegate the mixed methods to shared implementations instead of copying
+     * them in each target class (disabled by default). The bodies of the
+     * methods are emitted once, as static methods of a class nested in the
+     * mixed class, and the target classes receive forwarding methods. Methods
+     * which can not be delegated, e.g. the ones accessing fields, are copied.
+     * See {@link MixinDelegation}.
+     * 
+     * The number of elements saved is returned by
+     * {@link MixinTemplateCache#getSavedNodes()}.
+     */
+    public void setDelegation( boolean delegation ) {
+        this.delegation = delegation;
+    }
+    
+    public boolean isDelegation() {
+        return delegation;
+    }
+    
+    /**
+     * Keep the static fields and the static initializers of the mixed
+     * classes in a single class nested in each mixed class instead of
+     * copying them in each target class (disabled by default). The accesses
+     * to the static fields are redirected to this class. See
+     * {@link MixinStatics}.
+     */
+    public void setSharedStatics( boolean sharedStatics ) {
+        this.sharedStatics = sharedStatics;
+    }
+    
+    public boolean isSharedStatics() {
+        return sharedStatics;
+    }
+    
+    /**
+     * Record the timings and counters of the weaving of each target class in
+     * the given metrics. Nothing is measured when no metrics are set.
+     */
+    public void setMetrics( WeavingMetrics metrics ) {
+        this.metrics = metrics;
+    }
+    
+    public WeavingMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Record the mixed methods and fields in the given finalizer. They are
+     * finalized when {@link MixinFinalizer#finalizeTargets()} is called, once
+     * all the targets are woven.
+     */
+    public void setFinalizer( MixinFinalizer finalizer ) {
+        this.finalizer = finalizer;
+    }
+    
+    public MixinFinalizer getFinalizer() {
+        return finalizer;
+    }
+    
+    /**
+     * Do not mix again in a target class the classes which are already mixed
+     * in one of its superclasses, see {@link MixinHierarchy}. Nothing is
+     * skipped when no hierarchy is set.
+     */
+    public void setHierarchy( MixinHierarchy hierarchy ) {
+        this.hierarchy = hierarchy;
+    }
+    
+    public MixinHierarchy getHierarchy() {
+        return hierarchy;
+    }
+    
+    /**
+     * Give each mixed class a private lock for its synchronized methods and
+     * blocks instead of the target instance, see {@link MixinLocks}. The
+     * synchronized methods are copied unchanged when no locks are set.
+     */
+    public void setLocks( MixinLocks locks ) {
+        this.locks = locks;
+    }
+    
+    public MixinLocks getLocks() {
+        return locks;
+    }
+    
+    /**
+     * Record the holders of the state of the mixed classes annotated with
+     * {@link LazyState} in the given instance, e.g. to report the sizes saved
+     * by several generators.
+     */
+    public void setHolders( MixinHolders holders ) {
+        this.holders = holders;
+    }
+    
+    public MixinHolders getHolders() {
+        return holders;
+    }
+    
+    /**
+     * Lay out the fields mixed in each target class once it is woven, see
+     * {@link MixinLayout}. The fields are left in the order of the mixed
+     * classes when no layout is set.
+     */
+    public void setLayout( MixinLayout layout ) {
+        this.layout = layout;
+    }
+    
+    public MixinLayout getLayout() {
+        return layout;
     }
   
+    /**
+     * Bind the type parameters of the generic classes mixed in each target
+     * class to the given type arguments, listed in the order of the mixed
+     * classes and of their type parameters. The mixed classes are specialized
+     * for these arguments, see {@link MixinSpecialization}. The classes mixed
+     * in the other targets are mixed raw.
+     */
+    public void setTypeArguments(
+            Map<CtClass<?>,List<CtTypeReference<?>>> typeArguments ) {
+        this.typeArguments = typeArguments;
+    }
+    
+    public Map<CtClass<?>,List<CtTypeReference<?>>> getTypeArguments() {
+        return typeArguments;
+    }
+    
     /**
      * Mix the specified classes in the target class.
      * 
@@ -75,35 +290,191 @@ public class MixinClassGenerator {
      * @param srcClasses   the classes to mix
      */
     public void generate( CtClass<?> target, CtClass<?>... srcClasses ) {      
-      processMethods(target,srcClasses);
-      processFields(target);
+      WeavingMetrics.Target tm =
+          metrics == null ? null : metrics.start(target.getQualifiedName());
+      ChainFlattener flattener =
+          flattenChains ? new ChainFlattener(target) : null;
+      
+      /*
+       * Skip the classes already mixed in a superclass.
+       */
+      List<List<CtTypeReference<?>>> arguments =
+          getTypeArguments(target,srcClasses);
+      List<MixinTemplate> inherited = new ArrayList<MixinTemplate>();
+      if( hierarchy != null ) {
+          List<CtTypeReference<?>> args =
+              typeArguments == null ? null : typeArguments.get(target);
+          hierarchy.addTarget(target,srcClasses,args);
+          int count = hierarchy.getInherited(target,srcClasses,args);
+          
+          /*
+           * The inherited classes are bound to the type arguments of the
+           * superclass, which are the ones of the target class.
+           */
+          for (int i = 0; i < count; i++) {
+              inherited.add(templates.get(srcClasses[i],arguments.get(i)));
+          }
+          hierarchy.skipped(inherited);
+          srcClasses =
+              Arrays.copyOfRange(srcClasses,count,srcClasses.length);
+          arguments = arguments.subList(count,arguments.size());
+      }
+      
+      processMethods(target,srcClasses,arguments,inherited,flattener,tm);
+      if( flattener != null ) {
+          long t = tm == null ? 0 : System.nanoTime();
+          flattener.flatten();
+          if( tm != null ) tm.add(WeavingMetrics.Phase.FLATTENING,t);
+      }
+      if( layout != null ) {
+          long t = tm == null ? 0 : System.nanoTime();
+          layout.layout(target);
+          if( tm != null ) tm.add(WeavingMetrics.Phase.LAYOUT,t);
+      }
+      if( tm != null ) {
+          metrics.done(tm);
+      }
     }
-
+    
     /**
-     * Remove the _this_ prefix in all field accesses defined in the given class.
+     * Mix the specified classes in each target class. Targets are woven
+     * concurrently on a fork-join pool with the given parallelism.
+     * 
+     * Weaving a target only reads the mixed classes, mutates the target and
+     * allocates new elements with the factory. Targets can then be woven
+     * concurrently as long as no target is also a mixed class. The targets
+     * which are mixed in other targets are woven first, in a previous wave,
+     * so that the other targets mix their woven version. The targets which
+     * are mixed in each other are woven sequentially. The result does not
+     * depend on the number of threads.
+     * 
+     * @param targets      the target classes and the classes to mix in each
+     * @param parallelism  the number of threads
      */
-    private void processFields( CtClass<?> target ) {
-      
-        // Get all the field accesses contained in target
-        List<CtFieldAccess<?>> fas =
-            Query.getElements(
-                target,
-                new AbstractFilter<CtFieldAccess<?>>(CtFieldAccess.class) {
-                    public boolean matches( CtFieldAccess<?> fa) {
-                        return true;
+    public void generateAll(
+            Map<CtClass<?>,CtClass<?>[]> targets, int parallelism ) {
+        
+        if( hierarchy != null ) {
+            for (Map.Entry<CtClass<?>,CtClass<?>[]> entry : targets.entrySet()) {
+                hierarchy.addTarget(
+                    entry.getKey(),entry.getValue(),
+                    typeArguments == null ?
+                        null : typeArguments.get(entry.getKey()));
+            }
+        }
+        
+        /*
+         * Mixed classes are shared between targets and must not be woven
+         * while being read: a wave only contains targets which are not mixed
+         * in the targets of the same or of a later wave.
+         */
+        Map<CtClass<?>,CtClass<?>[]> remaining =
+            new LinkedHashMap<CtClass<?>,CtClass<?>[]>(targets);
+        while( ! remaining.isEmpty() ) {
+            
+            Set<String> names = new HashSet<String>();
+            for (CtClass<?> target : remaining.keySet()) {
+                names.add(target.getQualifiedName());
+            }
+            Map<CtClass<?>,CtClass<?>[]> wave =
+                new LinkedHashMap<CtClass<?>,CtClass<?>[]>();
+            for (Map.Entry<CtClass<?>,CtClass<?>[]> entry : remaining.entrySet()) {
+                if( ! isMixingTarget(entry.getKey(),entry.getValue(),names) ) {
+                    wave.put(entry.getKey(),entry.getValue());
+                }
+            }
+            
+            /*
+             * The targets are mixed in each other: weave the first one.
+             */
+            if( wave.isEmpty() ) {
+                Map.Entry<CtClass<?>,CtClass<?>[]> first =
+                    remaining.entrySet().iterator().next();
+                wave.put(first.getKey(),first.getValue());
+            }
+            
+            remaining.keySet().removeAll(wave.keySet());
+            generateWave(wave,parallelism);
+        }
+    }
+    
+    /**
+     * Return whether one of the given classes mixed in the given target class
+     * is a target class with one of the given names.
+     */
+    private static boolean isMixingTarget(
+            CtClass<?> target, CtClass<?>[] srcClasses, Set<String> names ) {
+        for (CtClass<?> src : srcClasses) {
+            String name = src.getQualifiedName();
+            if( names.contains(name) &&
+                ! name.equals(target.getQualifiedName()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Mix the specified classes in each target class, concurrently. No target
+     * class is mixed in another one.
+     */
+    private void generateWave(
+            Map<CtClass<?>,CtClass<?>[]> targets, int parallelism ) {
+        
+        /*
+         * Compute the templates of the mixed classes once, before weaving.
+         */
+        for (CtClass<?>[] srcClasses : targets.values()) {
+            for (CtClass<?> src : srcClasses) {
+                templates.get(src);
+                if( delegation ) {
+                    templates.getDelegation(src);
+                }
+                if( sharedStatics ) {
+                    templates.getStatics(src);
+                }
+            }
+        }
+        
+        if( parallelism <= 1 || targets.size() <= 1 ) {
+            for (Map.Entry<CtClass<?>,CtClass<?>[]> entry : targets.entrySet()) {
+                generate(entry.getKey(),entry.getValue());
+            }
+            return;
+        }
+        
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Map.Entry<CtClass<?>,CtClass<?>[]> entry : targets.entrySet()) {
+            tasks.add(
+                new Callable<Void>() {
+                    public Void call() {
+                        generate(entry.getKey(),entry.getValue());
+                        return null;
                     }
                 }
             );
-      
-        // Remove the _this_ prefix
-        for (CtFieldAccess<?> fa : fas) {
-            CtFieldReference<?> cfr = fa.getVariable();
-            String fieldName = cfr.getSimpleName();
-            if( fieldName.startsWith(THIS) ) {
-                String newFieldName = fieldName.substring(THIS.length());
-                cfr.setSimpleName(newFieldName);
+        }
+        
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
             }
         }
+        catch( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        }
+        catch( ExecutionException ee ) {
+            Throwable cause = ee.getCause();
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        finally {
+            pool.shutdown();
+        }
     }
   
     /**
@@ -112,92 +483,223 @@ public class MixinClassGenerator {
      * 
      * @param target      the target class
      * @param srcClasses  the classes containing the methods to be mixed
+     * @param arguments   the type arguments of each class (null if raw)
+     * @param inherited   the templates of the classes mixed in a superclass
+     * @param flattener   records the methods of the chains (may be null)
+     * @param tm          records the timings and counters (may be null)
      */
-    private void processMethods( CtClass<?> target, CtClass<?>[] srcClasses ) {
+    private void processMethods(
+            CtClass<?> target, CtClass<?>[] srcClasses,
+            List<List<CtTypeReference<?>>> arguments,
+            List<MixinTemplate> inherited, ChainFlattener flattener,
+            WeavingMetrics.Target tm ) {
+      
+      long t = tm == null ? 0 : System.nanoTime();
       
       /*
        * Add @see tags in target to reference the mixed classes.
        */
       setSource(srcClasses,target);
+      if( tm != null ) t = tm.add(WeavingMetrics.Phase.JAVADOC,t);
       
       /*
-       * Each element in meths contains the set of methods coming from a
-       * mixed class.
+       * Index of the methods mixed so far, by signature.
        */
-      Set<CtMethod<?>>[] meths = new Set[ srcClasses.length ];
+      SignatureTable sigs = new SignatureTable();
       
       for (int i = srcClasses.length-1; i > -1 ; i--) {
           
           /*
-           * Get the methods to be mixed from the source class.
+           * Get the methods to be mixed from the template of the source class.
            */
           CtClass<?> src = srcClasses[i];
-          Set<CtMethod<?>> methods = src.getMethods();
-          meths[i] = new HashSet<CtMethod<?>>();
+          MixinTemplate template = templates.get(src,arguments.get(i));
+          MixinRewriter rewriter = createRewriter(template,target,sigs,i);
+          MixinDelegation delegate =
+              delegation && arguments.get(i) == null ?
+              templates.getDelegation(src) : null;
+          if( delegate != null && ! delegate.accepts(target) ) {
+              delegate = null;
+          }
+          MixinStatics statics =
+              sharedStatics ? templates.getStatics(src) : null;
+          if( statics != null && ! statics.accepts(target) ) {
+              statics = null;
+          }
+          if( tm != null ) t = tm.add(WeavingMetrics.Phase.TEMPLATES,t);
           
-          Set<CtMethod<?>> abstractMethods = new HashSet<CtMethod<?>>();
+          /*
+           * Abstract methods are inserted in target for consistency with
+           * regards to call to _super_... and _this_... methods. They are
+           * removed once the calls are resolved.
+           */
+          for (CtMethod<?> method : template.getAbstractMethods()) {
+              target.addMethod(method);
+          }
           
-          for (CtMethod<?> method : methods) {
+          List<CtMethod<?>> inserted = new ArrayList<CtMethod<?>>();
+          for (CtMethod<?> method : template.getMethods()) {
               
               /*
-               * Abstract methods are inserted in target for consistency with
-               * regards to call to _super_... and _this_... methods. They are
-               * removed once the calls are resolved.
+               * Insert the method, or the method forwarding to its shared
+               * implementation.
                */
-              if( method.hasModifier(ModifierKind.ABSTRACT) ) {
-                  target.addMethod(method);
-                  String mname = method.getSimpleName();
-                  if( mname.startsWith(SUPER) || mname.startsWith(THIS) ) {
-                	  abstractMethods.add(method);
-                  }
-            	  continue;
+              CtMethod<?> forwarder =
+                  delegate == null ? null : delegate.getForwarder(method);
+              CtMethod<?> newMeth =
+                  insertMethod(
+                      forwarder==null ? method : forwarder,
+                      template.getCloner(),target,sigs,i);
+              boolean renamed =
+                  ! newMeth.getSimpleName().equals(method.getSimpleName());
+              if( tm != null ) {
+                  t = tm.add(WeavingMetrics.Phase.METHODS,t);
+                  tm.methodInserted(newMeth,renamed);
+                  t = System.nanoTime();
               }
               
-              /*
-               * Insert the method.
-               */
-              CtMethod<?> previous = getPreviouslyDefinedMethod(meths,i,method);
-              CtMethod<?> newMeth = insertMethod(method,target,previous);
-              
               /*
                * Add a @see Javadoc comment to the inserted method to trace it
                * back to its source.
-               * Update the type references.
-               * Update the calls to _super_... methods.
+               * Update the type references, the calls to _this_... and
+               * _super_... methods and the accesses to _this_... fields.
+               * Forwarding methods do not need to be rewritten.
                */
-              meths[i].add(newMeth);
-              setSource(method,newMeth);
-              updateTypeRefs(newMeth,src,target);
-              updateCallsTo_this_Method(newMeth);
-              updateCallsTo_super_Method(newMeth,meths[i]);
+              setSource(template.getSeeLink(method),newMeth);
+              if( tm != null ) t = tm.add(WeavingMetrics.Phase.JAVADOC,t);
+              if( forwarder == null ) {
+                  rewriter.scan(newMeth);
+              }
+              if( tm != null ) t = tm.add(WeavingMetrics.Phase.REWRITING,t);
+              if( graph != null ) {
+                  graph.addMethod(method,target,newMeth);
+              }
+              if( flattener != null && renamed ) {
+                  flattener.addMethod(newMeth);
+              }
+              if( finalizer != null ) {
+                  finalizer.addMethod(target,newMeth);
+              }
+              inserted.add(newMeth);
+          }
+          
+          /*
+           * Implement the accessors called by the shared implementations.
+           * They are rewritten like the mixed methods.
+           */
+          List<CtMethod<?>> accessors = new ArrayList<CtMethod<?>>();
+          if( delegate != null ) {
+              for (CtMethod<?> accessor : delegate.getAccessors()) {
+                  CtMethod<?> newAcc = factory.Core().clone(accessor);
+                  target.addMethod(newAcc);
+                  newAcc.setParent(target);
+                  accessors.add(newAcc);
+                  if( tm != null ) {
+                      t = tm.add(WeavingMetrics.Phase.METHODS,t);
+                      tm.cloned(newAcc);
+                      t = System.nanoTime();
+                  }
+                  rewriter.scan(newAcc);
+                  if( statics != null ) {
+                      statics.redirect(newAcc,target);
+                  }
+              }
+              target.addSuperInterface(delegate.getHostReference());
+              delegate.applied();
+          }
+          
+          /*
+           * Lock the synchronized methods and blocks on a private lock.
+           */
+          if( locks != null ) {
+              locks.isolate(target,src,inserted);
           }
           
           /*
            * Remove abstract methods.
            */
-          for (CtMethod<?> abstractMethod : abstractMethods) {
+          for (CtMethod<?> abstractMethod : template.getRequiredMethods()) {
 			target.removeMethod(abstractMethod);
           }
+          if( tm != null ) t = tm.add(WeavingMetrics.Phase.METHODS,t);
           
           /*
            * Insert all fields from the source class to the target class.
-           * Skip fields with a _this_ prefix.
+           * Fields with a _this_ prefix are not part of the template.
+           * Rewrite the initializers of the inserted fields.
+           * The private fields of a @LazyState class go to a holder.
+           * The shared static fields are not inserted.
            */
-          List<CtField<?>> fields = src.getFields();
-          for (CtField<?> field : fields) {
-              if( ! field.getSimpleName().startsWith(THIS) ) {
-                  CtField<?> newField = factory.Field().create(target,field);
-                  setSource(field,newField);
+          Map<String,CtMethod<?>> moved = new HashMap<String,CtMethod<?>>();
+          CtClass<?> holder =
+              holders.createHolder(target,src,template.getFields(),moved);
+          for (CtField<?> field : template.getFields()) {
+              if( statics != null && statics.isShared(field) ) {
+                  continue;
+              }
+              boolean lazy = holder != null && MixinHolders.isMovable(field);
+              CtField<?> newField =
+                  factory.Field().create(lazy ? holder : target,field);
+              if( tm != null ) {
+                  t = tm.add(WeavingMetrics.Phase.FIELDS,t);
+                  tm.cloned(newField);
+                  t = System.nanoTime();
+              }
+              setSource(template.getSeeLink(field),newField);
+              if( tm != null ) t = tm.add(WeavingMetrics.Phase.JAVADOC,t);
+              rewriter.scan(newField);
+              if( statics != null ) {
+                  statics.redirect(newField,target);
+              }
+              if( tm != null ) t = tm.add(WeavingMetrics.Phase.REWRITING,t);
+              if( lazy ) {
+                  holders.moved(newField);
+                  continue;
+              }
+              if( finalizer != null ) {
+                  finalizer.addField(target,newField);
+              }
+              if( layout != null ) {
+                  layout.addField(target,newField,src);
               }
           }
           
           /*
            * Add implemented interfaces.
            */
-          Set<CtTypeReference<?>> supers = src.getSuperInterfaces();
+          Set<CtTypeReference<?>> supers =
+              template.getMixedClass().getSuperInterfaces();
           for (CtTypeReference<?> s : supers) {
 			target.addSuperInterface(s);
 		}
+          
+          /*
+           * Access the shared static fields through their class in the
+           * methods mixed from the source class. The other members of the
+           * target may declare or access static fields with the same names.
+           */
+          if( statics != null ) {
+              for (CtMethod<?> newMeth : inserted) {
+                  statics.redirect(newMeth,target);
+              }
+              statics.applied();
+          }
+          
+          /*
+           * Access the fields moved to the holder through its accessor in the
+           * methods mixed from the source class.
+           */
+          if( holder != null ) {
+              List<CtMethod<?>> mixed = new ArrayList<CtMethod<?>>(inserted);
+              mixed.addAll(accessors);
+              holders.redirect(target,mixed,moved);
+              if( tm != null ) t = tm.add(WeavingMetrics.Phase.REWRITING,t);
+          }
+          
+          if( graph != null ) {
+              graph.addTarget(src,target,sigs.snapshot(i),i);
+          }
+          if( tm != null ) t = tm.add(WeavingMetrics.Phase.FIELDS,t);
       }
       
       /*
@@ -206,157 +708,194 @@ public class MixinClassGenerator {
        */
       for (int i = srcClasses.length-1; i > -1 ; i--) {
           
-          CtClass<?> src = srcClasses[i];
-          Set<CtMethod<?>> methods = src.getMethods();
+          MixinTemplate template =
+              templates.get(srcClasses[i],arguments.get(i));
           
-          for (CtMethod<?> method : methods) {
+          for (CtMethod<?> stub : template.getStubs()) {
               
-              if( ! ( method.hasModifier(ModifierKind.ABSTRACT) &&
-                      method.getSimpleName().startsWith(SUPER) ) ) {
+              /*
+               * Close each chain once: the empty methods that would be
+               * generated by other mixed classes share the same signature.
+               */
+              SignatureTable.Chain chain = sigs.get(stub);
+              if( chain == null || chain.isClosed() ) {
                   continue;
               }
               
+              CtMethod<?> newStub =
+                  insertMethod(stub,template.getCloner(),target,sigs,-1);
+              chain.close();
+              
               /*
-               * Create a temporary method:
-               * - remove the _super_ prefix
-               * - remove the abstract modifier
-               * - add an empty body
+               * The chain ends in the method inherited from the superclass.
                */
-              CtMethod<?> tmp = factory.Core().clone(method);
-              String name = tmp.getSimpleName().substring(SUPER.length());
-              tmp.setSimpleName(name);
-              tmp.getModifiers().remove(ModifierKind.ABSTRACT);
-              
-              CtBlock<?> body = factory.Core().createBlock();
-              if( ! tmp.getType().getQualifiedName().equals("void") ) {
-                  CtReturn<?> retstat = factory.Core().createReturn();
-                  CtLiteral<?> lit = SpoonHelper.nil(tmp.getType());
-                  retstat.setReturnedExpression((CtLiteral)lit);
-                  body.insertBegin(retstat);
+              if( isInherited(stub,inherited) ) {
+                  callSuper(target,newStub,stub.getSimpleName());
+                  if( flattener != null ) {
+                      flattener.addMethod(newStub);
+                  }
               }
-              tmp.setBody((CtBlock)body);
-              
-              CtMethod<?> previous = getPreviouslyDefinedMethod(meths,-1,tmp);
-              if( previous == null ) {
-                  continue;
+              else if( flattener != null ) {
+                  flattener.addStub(newStub);
+              }
+              if( finalizer != null ) {
+                  finalizer.addMethod(target,newStub);
+              }
+              if( tm != null ) {
+                  t = tm.add(WeavingMetrics.Phase.STUBS,t);
+                  tm.stubInserted(newStub);
+                  t = System.nanoTime();
               }
-              
-              insertMethod(tmp,target,previous);
           }
-      }      
+      }
+      if( tm != null ) tm.add(WeavingMetrics.Phase.STUBS,t);      
     }
   
   /**
-   * Insert a method in a target class.
-   * <code>previous</code> may be null or may reference a method with a same
-   * signature that has already been inserted. In such a case, rename the new
-   * method following the name$99 scheme.
+   * Return, for each mixed class, the type arguments given for the target
+   * class, or null when the class is not generic or when no type arguments
+   * are given for the target class.
    * 
-   * @param method    the current method
-   * @param target    the target class
-   * @param previous  the previously inserted method with the same signature
-   * @return  the newly inserted method
+   * @throws IllegalArgumentException
+   *      if the number of type arguments does not match the number of type
+   *      parameters of the mixed classes
    */
-  private CtMethod<?> insertMethod(
-          CtMethod<?> method, CtClass<?> target, CtMethod<?> previous ) {
-      
-      CtMethod<?> newMeth = factory.Core().clone(method);          
+  private List<List<CtTypeReference<?>>> getTypeArguments(
+          CtClass<?> target, CtClass<?>[] srcClasses ) {
       
-      /*
-       * Check whether the current method has already been inserted.
-       */
-      if( previous != null ) {
-          
-          /*
-           * A method with the same name has already been inserted.
-           * Compute the name of the new method (something like name$99).
-           */
-          String name = getSuperMethodName(previous);
-          newMeth.setSimpleName(name);
-          newMeth.setVisibility(ModifierKind.PRIVATE);
+      List<CtTypeReference<?>> args =
+          typeArguments == null ? null : typeArguments.get(target);
+      List<List<CtTypeReference<?>>> arguments =
+          new ArrayList<List<CtTypeReference<?>>>();
+      int count = 0;
+      for (CtClass<?> src : srcClasses) {
+          int params = src.getFormalTypeParameters().size();
+          if( args == null || params == 0 || count+params > args.size() ) {
+              arguments.add(null);
+          }
+          else {
+              arguments.add(args.subList(count,count+params));
+          }
+          count += params;
       }
       
-      target.addMethod(newMeth);
-
-      return newMeth;
+      if( args != null && count != args.size() ) {
+          final String msg =
+              target.getQualifiedName()+": "+count+
+              " type argument(s) expected, "+args.size()+" given";
+          throw new IllegalArgumentException(msg);
+      }
+      return arguments;
   }
   
   /**
-   * Given a method name (foo or something like foo$98), return the name of
-   * the super method (foo$0 or foo$99).
+   * Return whether a method with the same signature as the given stub is
+   * mixed in the superclass from one of the given templates.
    */
-  private String getSuperMethodName( CtMethod<?> method ) {
-	  String name = method.getSimpleName();
-      int pos = name.lastIndexOf(MIXED_METH_SEP);
-      if( pos == -1 ) {
-          return name + MIXED_METH_SEP + "0";
+  private static boolean isInherited(
+          CtMethod<?> stub, List<MixinTemplate> inherited ) {
+      
+      String key = SignatureTable.key(stub);
+      for (MixinTemplate template : inherited) {
+          for (CtMethod<?> method : template.getMethods()) {
+              if( ! method.hasModifier(ModifierKind.PRIVATE) &&
+                  ! method.hasModifier(ModifierKind.STATIC) &&
+                  SignatureTable.key(method).equals(key) ) {
+                  return true;
+              }
+          }
       }
-      String s = name.substring(pos+1);
-      int methIndex = new Integer(s) + 1;
-      return name.substring(0,pos) + MIXED_METH_SEP + methIndex;
+      return false;
   }
   
   /**
-   * Check whether a method with a signature similar to the one of the current
-   * method has already been defined by a mixed class.
-   * 
-   * @param meths    methods defined by previously mixed classes
-   * @param current  the current position in meths
-   * @param method   the current method
-   * @return  the last mixed method with a name similar to the current one
-   *          or <code>null</code> if no similar method exists
+   * Replace the body of the given method by a call to the method with the
+   * given name in the superclass of the target class, with the same
+   * arguments.
    */
-  private CtMethod<?> getPreviouslyDefinedMethod(
-          Set<CtMethod<?>>[] meths, int current, CtMethod<?> method ) {
+  private void callSuper( CtClass<?> target, CtMethod<?> method, String name ) {
       
-      final String name = method.getSimpleName();
-      final String s = name + MIXED_METH_SEP;
+      CtTypeReference<?> sup = target.getSuperclass();
       
-      for (int i = current+1 ; i < meths.length ; i++) {
-          for (CtMethod<?> prevmeth : meths[i]) {
-              
-              // Check the method name
-              if( ! prevmeth.getSimpleName().equals(name) &&
-                  ! prevmeth.getSimpleName().startsWith(s)) {
-                  continue;
-              }
-                  
-              // Check the method parameter types
-              List<CtParameter<?>> prevparams = prevmeth.getParameters();
-              List<CtParameter<?>> params = method.getParameters();
-              
-              if( prevparams.size() != params.size() ) {
-                  continue;
-              }
-              
-              int j = 0;
-              for (CtParameter<?> param : params) {
-                  CtTypeReference<?> pType = param.getType();
-                  CtTypeReference<?> prevType = prevparams.get(j).getType();
-                  if( ! (pType.isSubtypeOf(prevType) &&
-                         prevType.isSubtypeOf(pType)) ) {
-                      break;
-                  }
-                  j++;
-              }
-              
-              if( j != params.size() ) {
-                  /*
-                   * The previous loop has been interrupted by break.
-                   * Method signatures differ.
-                   */
-                  continue;
-              }
-              
-              return prevmeth;
-          }
+      List<CtTypeReference<?>> ptypes = new ArrayList<CtTypeReference<?>>();
+      for (CtParameter<?> param : method.getParameters()) {
+          ptypes.add(factory.Core().clone(param.getType()));
+          param.setParent(method);
       }
+      CtExecutableReference<?> ref =
+          factory.Executable().createReference(
+              factory.Core().clone(sup), false,
+              factory.Core().clone(method.getType()), name );
+      ref.setParameters(ptypes);
       
       /*
-       * No previously mixed method matching the current method signature was
-       * found.
+       * super is printed as the name of the accessed variable.
        */
-      return null;
+      CtFieldReference<?> superRef = factory.Core().createFieldReference();
+      superRef.setSimpleName("super");
+      superRef.setDeclaringType(factory.Core().clone(sup));
+      superRef.setType((CtTypeReference)factory.Core().clone(sup));
+      CtSuperAccess<?> superAccess = factory.Core().createSuperAccess();
+      superAccess.setType((CtTypeReference)factory.Core().clone(sup));
+      superAccess.setVariable((CtFieldReference)superRef);
+      
+      List<CtExpression<?>> args = new ArrayList<CtExpression<?>>();
+      args.addAll(factory.Code().createVariableAccesses(method.getParameters()));
+      CtInvocation<?> inv =
+          factory.Code().createInvocation(superAccess,ref,args);
+      
+      CtBlock<?> body = factory.Core().createBlock();
+      if( method.getType().getQualifiedName().equals("void") ) {
+          body.insertBegin((CtStatement)inv);
+      }
+      else {
+          CtReturn<?> retstat = factory.Core().createReturn();
+          retstat.setReturnedExpression((CtExpression)inv);
+          body.insertBegin(retstat);
+      }
+      method.setBody((CtBlock)body);
+      method.updateAllParentsBelow();
+  }
+  
+  /**
+   * Insert a method in a target class.
+   * If a method with a same signature has already been inserted, rename the
+   * new method following the name$99 scheme.
+   * 
+   * @param method  the current method
+   * @param cloner  the cloner of the mixed class, or <code>null</code> for a
+   *                deep copy of the method
+   * @param target  the target class
+   * @param sigs    the methods inserted so far
+   * @param owner   the position of the mixed class defining the method
+   * @return  the newly inserted method
+   */
+  CtMethod<?> insertMethod(
+          CtMethod<?> method, MixinCloner cloner, CtClass<?> target,
+          SignatureTable sigs, int owner ) {
+      
+      CtMethod<?> newMeth =
+          cloner == null ?
+          factory.Core().clone(method) : cloner.clone(method);
+      
+      /*
+       * Check whether the current method has already been inserted.
+       */
+      String name = sigs.insert(method,owner);
+      if( ! name.equals(method.getSimpleName()) ) {
+          
+          /*
+           * A method with the same name has already been inserted.
+           * The new method is named something like name$99.
+           */
+          newMeth.setSimpleName(name);
+          newMeth.setVisibility(ModifierKind.PRIVATE);
+      }
+      
+      target.addMethod(newMeth);
+      newMeth.setParent(target);
+
+      return newMeth;
   }
   
   /**
@@ -379,167 +918,37 @@ public class MixinClassGenerator {
   }
       
   /**
-   * Add a Javadoc comment to <code>newMeth</code> to trace it back to its
-   * source (method).
+   * Add a @see Javadoc comment to <code>newElement</code> to trace it back to
+   * its source (method or field).
    * 
-   * @param method   the source method
-   * @param newMeth  the mixed method
+   * @param seeLink     the @see comment referencing the source
+   * @param newElement  the mixed method or field
    */
-  private void setSource( CtMethod<?> method, CtMethod<?> newMeth ) {    
-      String comment = newMeth.getDocComment();
+  private void setSource( String seeLink, CtElement newElement ) {    
+      String comment = newElement.getDocComment();
       if( comment == null ) comment="";
-      comment += SpoonHelper.toSeeLink(method);      
-      newMeth.setDocComment(comment);        
+      comment += seeLink;      
+      newElement.setDocComment(comment);        
   }
   
   /**
-   * Add a Javadoc comment to <code>newField</code> to trace it back to its
-   * source (field).
+   * Return a visitor for rewriting the elements mixed from src into target.
    * 
-   * @param field     the source field
-   * @param newField  the mixed field
-   */
-  private void setSource( CtField<?> field, CtField<?> newField ) {
-      
-      String comment = newField.getDocComment();
-      if( comment == null ) comment="";
-      
-      String className = field.getDeclaringType().getQualifiedName();
-      comment += " @see "+className+"#"+field.getSimpleName();
-      
-      newField.setDocComment(comment);        
-  }
-  
-  /**
-   * Replace all the type references from src to target in the given method. 
+   * @param template  the template of the mixed class
+   * @param target    the target class
+   * @param sigs      the methods inserted so far
+   * @param current   the position of the mixed class
    */
-  private void updateTypeRefs(
-          CtMethod<?> method, CtClass<?> src, CtClass<?> target ) {
-      
-      List<CtTypeReference<?>> refs = 
-          Query.getReferences(
-              method,
-              new ReferenceTypeFilter<CtTypeReference<?>>(CtTypeReference.class)
-      );
+  private MixinRewriter createRewriter(
+          MixinTemplate template, CtClass<?> target, SignatureTable sigs,
+          int current ) {
       
-      String srcName = src.getQualifiedName();
+      String srcName = template.getMixedClass().getQualifiedName();
       String targetName = target.getSimpleName();
       CtPackageReference targetPackage =
           factory.Package().createReference(target.getPackage());
       
-      for (CtTypeReference<?> ref : refs) {
-          if( ref.getQualifiedName().equals(srcName) ) {
-              ref.setSimpleName(targetName);
-              ref.setPackage(targetPackage);
-          }
-      }
-  }
-  
-  /**
-   * Replace calls to methods with a _this_ prefix.
-   * 
-   * @param newMeth  the newly mixed method
-   */
-  private void updateCallsTo_this_Method( CtMethod<?> newMeth ) {
-      
-      List<CtInvocation<?>> invs =
-          Query.getElements(
-              newMeth,
-              new AbstractFilter<CtInvocation<?>>(CtInvocation.class) {
-                  public boolean matches(CtInvocation<?> inv) {
-                      CtExecutableReference<?> cer = inv.getExecutable();
-                      String invokedMethName = cer.getSimpleName();
-                      return invokedMethName.startsWith(THIS);
-                  }
-              }
-      );
-      
-      for (CtInvocation<?> inv : invs) {
-          CtExecutableReference<?> cer = inv.getExecutable();
-          String name = cer.getSimpleName().substring(THIS.length());
-          cer.setSimpleName(name);
-      }
-  }
-
-  /**
-   * Replace calls to methods with a _super_ prefix.
-   * 
-   * @param newMeth  the newly mixed method
-   * @param meths    the methods inserted by the currently mixed class
-   */
-  private void updateCallsTo_super_Method(
-          CtMethod<?> newMeth, Set<CtMethod<?>> meths ) {
-      
-      List<CtInvocation<?>> invs =
-          Query.getElements(
-              newMeth,
-              new AbstractFilter<CtInvocation<?>>(CtInvocation.class) {
-                  public boolean matches(CtInvocation<?> inv) {
-                      CtExecutableReference<?> cer = inv.getExecutable();
-                      String invokedMethName = cer.getSimpleName();
-                      return invokedMethName.startsWith(SUPER);
-                  }
-              }
-      );
-
-      /*
-       * For each _super_... method invocation, search the corresponding
-       * "base" method.
-       */
-      for (CtInvocation<?> inv : invs) {
-          
-          CtExecutableReference<?> cer = inv.getExecutable();
-          List<CtTypeReference<?>> ctrs = SpoonHelper.getParameterTypes(cer);
-          final String invMethName = cer.getSimpleName().substring(SUPER.length());
-          final String s = invMethName + MIXED_METH_SEP;
-          
-          boolean found = false;
-          for (CtMethod<?> meth : meths) {
-              
-              if( ! meth.getSimpleName().equals(invMethName) &&
-                  ! meth.getSimpleName().startsWith(s) ) {
-                  continue;
-              }
-              
-              List<CtParameter<?>> params = meth.getParameters();
-              if( params.size() != ctrs.size() ) {
-                  continue;
-              }
-              
-              int i = 0;
-              for (CtParameter<?> param : params) {
-                  CtTypeReference<?> ptype = param.getType();
-                  CtTypeReference<?> ctr = ctrs.get(i);
-                  if( ! (ctr.isSubtypeOf(ptype) && ptype.isSubtypeOf(ctr)) ) {
-                      break;
-                  }
-                  i++;
-              }
-              
-              if( i != params.size() ) {
-                  /*
-                   * The previous loop has been interrupted by break.
-                   * Parameter types differ.
-                   */
-                  continue;
-              }
-              
-              found = true;
-              String superMethName = getSuperMethodName(meth);
-              cer.setSimpleName(superMethName);
-              break;
-          }
-          
-          if(!found) {
-              /*
-               * The mixed method calls _super_ but does not define a
-               * corresponding base method.
-               */
-              final String msg =
-                  "A base method associated to the "+SUPER+
-                  invMethName+" call should have been found";
-              throw new RuntimeException(msg);
-          }
-      }
+      return new MixinRewriter(
+          srcName,targetName,targetPackage,sigs,current,template);
   }
 }
@@ -0,0 +1,327 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+
+package jmixer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtGenericElement;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtReference;
+import spoon.reflect.reference.CtTypeParameterReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.reference.CtVariableReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class copies the elements mixed from a mixed class into the target
+ * classes. Unlike <code>CoreFactory.clone</code>, the references which are
+ * never modified once mixed are shared by the mixed class and all the copies
+ * instead of being copied for each target class. Elements are always copied:
+ * each element has a single parent.
+ *
+ * The references modified by {@link MixinRewriter} and {@link ChainFlattener}
+ * are copied: the references to the mixed class (or containing one, e.g.
+ * <code>List&lt;Mixed&gt;</code>), the _this_ and _super_ references and the
+ * references to local variables and parameters. The shared references must
+ * not be modified by any other mean.
+ *
+ * Instances can be shared by several threads once the shared references have
+ * been recorded.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+class MixinCloner {
+
+    /** Class -> fields copied by the cloners. */
+    private static ConcurrentMap<Class<?>,Field[]> fields =
+        new ConcurrentHashMap<Class<?>,Field[]>();
+
+    /** Collection or map class -> clone method. */
+    private static ConcurrentMap<Class<?>,Method> clones =
+        new ConcurrentHashMap<Class<?>,Method>();
+
+    private String srcName;
+
+    /** The references shared by the copies. */
+    private Set<CtReference> shared =
+        Collections.newSetFromMap(new IdentityHashMap<CtReference,Boolean>());
+
+    /**
+     * @param srcName  the qualified name of the mixed class
+     */
+    public MixinCloner( String srcName ) {
+        this.srcName = srcName;
+    }
+
+    /**
+     * Record the references of the given element which can be shared by its
+     * copies.
+     */
+    public void share( CtElement element ) {
+        new SharingScanner().scan(element);
+    }
+
+    /**
+     * Return the number of references shared by the copies.
+     */
+    public int getSharedReferences() {
+        return shared.size();
+    }
+
+    /**
+     * Return a copy of the given element. As with
+     * <code>CoreFactory.clone</code>, the parent of the copy is not set.
+     */
+    public <T extends CtElement> T clone( T element ) {
+        return clone(element,null);
+    }
+
+    /**
+     * Return a copy of the given element or reference where the references
+     * to the given type parameters are replaced by copies of their
+     * arguments. The type parameters declared by the generic methods of the
+     * element hide the ones with the same name.
+     *
+     * @param elementOrReference  the element or reference
+     * @param bindings            type parameter name -> type argument (may be
+     *                            null)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T clone(
+        T elementOrReference, Map<String,CtTypeReference<?>> bindings ) {
+        try {
+            return (T) copy(elementOrReference,null,bindings);
+        }
+        catch( Exception e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Object copy(
+        Object object, CtElement parent,
+        Map<String,CtTypeReference<?>> bindings )
+    throws Exception {
+
+        if( !(object instanceof CtElement) && !(object instanceof CtReference) ) {
+            return object;
+        }
+        if( bindings != null ) {
+            if( object instanceof CtTypeParameterReference ) {
+                CtTypeReference<?> arg =
+                    bindings.get(((CtTypeReference<?>) object).getSimpleName());
+                if( arg != null ) {
+                    return copy(arg,parent,null);
+                }
+            }
+            else if( object instanceof CtGenericElement ) {
+                bindings = unbind(bindings,(CtGenericElement) object);
+            }
+        }
+        if( shared.contains(object) ) {
+            return object;
+        }
+
+        Object result = object.getClass().getDeclaredConstructor().newInstance();
+        CtElement childParent =
+            result instanceof CtElement ? (CtElement) result : parent;
+
+        for (Field field : getFields(object.getClass())) {
+            Object value = field.get(object);
+            if( value instanceof Collection ) {
+                field.set(result,copy((Collection<?>)value,childParent,bindings));
+            }
+            else if( value instanceof Map ) {
+                field.set(result,copy((Map<?,?>)value,childParent,bindings));
+            }
+            else {
+                field.set(result,copy(value,childParent,bindings));
+            }
+        }
+
+        if( result instanceof CtElement ) {
+            ((CtElement) result).setParent(parent);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Collection<?> copy(
+        Collection<?> c, CtElement parent,
+        Map<String,CtTypeReference<?>> bindings )
+    throws Exception {
+
+        /*
+         * Empty collections are immutable singletons.
+         */
+        if( c.isEmpty() ) {
+            return c;
+        }
+
+        Collection<Object> result;
+        if( c.getClass() == ArrayList.class ) {
+            result = new ArrayList<Object>(c.size());
+        }
+        else {
+            result = (Collection<Object>) getClone(c.getClass()).invoke(c);
+            result.clear();
+        }
+        for (Object item : c) {
+            result.add(copy(item,parent,bindings));
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<?,?> copy(
+        Map<?,?> m, CtElement parent,
+        Map<String,CtTypeReference<?>> bindings )
+    throws Exception {
+
+        if( m.isEmpty() ) {
+            return m;
+        }
+
+        Map<Object,Object> result;
+        if( m.getClass() == HashMap.class ) {
+            result = new HashMap<Object,Object>(m.size()*2);
+        }
+        else {
+            result = (Map<Object,Object>) getClone(m.getClass()).invoke(m);
+            result.clear();
+        }
+        for (Map.Entry<?,?> entry : m.entrySet()) {
+            result.put(entry.getKey(),copy(entry.getValue(),parent,bindings));
+        }
+        return result;
+    }
+
+    /**
+     * Return the given bindings without the type parameters declared by the
+     * given generic element, or <code>null</code> if no binding remains.
+     */
+    private static Map<String,CtTypeReference<?>> unbind(
+        Map<String,CtTypeReference<?>> bindings, CtGenericElement element ) {
+
+        Map<String,CtTypeReference<?>> result = bindings;
+        for (CtTypeReference<?> param : element.getFormalTypeParameters()) {
+            if( result.containsKey(param.getSimpleName()) ) {
+                if( result == bindings ) {
+                    result = new HashMap<String,CtTypeReference<?>>(bindings);
+                }
+                result.remove(param.getSimpleName());
+            }
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Return the fields of the given class which are copied, i.e. all the
+     * fields except the static, final and parent ones.
+     */
+    private static Field[] getFields( Class<?> cl ) {
+        Field[] fs = fields.get(cl);
+        if( fs == null ) {
+            List<Field> list = new ArrayList<Field>();
+            for (Class<?> c = cl; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int mod = field.getModifiers();
+                    if( Modifier.isStatic(mod) || Modifier.isFinal(mod) ||
+                        field.getName().equals("parent") ) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            fs = list.toArray(new Field[list.size()]);
+            fields.putIfAbsent(cl,fs);
+        }
+        return fs;
+    }
+
+    private static Method getClone( Class<?> cl ) throws NoSuchMethodException {
+        Method clone = clones.get(cl);
+        if( clone == null ) {
+            clone = cl.getMethod("clone");
+            clones.putIfAbsent(cl,clone);
+        }
+        return clone;
+    }
+
+    /**
+     * Return whether the given reference, not considering the references it
+     * contains, may be modified once mixed.
+     */
+    private boolean isModified( CtReference reference ) {
+        String name = reference.getSimpleName();
+        if( reference instanceof CtTypeReference ) {
+            return ((CtTypeReference<?>) reference).getQualifiedName().equals(srcName);
+        }
+        if( reference instanceof CtExecutableReference ) {
+            return
+                name.startsWith(MixinClassGenerator.THIS) ||
+                name.startsWith(MixinClassGenerator.SUPER);
+        }
+        if( reference instanceof CtFieldReference ) {
+            return name.startsWith(MixinClassGenerator.THIS);
+        }
+        return reference instanceof CtVariableReference;
+    }
+
+    /**
+     * A visitor recording the references which neither are nor contain a
+     * reference modified once mixed.
+     */
+    private class SharingScanner extends CtScanner {
+
+        /** Whether the current reference contains a modified reference. */
+        private boolean modified;
+
+        @Override
+        public void scan( CtReference reference ) {
+            if( reference == null ) {
+                return;
+            }
+            boolean outer = modified;
+            modified = false;
+            super.scan(reference);
+            modified |= isModified(reference);
+            if( ! modified ) {
+                shared.add(reference);
+            }
+            modified |= outer;
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+
+package jmixer;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtReturn;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtSuperAccess;
+import spoon.reflect.code.CtThisAccess;
+import spoon.reflect.declaration.CtAnnotation;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtInterface;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtParameter;
+import spoon.reflect.declaration.CtSimpleType;
+import spoon.reflect.declaration.CtVariable;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+/**
+ * This class holds the shared implementation of the methods of a mixed class
+ * in the delegation mode. The bodies of the delegated methods are emitted
+ * once, as static methods of a class nested in the mixed class
+ * (<code>Shared</code>) which take the target instance through an interface
+ * (<code>Shared.Host</code>). The target classes implement this interface and
+ * receive forwarding methods instead of copies of the bodies.
+ *
+ * The interface declares an accessor for each method called on this by the
+ * delegated methods (_this_ and _super_ methods, methods of the mixed class).
+ * An accessor is named after the mixed class and the called method, e.g.
+ * <code>Flying$_super_print</code>, and is implemented in each target class
+ * by the call rewritten as in the copy mode, e.g. <code>print$1()</code>.
+ *
+ * A method is delegated when its body only calls methods on this, uses its
+ * parameters and local variables and the members of other classes, and when
+ * its forwarding method is smaller than its body. The other methods, e.g. the
+ * ones accessing the fields of the mixed class, are copied. Nothing is
+ * delegated for generic or nested mixed classes, and when the accessors
+ * outweigh the forwarded bodies.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+class MixinDelegation {
+
+    /** The simple name of the class holding the shared implementations. */
+    final public static String SHARED = "Shared";
+
+    /** The simple name of the interface implemented by the target classes. */
+    final public static String HOST = "Host";
+
+    private CtClass<?> src;
+    private Factory factory;
+
+    /** The class holding the shared implementations (null if none). */
+    private CtClass<?> shared;
+    private CtTypeReference<?> hostRef;
+
+    /** Mixed method -> forwarding method. */
+    private Map<CtMethod<?>,CtMethod<?>> forwarders =
+        new IdentityHashMap<CtMethod<?>,CtMethod<?>>();
+
+    /** Signature key -> accessor implemented by the target classes. */
+    private Map<String,CtMethod<?>> accessors =
+        new LinkedHashMap<String,CtMethod<?>>();
+
+    /** The number of elements saved in each target class. */
+    private int savedPerTarget;
+
+    /** The number of elements of the shared implementations. */
+    private int sharedNodes;
+
+    /** The number of target classes using the shared implementations. */
+    private int targets;
+
+    /**
+     * Create the shared implementations of the methods of the given mixed
+     * class and add them to the class.
+     *
+     * @param template  the template of the mixed class
+     */
+    public MixinDelegation( MixinTemplate template ) {
+
+        src = template.getMixedClass();
+        factory = src.getFactory();
+        if( ! src.isTopLevel() || ! src.getFormalTypeParameters().isEmpty() ||
+            src.getNestedType(SHARED) != null ) {
+            return;
+        }
+
+        shared = factory.Core().createClass();
+        shared.setSimpleName(SHARED);
+        shared.setModifiers(
+            factory.Code().modifiers(
+                ModifierKind.PUBLIC, ModifierKind.STATIC, ModifierKind.FINAL));
+        shared.setParent(src);
+        CtInterface<?> host = factory.Core().createInterface();
+        host.setSimpleName(HOST);
+        host.setModifiers(factory.Code().modifiers(ModifierKind.PUBLIC));
+        shared.addNestedType(host);
+        host.setParent(shared);
+        hostRef = host.getReference();
+
+        List<CtMethod<?>> impls = new ArrayList<CtMethod<?>>();
+        for (CtMethod<?> method : template.getMethods()) {
+
+            Map<String,CtMethod<?>> accs = new LinkedHashMap<String,CtMethod<?>>();
+            CtMethod<?> impl = createImplementation(method,accs);
+            if( impl == null ) {
+                continue;
+            }
+            CtMethod<?> forwarder = createForwarder(method);
+            int saved =
+                WeavingMetrics.count(method) - WeavingMetrics.count(forwarder);
+            if( saved <= 0 ) {
+                continue;
+            }
+
+            impls.add(impl);
+            forwarders.put(method,forwarder);
+            accessors.putAll(accs);
+            savedPerTarget += saved;
+        }
+        for (CtMethod<?> accessor : accessors.values()) {
+            savedPerTarget -= WeavingMetrics.count(accessor);
+        }
+
+        if( forwarders.isEmpty() || savedPerTarget <= 0 ) {
+            forwarders.clear();
+            accessors.clear();
+            savedPerTarget = 0;
+            shared = null;
+            return;
+        }
+
+        for (CtMethod<?> accessor : accessors.values()) {
+            CtMethod<?> decl = factory.Core().clone(accessor);
+            decl.setBody(null);
+            host.addMethod(decl);
+            decl.setParent(host);
+        }
+        for (CtMethod<?> impl : impls) {
+            shared.addMethod(impl);
+            impl.setParent(shared);
+        }
+        src.addNestedType(shared);
+        shared.updateAllParentsBelow();
+        sharedNodes = WeavingMetrics.count(shared);
+    }
+
+    /**
+     * Return the static method implementing the given method, with the target
+     * instance as first parameter, or <code>null</code> if the method can not
+     * be delegated.
+     *
+     * @param method  the mixed method
+     * @param accs    the accessors called by the static method
+     */
+    private CtMethod<?> createImplementation(
+            CtMethod<?> method, Map<String,CtMethod<?>> accs ) {
+
+        if( method.hasModifier(ModifierKind.STATIC) ||
+            ! method.getFormalTypeParameters().isEmpty() ||
+            method.getBody() == null ) {
+            return null;
+        }
+
+        CtMethod<?> impl = factory.Core().clone(method);
+        impl.setParent(src);
+        impl.setModifiers(
+            factory.Code().modifiers(ModifierKind.PUBLIC,ModifierKind.STATIC));
+        impl.setAnnotations(
+            new ArrayList<CtAnnotation<? extends Annotation>>());
+
+        /*
+         * The target instance is passed as the first parameter.
+         */
+        Set<String> names = new HashSet<String>();
+        for (CtVariable<?> v : impl.getElements(new TypeFilter<CtVariable<?>>(CtVariable.class))) {
+            names.add(v.getSimpleName());
+        }
+        String name = "self";
+        for (int i = 0; names.contains(name); i++) {
+            name = "self"+MixinClassGenerator.MIXED_METH_SEP+i;
+        }
+        CtParameter<?> self = factory.Core().createParameter();
+        self.setSimpleName(name);
+        self.setType((CtTypeReference)factory.Core().clone(hostRef));
+        List<CtParameter<?>> params =
+            new ArrayList<CtParameter<?>>(impl.getParameters());
+        params.add(0,self);
+        impl.setParameters(params);
+        self.setParent(impl);
+
+        /*
+         * Redirect the calls on this to the accessors of the target instance.
+         */
+        for (CtInvocation<?> inv : impl.getElements(new TypeFilter<CtInvocation<?>>(CtInvocation.class))) {
+
+            CtExpression<?> target = inv.getTarget();
+            CtExecutableReference<?> cer = inv.getExecutable();
+            if( target != null && !(target instanceof CtThisAccess) ) {
+                if( cer.getSimpleName().startsWith(MixinClassGenerator.THIS) ) {
+                    return null;
+                }
+                continue;
+            }
+
+            CtExecutable<?> decl = cer.getDeclaration();
+            if( !(decl instanceof CtMethod) ) {
+                return null;
+            }
+            CtMethod<?> called = (CtMethod<?>) decl;
+            if( called.hasModifier(ModifierKind.STATIC) ) {
+                continue;
+            }
+            if( ! called.getFormalTypeParameters().isEmpty() ||
+                ! cer.getActualTypeArguments().isEmpty() ) {
+                return null;
+            }
+
+            CtMethod<?> accessor = createAccessor(called);
+            if( accessor == null ) {
+                return null;
+            }
+            accs.put(SignatureTable.key(accessor),accessor);
+
+            CtExecutableReference<?> ref =
+                factory.Executable().createReference(
+                    factory.Core().clone(hostRef), false,
+                    factory.Core().clone(accessor.getType()),
+                    accessor.getSimpleName() );
+            ref.setParameters(getParameterTypes(accessor));
+            inv.setExecutable((CtExecutableReference)ref);
+            inv.setTarget(
+                factory.Code().createVariableAccess(self.getReference(),false));
+        }
+
+        /*
+         * The remaining accesses to the instance can not be redirected.
+         */
+        for (CtElement e : impl.getBody().getElements(new TypeFilter<CtElement>(CtElement.class))) {
+            if( e instanceof CtThisAccess || e instanceof CtSuperAccess ||
+                e instanceof CtSimpleType ) {
+                return null;
+            }
+            if( e instanceof CtFieldAccess ) {
+                CtFieldAccess<?> access = (CtFieldAccess<?>) e;
+                CtFieldReference<?> cfr = access.getVariable();
+                if( cfr.getSimpleName().startsWith(MixinClassGenerator.THIS) ||
+                    (access.getTarget() == null && ! cfr.isStatic()) ) {
+                    return null;
+                }
+            }
+        }
+        if( isReferencing(impl) ) {
+            return null;
+        }
+
+        return impl;
+    }
+
+    /**
+     * Return the accessor implemented by the target classes for calling the
+     * given method, or <code>null</code> if its signature references the mixed
+     * class.
+     */
+    private CtMethod<?> createAccessor( CtMethod<?> called ) {
+
+        CtMethod<?> accessor = factory.Core().createMethod();
+        accessor.setParent(src);
+        accessor.setSimpleName(
+            src.getSimpleName()+MixinClassGenerator.MIXED_METH_SEP+
+            called.getSimpleName());
+        accessor.setModifiers(factory.Code().modifiers(ModifierKind.PUBLIC));
+        accessor.setType((CtTypeReference)factory.Core().clone(called.getType()));
+        List<CtParameter<?>> params = new ArrayList<CtParameter<?>>();
+        for (CtParameter<?> param : called.getParameters()) {
+            CtParameter<?> p = factory.Core().clone(param);
+            p.setAnnotations(
+                new ArrayList<CtAnnotation<? extends Annotation>>());
+            p.setParent(accessor);
+            params.add(p);
+        }
+        accessor.setParameters(params);
+        for (CtTypeReference<? extends Throwable> thrown : called.getThrownTypes()) {
+            accessor.addThrownType(factory.Core().clone(thrown));
+        }
+        if( isReferencing(accessor) ) {
+            return null;
+        }
+
+        CtExecutableReference<?> ref =
+            factory.Executable().createReference(
+                called.getDeclaringType().getReference(), false,
+                factory.Core().clone(called.getType()),
+                called.getSimpleName() );
+        ref.setParameters(getParameterTypes(accessor));
+        CtInvocation<?> inv =
+            factory.Code().createInvocation(
+                null, ref, factory.Code().createVariableAccesses(params) );
+        accessor.setBody((CtBlock)createBody(inv));
+        accessor.updateAllParentsBelow();
+
+        return accessor;
+    }
+
+    /**
+     * Return the method forwarding the calls of the given method to its
+     * static implementation.
+     */
+    private CtMethod<?> createForwarder( CtMethod<?> method ) {
+
+        CtMethod<?> forwarder = factory.Core().clone(method);
+        forwarder.setParent(src);
+
+        List<CtTypeReference<?>> ptypes = new ArrayList<CtTypeReference<?>>();
+        ptypes.add(factory.Core().clone(hostRef));
+        ptypes.addAll(getParameterTypes(forwarder));
+        CtExecutableReference<?> ref =
+            factory.Executable().createReference(
+                shared.getReference(), true,
+                factory.Core().clone(method.getType()),
+                method.getSimpleName() );
+        ref.setParameters(ptypes);
+
+        List<CtExpression<?>> args = new ArrayList<CtExpression<?>>();
+        args.add(factory.Code().createThisAccess(src.getReference()));
+        for (CtParameter<?> param : forwarder.getParameters()) {
+            param.setParent(forwarder);
+        }
+        args.addAll(factory.Code().createVariableAccesses(forwarder.getParameters()));
+        CtInvocation<?> inv = factory.Code().createInvocation(null,ref,args);
+        forwarder.setBody((CtBlock)createBody(inv));
+        forwarder.updateAllParentsBelow();
+
+        return forwarder;
+    }
+
+    /**
+     * Return a block returning the result of the given invocation, or only
+     * performing the invocation if its type is void.
+     */
+    private CtBlock<?> createBody( CtInvocation<?> inv ) {
+        CtBlock<?> body = factory.Core().createBlock();
+        CtTypeReference<?> type = inv.getExecutable().getType();
+        if( type.getQualifiedName().equals("void") ) {
+            body.insertBegin((CtStatement)inv);
+        }
+        else {
+            CtReturn<?> retstat = factory.Core().createReturn();
+            retstat.setReturnedExpression((CtExpression)inv);
+            body.insertBegin(retstat);
+        }
+        return body;
+    }
+
+    private List<CtTypeReference<?>> getParameterTypes( CtMethod<?> method ) {
+        List<CtTypeReference<?>> ptypes = new ArrayList<CtTypeReference<?>>();
+        for (CtParameter<?> param : method.getParameters()) {
+            ptypes.add(factory.Core().clone(param.getType()));
+        }
+        return ptypes;
+    }
+
+    /**
+     * Return whether the given element references the mixed class, except as
+     * the declaring class of the shared implementations.
+     */
+    private boolean isReferencing( CtElement element ) {
+        ReferenceFinder finder = new ReferenceFinder();
+        finder.scan(element);
+        return finder.found;
+    }
+
+    /**
+     * Return whether the methods of the mixed class can be delegated in the
+     * given target class: the shared implementations must exist and be
+     * visible, and the accessors must not clash with the target methods.
+     */
+    public boolean accepts( CtClass<?> target ) {
+
+        if( shared == null ) {
+            return false;
+        }
+        if( ! src.hasModifier(ModifierKind.PUBLIC) &&
+            ! src.getPackage().getQualifiedName().equals(
+                target.getPackage().getQualifiedName()) ) {
+            return false;
+        }
+        Set<String> names = new HashSet<String>();
+        for (CtMethod<?> accessor : accessors.values()) {
+            names.add(accessor.getSimpleName());
+        }
+        for (CtMethod<?> method : target.getMethods()) {
+            if( names.contains(method.getSimpleName()) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the method forwarding to the shared implementation of the given
+     * mixed method, or <code>null</code> if the method is copied.
+     */
+    public CtMethod<?> getForwarder( CtMethod<?> method ) {
+        return forwarders.get(method);
+    }
+
+    /**
+     * Return the accessors to be implemented by the target classes.
+     */
+    public Collection<CtMethod<?>> getAccessors() {
+        return accessors.values();
+    }
+
+    /**
+     * Return a reference to the interface implemented by the target classes.
+     */
+    public CtTypeReference<?> getHostReference() {
+        return factory.Core().clone(hostRef);
+    }
+
+    /**
+     * Record that the shared implementations are used by a target class.
+     */
+    public synchronized void applied() {
+        targets++;
+    }
+
+    /**
+     * Return the number of delegated methods.
+     */
+    public int getDelegatedMethods() {
+        return forwarders.size();
+    }
+
+    /**
+     * Return the number of elements saved compared with the copy mode: the
+     * elements of the copied bodies minus the elements of the forwarding
+     * methods and of the accessors, for each target class, minus the elements
+     * of the shared implementations.
+     */
+    public synchronized int getSavedNodes() {
+        return targets == 0 ? 0 : targets*savedPerTarget - sharedNodes;
+    }
+
+    /**
+     * A visitor looking for references to the mixed class.
+     */
+    private class ReferenceFinder extends CtScanner {
+
+        private boolean found;
+
+        @Override
+        public void scan( CtReference reference ) {
+            if( reference instanceof CtTypeReference ) {
+                String name = ((CtTypeReference<?>) reference).getQualifiedName();
+                if( name.equals(shared.getQualifiedName()) ||
+                    name.equals(hostRef.getQualifiedName()) ) {
+                    return;
+                }
+                if( name.equals(src.getQualifiedName()) ) {
+                    found = true;
+                }
+            }
+            super.scan(reference);
+        }
+    }
+}
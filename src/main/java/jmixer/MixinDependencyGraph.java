@@ -0,0 +1,206 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtMethod;
+
+/**
+ * This class records the reverse dependencies from the mixed classes, and
+ * from their methods, to the target classes and to the methods generated in
+ * the target classes (name or name$99).
+ *
+ * Instances are filled by {@link MixinClassGenerator} and can be shared by
+ * several threads weaving different targets.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinDependencyGraph {
+
+    /** Mixed class name -> target classes. */
+    private Map<String,Set<CtClass<?>>> targets =
+        new HashMap<String,Set<CtClass<?>>>();
+
+    /** Mixed class name + target class name -> _super_ resolution table. */
+    private Map<String,SignatureTable> supers =
+        new HashMap<String,SignatureTable>();
+
+    /** Mixed class name + target class name -> position of the class. */
+    private Map<String,Integer> positions = new HashMap<String,Integer>();
+
+    /** Mixed method -> generated methods. */
+    private Map<String,List<Derived>> derived =
+        new HashMap<String,List<Derived>>();
+
+    /**
+     * Record that the given class has been mixed in the given target.
+     *
+     * @param src       the mixed class
+     * @param target    the target class
+     * @param sigs      the table for resolving the _super_ calls of src
+     * @param position  the position of src in the mixed classes
+     */
+    synchronized void addTarget(
+            CtClass<?> src, CtClass<?> target, SignatureTable sigs,
+            int position ) {
+
+        String srcName = src.getQualifiedName();
+        Set<CtClass<?>> ts = targets.get(srcName);
+        if( ts == null ) {
+            ts = new LinkedHashSet<CtClass<?>>();
+            targets.put(srcName,ts);
+        }
+        ts.add(target);
+        String key = srcName+' '+target.getQualifiedName();
+        supers.put(key,sigs);
+        positions.put(key,position);
+    }
+
+    /**
+     * Record that the given method has been generated in the given target
+     * from the given mixed method.
+     */
+    synchronized void addMethod(
+            CtMethod<?> method, CtClass<?> target, CtMethod<?> newMeth ) {
+
+        String key = key(method);
+        List<Derived> ds = derived.get(key);
+        if( ds == null ) {
+            ds = new ArrayList<Derived>();
+            derived.put(key,ds);
+        }
+        ds.add(new Derived(target,newMeth));
+    }
+
+    /**
+     * Return the target classes in which the given class has been mixed.
+     */
+    public synchronized Set<CtClass<?>> getTargets( String srcName ) {
+        Set<CtClass<?>> ts = targets.get(srcName);
+        if( ts == null ) {
+            return new LinkedHashSet<CtClass<?>>();
+        }
+        return new LinkedHashSet<CtClass<?>>(ts);
+    }
+
+    /**
+     * Return whether the given class has been mixed in some target class.
+     */
+    public synchronized boolean isMixed( String srcName ) {
+        return targets.containsKey(srcName);
+    }
+
+    /**
+     * Return the methods generated from the given mixed method.
+     */
+    public synchronized List<Derived> getDerivedMethods( CtMethod<?> method ) {
+        List<Derived> ds = derived.get(key(method));
+        if( ds == null ) {
+            return new ArrayList<Derived>();
+        }
+        return new ArrayList<Derived>(ds);
+    }
+
+    /**
+     * Return the table for resolving the _super_ calls of the given mixed
+     * class in the given target class.
+     */
+    synchronized SignatureTable getSuperTable(
+            String srcName, CtClass<?> target ) {
+        return supers.get(srcName+' '+target.getQualifiedName());
+    }
+
+    /**
+     * Return the position of the given mixed class in the classes mixed in
+     * the given target class.
+     */
+    synchronized int getPosition( String srcName, CtClass<?> target ) {
+        return positions.get(srcName+' '+target.getQualifiedName());
+    }
+
+    /**
+     * Remove all the dependencies to the given target class, e.g. before
+     * weaving it again.
+     */
+    synchronized void removeTarget( CtClass<?> target ) {
+
+        String suffix = " "+target.getQualifiedName();
+        for (Iterator<Set<CtClass<?>>> it = targets.values().iterator(); it.hasNext();) {
+            Set<CtClass<?>> ts = it.next();
+            ts.remove(target);
+            if( ts.isEmpty() ) {
+                it.remove();
+            }
+        }
+        for (Iterator<String> it = supers.keySet().iterator(); it.hasNext();) {
+            if( it.next().endsWith(suffix) ) {
+                it.remove();
+            }
+        }
+        for (Iterator<String> it = positions.keySet().iterator(); it.hasNext();) {
+            if( it.next().endsWith(suffix) ) {
+                it.remove();
+            }
+        }
+        for (List<Derived> ds : derived.values()) {
+            for (Iterator<Derived> it = ds.iterator(); it.hasNext();) {
+                if( it.next().target == target ) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static String key( CtMethod<?> method ) {
+        return
+            method.getDeclaringType().getQualifiedName()+'#'+
+            SignatureTable.key(method);
+    }
+
+    /**
+     * A method generated in a target class from a mixed method.
+     */
+    public static class Derived {
+
+        private CtClass<?> target;
+        private CtMethod<?> method;
+
+        private Derived( CtClass<?> target, CtMethod<?> method ) {
+            this.target = target;
+            this.method = method;
+        }
+
+        public CtClass<?> getTarget() {
+            return target;
+        }
+
+        public CtMethod<?> getMethod() {
+            return method;
+        }
+    }
+}
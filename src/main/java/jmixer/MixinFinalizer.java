@@ -0,0 +1,515 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+
+package jmixer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import spoon.reflect.code.CtAssignment;
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtUnaryOperator;
+import spoon.reflect.code.UnaryOperatorKind;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtParameter;
+import spoon.reflect.declaration.CtSimpleType;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class finalizes the members mixed in the target classes so that the
+ * calls to the mixed methods can be bound statically:
+ * - the mixed methods which are not overridden in a subclass of their target
+ *   class are made final,
+ * - the mixed fields which are only accessed from their target class are
+ *   made private, and final if they are initialized and never assigned.
+ * The name$99 methods of the chains are already private.
+ *
+ * Subclasses are searched in the model: by default, the pass assumes that
+ * no class outside the model extends the target classes or accesses their
+ * mixed fields. The subclasses which are target classes are checked with the
+ * methods mixed in them, even when they are not woven yet. When the model
+ * only contains some of the classes of the application, e.g. the ones
+ * selected by {@link MixinScanner}, this assumption does not hold and
+ * {@link #setClosedWorld(boolean)} must be called with <code>false</code>:
+ * the methods are then only bound in the final target classes and the fields
+ * are never made private.
+ *
+ * The members are recorded by {@link MixinClassGenerator} when an instance
+ * is set with {@link MixinClassGenerator#setFinalizer(MixinFinalizer)}, and
+ * finalized by {@link #finalizeTargets()} once all the targets are woven.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinFinalizer {
+
+    private Factory factory;
+
+    /** The methods mixed since the last finalization and their targets. */
+    private Map<CtMethod<?>,CtClass<?>> methods =
+        new IdentityHashMap<CtMethod<?>,CtClass<?>>();
+
+    /** The fields mixed since the last finalization and their targets. */
+    private Map<CtField<?>,CtClass<?>> fields =
+        new IdentityHashMap<CtField<?>,CtClass<?>>();
+
+    /**
+     * Target class name -> signature keys of its overridable methods, for
+     * the targets which have been finalized. Their members may have been
+     * released since, e.g. in the streaming mode of {@link MixinProcessor}.
+     */
+    private Map<String,Set<String>> woven = new HashMap<String,Set<String>>();
+
+    /** The lines of the report, sorted. */
+    private Set<String> report = new TreeSet<String>();
+
+    /** Whether the model contains all the classes of the application. */
+    private boolean closedWorld = true;
+
+    private int finalMethods;
+    private int privateFields;
+    private int finalFields;
+    private int boundCallSites;
+
+    /**
+     * @param factory  the factory of the model where targets are woven
+     */
+    public MixinFinalizer( Factory factory ) {
+        this.factory = factory;
+    }
+
+    /**
+     * Set whether the model contains all the classes of the application. The
+     * default is <code>true</code>.
+     */
+    public synchronized void setClosedWorld( boolean closedWorld ) {
+        this.closedWorld = closedWorld;
+    }
+
+    public synchronized boolean isClosedWorld() {
+        return closedWorld;
+    }
+
+    /**
+     * Record that the given method has been mixed in the given target class.
+     */
+    public synchronized void addMethod( CtClass<?> target, CtMethod<?> method ) {
+        methods.put(method,target);
+    }
+
+    /**
+     * Record that the given field has been mixed in the given target class.
+     */
+    public synchronized void addField( CtClass<?> target, CtField<?> field ) {
+        fields.put(field,target);
+    }
+
+    /**
+     * Finalize the members mixed since the last call and add the call sites
+     * which can be bound statically to the report.
+     */
+    public synchronized void finalizeTargets() {
+
+        if( methods.isEmpty() && fields.isEmpty() ) {
+            return;
+        }
+
+        /*
+         * Index the classes of the model by superclass and collect the
+         * invocations and the field accesses.
+         */
+        UseScanner uses = new UseScanner();
+        for (CtSimpleType<?> type : factory.Type().getAll()) {
+            uses.scan(type);
+        }
+        Map<String,List<CtClass<?>>> subclasses = uses.subclasses;
+
+        /*
+         * Methods: make final the ones which are not overridden. Outside a
+         * closed world, a non final target may have subclasses which are not
+         * in the model.
+         */
+        Map<String,CtMethod<?>> bound = new HashMap<String,CtMethod<?>>();
+        Map<String,CtClass<?>> targets = new HashMap<String,CtClass<?>>();
+        for (Map.Entry<CtMethod<?>,CtClass<?>> entry : methods.entrySet()) {
+            CtMethod<?> method = entry.getKey();
+            CtClass<?> target = entry.getValue();
+            if( ! target.getMethods().contains(method) ) {
+                continue;   // e.g. flattened
+            }
+            targets.put(target.getQualifiedName(),target);
+            String key = SignatureTable.key(method);
+            if( ! isOverridable(method) ) {
+                bound.put(target.getQualifiedName()+'#'+key,method);
+                continue;
+            }
+            if( ! closedWorld && ! target.hasModifier(ModifierKind.FINAL) ) {
+                continue;
+            }
+            if( isOverridden(target.getQualifiedName(),key,subclasses) ) {
+                continue;
+            }
+            if( ! target.hasModifier(ModifierKind.FINAL) ) {
+                method.addModifier(ModifierKind.FINAL);
+                finalMethods++;
+                report.add("final method "+toString(target,method));
+            }
+            bound.put(target.getQualifiedName()+'#'+key,method);
+        }
+
+        /*
+         * Fields: make private the ones which are only accessed from their
+         * target class, and final the ones which are also initialized and
+         * never assigned. Outside a closed world, the fields which are not
+         * private may be accessed from classes which are not in the model.
+         */
+        for (Map.Entry<CtField<?>,CtClass<?>> entry : fields.entrySet()) {
+            CtField<?> field = entry.getKey();
+            CtClass<?> target = entry.getValue();
+            targets.put(target.getQualifiedName(),target);
+            Set<String> types = new HashSet<String>();
+            addSubclasses(target.getQualifiedName(),subclasses,types);
+            boolean local = true;
+            boolean assigned = false;
+            for (Map.Entry<CtFieldAccess<?>,CtSimpleType<?>> access :
+                    uses.accesses.entrySet()) {
+                if( ! isAccessTo(access.getKey(),field,types) ) {
+                    continue;
+                }
+                if( access.getValue() != getTopLevel(target) ) {
+                    local = false;
+                }
+                if( isAssigned(access.getKey()) ) {
+                    assigned = true;
+                }
+            }
+            String name = target.getQualifiedName()+'#'+field.getSimpleName();
+            if( closedWorld && local && ! field.hasModifier(ModifierKind.PRIVATE) ) {
+                field.setVisibility(ModifierKind.PRIVATE);
+                privateFields++;
+                report.add("private field "+name);
+            }
+            if( field.hasModifier(ModifierKind.PRIVATE) && ! assigned &&
+                field.getDefaultExpression() != null &&
+                ! field.hasModifier(ModifierKind.FINAL) &&
+                ! field.hasModifier(ModifierKind.VOLATILE) ) {
+                field.addModifier(ModifierKind.FINAL);
+                finalFields++;
+                report.add("final field "+name);
+            }
+        }
+
+        /*
+         * Report the calls to the final and private mixed methods.
+         */
+        for (Map.Entry<CtInvocation<?>,String> call : uses.calls.entrySet()) {
+            CtExecutableReference<?> cer = call.getKey().getExecutable();
+            if( cer == null || cer.getDeclaringType() == null ) {
+                continue;
+            }
+            String key =
+                cer.getDeclaringType().getQualifiedName()+'#'+
+                SignatureTable.key(cer.getSimpleName(),cer.getParameters());
+            CtMethod<?> method = bound.get(key);
+            if( method != null ) {
+                boundCallSites++;
+                report.add(
+                    "call "+call.getValue()+" -> "+
+                    toString(methods.get(method),method));
+            }
+        }
+
+        /*
+         * Record the signatures of the finalized targets for the next
+         * finalizations.
+         */
+        for (CtClass<?> target : targets.values()) {
+            Set<String> keys = new HashSet<String>();
+            for (CtMethod<?> method : target.getMethods()) {
+                if( isVirtual(method) ) {
+                    keys.add(SignatureTable.key(method));
+                }
+            }
+            woven.put(target.getQualifiedName(),keys);
+        }
+
+        methods.clear();
+        fields.clear();
+    }
+
+    /**
+     * Return whether a method with the given signature key is declared in a
+     * subclass of the given class.
+     */
+    private boolean isOverridden(
+            String name, String key, Map<String,List<CtClass<?>>> subclasses ) {
+
+        List<CtClass<?>> subs = subclasses.get(name);
+        if( subs == null ) {
+            return false;
+        }
+        for (CtClass<?> sub : subs) {
+            String subName = sub.getQualifiedName();
+            Set<String> keys = woven.get(subName);
+            if( keys != null && keys.contains(key) ) {
+                return true;
+            }
+            for (CtMethod<?> method : sub.getMethods()) {
+                if( isVirtual(method) &&
+                    SignatureTable.key(method).equals(key) ) {
+                    return true;
+                }
+            }
+
+            /*
+             * A subclass which is a target class may not be woven yet.
+             */
+            String[] mixins = SpoonHelper.getMixedClassNames(sub);
+            if( mixins != null ) {
+                for (String mixin : mixins) {
+                    CtClass<?> src = factory.Class().get(mixin);
+                    if( src == null ) {
+                        return true;
+                    }
+                    for (CtMethod<?> method : src.getMethods()) {
+                        if( isVirtual(method) &&
+                            SignatureTable.key(method).equals(key) ) {
+                            return true;
+                        }
+                    }
+                }
+            }
+
+            if( isOverridden(subName,key,subclasses) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isVirtual( CtMethod<?> method ) {
+        return
+            ! method.hasModifier(ModifierKind.PRIVATE) &&
+            ! method.hasModifier(ModifierKind.STATIC);
+    }
+
+    private static boolean isOverridable( CtMethod<?> method ) {
+        return isVirtual(method) && ! method.hasModifier(ModifierKind.FINAL);
+    }
+
+    private static void addSubclasses(
+            String name, Map<String,List<CtClass<?>>> subclasses,
+            Set<String> names ) {
+
+        names.add(name);
+        List<CtClass<?>> subs = subclasses.get(name);
+        if( subs != null ) {
+            for (CtClass<?> sub : subs) {
+                addSubclasses(sub.getQualifiedName(),subclasses,names);
+            }
+        }
+    }
+
+    /**
+     * Return whether the given access may be an access to the given field,
+     * i.e. an access to a field with the same name declared in the target
+     * class or in one of its subclasses.
+     */
+    private static boolean isAccessTo(
+            CtFieldAccess<?> access, CtField<?> field, Set<String> types ) {
+
+        CtFieldReference<?> ref = access.getVariable();
+        if( ! ref.getSimpleName().equals(field.getSimpleName()) ) {
+            return false;
+        }
+        CtTypeReference<?> declaring = ref.getDeclaringType();
+        return declaring == null || types.contains(declaring.getQualifiedName());
+    }
+
+    private static boolean isAssigned( CtFieldAccess<?> access ) {
+        if( ! access.isParentInitialized() ) {
+            return false;
+        }
+        Object parent = access.getParent();
+        if( parent instanceof CtAssignment ) {
+            return ((CtAssignment<?,?>)parent).getAssigned() == access;
+        }
+        if( parent instanceof CtUnaryOperator ) {
+            UnaryOperatorKind kind = ((CtUnaryOperator<?>)parent).getKind();
+            return
+                kind == UnaryOperatorKind.PREINC ||
+                kind == UnaryOperatorKind.PREDEC ||
+                kind == UnaryOperatorKind.POSTINC ||
+                kind == UnaryOperatorKind.POSTDEC;
+        }
+        return false;
+    }
+
+    private static CtSimpleType<?> getTopLevel( CtSimpleType<?> type ) {
+        while( type != null && ! type.isTopLevel() ) {
+            type = type.getDeclaringType();
+        }
+        return type;
+    }
+
+    private static String toString( CtClass<?> target, CtMethod<?> method ) {
+        StringBuilder sb = new StringBuilder(target.getQualifiedName());
+        sb.append('#').append(method.getSimpleName()).append('(');
+        boolean first = true;
+        for (CtParameter<?> param : method.getParameters()) {
+            if( ! first ) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(param.getType());
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Return the report: the final methods and fields, the private fields and
+     * the call sites which can be bound statically, one per line.
+     */
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (String line : report) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public synchronized int getFinalMethods() {
+        return finalMethods;
+    }
+
+    public synchronized int getPrivateFields() {
+        return privateFields;
+    }
+
+    public synchronized int getFinalFields() {
+        return finalFields;
+    }
+
+    /**
+     * Return the number of calls to final or private mixed methods.
+     */
+    public synchronized int getBoundCallSites() {
+        return boundCallSites;
+    }
+
+    /**
+     * A visitor indexing the classes by superclass and collecting the
+     * invocations, with their callers, and the field accesses, with their
+     * top-level types. Mixed methods have no parent: the enclosing elements
+     * are tracked while scanning.
+     */
+    private static class UseScanner extends CtScanner {
+
+        private Map<String,List<CtClass<?>>> subclasses =
+            new HashMap<String,List<CtClass<?>>>();
+        private Map<CtInvocation<?>,String> calls =
+            new IdentityHashMap<CtInvocation<?>,String>();
+        private Map<CtFieldAccess<?>,CtSimpleType<?>> accesses =
+            new IdentityHashMap<CtFieldAccess<?>,CtSimpleType<?>>();
+
+        private Deque<CtSimpleType<?>> types = new ArrayDeque<CtSimpleType<?>>();
+        private Deque<CtExecutable<?>> execs = new ArrayDeque<CtExecutable<?>>();
+
+        @Override
+        protected void enter( CtElement e ) {
+            if( e instanceof CtClass ) {
+                CtTypeReference<?> sup = ((CtClass<?>)e).getSuperclass();
+                if( sup != null ) {
+                    String name = sup.getQualifiedName();
+                    if( ! subclasses.containsKey(name) ) {
+                        subclasses.put(name,new ArrayList<CtClass<?>>());
+                    }
+                    subclasses.get(name).add((CtClass<?>)e);
+                }
+            }
+            if( e instanceof CtSimpleType ) {
+                types.push((CtSimpleType<?>)e);
+            }
+            else if( e instanceof CtExecutable ) {
+                execs.push((CtExecutable<?>)e);
+            }
+            else if( e instanceof CtInvocation ) {
+                calls.put((CtInvocation<?>)e,toString(e));
+            }
+            else if( e instanceof CtFieldAccess ) {
+                accesses.put((CtFieldAccess<?>)e,types.getLast());
+            }
+        }
+
+        @Override
+        protected void exit( CtElement e ) {
+            if( e instanceof CtSimpleType ) {
+                types.pop();
+            }
+            else if( e instanceof CtExecutable ) {
+                execs.pop();
+            }
+        }
+
+        /**
+         * Return the type and the executable enclosing the given element,
+         * and its position.
+         */
+        private String toString( CtElement e ) {
+            StringBuilder sb = new StringBuilder(types.peek().getQualifiedName());
+            if( ! execs.isEmpty() ) {
+                sb.append('#').append(execs.peek().getSimpleName());
+            }
+            SourcePosition sp = e.getPosition();
+            if( sp != null && sp.getFile() != null ) {
+                sb.append(" (").append(sp.getFile().getName());
+                sb.append(':').append(sp.getLine()).append(')');
+            }
+            return sb.toString();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return
+            "devirtualization: "+finalMethods+" final method(s), "+
+            privateFields+" private field(s), "+finalFields+
+            " final field(s), "+boundCallSites+
+            " call site(s) bound statically";
+    }
+}
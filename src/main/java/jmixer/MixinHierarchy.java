@@ -0,0 +1,330 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+
+package jmixer;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtSimpleType;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.reference.CtTypeReference;
+
+/**
+ * This class avoids mixing again in a target class the classes which are
+ * already mixed in one of its superclasses. When the classes mixed in a
+ * target class start with all the classes mixed in its nearest woven
+ * superclass, e.g. <code>@Mixin(Flying.class)</code> on <code>Bird</code> and
+ * <code>@Mixin({Flying.class, Swimming.class})</code> on
+ * <code>Duck extends Bird</code>, these classes are inherited and only the
+ * remaining ones are mixed. The chains of the remaining classes which would
+ * have ended in the inherited methods are closed by a call to the method of
+ * the superclass instead of an empty method.
+ *
+ * The classes are not skipped, and the target class is woven as before,
+ * when a class between the target class and the woven superclass declares
+ * one of the inherited methods, or when a remaining class requires a
+ * private member of the inherited classes, or when the generic inherited
+ * classes are not bound to the same type arguments in both classes.
+ *
+ * The classes mixed in each target class, and their type arguments, are
+ * recorded with {@link #addTarget(CtClass, CtClass[], List)}. The target
+ * classes which are not recorded are searched for a @{@link Mixin}
+ * annotation: the type arguments of their generic mixed classes are then
+ * unknown and these classes are not inherited.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinHierarchy {
+
+    /** Target class name -> names of the mixed classes. */
+    private Map<String,String[]> mixins = new HashMap<String,String[]>();
+
+    /** Target class name -> type arguments of the mixed classes (null if raw). */
+    private Map<String,List<String>> arguments =
+        new HashMap<String,List<String>>();
+
+    /** Skipped mixed class -> number of bytes of its mixed members. */
+    private Map<CtClass<?>,Integer> sizes =
+        new IdentityHashMap<CtClass<?>,Integer>();
+
+    private int skippedClasses;
+    private int savedMethods;
+    private int savedFields;
+    private long savedBytes;
+
+    /**
+     * Record the classes mixed raw in the given target class.
+     */
+    public void addTarget( CtClass<?> target, CtClass<?>[] srcClasses ) {
+        addTarget(target,srcClasses,null);
+    }
+
+    /**
+     * Record the classes mixed in the given target class.
+     *
+     * @param typeArguments
+     *      the type arguments of the mixed classes, in the order of the mixed
+     *      classes and of their type parameters, or <code>null</code> if the
+     *      classes are mixed raw
+     */
+    public synchronized void addTarget(
+            CtClass<?> target, CtClass<?>[] srcClasses,
+            List<CtTypeReference<?>> typeArguments ) {
+
+        String[] names = new String[srcClasses.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = srcClasses[i].getQualifiedName();
+        }
+        mixins.put(target.getQualifiedName(),names);
+        arguments.put(target.getQualifiedName(),toString(typeArguments));
+    }
+
+    /**
+     * Return the number of classes, at the beginning of the given classes to
+     * mix raw in the given target class, which are already mixed in a
+     * superclass.
+     */
+    public int getInherited( CtClass<?> target, CtClass<?>[] srcClasses ) {
+        return getInherited(target,srcClasses,null);
+    }
+
+    /**
+     * Return the number of classes, at the beginning of the given classes to
+     * mix in the given target class, which are already mixed in a superclass
+     * with the same type arguments.
+     *
+     * @param typeArguments
+     *      the type arguments of the mixed classes, or <code>null</code> if
+     *      the classes are mixed raw
+     */
+    public synchronized int getInherited(
+            CtClass<?> target, CtClass<?>[] srcClasses,
+            List<CtTypeReference<?>> typeArguments ) {
+
+        /*
+         * Search the nearest woven superclass and record the classes in
+         * between.
+         */
+        List<CtClass<?>> between = new ArrayList<CtClass<?>>();
+        String[] inherited = null;
+        String woven = null;
+        CtTypeReference<?> sup = target.getSuperclass();
+        while( sup != null ) {
+            CtSimpleType<?> decl = sup.getDeclaration();
+            if( !(decl instanceof CtClass) ) {
+                return 0;
+            }
+            CtClass<?> c = (CtClass<?>) decl;
+            woven = c.getQualifiedName();
+            inherited = mixins.get(woven);
+            if( inherited == null ) {
+                inherited = SpoonHelper.getMixedClassNames(c);
+            }
+            if( inherited != null ) {
+                break;
+            }
+            between.add(c);
+            sup = c.getSuperclass();
+        }
+        if( inherited == null || inherited.length > srcClasses.length ) {
+            return 0;
+        }
+        for (int i = 0; i < inherited.length; i++) {
+            if( ! inherited[i].equals(srcClasses[i].getQualifiedName()) ) {
+                return 0;
+            }
+        }
+
+        /*
+         * The generic inherited classes must be bound to the same type
+         * arguments, which are unknown when the superclass is not recorded.
+         */
+        int params = 0;
+        for (int i = 0; i < inherited.length; i++) {
+            params += srcClasses[i].getFormalTypeParameters().size();
+        }
+        if( params > 0 ) {
+            if( ! arguments.containsKey(woven) ) {
+                return 0;
+            }
+            List<String> args = toString(typeArguments);
+            List<String> supArgs = arguments.get(woven);
+            if( args == null || supArgs == null ) {
+                if( args != supArgs ) {
+                    return 0;
+                }
+            }
+            else if( args.size() < params ||
+                     ! args.subList(0,params).equals(supArgs) ) {
+                return 0;
+            }
+        }
+
+        /*
+         * The inherited methods must not be overridden in between, and the
+         * remaining classes must not require private inherited members.
+         */
+        Set<String> keys = new HashSet<String>();
+        Set<String> privates = new HashSet<String>();
+        for (int i = 0; i < inherited.length; i++) {
+            for (CtMethod<?> method : srcClasses[i].getMethods()) {
+                keys.add(SignatureTable.key(method));
+                if( method.hasModifier(ModifierKind.PRIVATE) ) {
+                    privates.add(method.getSimpleName());
+                }
+            }
+            for (CtField<?> field : srcClasses[i].getFields()) {
+                if( field.hasModifier(ModifierKind.PRIVATE) ) {
+                    privates.add(field.getSimpleName());
+                }
+            }
+        }
+        for (CtClass<?> c : between) {
+            for (CtMethod<?> method : c.getMethods()) {
+                if( keys.contains(SignatureTable.key(method)) ) {
+                    return 0;
+                }
+            }
+        }
+        for (int i = inherited.length; i < srcClasses.length; i++) {
+            for (CtMethod<?> method : srcClasses[i].getMethods()) {
+                if( privates.contains(getRequiredName(method.getSimpleName())) ) {
+                    return 0;
+                }
+            }
+            for (CtField<?> field : srcClasses[i].getFields()) {
+                if( privates.contains(getRequiredName(field.getSimpleName())) ) {
+                    return 0;
+                }
+            }
+        }
+
+        return inherited.length;
+    }
+
+    private static List<String> toString( List<CtTypeReference<?>> types ) {
+        if( types == null ) {
+            return null;
+        }
+        List<String> names = new ArrayList<String>();
+        for (CtTypeReference<?> type : types) {
+            names.add(type.toString());
+        }
+        return names;
+    }
+
+    /**
+     * Return the name of the member required by a _this_ or a _super_ member,
+     * or <code>null</code> for other members.
+     */
+    private static String getRequiredName( String name ) {
+        if( name.startsWith(MixinClassGenerator.THIS) ) {
+            return name.substring(MixinClassGenerator.THIS.length());
+        }
+        if( name.startsWith(MixinClassGenerator.SUPER) ) {
+            return name.substring(MixinClassGenerator.SUPER.length());
+        }
+        return null;
+    }
+
+    /**
+     * Record that the given classes have not been mixed in a target class
+     * since they are inherited.
+     */
+    synchronized void skipped( List<MixinTemplate> templates ) {
+        for (MixinTemplate template : templates) {
+            skippedClasses++;
+            savedMethods += template.getMethods().size();
+            savedFields += template.getFields().size();
+            savedBytes += getSize(template);
+        }
+    }
+
+    /**
+     * Return the size in bytes of the source code of the members mixed from
+     * the class of the given template.
+     */
+    private int getSize( MixinTemplate template ) {
+        CtClass<?> src = template.getMixedClass();
+        Integer size = sizes.get(src);
+        if( size == null ) {
+            Charset utf8 = Charset.forName("UTF-8");
+            int s = 0;
+            for (CtMethod<?> method : template.getMethods()) {
+                s += method.toString().getBytes(utf8).length;
+            }
+            for (CtField<?> field : template.getFields()) {
+                s += field.toString().getBytes(utf8).length;
+            }
+            size = s;
+            sizes.put(src,size);
+        }
+        return size;
+    }
+
+    /**
+     * Return the number of mixed classes which have not been mixed in a target
+     * class since they are inherited.
+     */
+    public synchronized int getSkippedClasses() {
+        return skippedClasses;
+    }
+
+    /**
+     * Return the number of methods which have not been duplicated.
+     */
+    public synchronized int getSavedMethods() {
+        return savedMethods;
+    }
+
+    /**
+     * Return the number of fields which have not been duplicated, i.e. the
+     * number of fields saved in the instances of the target classes.
+     */
+    public synchronized int getSavedFields() {
+        return savedFields;
+    }
+
+    /**
+     * Return the size in bytes of the source code of the members which have
+     * not been duplicated.
+     */
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return
+            "hierarchy: "+skippedClasses+" inherited class(es) skipped, "+
+            savedMethods+" method(s) and "+savedFields+" field(s) not "+
+            "duplicated ("+savedBytes+" byte(s) of source code)";
+    }
+}
@@ -0,0 +1,500 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spoon.reflect.code.BinaryOperatorKind;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtIf;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtLocalVariable;
+import spoon.reflect.code.CtNewClass;
+import spoon.reflect.code.CtReturn;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtSuperAccess;
+import spoon.reflect.code.CtSynchronized;
+import spoon.reflect.code.CtTargetedAccess;
+import spoon.reflect.code.CtThisAccess;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.reference.CtVariableReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class moves the state of the mixed classes annotated with
+ * {@link LazyState} out of the target instances. The private instance fields
+ * of such a class are copied in a private class nested in the target class,
+ * the holder, instead of the target class. The target class receives a
+ * single reference to the holder, which is allocated on the first access:
+ * the instances which never use the mixed class do not pay for its fields
+ * and for their initializers.
+ *
+ * The accesses to the moved fields, from the methods mixed from the same
+ * class, go through a method returning the holder, e.g.
+ * Counting$state().total. The holder is published with double-checked
+ * locking on the target instance.
+ *
+ * The non private fields, which may be accessed from other classes, and the
+ * static fields stay in the target class. The fields are not moved when the
+ * initializer of a moved field uses the target instance.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinHolders {
+
+    /** The suffix of the names of the holder classes. */
+    final public static String HOLDER = "State";
+
+    /** The suffix of the names of the holder fields and accessors. */
+    final public static String STATE = "state";
+
+    /** The estimated size of the reference to a holder. */
+    final private static int REFERENCE_SIZE = 4;
+
+    private Factory factory;
+
+    /** Target class name -> estimated bytes saved per instance. */
+    private Map<String,Integer> saved = new LinkedHashMap<String,Integer>();
+
+    private int holders;
+    private int movedFields;
+
+    /**
+     * @param factory  the factory of the model where targets are woven
+     */
+    public MixinHolders( Factory factory ) {
+        this.factory = factory;
+    }
+
+    /**
+     * Return whether the state of the given mixed class is moved to a holder.
+     */
+    public static boolean isLazy( CtClass<?> src ) {
+        return SpoonHelper.isAnnotated(src,LazyState.class);
+    }
+
+    /**
+     * Return whether the given field of a mixed class annotated with
+     * {@link LazyState} is moved to the holder.
+     */
+    public static boolean isMovable( CtField<?> field ) {
+        return
+            field.hasModifier(ModifierKind.PRIVATE) &&
+            ! field.hasModifier(ModifierKind.STATIC);
+    }
+
+    /**
+     * Create in the given target class the holder of the fields of the given
+     * mixed class, with the field referencing it and its accessor.
+     *
+     * @param target  the target class
+     * @param src     the mixed class
+     * @param fields  the fields mixed from the mixed class
+     * @param moved   completed with the names of the fields of the mixed
+     *                class moved to the holder and the accessor of the holder
+     * @return        the holder or <code>null</code> if the fields of the
+     *                mixed class stay in the target class
+     */
+    public CtClass<?> createHolder(
+            CtClass<?> target, CtClass<?> src, List<CtField<?>> fields,
+            Map<String,CtMethod<?>> moved ) {
+
+        if( ! isLazy(src) ) {
+            return null;
+        }
+
+        List<CtField<?>> movable = new ArrayList<CtField<?>>();
+        for (CtField<?> field : fields) {
+            if( isMovable(field) ) {
+                movable.add(field);
+            }
+        }
+        if( movable.isEmpty() || usesInstance(movable) ) {
+            return null;
+        }
+
+        String base = src.getSimpleName() + MixinClassGenerator.MIXED_METH_SEP;
+        String suffix = "";
+        for (int i = 0;
+             target.getField(base+STATE+suffix) != null ||
+             target.getNestedType(base+HOLDER+suffix) != null;
+             i++) {
+            suffix = "" + MixinClassGenerator.MIXED_METH_SEP + i;
+        }
+        String name = base + STATE + suffix;
+        String holderName = base + HOLDER + suffix;
+
+        /*
+         * The holder class.
+         */
+        CtClass<?> holder = factory.Core().createClass();
+        holder.setSimpleName(holderName);
+        holder.setModifiers(
+            factory.Code().modifiers(
+                ModifierKind.PRIVATE, ModifierKind.STATIC, ModifierKind.FINAL));
+        target.addNestedType(holder);
+        holder.setParent(target);
+        CtTypeReference<?> holderRef = holder.getReference();
+
+        /*
+         * The volatile field referencing the holder.
+         */
+        CtField<?> field =
+            factory.Field().create(
+                target,
+                factory.Code().modifiers(ModifierKind.PRIVATE,ModifierKind.VOLATILE),
+                (CtTypeReference)factory.Core().clone(holderRef), name );
+        field.setParent(target);
+
+        CtMethod<?> accessor = createAccessor(target,holderRef,field);
+        for (CtField<?> f : movable) {
+            moved.put(f.getSimpleName(),accessor);
+        }
+
+        int size = -REFERENCE_SIZE;
+        for (CtField<?> f : movable) {
+            size += SpoonHelper.getFieldSize(f.getType());
+        }
+        synchronized( this ) {
+            holders++;
+            movedFields += movable.size();
+            Integer s = saved.get(target.getQualifiedName());
+            saved.put(target.getQualifiedName(),(s==null ? 0 : s) + size);
+        }
+
+        return holder;
+    }
+
+    /**
+     * Return whether the initializers of the given fields use the target
+     * instance, i.e. access this, call an instance method or access an
+     * instance field which is not moved.
+     */
+    private static boolean usesInstance( List<CtField<?>> movable ) {
+
+        final Set<String> names = new HashSet<String>();
+        for (CtField<?> field : movable) {
+            names.add(field.getSimpleName());
+        }
+
+        for (CtField<?> field : movable) {
+            if( field.getDefaultExpression() == null ) {
+                continue;
+            }
+            final boolean[] uses = new boolean[1];
+            new CtScanner() {
+                @Override
+                public <T> void visitCtThisAccess( CtThisAccess<T> thisAccess ) {
+                    uses[0] = true;
+                }
+                @Override
+                public <T> void visitCtInvocation( CtInvocation<T> invocation ) {
+                    CtExecutableReference<?> cer = invocation.getExecutable();
+                    if( invocation.getTarget() == null && ! cer.isStatic() ) {
+                        uses[0] = true;
+                    }
+                    super.visitCtInvocation(invocation);
+                }
+                @Override
+                public <T> void visitCtTargetedAccess( CtTargetedAccess<T> f ) {
+                    if( f instanceof CtSuperAccess ) {
+                        uses[0] = true;
+                    }
+                    else if( f instanceof CtFieldAccess ) {
+                        CtFieldReference<?> cfr = f.getVariable();
+                        if( f.getTarget() == null && ! cfr.isStatic() &&
+                            ! names.contains(cfr.getSimpleName()) ) {
+                            uses[0] = true;
+                        }
+                    }
+                    super.visitCtTargetedAccess(f);
+                }
+            }.scan(field.getDefaultExpression());
+            if( uses[0] ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Insert in the target class the method returning the holder, allocated
+     * on the first call:
+     *
+     * <pre>
+     * State s = state;
+     * if( s == null ) {
+     *     synchronized(this) {
+     *         s = state;
+     *         if( s == null ) {
+     *             s = new State();
+     *             state = s;
+     *         }
+     *     }
+     * }
+     * return s;
+     * </pre>
+     */
+    private CtMethod<?> createAccessor(
+            CtClass<?> target, CtTypeReference<?> holderRef, CtField<?> field ) {
+
+        CtMethod<?> accessor = factory.Core().createMethod();
+        accessor.setSimpleName(field.getSimpleName());
+        accessor.setModifiers(factory.Code().modifiers(ModifierKind.PRIVATE));
+        accessor.setType((CtTypeReference)factory.Core().clone(holderRef));
+
+        CtLocalVariable<?> s =
+            factory.Code().createLocalVariable(
+                (CtTypeReference)factory.Core().clone(holderRef), "s",
+                (CtExpression)read(field) );
+
+        CtNewClass<?> alloc = factory.Core().createNewClass();
+        alloc.setType((CtTypeReference)factory.Core().clone(holderRef));
+        alloc.setExecutable(
+            (CtExecutableReference)
+            factory.Executable().createReference(
+                factory.Core().clone(holderRef), false,
+                factory.Core().clone(holderRef),
+                CtExecutableReference.CONSTRUCTOR_NAME));
+
+        CtBlock<?> init = factory.Core().createBlock();
+        add(init,assign(s,alloc));
+        add(init,write(field,s));
+
+        CtBlock<?> sync = factory.Core().createBlock();
+        add(sync,assign(s,read(field)));
+        add(sync,ifNull(s,init));
+        CtSynchronized synchro = factory.Core().createSynchronized();
+        CtExpression<?> self =
+            factory.Code().createThisAccess(target.getReference());
+        synchro.setExpression(self);
+        self.setParent(synchro);
+        synchro.setBlock(sync);
+        sync.setParent(synchro);
+        CtBlock<?> lock = factory.Core().createBlock();
+        add(lock,synchro);
+
+        CtBlock<?> body = factory.Core().createBlock();
+        add(body,s);
+        add(body,ifNull(s,lock));
+        CtReturn<?> ret = factory.Core().createReturn();
+        CtExpression<?> result =
+            factory.Code().createVariableAccess(
+                factory.Code().createLocalVariableReference(s),false);
+        ret.setReturnedExpression((CtExpression)result);
+        result.setParent(ret);
+        add(body,ret);
+
+        accessor.setBody((CtBlock)body);
+        body.setParent(accessor);
+        target.addMethod(accessor);
+        accessor.setParent(target);
+        accessor.updateAllParentsBelow();
+        return accessor;
+    }
+
+    private static void add( CtBlock<?> block, CtStatement statement ) {
+        block.addStatement(statement);
+        statement.setParent(block);
+    }
+
+    private CtStatement assign( CtLocalVariable<?> var, CtExpression<?> value ) {
+        return
+            factory.Code().createVariableAssignment(
+                (CtVariableReference)
+                factory.Code().createLocalVariableReference(var),
+                false, (CtExpression)value );
+    }
+
+    private CtIf ifNull( CtLocalVariable<?> var, CtBlock<?> then ) {
+        CtIf ctif = factory.Core().createIf();
+        CtExpression<Boolean> cond =
+            factory.Code().createBinaryOperator(
+                factory.Code().createVariableAccess(
+                    factory.Code().createLocalVariableReference(var),false),
+                factory.Code().createLiteral(null),
+                BinaryOperatorKind.EQ );
+        cond.setType(factory.Type().BOOLEAN_PRIMITIVE);
+        ctif.setCondition(cond);
+        ctif.setThenStatement(then);
+        return ctif;
+    }
+
+    private CtExpression<?> read( CtField<?> field ) {
+        CtFieldAccess<?> access = factory.Core().createFieldAccess();
+        access.setVariable((CtFieldReference)factory.Field().createReference(field));
+        access.setType((CtTypeReference)factory.Core().clone(field.getType()));
+        return access;
+    }
+
+    private CtStatement write( CtField<?> field, CtLocalVariable<?> var ) {
+        return
+            factory.Code().createVariableAssignment(
+                (CtVariableReference)
+                factory.Field().createReference(field),
+                false,
+                (CtExpression)
+                factory.Code().createVariableAccess(
+                    factory.Code().createLocalVariableReference(var),false) );
+    }
+
+    /**
+     * Record that the given field has been copied in a holder. The field is
+     * only accessed from the target class and is no longer private.
+     */
+    public void moved( CtField<?> field ) {
+        Set<ModifierKind> mods =
+            new HashSet<ModifierKind>(field.getModifiers());
+        mods.remove(ModifierKind.PRIVATE);
+        field.setModifiers(mods);
+    }
+
+    /**
+     * Redirect the accesses to the moved fields of a mixed class in the given
+     * methods to its holder. The methods must be mixed from this class: the
+     * accesses are matched by name.
+     *
+     * @param target   the target class
+     * @param methods  the methods mixed from the mixed class
+     * @param moved    the names of the moved fields of the mixed class and
+     *                 the accessor of its holder
+     */
+    public void redirect(
+            CtClass<?> target, List<CtMethod<?>> methods,
+            Map<String,CtMethod<?>> moved ) {
+
+        if( moved.isEmpty() ) {
+            return;
+        }
+        Redirector redirector = new Redirector(target,moved);
+        for (CtMethod<?> method : methods) {
+            redirector.scan(method);
+        }
+    }
+
+    /**
+     * Return the estimated bytes saved per instance in the given target class.
+     */
+    public synchronized int getSavedBytes( String targetName ) {
+        Integer s = saved.get(targetName);
+        return s == null ? 0 : s;
+    }
+
+    /** Return the number of generated holder classes. */
+    public synchronized int getHolders() {
+        return holders;
+    }
+
+    /** Return the number of moved fields. */
+    public synchronized int getMovedFields() {
+        return movedFields;
+    }
+
+    /**
+     * Return, for each target class with holders, a line with the estimated
+     * shallow instance size saved.
+     */
+    public synchronized List<String> getReport() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String,Integer> entry : saved.entrySet()) {
+            lines.add(
+                "lazy state: "+entry.getKey()+" instances are "+
+                entry.getValue()+" byte(s) smaller");
+        }
+        return lines;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return
+            "lazy state: "+movedFields+" field(s) moved to "+holders+
+            " holder(s) in "+saved.size()+" target class(es)";
+    }
+
+    /**
+     * Replace the accesses to the moved fields by accesses through the
+     * accessors of their holders.
+     */
+    private class Redirector extends CtScanner {
+
+        private CtClass<?> target;
+        private Map<String,CtMethod<?>> moved;
+
+        Redirector( CtClass<?> target, Map<String,CtMethod<?>> moved ) {
+            this.target = target;
+            this.moved = moved;
+        }
+
+        @Override
+        public <T> void visitCtTargetedAccess( CtTargetedAccess<T> access ) {
+
+            super.visitCtTargetedAccess(access);
+            if( !(access instanceof CtFieldAccess) ) {
+                return;
+            }
+
+            CtFieldReference<?> cfr = access.getVariable();
+            CtMethod<?> accessor = moved.get(cfr.getSimpleName());
+            CtTypeReference<?> decl = cfr.getDeclaringType();
+            if( accessor == null || cfr.isStatic() ||
+                (decl != null &&
+                 ! decl.getQualifiedName().equals(target.getQualifiedName())) ) {
+                return;
+            }
+
+            CtInvocation<?> inv =
+                factory.Code().createInvocation(
+                    access.getTarget(),
+                    factory.Executable().createReference(accessor));
+            access.setTarget(inv);
+            inv.setParent(access);
+
+            /*
+             * The target of the access, e.g. this, is moved in the
+             * invocation.
+             */
+            access.updateAllParentsBelow();
+
+            /*
+             * The reference may be shared with the mixed class.
+             */
+            CtFieldReference<?> ref =
+                factory.Field().createReference(
+                    factory.Core().clone(accessor.getType()),
+                    factory.Core().clone(access.getType()),
+                    cfr.getSimpleName() );
+            access.setVariable((CtFieldReference)ref);
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtTargetedAccess;
+import spoon.reflect.code.CtThisAccess;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtAnnotation;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtSimpleType;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class lays out the fields mixed in the target classes:
+ * - the mixed instance fields are declared by decreasing size, the
+ *   references last, so that a virtual machine laying out the fields in
+ *   declaration order does not insert padding between them,
+ * - the fields mixed from the classes annotated with {@link HotState} are
+ *   annotated with a contended annotation, one group per mixed class, so
+ *   that they do not share a cache line with the other fields.
+ *
+ * HotSpot already groups the fields of a class by size: declaring them by
+ * decreasing size does not change the instance size on this virtual machine.
+ * The default contended annotation, sun.misc.Contended, is only honored by
+ * HotSpot 8 for classes outside the JDK with -XX:-RestrictContended.
+ *
+ * The fields are not reordered when the initializer of an instance field of
+ * the target class uses other fields, calls methods or uses the instance:
+ * the initialization order would change.
+ *
+ * For each target class, the report gives the estimated instance size and
+ * the fields stored in each cache line, computed as HotSpot does with
+ * compressed references: the fields of the superclasses come first, then
+ * the fields by decreasing size with the references last, then the
+ * contended groups surrounded by padding.
+ *
+ * The fields are recorded by {@link MixinClassGenerator} when an instance is
+ * set with {@link MixinClassGenerator#setLayout(MixinLayout)}, and laid out
+ * once their target class is woven.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinLayout {
+
+    /** The estimated size of an object header. */
+    final public static int HEADER_SIZE = 12;
+
+    /** The estimated size of a cache line. */
+    final public static int CACHE_LINE_SIZE = 64;
+
+    /** The padding inserted around the contended groups. */
+    final public static int CONTENDED_PADDING = 128;
+
+    /** The default contended annotation. */
+    final public static String CONTENDED = "sun.misc.Contended";
+
+    private Factory factory;
+    private String contended = CONTENDED;
+
+    /** Target class -> mixed field -> mixed class. */
+    private Map<CtClass<?>,Map<CtField<?>,CtClass<?>>> mixed =
+        new IdentityHashMap<CtClass<?>,Map<CtField<?>,CtClass<?>>>();
+
+    /** Target class name -> report. */
+    private Map<String,String> reports = new TreeMap<String,String>();
+
+    /** Target class name -> estimated instance size. */
+    private Map<String,Integer> sizes = new TreeMap<String,Integer>();
+
+    private int reordered;
+    private int contendedFields;
+
+    /**
+     * @param factory  the factory of the model where targets are woven
+     */
+    public MixinLayout( Factory factory ) {
+        this.factory = factory;
+    }
+
+    /**
+     * Set the qualified name of the annotation isolating the fields of the
+     * {@link HotState} classes, e.g.
+     * jdk.internal.vm.annotation.Contended on recent virtual machines.
+     */
+    public void setContended( String contended ) {
+        this.contended = contended;
+    }
+
+    public String getContended() {
+        return contended;
+    }
+
+    /**
+     * Record that the given field has been mixed from the given class in the
+     * given target class.
+     */
+    public synchronized void addField(
+            CtClass<?> target, CtField<?> field, CtClass<?> src ) {
+        Map<CtField<?>,CtClass<?>> fields = mixed.get(target);
+        if( fields == null ) {
+            fields = new IdentityHashMap<CtField<?>,CtClass<?>>();
+            mixed.put(target,fields);
+        }
+        fields.put(field,src);
+    }
+
+    /**
+     * Lay out the fields mixed in the given target class and compute its
+     * report.
+     */
+    public void layout( CtClass<?> target ) {
+
+        Map<CtField<?>,CtClass<?>> fields;
+        synchronized( this ) {
+            fields = mixed.remove(target);
+        }
+        if( fields == null ) {
+            fields = new IdentityHashMap<CtField<?>,CtClass<?>>();
+        }
+
+        /*
+         * Isolate the fields of the hot mixed classes.
+         */
+        int hot = 0;
+        for (Map.Entry<CtField<?>,CtClass<?>> entry : fields.entrySet()) {
+            CtField<?> field = entry.getKey();
+            CtClass<?> src = entry.getValue();
+            if( ! field.hasModifier(ModifierKind.STATIC) &&
+                SpoonHelper.isAnnotated(src,HotState.class) ) {
+                CtTypeReference ref = factory.Type().createReference(contended);
+                factory.Annotation().annotate(
+                    field, ref, "value", src.getSimpleName());
+                hot++;
+            }
+        }
+
+        /*
+         * Declare the mixed instance fields by decreasing size, the
+         * references last.
+         */
+        boolean changed = false;
+        if( isIndependent(target) ) {
+            List<CtField<?>> all = target.getFields();
+            List<Integer> slots = new ArrayList<Integer>();
+            List<CtField<?>> sorted = new ArrayList<CtField<?>>();
+            for (int i = 0; i < all.size(); i++) {
+                CtField<?> field = all.get(i);
+                if( fields.containsKey(field) &&
+                    ! field.hasModifier(ModifierKind.STATIC) ) {
+                    slots.add(i);
+                    sorted.add(field);
+                }
+            }
+            List<CtField<?>> original = new ArrayList<CtField<?>>(sorted);
+            Collections.sort(sorted,BY_HOTSPOT_ORDER);
+            for (int i = 0; i < slots.size(); i++) {
+                all.set(slots.get(i),sorted.get(i));
+                changed |= sorted.get(i) != original.get(i);
+            }
+
+            /*
+             * The members are printed by position: the fields exchange their
+             * positions.
+             */
+            List<SourcePosition> positions = new ArrayList<SourcePosition>();
+            for (CtField<?> field : original) {
+                positions.add(field.getPosition());
+            }
+            if( changed && ! positions.contains(null) ) {
+                Collections.sort(positions,BY_POSITION);
+                for (int i = 0; i < positions.size(); i++) {
+                    sorted.get(i).setPosition(positions.get(i));
+                }
+            }
+        }
+
+        /*
+         * Estimate the instance layout.
+         */
+        Map<String,List<String>> lines = new TreeMap<String,List<String>>();
+        int size = layout(target,fields,lines);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(target.getQualifiedName());
+        sb.append(": ");
+        sb.append(size);
+        sb.append(" byte(s)");
+        for (Map.Entry<String,List<String>> entry : lines.entrySet()) {
+            sb.append(System.getProperty("line.separator"));
+            sb.append("  line ");
+            sb.append(entry.getKey());
+            sb.append(": ");
+            sb.append(entry.getValue());
+        }
+
+        synchronized( this ) {
+            if( changed ) {
+                reordered++;
+            }
+            contendedFields += hot;
+            reports.put(target.getQualifiedName(),sb.toString());
+            sizes.put(target.getQualifiedName(),size);
+        }
+    }
+
+    /**
+     * Return whether the initializers of the instance fields of the given
+     * class are independent from the other fields and from the instance.
+     */
+    private static boolean isIndependent( CtClass<?> target ) {
+
+        final boolean[] dependent = new boolean[1];
+        CtScanner scanner = new CtScanner() {
+            @Override
+            public <T> void visitCtInvocation( CtInvocation<T> invocation ) {
+                dependent[0] = true;
+            }
+            @Override
+            public <T> void visitCtThisAccess( CtThisAccess<T> thisAccess ) {
+                dependent[0] = true;
+            }
+            @Override
+            public <T> void visitCtTargetedAccess( CtTargetedAccess<T> access ) {
+                if( !(access instanceof CtFieldAccess) ||
+                    ! access.getVariable().isStatic() ) {
+                    dependent[0] = true;
+                }
+                super.visitCtTargetedAccess(access);
+            }
+        };
+        for (CtField<?> field : target.getFields()) {
+            if( ! field.hasModifier(ModifierKind.STATIC) ) {
+                scanner.scan(field.getDefaultExpression());
+            }
+        }
+        return ! dependent[0];
+    }
+
+    /**
+     * Compute the offsets of the instance fields of the given class and
+     * return the estimated instance size.
+     *
+     * @param target  the class
+     * @param fields  the fields mixed in the class and their mixed classes
+     * @param lines   completed with the fields stored in each cache line
+     */
+    private int layout(
+            CtClass<?> target, Map<CtField<?>,CtClass<?>> fields,
+            Map<String,List<String>> lines ) {
+
+        int offset = HEADER_SIZE + getSuperclassFieldsSize(target);
+
+        List<CtField<?>> plain = new ArrayList<CtField<?>>();
+        Map<String,List<CtField<?>>> groups =
+            new LinkedHashMap<String,List<CtField<?>>>();
+        for (CtField<?> field : target.getFields()) {
+            if( field.hasModifier(ModifierKind.STATIC) ) {
+                continue;
+            }
+            String group = getContendedGroup(field);
+            if( group == null ) {
+                plain.add(field);
+                continue;
+            }
+            List<CtField<?>> fs = groups.get(group);
+            if( fs == null ) {
+                fs = new ArrayList<CtField<?>>();
+                groups.put(group,fs);
+            }
+            fs.add(field);
+        }
+
+        offset = place(plain,offset,fields,lines);
+        for (List<CtField<?>> group : groups.values()) {
+            offset = align(offset+CONTENDED_PADDING,8);
+            offset = place(group,offset,fields,lines);
+        }
+        if( ! groups.isEmpty() ) {
+            offset += CONTENDED_PADDING;
+        }
+        return align(offset,8);
+    }
+
+    /**
+     * Place the given fields from the given offset: a 4-byte field fills the
+     * gap before the 8-byte fields, then the fields are placed by decreasing
+     * size, the references last.
+     */
+    private static int place(
+            List<CtField<?>> fields, int offset,
+            Map<CtField<?>,CtClass<?>> mixed, Map<String,List<String>> lines ) {
+
+        List<CtField<?>> sorted = new ArrayList<CtField<?>>(fields);
+        Collections.sort(sorted,BY_HOTSPOT_ORDER);
+
+        if( offset % 8 != 0 && ! sorted.isEmpty() &&
+            SpoonHelper.getFieldSize(sorted.get(0).getType()) == 8 ) {
+            for (CtField<?> field : sorted) {
+                if( isPrimitive(field) &&
+                    SpoonHelper.getFieldSize(field.getType()) == 4 ) {
+                    sorted.remove(field);
+                    sorted.add(0,field);
+                    break;
+                }
+            }
+        }
+
+        for (CtField<?> field : sorted) {
+            int size = SpoonHelper.getFieldSize(field.getType());
+            offset = align(offset,size);
+            String line = String.valueOf(offset / CACHE_LINE_SIZE);
+            List<String> names = lines.get(line);
+            if( names == null ) {
+                names = new ArrayList<String>();
+                lines.put(line,names);
+            }
+            CtClass<?> src = mixed.get(field);
+            names.add(
+                field.getSimpleName() +
+                (src == null ? "" : " ("+src.getSimpleName()+")") +
+                " @" + offset);
+            offset += size;
+        }
+        return offset;
+    }
+
+    /**
+     * Return the estimated size of the instance fields declared in the
+     * superclasses of the given class which are part of the model.
+     */
+    private static int getSuperclassFieldsSize( CtClass<?> c ) {
+        CtTypeReference<?> sup = c.getSuperclass();
+        if( sup == null ) {
+            return 0;
+        }
+        CtSimpleType<?> decl = sup.getDeclaration();
+        if( !(decl instanceof CtClass) ) {
+            return 0;
+        }
+        int size = getSuperclassFieldsSize((CtClass<?>)decl);
+        for (CtField<?> field : ((CtClass<?>)decl).getFields()) {
+            if( ! field.hasModifier(ModifierKind.STATIC) ) {
+                size += SpoonHelper.getFieldSize(field.getType());
+            }
+        }
+        return size;
+    }
+
+    private String getContendedGroup( CtField<?> field ) {
+        for (CtAnnotation<?> annotation : field.getAnnotations()) {
+            if( annotation.getAnnotationType().getQualifiedName().equals(contended) ) {
+                Object value = annotation.getElementValue("value");
+                return value == null ? "" : value.toString();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isPrimitive( CtField<?> field ) {
+        return field.getType().isPrimitive();
+    }
+
+    private static int align( int offset, int alignment ) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * Order the source positions by line and column.
+     */
+    final private static Comparator<SourcePosition> BY_POSITION =
+        new Comparator<SourcePosition>() {
+            public int compare( SourcePosition p1, SourcePosition p2 ) {
+                if( p1.getLine() != p2.getLine() ) {
+                    return p1.getLine() - p2.getLine();
+                }
+                return p1.getColumn() - p2.getColumn();
+            }
+        };
+
+    /**
+     * Order the fields by decreasing size.
+     */
+    final private static Comparator<CtField<?>> BY_DECREASING_SIZE =
+        new Comparator<CtField<?>>() {
+            public int compare( CtField<?> f1, CtField<?> f2 ) {
+                return
+                    SpoonHelper.getFieldSize(f2.getType()) -
+                    SpoonHelper.getFieldSize(f1.getType());
+            }
+        };
+
+    /**
+     * Order the fields by decreasing size, the references last.
+     */
+    final private static Comparator<CtField<?>> BY_HOTSPOT_ORDER =
+        new Comparator<CtField<?>>() {
+            public int compare( CtField<?> f1, CtField<?> f2 ) {
+                if( isPrimitive(f1) != isPrimitive(f2) ) {
+                    return isPrimitive(f1) ? -1 : 1;
+                }
+                return BY_DECREASING_SIZE.compare(f1,f2);
+            }
+        };
+
+    /**
+     * Return the report of the laid out target classes: their estimated
+     * instance sizes and the fields stored in each cache line, with the
+     * class they are mixed from and their offset.
+     */
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (String report : reports.values()) {
+            sb.append(report);
+            sb.append(System.getProperty("line.separator"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the estimated instance size of the given target class, or -1 if
+     * the class has not been laid out.
+     */
+    public synchronized int getInstanceSize( String targetName ) {
+        Integer size = sizes.get(targetName);
+        return size == null ? -1 : size;
+    }
+
+    /** Return the number of target classes whose fields were reordered. */
+    public synchronized int getReordered() {
+        return reordered;
+    }
+
+    /** Return the number of fields annotated as contended. */
+    public synchronized int getContendedFields() {
+        return contendedFields;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return
+            "layout: "+sizes.size()+" target class(es) laid out, "+
+            reordered+" reordered, "+contendedFields+" contended field(s)";
+    }
+}
@@ -0,0 +1,476 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+
+package jmixer;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtNewClass;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtSynchronized;
+import spoon.reflect.code.CtThisAccess;
+import spoon.reflect.code.CtTry;
+import spoon.reflect.declaration.CtAnnotation;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtSimpleType;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class isolates the synchronized methods and blocks mixed in the target
+ * classes. Once copied, the synchronized methods of all the classes mixed in
+ * a target class lock the target instance and the methods of independent
+ * mixed classes can not be executed concurrently. Each mixed class is then
+ * given a private lock field in the target class:
+ * - the synchronized methods lock the field in a synchronized block,
+ * - the synchronized(this) blocks lock the field,
+ * - when some synchronized methods are marked with {@link ReadMostly}, the
+ *   field is a {@link ReentrantReadWriteLock}: the marked methods take the
+ *   read lock and the other synchronized methods take the write lock.
+ *
+ * The mixed classes which call wait() or notify() on the instance keep the
+ * instance monitor. A read write lock is only used when the mixed class does
+ * not contain any synchronized block and when the marked methods only call
+ * other marked methods, or _super_ methods, on the instance: a read lock can
+ * not be upgraded to the write lock.
+ *
+ * The pass assumes that the mixed classes are independent. A method holding
+ * the lock of a mixed class and calling the methods of another mixed class
+ * takes the second lock while holding the first one, and the code outside
+ * the target class synchronizing on the instance no longer excludes the
+ * mixed methods.
+ *
+ * The methods are isolated by {@link MixinClassGenerator} when an instance is
+ * set with {@link MixinClassGenerator#setLocks(MixinLocks)}.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinLocks {
+
+    /** The suffix of the names of the generated lock fields. */
+    final public static String LOCK = "lock";
+
+    /** The methods which can only be called while holding the monitor. */
+    final private static Set<String> MONITOR_METHODS =
+        new HashSet<String>(Arrays.asList("wait","notify","notifyAll"));
+
+    /**
+     * The locking of a mixed class.
+     */
+    enum Kind {
+        /** The class does not contain any synchronized method or block. */
+        NONE,
+        /** The class keeps the instance monitor. */
+        MONITOR,
+        /** The class locks a private object. */
+        OBJECT,
+        /** The class locks a private read write lock. */
+        READ_WRITE
+    }
+
+    private Factory factory;
+
+    /** Mixed class name -> locking. */
+    private Map<String,Kind> kinds = new HashMap<String,Kind>();
+
+    private int locks;
+    private int readWriteLocks;
+    private int methods;
+    private int blocks;
+    private int monitors;
+
+    /**
+     * @param factory  the factory of the model where targets are woven
+     */
+    public MixinLocks( Factory factory ) {
+        this.factory = factory;
+    }
+
+    /**
+     * Isolate the synchronized methods and blocks mixed from the given class
+     * in the given target class.
+     *
+     * @param target  the target class
+     * @param src     the mixed class
+     * @param mixed   the methods inserted in the target class from the mixed
+     *                class
+     */
+    public void isolate(
+            CtClass<?> target, CtClass<?> src, List<CtMethod<?>> mixed ) {
+
+        Kind kind = getKind(src);
+        if( kind == Kind.NONE ) {
+            return;
+        }
+        if( kind == Kind.MONITOR ) {
+            synchronized( this ) {
+                monitors++;
+            }
+            return;
+        }
+
+        CtField<?> lock = null;
+        int m = 0;
+        int b = 0;
+        for (CtMethod<?> method : mixed) {
+
+            boolean sync =
+                method.hasModifier(ModifierKind.SYNCHRONIZED) &&
+                ! method.hasModifier(ModifierKind.STATIC) &&
+                method.getBody() != null;
+            SyncScanner scanner = new SyncScanner();
+            scanner.scan(method.getBody());
+            if( ! sync && scanner.blocks.isEmpty() ) {
+                continue;
+            }
+            if( lock == null ) {
+                lock = createLock(target,src,kind);
+            }
+
+            /*
+             * Only classes without synchronized blocks use read write locks.
+             */
+            for (CtSynchronized block : scanner.blocks) {
+                CtExpression<?> access = access(lock);
+                block.setExpression(access);
+                access.setParent(block);
+                b++;
+            }
+
+            if( sync ) {
+                Set<ModifierKind> mods =
+                    new HashSet<ModifierKind>(method.getModifiers());
+                mods.remove(ModifierKind.SYNCHRONIZED);
+                method.setModifiers(mods);
+                CtBlock<?> body =
+                    kind == Kind.OBJECT ?
+                    synchronize(lock,method.getBody()) :
+                    lock(lock,method.getBody(),isReadMostly(method));
+                method.setBody((CtBlock)body);
+                body.setParent(method);
+                removeReadMostly(method);
+                m++;
+            }
+        }
+
+        synchronized( this ) {
+            if( lock != null ) {
+                locks++;
+                if( kind == Kind.READ_WRITE ) {
+                    readWriteLocks++;
+                }
+            }
+            methods += m;
+            blocks += b;
+        }
+    }
+
+    /**
+     * Return the locking of the given mixed class.
+     */
+    Kind getKind( CtClass<?> src ) {
+
+        String name = src.getQualifiedName();
+        synchronized( kinds ) {
+            Kind kind = kinds.get(name);
+            if( kind == null ) {
+                kind = computeKind(src);
+                kinds.put(name,kind);
+            }
+            return kind;
+        }
+    }
+
+    private static Kind computeKind( CtClass<?> src ) {
+
+        Set<String> readers = new HashSet<String>();
+        for (CtMethod<?> method : src.getMethods()) {
+            if( method.hasModifier(ModifierKind.SYNCHRONIZED) &&
+                isReadMostly(method) ) {
+                readers.add(method.getSimpleName());
+            }
+        }
+
+        boolean sync = false;
+        boolean block = false;
+        boolean upgrade = false;
+        for (CtMethod<?> method : src.getMethods()) {
+
+            if( method.getBody() == null ||
+                method.hasModifier(ModifierKind.STATIC) ) {
+                continue;
+            }
+            SyncScanner scanner = new SyncScanner();
+            scanner.scan(method.getBody());
+            if( scanner.monitor ) {
+                return Kind.MONITOR;
+            }
+
+            sync |= method.hasModifier(ModifierKind.SYNCHRONIZED);
+            block |= ! scanner.blocks.isEmpty();
+            if( readers.contains(method.getSimpleName()) &&
+                isReadMostly(method) ) {
+                for (String called : scanner.calls) {
+                    if( ! readers.contains(called) &&
+                        ! called.startsWith(MixinClassGenerator.SUPER) ) {
+                        upgrade = true;
+                    }
+                }
+            }
+        }
+
+        if( ! sync && ! block ) {
+            return Kind.NONE;
+        }
+        if( ! readers.isEmpty() && ! block && ! upgrade ) {
+            return Kind.READ_WRITE;
+        }
+        return Kind.OBJECT;
+    }
+
+    /**
+     * Insert in the target class the lock field of the given mixed class.
+     */
+    private CtField<?> createLock( CtClass<?> target, CtClass<?> src, Kind kind ) {
+
+        String base = src.getSimpleName() + MixinClassGenerator.MIXED_METH_SEP + LOCK;
+        String name = base;
+        for (int i = 0; target.getField(name) != null; i++) {
+            name = base + MixinClassGenerator.MIXED_METH_SEP + i;
+        }
+
+        Class<?> cl =
+            kind == Kind.READ_WRITE ? ReentrantReadWriteLock.class : Object.class;
+        CtTypeReference<?> type = factory.Type().createReference(cl);
+        CtNewClass<?> init = factory.Core().createNewClass();
+        init.setType((CtTypeReference)factory.Core().clone(type));
+        init.setExecutable(
+            (CtExecutableReference)
+            factory.Executable().createReference(
+                factory.Core().clone(type), false, factory.Core().clone(type),
+                CtExecutableReference.CONSTRUCTOR_NAME));
+
+        CtField<?> field =
+            factory.Field().create(
+                target,
+                factory.Code().modifiers(ModifierKind.PRIVATE,ModifierKind.FINAL),
+                (CtTypeReference)type, name, (CtExpression)init );
+        init.setParent(field);
+        field.setParent(target);
+        return field;
+    }
+
+    /**
+     * Return a block executing the given body in a block synchronized on the
+     * given lock.
+     */
+    private CtBlock<?> synchronize( CtField<?> lock, CtBlock<?> body ) {
+        CtSynchronized sync = factory.Core().createSynchronized();
+        CtExpression<?> access = access(lock);
+        sync.setExpression(access);
+        access.setParent(sync);
+        sync.setBlock(body);
+        body.setParent(sync);
+        CtBlock<?> block = factory.Core().createBlock();
+        block.addStatement(sync);
+        sync.setParent(block);
+        return block;
+    }
+
+    /**
+     * Return a block executing the given body while holding the read lock or
+     * the write lock of the given read write lock.
+     */
+    private CtBlock<?> lock( CtField<?> lock, CtBlock<?> body, boolean read ) {
+        CtTry tr = factory.Core().createTry();
+        tr.setBody(body);
+        body.setParent(tr);
+        CtBlock<?> fin = factory.Core().createBlock();
+        CtStatement release = call(lock,read,"unlock");
+        fin.addStatement(release);
+        release.setParent(fin);
+        tr.setFinalizer(fin);
+        fin.setParent(tr);
+
+        CtBlock<?> block = factory.Core().createBlock();
+        CtStatement acquire = call(lock,read,"lock");
+        block.addStatement(acquire);
+        acquire.setParent(block);
+        block.addStatement(tr);
+        tr.setParent(block);
+        return block;
+    }
+
+    /**
+     * Return the invocation of the given method on the read lock or on the
+     * write lock of the given read write lock.
+     */
+    private CtInvocation<?> call( CtField<?> lock, boolean read, String name ) {
+
+        Class<?> cl =
+            read ?
+            ReentrantReadWriteLock.ReadLock.class :
+            ReentrantReadWriteLock.WriteLock.class;
+        CtExecutableReference<?> getter =
+            factory.Executable().createReference(
+                factory.Type().createReference(ReentrantReadWriteLock.class),
+                false, factory.Type().createReference(cl),
+                read ? "readLock" : "writeLock" );
+        CtInvocation<?> inv =
+            factory.Code().createInvocation(access(lock),getter);
+
+        CtExecutableReference<?> ref =
+            factory.Executable().createReference(
+                factory.Type().createReference(cl), false,
+                factory.Core().clone(factory.Type().VOID_PRIMITIVE), name );
+        return factory.Code().createInvocation(inv,ref);
+    }
+
+    private CtExpression<?> access( CtField<?> lock ) {
+        CtFieldAccess<?> access = factory.Core().createFieldAccess();
+        access.setVariable((CtFieldReference)factory.Field().createReference(lock));
+        access.setType((CtTypeReference)factory.Core().clone(lock.getType()));
+        return access;
+    }
+
+    private static boolean isReadMostly( CtMethod<?> method ) {
+        return SpoonHelper.isAnnotated(method,ReadMostly.class);
+    }
+
+    /**
+     * Remove the {@link ReadMostly} annotation of the given method: the
+     * locking is now explicit.
+     */
+    private static void removeReadMostly( CtMethod<?> method ) {
+        List<CtAnnotation<? extends Annotation>> annotations =
+            new ArrayList<CtAnnotation<? extends Annotation>>();
+        for (CtAnnotation<? extends Annotation> annotation : method.getAnnotations()) {
+            if( ! annotation.getAnnotationType().getQualifiedName().equals(
+                    ReadMostly.class.getName()) ) {
+                annotations.add(annotation);
+            }
+        }
+        method.setAnnotations(annotations);
+    }
+
+    /** Return the number of generated lock fields. */
+    public synchronized int getLocks() {
+        return locks;
+    }
+
+    /** Return the number of generated read write lock fields. */
+    public synchronized int getReadWriteLocks() {
+        return readWriteLocks;
+    }
+
+    /** Return the number of rewritten synchronized methods. */
+    public synchronized int getMethods() {
+        return methods;
+    }
+
+    /** Return the number of rewritten synchronized blocks. */
+    public synchronized int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Return the number of mixed classes which kept the instance monitor,
+     * counted once per target class.
+     */
+    public synchronized int getMonitors() {
+        return monitors;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return
+            "locks: "+locks+" lock(s) generated ("+readWriteLocks+
+            " read write lock(s)), "+methods+" synchronized method(s) and "+
+            blocks+" synchronized block(s) isolated, "+monitors+
+            " mixed class(es) kept on the instance monitor";
+    }
+
+    /**
+     * Collect the blocks synchronized on the instance and the methods called
+     * on the instance, outside nested and anonymous classes.
+     */
+    private static class SyncScanner extends CtScanner {
+
+        private int depth;
+        private List<CtSynchronized> blocks = new ArrayList<CtSynchronized>();
+        private Set<String> calls = new HashSet<String>();
+        private boolean monitor;
+
+        @Override
+        protected void enter( CtElement e ) {
+            if( e instanceof CtSimpleType ) {
+                depth++;
+            }
+        }
+
+        @Override
+        protected void exit( CtElement e ) {
+            if( e instanceof CtSimpleType ) {
+                depth--;
+            }
+        }
+
+        @Override
+        public void visitCtSynchronized( CtSynchronized synchro ) {
+            if( depth == 0 && synchro.getExpression() instanceof CtThisAccess ) {
+                blocks.add(synchro);
+            }
+            super.visitCtSynchronized(synchro);
+        }
+
+        @Override
+        public <T> void visitCtInvocation( CtInvocation<T> invocation ) {
+            CtExpression<?> target = invocation.getTarget();
+            if( depth == 0 &&
+                (target == null || target instanceof CtThisAccess) ) {
+                String name = invocation.getExecutable().getSimpleName();
+                calls.add(name);
+                if( MONITOR_METHODS.contains(name) ) {
+                    monitor = true;
+                }
+            }
+            super.visitCtInvocation(invocation);
+        }
+    }
+}
@@ -19,10 +19,36 @@
 
 package jmixer;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import spoon.Launcher;
+import spoon.compiler.Environment;
 import spoon.processing.AbstractAnnotationProcessor;
+import spoon.processing.FileGenerator;
+import spoon.processing.Property;
+import spoon.processing.Severity;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtAnnotation;
 import spoon.reflect.declaration.CtClass;
-import spoon.reflect.factory.ClassFactory;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtSimpleType;
 import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.support.JavaOutputProcessor;
 
 /**
  * An annotation processor for the @{@link Mixin} annotation.
@@ -32,19 +58,886 @@ import spoon.reflect.factory.Factory;
 public class MixinProcessor
 extends AbstractAnnotationProcessor<Mixin,CtClass<?>> {
 
+	/**
+	 * The number of threads used to weave the annotated classes. With a value
+	 * greater than 1, classes are collected while processing and woven
+	 * concurrently once processing is done.
+	 */
+	@Property
+	private int parallelism = 1;
+	
+	/**
+	 * The directory of the persistent {@link WeavingCache}. The cache is
+	 * disabled when no directory is specified.
+	 * 
+	 * On a cache hit, the annotated class is not woven and the generated
+	 * source file is the cached one. The model of the class is then left
+	 * unchanged: the cache is meant for runs which only generate source files.
+	 * The annotated classes which are mixed in other annotated classes are
+	 * therefore never retrieved from the cache.
+	 */
+	@Property
+	private String cacheDirectory;
+	
+	/**
+	 * Whether the chains of methods generated for _super_ calls are flattened,
+	 * see {@link MixinClassGenerator#setFlattenChains(boolean)}.
+	 */
+	@Property
+	private boolean flattenChains = false;
+	
+	/**
+	 * Whether the mixed methods are delegated to shared implementations
+	 * instead of being copied in each annotated class, see
+	 * {@link MixinClassGenerator#setDelegation(boolean)}. The number of
+	 * delegated methods and of saved elements is reported when processing is
+	 * done.
+	 */
+	@Property
+	private boolean delegation = false;
+	
+	/**
+	 * Whether the static fields of the mixed classes are held once by their
+	 * mixed class instead of being copied in each annotated class, see
+	 * {@link MixinClassGenerator#setSharedStatics(boolean)}. The number of
+	 * shared fields and of copies avoided is reported when processing is
+	 * done.
+	 */
+	@Property
+	private boolean sharedStatics = false;
+	
+	/**
+	 * Whether the classes already mixed in a superclass of an annotated class
+	 * are skipped, see {@link MixinHierarchy}. The number of skipped classes
+	 * and of members not duplicated is reported when processing is done.
+	 */
+	@Property
+	private boolean skipInheritedMixins = false;
+	
+	/** The classes mixed in the annotated classes (may be null). */
+	private MixinHierarchy hierarchy;
+	
+	/**
+	 * Whether the synchronized methods and blocks of each mixed class lock a
+	 * private lock instead of the target instance, see {@link MixinLocks}.
+	 * The number of generated locks is reported when processing is done.
+	 */
+	@Property
+	private boolean lockIsolation = false;
+	
+	/** The lock isolation of the mixed classes (may be null). */
+	private MixinLocks locks;
+	
+	/** The holders of the state of the {@link LazyState} mixed classes. */
+	private MixinHolders holders;
+	
+	/**
+	 * Whether the mixed fields are laid out by size and the fields of the
+	 * {@link HotState} classes isolated, see {@link MixinLayout}.
+	 */
+	@Property
+	private boolean fieldLayout = false;
+	
+	/**
+	 * The annotation isolating the fields of the {@link HotState} classes,
+	 * sun.misc.Contended when not set.
+	 */
+	@Property
+	private String contendedAnnotation;
+	
+	/**
+	 * The file where the estimated instance sizes and cache lines of the
+	 * laid out classes are written (none when not set).
+	 */
+	@Property
+	private String layoutReport;
+	
+	/** The layout of the mixed fields (may be null). */
+	private MixinLayout layout;
+	
+	/**
+	 * Whether the mixed members are finalized once the annotated classes are
+	 * woven, see {@link MixinFinalizer}. The analysis is restricted to the
+	 * processed model, and the weaving cache is disabled since the result
+	 * depends on other classes than the annotated class and its mixins.
+	 */
+	@Property
+	private boolean devirtualize = false;
+	
+	/**
+	 * Whether the processed model contains all the classes of the
+	 * application. Must be set to false when the model is restricted, e.g. to
+	 * the classes selected by {@link MixinScanner}: the mixed methods are then
+	 * only bound in final target classes and the mixed fields are never made
+	 * private, see {@link MixinFinalizer#setClosedWorld(boolean)}.
+	 */
+	@Property
+	private boolean closedWorld = true;
+	
+	/**
+	 * The file where the report of the finalized members and of the call
+	 * sites bound statically is written when processing is done.
+	 */
+	@Property
+	private String devirtualizationReport;
+	
+	/** The finalizer of the mixed members (may be null). */
+	private MixinFinalizer finalizer;
+	
+	/**
+	 * The file where a JSON report of the weaving metrics is written when
+	 * processing is done. Metrics are collected only when a report file or a
+	 * {@link WeavingMetrics} instance is specified.
+	 */
+	@Property
+	private String metricsReport;
+	
+	/** The metrics of the woven classes (may be null). */
+	private WeavingMetrics metrics;
+	
+	/**
+	 * The number of annotated classes woven in a batch in the streaming mode.
+	 * In this mode, the annotated classes are woven by batches: once a batch
+	 * is woven, the source files of its classes are written and the members
+	 * of the classes are released. The memory used by the woven classes then
+	 * depends on the batch size, not on the number of classes. The streaming
+	 * mode is disabled when the batch size and the memory budget are 0.
+	 * 
+	 * The model is left with empty classes: the streaming mode is meant for
+	 * runs which only generate source files. The members of the classes which
+	 * are mixed in, or extended by, the annotated classes of the next batches
+	 * are kept.
+	 */
+	@Property
+	private int batchSize = 0;
+	
+	/**
+	 * The heap size in megabytes above which the current batch is woven and
+	 * released in the streaming mode, even if it is not full (0 for none).
+	 */
+	@Property
+	private int memoryBudget = 0;
+	
+	private boolean streaming;
+	private int batches;
+	private long peakHeap;
+	
+	/** The classes to be woven when processing is done. */
+	private Map<CtClass<?>,CtClass<?>[]> targets =
+		new LinkedHashMap<CtClass<?>,CtClass<?>[]>();
+	
+	/** The type arguments of the generic classes mixed in each class. */
+	private Map<CtClass<?>,List<CtTypeReference<?>>> typeArguments =
+		new IdentityHashMap<CtClass<?>,List<CtTypeReference<?>>>();
+	
+	private WeavingCache cache;
+	private CachingOutputProcessor output;
+	
+	/**
+	 * Annotated class name -> names of its mixed classes, recorded before the
+	 * annotations are consumed (only when the cache is enabled).
+	 */
+	private Map<String,String[]> annotated;
+	
+	/** The names of the annotated classes mixed in other annotated classes. */
+	private Set<String> mixedTargets;
+	
+	/** The mixed classes and their templates, shared by all the targets. */
+	private MixinTemplateCache templates;
+	
+	@Override
+	public void init() {
+		
+		templates = new MixinTemplateCache(getFactory());
+		if( devirtualize ) {
+			finalizer = new MixinFinalizer(getFactory());
+			finalizer.setClosedWorld(closedWorld);
+		}
+		if( skipInheritedMixins ) {
+			hierarchy = new MixinHierarchy();
+		}
+		if( lockIsolation ) {
+			locks = new MixinLocks(getFactory());
+		}
+		holders = new MixinHolders(getFactory());
+		if( fieldLayout ) {
+			layout = new MixinLayout(getFactory());
+			if( contendedAnnotation != null ) {
+				layout.setContended(contendedAnnotation);
+			}
+		}
+		if( metrics == null && metricsReport != null ) {
+			metrics = new WeavingMetrics();
+		}
+		
+		streaming = batchSize > 0 || memoryBudget > 0;
+		peakHeap = 0;
+		
+		if( cacheDirectory == null && ! streaming ) {
+			return;
+		}
+		
+		/*
+		 * Replace the output processor with one which writes cached classes
+		 * and which does not overwrite the classes written by batches.
+		 */
+		Environment env = getEnvironment();
+		FileGenerator<?> fg = env.getDefaultFileGenerator();
+		if( !(fg instanceof JavaOutputProcessor) ) {
+			env.report(
+				this, Severity.WARNING,
+				"No Java output processor, the weaving cache and the "+
+				"streaming mode are disabled");
+			streaming = false;
+			return;
+		}
+		
+		JavaOutputProcessor jop = (JavaOutputProcessor) fg;
+		if( cacheDirectory != null ) {
+			cache = new WeavingCache(new File(cacheDirectory));
+			recordAnnotatedClasses();
+		}
+		output =
+			new CachingOutputProcessor(
+				jop.getOutputDirectory(), jop.getPrinter(), cache );
+		env.setDefaultFileGenerator(output);
+	}
+	
 	public void process( Mixin annotation, CtClass<?> ctclass ) {
 		
 		Factory f = ctclass.getFactory();
-		ClassFactory cf = f.Class();
 
 		Class<?>[] mixes = annotation.value();
 		CtClass<?>[] ctmixes = new CtClass<?>[mixes.length];
 		for (int i = 0; i < ctmixes.length; i++) {
 			Class<?> mix = mixes[i];
-			ctmixes[i] = cf.get(mix);
+			ctmixes[i] = templates.getMixedClass(mix);
+			
+			/*
+			 * The shared implementations and static fields are needed by
+			 * cached classes too.
+			 */
+			if( delegation ) {
+				templates.getDelegation(ctmixes[i]);
+			}
+			if( sharedStatics ) {
+				templates.getStatics(ctmixes[i]);
+			}
 		}
 		
-		MixinClassGenerator mcg = new MixinClassGenerator(f);
+		/*
+		 * The generic mixed classes are specialized for the type arguments.
+		 */
+		List<CtTypeReference<?>> arguments =
+			SpoonHelper.getTypeArguments(ctclass);
+		if( arguments != null ) {
+			typeArguments.put(ctclass,arguments);
+		}
+		
+		/*
+		 * The classes mixed in superclasses are needed by their subclasses,
+		 * even once their annotation has been consumed.
+		 */
+		if( hierarchy != null ) {
+			hierarchy.addTarget(ctclass,ctmixes,typeArguments.get(ctclass));
+		}
+		
+		if( cache != null ) {
+			String key = getCacheKey(ctclass,ctmixes);
+			if( key != null ) {
+				byte[] woven = null;
+				try {
+					woven = cache.get(key);
+				}
+				catch( IOException ioe ) {
+					Launcher.logger.error(ioe.getMessage(),ioe);
+				}
+				if( woven != null ) {
+					output.addHit(ctclass,woven);
+					return;
+				}
+				output.addMiss(ctclass,key);
+			}
+		}
+		
+		if( streaming ) {
+			targets.put(ctclass,ctmixes);
+			if( (batchSize > 0 && targets.size() >= batchSize) ||
+				(memoryBudget > 0 && getUsedHeap() > memoryBudget*1024L*1024L) ) {
+				weaveBatch();
+			}
+			return;
+		}
+		
+		if( parallelism > 1 ) {
+			targets.put(ctclass,ctmixes);
+			return;
+		}
+		
+		MixinClassGenerator mcg = createGenerator(f);
 		mcg.generate(ctclass,ctmixes);
 	}
+	
+	@Override
+	public void processingDone() {
+		
+		if( cache != null ) {
+			getEnvironment().report(this,Severity.MESSAGE,cache.toString());
+		}
+		
+		if( streaming ) {
+			weaveBatch();
+		}
+		else if( ! targets.isEmpty() ) {
+			MixinClassGenerator mcg = createGenerator(getFactory());
+			mcg.generateAll(targets,parallelism);
+			targets.clear();
+		}
+		if( finalizer != null ) {
+			finalizer.finalizeTargets();
+		}
+		
+		if( streaming ) {
+			getEnvironment().report(
+				this, Severity.MESSAGE,
+				"peak heap use: "+(peakHeap/(1024*1024))+" MB ("+
+				batches+" batch(es))");
+		}
+		
+		if( delegation ) {
+			getEnvironment().report(
+				this, Severity.MESSAGE,
+				"delegation: "+templates.getDelegatedMethods()+
+				" method(s) shared, "+templates.getSavedNodes()+
+				" element(s) saved");
+		}
+		
+		if( sharedStatics ) {
+			getEnvironment().report(
+				this, Severity.MESSAGE,
+				"shared statics: "+templates.getSharedStaticFields()+
+				" static field(s) held once, "+
+				templates.getSavedStaticCopies()+" copies avoided");
+		}
+		
+		if( templates.getSpecializations() > 0 ) {
+			getEnvironment().report(
+				this, Severity.MESSAGE,
+				"specialization: "+templates.getSpecializations()+
+				" specialized class(es), "+
+				templates.getPrimitiveSpecializations()+
+				" type parameter(s) bound to primitive types, "+
+				templates.getBoxedArguments()+" primitive argument(s) boxed");
+		}
+		
+		if( hierarchy != null ) {
+			getEnvironment().report(this,Severity.MESSAGE,hierarchy.toString());
+		}
+		
+		if( locks != null ) {
+			getEnvironment().report(this,Severity.MESSAGE,locks.toString());
+		}
+		
+		if( layout != null ) {
+			getEnvironment().report(this,Severity.MESSAGE,layout.toString());
+			if( layoutReport != null ) {
+				try {
+					File report = new File(layoutReport);
+					File dir = report.getAbsoluteFile().getParentFile();
+					if( ! dir.isDirectory() && ! dir.mkdirs() ) {
+						throw new IOException("Error creating directory "+dir);
+					}
+					Files.write(
+						report.toPath(), layout.getReport().getBytes("UTF-8"));
+				}
+				catch( IOException ioe ) {
+					Launcher.logger.error(ioe.getMessage(),ioe);
+				}
+			}
+		}
+		
+		if( holders.getHolders() > 0 ) {
+			getEnvironment().report(this,Severity.MESSAGE,holders.toString());
+			for (String line : holders.getReport()) {
+				getEnvironment().report(this,Severity.MESSAGE,line);
+			}
+		}
+		
+		if( finalizer != null ) {
+			getEnvironment().report(this,Severity.MESSAGE,finalizer.toString());
+			if( devirtualizationReport != null ) {
+				try {
+					File report = new File(devirtualizationReport);
+					File dir = report.getAbsoluteFile().getParentFile();
+					if( ! dir.isDirectory() && ! dir.mkdirs() ) {
+						throw new IOException("Error creating directory "+dir);
+					}
+					Files.write(
+						report.toPath(), finalizer.getReport().getBytes("UTF-8"));
+				}
+				catch( IOException ioe ) {
+					Launcher.logger.error(ioe.getMessage(),ioe);
+				}
+			}
+		}
+		
+		if( metrics != null ) {
+			getEnvironment().report(this,Severity.MESSAGE,metrics.toString());
+			if( metricsReport != null ) {
+				try {
+					metrics.writeReport(new File(metricsReport));
+				}
+				catch( IOException ioe ) {
+					Launcher.logger.error(ioe.getMessage(),ioe);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Return a generator configured with the properties of this processor
+	 * and sharing its templates, metrics and analyses.
+	 */
+	private MixinClassGenerator createGenerator( Factory f ) {
+		MixinClassGenerator mcg = new MixinClassGenerator(f);
+		mcg.setTemplateCache(templates);
+		mcg.setFlattenChains(flattenChains);
+		mcg.setDelegation(delegation);
+		mcg.setSharedStatics(sharedStatics);
+		mcg.setMetrics(metrics);
+		mcg.setFinalizer(finalizer);
+		mcg.setHierarchy(hierarchy);
+		mcg.setLocks(locks);
+		mcg.setHolders(holders);
+		mcg.setLayout(layout);
+		mcg.setTypeArguments(typeArguments);
+		return mcg;
+	}
+	
+	/**
+	 * Weave the collected classes, write their source files and release
+	 * their members.
+	 */
+	private void weaveBatch() {
+		
+		if( targets.isEmpty() ) {
+			return;
+		}
+		
+		sampleHeap();
+		MixinClassGenerator mcg = createGenerator(getFactory());
+		mcg.generateAll(targets,parallelism);
+		if( finalizer != null ) {
+			finalizer.finalizeTargets();
+		}
+		sampleHeap();
+		
+		/*
+		 * Classes with nested classes are written when processing is done:
+		 * nested classes may be woven later on.
+		 */
+		Set<String> needed = getPendingDependencies();
+		output.setFactory(getFactory());
+		for (CtClass<?> target : targets.keySet()) {
+			if( ! target.isTopLevel() || ! target.getNestedTypes().isEmpty() ) {
+				continue;
+			}
+			
+			/*
+			 * The annotation is consumed once the current element is processed:
+			 * remove it before writing.
+			 */
+			for (CtAnnotation<?> a : new ArrayList<CtAnnotation<?>>(target.getAnnotations())) {
+				if( a.getAnnotationType().getQualifiedName().equals(Mixin.class.getName()) &&
+					shoudBeConsumed(a) ) {
+					target.removeAnnotation(a);
+				}
+			}
+			
+			output.process(target);
+			output.addWritten(target);
+			if( needed.contains(target.getQualifiedName()) ) {
+				continue;
+			}
+			target.setMethods(new TreeSet<CtMethod<?>>());
+			target.getFields().clear();
+			target.setDocComment(null);
+		}
+		
+		typeArguments.keySet().removeAll(targets.keySet());
+		targets.clear();
+		batches++;
+	}
+	
+	/**
+	 * Return the names of the classes mixed in, or extended by, the annotated
+	 * classes which are not woven yet. The annotations of the woven classes
+	 * have been consumed.
+	 */
+	private Set<String> getPendingDependencies() {
+		
+		Set<String> names = new HashSet<String>();
+		List<CtSimpleType<?>> types =
+			new ArrayList<CtSimpleType<?>>(getFactory().Type().getAll());
+		for (int i = 0; i < types.size(); i++) {
+			CtSimpleType<?> type = types.get(i);
+			types.addAll(type.getNestedTypes());
+			if( !(type instanceof CtClass) || targets.containsKey(type) ) {
+				continue;
+			}
+			String[] mixins = SpoonHelper.getMixedClassNames((CtClass<?>) type);
+			if( mixins == null ) {
+				continue;
+			}
+			names.addAll(Arrays.asList(mixins));
+			for (CtTypeReference<?> sup = ((CtClass<?>) type).getSuperclass();
+				 sup != null && sup.getDeclaration() instanceof CtClass;
+				 sup = ((CtClass<?>) sup.getDeclaration()).getSuperclass()) {
+				names.add(sup.getQualifiedName());
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Record the classes mixed in each annotated class of the model and the
+	 * annotated classes which are mixed in other ones.
+	 */
+	private void recordAnnotatedClasses() {
+		
+		annotated = new HashMap<String,String[]>();
+		List<CtSimpleType<?>> types =
+			new ArrayList<CtSimpleType<?>>(getFactory().Type().getAll());
+		for (int i = 0; i < types.size(); i++) {
+			CtSimpleType<?> type = types.get(i);
+			types.addAll(type.getNestedTypes());
+			if( type instanceof CtClass ) {
+				String[] mixins = SpoonHelper.getMixedClassNames((CtClass<?>) type);
+				if( mixins != null ) {
+					annotated.put(type.getQualifiedName(),mixins);
+				}
+			}
+		}
+		
+		mixedTargets = new HashSet<String>();
+		for (String[] mixins : annotated.values()) {
+			for (String mixin : mixins) {
+				if( annotated.containsKey(mixin) ) {
+					mixedTargets.add(mixin);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Record the heap use at a batch boundary if it is the highest one of the
+	 * run. The global peak usages of the JVM are neither read nor reset.
+	 */
+	private void sampleHeap() {
+		long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		peakHeap = Math.max(peakHeap,used);
+	}
+	
+	private static long getUsedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	/**
+	 * Return the key of the woven class in the cache or <code>null</code> if
+	 * the class can not be cached. The key covers the source code of the
+	 * target class, of the mixed classes and, transitively, of the classes
+	 * mixed in the mixed classes which are annotated too, and the settings
+	 * which change the generated source code.
+	 */
+	private String getCacheKey( CtClass<?> ctclass, CtClass<?>[] ctmixes ) {
+		
+		if( ! ctclass.isTopLevel() || devirtualize ) {
+			return null;
+		}
+		
+		/*
+		 * A cached class is not woven in the model: the classes mixing it
+		 * would mix the class as it was before weaving.
+		 */
+		if( mixedTargets.contains(ctclass.getQualifiedName()) ) {
+			return null;
+		}
+		
+		/*
+		 * The woven class depends on the classes mixed in its superclass.
+		 */
+		if( hierarchy != null &&
+			hierarchy.getInherited(
+				ctclass,ctmixes,typeArguments.get(ctclass)) > 0 ) {
+			return null;
+		}
+		
+		Environment env = getEnvironment();
+		List<String> sources = new ArrayList<String>();
+		sources.add(
+			System.getProperty("line.separator")+
+			Charset.defaultCharset().name()+
+			env.getComplianceLevel()+
+			env.isAutoImports()+
+			env.isPreserveLineNumbers()+
+			env.isUsingTabulations()+
+			env.getTabulationSize()+
+			flattenChains+
+			delegation+
+			sharedStatics+
+			skipInheritedMixins+
+			lockIsolation+
+			fieldLayout+
+			contendedAnnotation);
+		
+		List<CtClass<?>> classes = new ArrayList<CtClass<?>>();
+		Set<String> names = new HashSet<String>();
+		classes.add(ctclass);
+		names.add(ctclass.getQualifiedName());
+		for (CtClass<?> ctmix : ctmixes) {
+			if( names.add(ctmix.getQualifiedName()) ) {
+				classes.add(ctmix);
+			}
+		}
+		for (int i = 1; i < classes.size(); i++) {
+			String[] mixins = annotated.get(classes.get(i).getQualifiedName());
+			if( mixins == null ) {
+				continue;
+			}
+			for (String mixin : mixins) {
+				if( ! names.add(mixin) ) {
+					continue;
+				}
+				CtClass<?> c = getFactory().Class().get(mixin);
+				if( c == null ) {
+					return null;
+				}
+				classes.add(c);
+			}
+		}
+		
+		for (CtClass<?> c : classes) {
+			SourcePosition sp = c.getPosition();
+			if( sp == null || sp.getCompilationUnit() == null ) {
+				return null;
+			}
+			sources.add(sp.getCompilationUnit().getOriginalSourceCode());
+		}
+		
+		return cache.key(sources);
+	}
+	
+	/**
+	 * Return the mixed classes and their templates used during this run.
+	 */
+	public MixinTemplateCache getTemplateCache() {
+		return templates;
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	public void setParallelism( int parallelism ) {
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Return the weaving cache or <code>null</code> if the cache is disabled.
+	 */
+	public WeavingCache getCache() {
+		return cache;
+	}
+	
+	public boolean isFlattenChains() {
+		return flattenChains;
+	}
+	
+	public void setFlattenChains( boolean flattenChains ) {
+		this.flattenChains = flattenChains;
+	}
+	
+	public boolean isDelegation() {
+		return delegation;
+	}
+	
+	public void setDelegation( boolean delegation ) {
+		this.delegation = delegation;
+	}
+	
+	public boolean isSharedStatics() {
+		return sharedStatics;
+	}
+	
+	public void setSharedStatics( boolean sharedStatics ) {
+		this.sharedStatics = sharedStatics;
+	}
+	
+	/**
+	 * Return the metrics of the woven classes or <code>null</code> if they are
+	 * not collected.
+	 */
+	public WeavingMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Collect the metrics of the woven classes in the given instance, e.g.
+	 * after registering some {@link WeavingListener}s.
+	 */
+	public void setMetrics( WeavingMetrics metrics ) {
+		this.metrics = metrics;
+	}
+	
+	public boolean isSkipInheritedMixins() {
+		return skipInheritedMixins;
+	}
+	
+	public void setSkipInheritedMixins( boolean skipInheritedMixins ) {
+		this.skipInheritedMixins = skipInheritedMixins;
+	}
+	
+	/**
+	 * Return the classes mixed in the annotated classes or <code>null</code>
+	 * if the classes mixed in superclasses are not skipped.
+	 */
+	public MixinHierarchy getHierarchy() {
+		return hierarchy;
+	}
+	
+	public boolean isLockIsolation() {
+		return lockIsolation;
+	}
+	
+	public void setLockIsolation( boolean lockIsolation ) {
+		this.lockIsolation = lockIsolation;
+	}
+	
+	/**
+	 * Return the lock isolation of the mixed classes or <code>null</code> if
+	 * the synchronized methods are copied unchanged.
+	 */
+	public MixinLocks getLocks() {
+		return locks;
+	}
+	
+	/**
+	 * Return the holders of the state of the {@link LazyState} mixed classes.
+	 */
+	public MixinHolders getHolders() {
+		return holders;
+	}
+	
+	public boolean isFieldLayout() {
+		return fieldLayout;
+	}
+	
+	public void setFieldLayout( boolean fieldLayout ) {
+		this.fieldLayout = fieldLayout;
+	}
+	
+	public String getContendedAnnotation() {
+		return contendedAnnotation;
+	}
+	
+	public void setContendedAnnotation( String contendedAnnotation ) {
+		this.contendedAnnotation = contendedAnnotation;
+	}
+	
+	public String getLayoutReport() {
+		return layoutReport;
+	}
+	
+	public void setLayoutReport( String layoutReport ) {
+		this.layoutReport = layoutReport;
+	}
+	
+	/**
+	 * Return the layout of the mixed fields or <code>null</code> if the
+	 * fields are not laid out.
+	 */
+	public MixinLayout getLayout() {
+		return layout;
+	}
+	
+	public boolean isDevirtualize() {
+		return devirtualize;
+	}
+	
+	public void setDevirtualize( boolean devirtualize ) {
+		this.devirtualize = devirtualize;
+	}
+	
+	public boolean isClosedWorld() {
+		return closedWorld;
+	}
+	
+	public void setClosedWorld( boolean closedWorld ) {
+		this.closedWorld = closedWorld;
+	}
+	
+	public String getDevirtualizationReport() {
+		return devirtualizationReport;
+	}
+	
+	public void setDevirtualizationReport( String devirtualizationReport ) {
+		this.devirtualizationReport = devirtualizationReport;
+	}
+	
+	/**
+	 * Return the finalizer of the mixed members or <code>null</code> if they
+	 * are not finalized.
+	 */
+	public MixinFinalizer getFinalizer() {
+		return finalizer;
+	}
+	
+	public String getMetricsReport() {
+		return metricsReport;
+	}
+	
+	public void setMetricsReport( String metricsReport ) {
+		this.metricsReport = metricsReport;
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	public void setBatchSize( int batchSize ) {
+		this.batchSize = batchSize;
+	}
+	
+	public int getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	public void setMemoryBudget( int memoryBudget ) {
+		this.memoryBudget = memoryBudget;
+	}
+	
+	/**
+	 * Return the number of batches woven in the streaming mode.
+	 */
+	public int getBatches() {
+		return batches;
+	}
+	
+	/**
+	 * Return the peak heap use in bytes in the streaming mode, i.e. the
+	 * highest heap use sampled before and after weaving each batch, or 0 if
+	 * processing is not done or if the streaming mode is disabled.
+	 */
+	public long getPeakHeap() {
+		return peakHeap;
+	}
+	
+	public String getCacheDirectory() {
+		return cacheDirectory;
+	}
+	
+	public void setCacheDirectory( String cacheDirectory ) {
+		this.cacheDirectory = cacheDirectory;
+	}
 }
@@ -0,0 +1,183 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.List;
+
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtTargetedAccess;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtPackageReference;
+import spoon.reflect.reference.CtReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This visitor rewrites, in a single traversal, the elements mixed from a
+ * source class into a target class:
+ * <ul>
+ * <li>type references to the source class are replaced by references to the
+ * target class,</li>
+ * <li>the _this_ prefix is removed from invoked methods and accessed
+ * fields,</li>
+ * <li>calls to _super_ methods are redirected to the next method in the
+ * name$99 chain.</li>
+ * </ul>
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+class MixinRewriter extends CtScanner {
+
+    private String srcName;
+    private String targetName;
+    private CtPackageReference targetPackage;
+    private SignatureTable sigs;
+    private int current;
+    private MixinTemplate template;
+
+    /**
+     * @param srcName        the qualified name of the source class
+     * @param targetName     the simple name of the target class
+     * @param targetPackage  the package of the target class
+     * @param sigs           the methods inserted so far in the target class
+     * @param current        the position of the currently mixed class
+     */
+    public MixinRewriter(
+            String srcName, String targetName, CtPackageReference targetPackage,
+            SignatureTable sigs, int current ) {
+
+        this.srcName = srcName;
+        this.targetName = targetName;
+        this.targetPackage = targetPackage;
+        this.sigs = sigs;
+        this.current = current;
+    }
+
+    /**
+     * @param srcName        the qualified name of the source class
+     * @param targetName     the simple name of the target class
+     * @param targetPackage  the package of the target class
+     * @param sigs           the methods inserted so far in the target class
+     * @param current        the position of the currently mixed class
+     * @param template       the template of the source class, providing the
+     *                       signatures of the methods called with _super_
+     */
+    public MixinRewriter(
+            String srcName, String targetName, CtPackageReference targetPackage,
+            SignatureTable sigs, int current, MixinTemplate template ) {
+
+        this(srcName,targetName,targetPackage,sigs,current);
+        this.template = template;
+    }
+
+    /**
+     * Replace type references from the source class to the target class.
+     */
+    @Override
+    public void scan( CtReference reference ) {
+        if( reference instanceof CtTypeReference ) {
+            CtTypeReference<?> ref = (CtTypeReference<?>) reference;
+            if( ref.getQualifiedName().equals(srcName) ) {
+                ref.setSimpleName(targetName);
+                ref.setPackage(targetPackage);
+            }
+        }
+        super.scan(reference);
+    }
+
+    /**
+     * Replace calls to methods with a _this_ or a _super_ prefix.
+     * The invocation is rewritten before its children so that _super_ methods
+     * are resolved against their declaration in the source class.
+     */
+    @Override
+    public <T> void visitCtInvocation( CtInvocation<T> invocation ) {
+
+        CtExecutableReference<T> cer = invocation.getExecutable();
+        String name = cer.getSimpleName();
+
+        if( name.startsWith(MixinClassGenerator.THIS) ) {
+            cer.setSimpleName(name.substring(MixinClassGenerator.THIS.length()));
+        }
+        else if( name.startsWith(MixinClassGenerator.SUPER) ) {
+            updateCallTo_super_Method(cer);
+        }
+
+        super.visitCtInvocation(invocation);
+    }
+
+    /**
+     * Remove the _this_ prefix in field accesses.
+     */
+    @Override
+    public <T> void visitCtTargetedAccess( CtTargetedAccess<T> targetedAccess ) {
+
+        if( targetedAccess instanceof CtFieldAccess ) {
+            CtFieldReference<T> cfr = targetedAccess.getVariable();
+            String fieldName = cfr.getSimpleName();
+            if( fieldName.startsWith(MixinClassGenerator.THIS) ) {
+                String newFieldName =
+                    fieldName.substring(MixinClassGenerator.THIS.length());
+                cfr.setSimpleName(newFieldName);
+            }
+        }
+
+        super.visitCtTargetedAccess(targetedAccess);
+    }
+
+    /**
+     * Redirect a _super_ call to the method following, in the name$99 chain,
+     * the "base" method, i.e. the method with the same signature inserted by
+     * the currently mixed class.
+     */
+    private void updateCallTo_super_Method( CtExecutableReference<?> cer ) {
+
+        String invMethName =
+            cer.getSimpleName().substring(MixinClassGenerator.SUPER.length());
+
+        /*
+         * Use the signature resolved by the template if any, else resolve the
+         * declaration of the called method.
+         */
+        String key = template == null ? null : template.getSuperCall(cer);
+        SignatureTable.Chain chain;
+        if( key != null ) {
+            chain = sigs.getByKey(key);
+        }
+        else {
+            List<CtTypeReference<?>> ctrs = SpoonHelper.getParameterTypes(cer);
+            chain = sigs.get(invMethName,ctrs);
+        }
+        if( chain == null || chain.getOwner() != current ) {
+            /*
+             * The mixed method calls _super_ but does not define a
+             * corresponding base method.
+             */
+            final String msg =
+                "A base method associated to the "+MixinClassGenerator.SUPER+
+                invMethName+" call should have been found";
+            throw new RuntimeException(msg);
+        }
+
+        cer.setSimpleName(chain.getSuperName());
+    }
+}
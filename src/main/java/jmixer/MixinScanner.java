@@ -0,0 +1,425 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import spoon.compiler.SpoonCompiler;
+
+/**
+ * This class finds the source files which must be loaded in a Spoon model for
+ * weaving: the classes annotated with @{@link Mixin}, the classes referenced
+ * by the annotations, and the source files of the types they reference. The
+ * other types are meant to be resolved from the classpath.
+ *
+ * Source files are scanned lexically, without building any model: files
+ * which do not contain the word Mixin are only read, and the selected files
+ * are tokenized once comments and literals have been removed. Types are
+ * resolved with the package, the imports and the qualified names of a file,
+ * and are looked up in the source roots following the package directory
+ * layout. The scan may then select a few more files than strictly needed,
+ * e.g. when an identifier names both a variable and a type.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinScanner {
+
+    private static final Pattern PACKAGE =
+        Pattern.compile("\\bpackage\\s+([\\w$.\\s]+?)\\s*;");
+    private static final Pattern IMPORT =
+        Pattern.compile("\\bimport\\s+(static\\s+)?([\\w$.\\s]+?)(\\.\\s*\\*)?\\s*;");
+    private static final Pattern MIXIN =
+        Pattern.compile("@\\s*(jmixer\\s*\\.\\s*)?Mixin\\s*\\(");
+    private static final Pattern CLASS_LITERAL =
+        Pattern.compile("([\\w$]+(\\s*\\.\\s*[\\w$]+)*)\\s*\\.\\s*class\\b");
+    private static final Pattern CLASS_DECL =
+        Pattern.compile("\\bclass\\s+([\\w$]+)");
+    private static final Pattern NAME =
+        Pattern.compile("[A-Za-z_$][\\w$]*(\\s*\\.\\s*[A-Za-z_$][\\w$]*)*");
+
+    private List<File> roots;
+    private int depth = 1;
+
+    /** Qualified name -> source file, or null if there is no such file. */
+    private Map<String,File> files = new HashMap<String,File>();
+
+    /** Target class name -> mixed class names. */
+    private Map<String,String[]> targets = new LinkedHashMap<String,String[]>();
+
+    private int scanned;
+
+    /**
+     * @param roots  the source roots, e.g. src/main/java
+     */
+    public MixinScanner( File... roots ) {
+        this.roots = Arrays.asList(roots);
+    }
+
+    /**
+     * Set the number of levels of type dependencies of the targets and mixed
+     * classes whose source files are selected: 0 for none, -1 for the
+     * transitive closure. The default is 1, i.e. the types directly
+     * referenced by the targets and by the mixed classes.
+     */
+    public void setDepth( int depth ) {
+        this.depth = depth;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Scan the source roots and return the source files to be loaded.
+     */
+    public Set<File> scan() throws IOException {
+
+        Set<File> selected = new LinkedHashSet<File>();
+        List<File> level = new ArrayList<File>();
+
+        /*
+         * The annotated classes and the mixed classes.
+         */
+        for (File root : roots) {
+            for (File file : list(root,new ArrayList<File>())) {
+                scanned++;
+                String code = new String(Files.readAllBytes(file.toPath()),"UTF-8");
+                if( ! code.contains("Mixin") ) {
+                    continue;
+                }
+                Unit unit = new Unit(code);
+                for (Map.Entry<String,String[]> entry : unit.getTargets().entrySet()) {
+                    targets.put(entry.getKey(),entry.getValue());
+                    add(file,selected,level);
+                    for (String mixin : entry.getValue()) {
+                        File mixFile = getFile(mixin);
+                        if( mixFile != null ) {
+                            add(mixFile,selected,level);
+                        }
+                    }
+                }
+            }
+        }
+
+        /*
+         * The type dependencies, level by level.
+         */
+        for (int i = 0; (depth < 0 || i < depth) && ! level.isEmpty(); i++) {
+            List<File> next = new ArrayList<File>();
+            for (File file : level) {
+                String code = new String(Files.readAllBytes(file.toPath()),"UTF-8");
+                for (File dep : new Unit(code).getDependencies()) {
+                    add(dep,selected,next);
+                }
+            }
+            level = next;
+        }
+
+        return selected;
+    }
+
+    /**
+     * Add the selected source files to the input sources of the given
+     * compiler.
+     */
+    public void addInputSources( SpoonCompiler comp ) throws IOException {
+        for (File file : scan()) {
+            comp.addInputSource(file);
+        }
+    }
+
+    /**
+     * Return the target classes found by the last scan and the names of the
+     * classes mixed in each.
+     */
+    public Map<String,String[]> getTargets() {
+        return targets;
+    }
+
+    /**
+     * Return the number of source files read by the scans.
+     */
+    public int getScannedFiles() {
+        return scanned;
+    }
+
+    private static void add( File file, Set<File> selected, List<File> level ) {
+        if( selected.add(file) ) {
+            level.add(file);
+        }
+    }
+
+    private static List<File> list( File dir, List<File> files ) {
+        File[] children = dir.listFiles();
+        if( children != null ) {
+            for (File child : children) {
+                if( child.isDirectory() ) {
+                    list(child,files);
+                }
+                else if( child.getName().endsWith(".java") ) {
+                    files.add(child);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Return the source file of the given top-level type or <code>null</code>
+     * if there is no such file in the source roots.
+     */
+    private File getFile( String qname ) {
+        if( files.containsKey(qname) ) {
+            return files.get(qname);
+        }
+        File found = null;
+        String path = qname.replace('.',File.separatorChar)+".java";
+        for (File root : roots) {
+            File file = new File(root,path);
+            if( file.isFile() ) {
+                found = file;
+                break;
+            }
+        }
+        files.put(qname,found);
+        return found;
+    }
+
+    /**
+     * Remove the comments and replace the string and character literals with
+     * empty ones.
+     */
+    static String strip( String code ) {
+        StringBuilder sb = new StringBuilder(code.length());
+        int n = code.length();
+        for (int i = 0; i < n; i++) {
+            char c = code.charAt(i);
+            char next = i+1 < n ? code.charAt(i+1) : 0;
+            if( c == '/' && next == '/' ) {
+                while( i < n && code.charAt(i) != '\n' ) i++;
+                sb.append('\n');
+            }
+            else if( c == '/' && next == '*' ) {
+                i += 2;
+                while( i+1 < n && ! (code.charAt(i) == '*' && code.charAt(i+1) == '/') ) i++;
+                i++;
+                sb.append(' ');
+            }
+            else if( c == '"' || c == '\'' ) {
+                sb.append(c);
+                for (i++; i < n && code.charAt(i) != c; i++) {
+                    if( code.charAt(i) == '\\' ) i++;
+                }
+                sb.append(c);
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String removeSpaces( String s ) {
+        return s.replaceAll("\\s+","");
+    }
+
+    /**
+     * A compilation unit scanned lexically.
+     */
+    private class Unit {
+
+        private String code;
+        private String pkg = "";
+        private boolean mixinImported;
+
+        /** Simple name -> qualified name of the single-type imports. */
+        private Map<String,String> imports = new HashMap<String,String>();
+
+        /** The packages imported on demand. */
+        private List<String> wildcards = new ArrayList<String>();
+
+        Unit( String source ) {
+            code = strip(source);
+            Matcher m = PACKAGE.matcher(code);
+            if( m.find() ) {
+                pkg = removeSpaces(m.group(1));
+            }
+            m = IMPORT.matcher(code);
+            while( m.find() ) {
+                String name = removeSpaces(m.group(2));
+                if( m.group(1) != null ) {
+                    // static import: import the declaring type
+                    if( m.group(3) == null ) {
+                        name = name.substring(0,Math.max(0,name.lastIndexOf('.')));
+                    }
+                    imports.put(name.substring(name.lastIndexOf('.')+1),name);
+                }
+                else if( m.group(3) != null ) {
+                    wildcards.add(name);
+                }
+                else {
+                    imports.put(name.substring(name.lastIndexOf('.')+1),name);
+                }
+            }
+            mixinImported =
+                pkg.equals("jmixer") || wildcards.contains("jmixer") ||
+                Mixin.class.getName().equals(imports.get("Mixin"));
+        }
+
+        /**
+         * Return the classes annotated with @Mixin and their mixed classes.
+         */
+        Map<String,String[]> getTargets() {
+            Map<String,String[]> ts = new LinkedHashMap<String,String[]>();
+            Matcher m = MIXIN.matcher(code);
+            while( m.find() ) {
+                if( m.group(1) == null && ! mixinImported ) {
+                    continue;
+                }
+                int end = closingParenthesis(m.end());
+                Matcher lits = CLASS_LITERAL.matcher(code.substring(m.end(),end));
+                List<String> mixins = new ArrayList<String>();
+                while( lits.find() ) {
+                    String name = resolve(removeSpaces(lits.group(1)));
+                    if( name != null ) {
+                        mixins.add(name);
+                    }
+                }
+                Matcher decl = CLASS_DECL.matcher(code);
+                if( decl.find(end) ) {
+                    String name = decl.group(1);
+                    ts.put(
+                        pkg.length() == 0 ? name : pkg+'.'+name,
+                        mixins.toArray(new String[mixins.size()]));
+                }
+            }
+            return ts;
+        }
+
+        /**
+         * Return the source files of the types referenced by this unit.
+         */
+        Set<File> getDependencies() {
+            Set<File> deps = new LinkedHashSet<File>();
+            Set<String> names = new LinkedHashSet<String>();
+            Matcher m = NAME.matcher(code);
+            while( m.find() ) {
+                names.add(removeSpaces(m.group()));
+            }
+            for (String name : names) {
+                String qname = resolve(name);
+                if( qname != null ) {
+                    deps.add(getFile(qname));
+                }
+            }
+            return deps;
+        }
+
+        /**
+         * Resolve a possibly qualified type name to the qualified name of a
+         * top-level type defined in the source roots, or return
+         * <code>null</code>.
+         */
+        private String resolve( String name ) {
+
+            String[] segments = name.split("\\.");
+            String first = segments[0];
+
+            /*
+             * Qualified names: the longest prefix naming a source file.
+             */
+            StringBuilder prefix = new StringBuilder();
+            for (String segment : segments) {
+                if( prefix.length() > 0 ) prefix.append('.');
+                prefix.append(segment);
+                if( getFile(prefix.toString()) != null ) {
+                    return prefix.toString();
+                }
+            }
+
+            String imported = imports.get(first);
+            if( imported != null ) {
+                return getFile(imported) != null ? imported : null;
+            }
+            String local = pkg.length() == 0 ? first : pkg+'.'+first;
+            if( getFile(local) != null ) {
+                return local;
+            }
+            for (String wildcard : wildcards) {
+                String qname = wildcard+'.'+first;
+                if( getFile(qname) != null ) {
+                    return qname;
+                }
+            }
+            return null;
+        }
+
+        private int closingParenthesis( int from ) {
+            int level = 1;
+            for (int i = from; i < code.length(); i++) {
+                char c = code.charAt(i);
+                if( c == '(' ) level++;
+                if( c == ')' && --level == 0 ) return i;
+            }
+            return code.length();
+        }
+    }
+
+    /**
+     * Print the source files to be loaded, separated by the path separator,
+     * e.g. for the -i option of the Spoon launcher.
+     *
+     * Usage: java jmixer.MixinScanner [-depth n] sourceRoot...
+     */
+    public static void main( String[] args ) throws IOException {
+
+        int depth = 1;
+        List<File> roots = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if( args[i].equals("-depth") ) {
+                depth = Integer.parseInt(args[++i]);
+            }
+            else {
+                roots.add(new File(args[i]));
+            }
+        }
+
+        MixinScanner scanner = new MixinScanner(roots.toArray(new File[roots.size()]));
+        scanner.setDepth(depth);
+        StringBuilder sb = new StringBuilder();
+        for (File file : scanner.scan()) {
+            if( sb.length() > 0 ) sb.append(File.pathSeparatorChar);
+            sb.append(file.getPath());
+        }
+        System.out.println(sb);
+    }
+}
@@ -0,0 +1,358 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import spoon.reflect.code.CtAssignment;
+import spoon.reflect.code.CtBinaryOperator;
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtLiteral;
+import spoon.reflect.code.CtReturn;
+import spoon.reflect.code.CtTargetedAccess;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtVariable;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.reference.CtArrayTypeReference;
+import spoon.reflect.reference.CtGenericElementReference;
+import spoon.reflect.reference.CtReference;
+import spoon.reflect.reference.CtTypeParameterReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class specializes a generic mixed class for the type arguments given
+ * by a target class. The methods, fields and interfaces of the mixed class
+ * are copied in a class which is not added to the model, where the type
+ * parameters are replaced by the type arguments. The template of this class
+ * is then mixed as the one of any mixed class.
+ *
+ * When a type argument is a primitive type, the type parameter is replaced by
+ * the primitive type, so that the woven code does not box the values, and the
+ * null values assigned to, or returned as, the type parameter are replaced by
+ * the 0 value of the primitive type. The wrapper type is used instead when
+ * the type parameter can not be primitive: when it is used as a type
+ * argument, e.g. <code>List&lt;T&gt;</code>, when a method or a field of one
+ * of its values is accessed, when one of its values is compared with null,
+ * or when it is cast to or used as the component type of an array, e.g.
+ * <code>T[] buffer = (T[]) new Object[n]</code>.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+class MixinSpecialization {
+
+    /** The specialized copy of the mixed class. */
+    private CtClass<?> specialized;
+
+    /** The number of type parameters replaced by a primitive type. */
+    private int primitives;
+
+    /** The number of primitive type arguments replaced by their wrapper. */
+    private int boxed;
+
+    /**
+     * @param src        the generic mixed class
+     * @param arguments  the type arguments, one per type parameter
+     * @throws IllegalArgumentException
+     *      if the number of type arguments does not match the number of type
+     *      parameters
+     */
+    public MixinSpecialization(
+        CtClass<?> src, List<CtTypeReference<?>> arguments ) {
+
+        List<CtTypeReference<?>> params = src.getFormalTypeParameters();
+        if( params.size() != arguments.size() ) {
+            final String msg =
+                src.getQualifiedName()+" expects "+params.size()+
+                " type argument(s), "+arguments.size()+" given";
+            throw new IllegalArgumentException(msg);
+        }
+
+        Map<String,CtTypeReference<?>> bindings =
+            new HashMap<String,CtTypeReference<?>>();
+        for (int i = 0; i < params.size(); i++) {
+            String name = params.get(i).getSimpleName();
+            CtTypeReference<?> arg = arguments.get(i);
+            if( arg.isPrimitive() ) {
+                if( isSpecializable(src,name) ) {
+                    primitives++;
+                }
+                else {
+                    arg = arg.box();
+                    boxed++;
+                }
+            }
+            bindings.put(name,arg);
+        }
+
+        /*
+         * A fresh cloner shares no reference with the mixed class.
+         */
+        MixinCloner cloner = new MixinCloner(src.getQualifiedName());
+        specialized = src.getFactory().Core().createClass();
+        specialized.setSimpleName(src.getSimpleName());
+        specialized.setModifiers(new HashSet<ModifierKind>(src.getModifiers()));
+        specialized.setPosition(src.getPosition());
+        specialized.setParent(src.getParent());
+        for (CtTypeReference<?> itf : src.getSuperInterfaces()) {
+            specialized.addSuperInterface(cloner.clone(itf,bindings));
+        }
+        for (CtField<?> field : src.getFields()) {
+            CtField<?> copy = cloner.clone(field,bindings);
+            specialized.addField(copy);
+            copy.setParent(specialized);
+        }
+        for (CtMethod<?> method : src.getMethods()) {
+            CtMethod<?> copy = cloner.clone(method,bindings);
+            specialized.addMethod(copy);
+            copy.setParent(specialized);
+        }
+
+        /*
+         * The references to the mixed class become references to the target
+         * class, which is not generic.
+         */
+        final String srcName = src.getQualifiedName();
+        new CtScanner() {
+            @Override
+            public void scan( CtReference reference ) {
+                if( isMixedClass(reference,srcName) ) {
+                    ((CtTypeReference<?>) reference).setActualTypeArguments(
+                        new ArrayList<CtTypeReference<?>>());
+                }
+                super.scan(reference);
+            }
+        }.scan(specialized);
+
+        if( primitives > 0 ) {
+            new NullReplacer().scan(specialized);
+        }
+    }
+
+    /**
+     * Return the specialized copy of the mixed class.
+     */
+    public CtClass<?> getMixedClass() {
+        return specialized;
+    }
+
+    /**
+     * Return the number of type parameters replaced by a primitive type.
+     */
+    public int getPrimitives() {
+        return primitives;
+    }
+
+    /**
+     * Return the number of primitive type arguments replaced by their
+     * wrapper type.
+     */
+    public int getBoxed() {
+        return boxed;
+    }
+
+    /**
+     * Return whether the given type parameter of the given class can be
+     * replaced by a primitive type.
+     */
+    private static boolean isSpecializable( CtClass<?> src, final String name ) {
+
+        final String srcName = src.getQualifiedName();
+        final boolean[] specializable = new boolean[]{true};
+        new CtScanner() {
+
+            @Override
+            public void scan( CtElement element ) {
+                if( element instanceof CtExpression ) {
+                    for (CtTypeReference<?> cast :
+                        ((CtExpression<?>) element).getTypeCasts()) {
+                        if( isParameter(cast,name) || isArrayOf(cast,name) ) {
+                            specializable[0] = false;
+                        }
+                    }
+                }
+                super.scan(element);
+            }
+
+            @Override
+            public void scan( CtReference reference ) {
+                if( reference instanceof CtTypeReference &&
+                    isArrayOf((CtTypeReference<?>) reference,name) ) {
+                    specializable[0] = false;
+                }
+                if( reference instanceof CtGenericElementReference &&
+                    ! isMixedClass(reference,srcName) ) {
+                    for (CtTypeReference<?> arg :
+                        ((CtGenericElementReference) reference).getActualTypeArguments()) {
+                        if( isParameter(arg,name) ) {
+                            specializable[0] = false;
+                        }
+                    }
+                }
+                if( reference instanceof CtTypeParameterReference &&
+                    ! reference.getSimpleName().equals(name) ) {
+                    for (CtTypeReference<?> bound :
+                        ((CtTypeParameterReference) reference).getBounds()) {
+                        if( isParameter(bound,name) ) {
+                            specializable[0] = false;
+                        }
+                    }
+                }
+                super.scan(reference);
+            }
+
+            @Override
+            public <T> void visitCtInvocation( CtInvocation<T> invocation ) {
+                if( isParameter(invocation.getTarget(),name) ) {
+                    specializable[0] = false;
+                }
+                super.visitCtInvocation(invocation);
+            }
+
+            @Override
+            public <T> void visitCtTargetedAccess( CtTargetedAccess<T> access ) {
+                if( isParameter(access.getTarget(),name) ) {
+                    specializable[0] = false;
+                }
+                super.visitCtTargetedAccess(access);
+            }
+
+            @Override
+            public <T> void visitCtBinaryOperator( CtBinaryOperator<T> op ) {
+                if( (isNull(op.getLeftHandOperand()) &&
+                     isParameter(op.getRightHandOperand(),name)) ||
+                    (isNull(op.getRightHandOperand()) &&
+                     isParameter(op.getLeftHandOperand(),name)) ) {
+                    specializable[0] = false;
+                }
+                super.visitCtBinaryOperator(op);
+            }
+        }.scan(src);
+
+        return specializable[0];
+    }
+
+    /**
+     * Return whether the type of the given expression is the given type
+     * parameter.
+     */
+    private static boolean isParameter( CtExpression<?> exp, String name ) {
+        return exp != null && isParameter(exp.getType(),name);
+    }
+
+    /**
+     * Return whether the given type is an array of the given type parameter.
+     */
+    private static boolean isArrayOf( CtTypeReference<?> ctr, String name ) {
+        if( !(ctr instanceof CtArrayTypeReference) ) {
+            return false;
+        }
+        CtTypeReference<?> component =
+            ((CtArrayTypeReference<?>) ctr).getComponentType();
+        return isParameter(component,name) || isArrayOf(component,name);
+    }
+
+    /**
+     * Return whether the given type reference is, or is bounded by, the given
+     * type parameter.
+     */
+    private static boolean isParameter( CtTypeReference<?> ctr, String name ) {
+        if( !(ctr instanceof CtTypeParameterReference) ) {
+            return false;
+        }
+        if( ctr.getSimpleName().equals(name) ) {
+            return true;
+        }
+        for (CtTypeReference<?> bound : ((CtTypeParameterReference) ctr).getBounds()) {
+            if( isParameter(bound,name) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isMixedClass( CtReference reference, String srcName ) {
+        return
+            reference instanceof CtTypeReference &&
+            ((CtTypeReference<?>) reference).getQualifiedName().equals(srcName);
+    }
+
+    private static boolean isNull( CtExpression<?> exp ) {
+        return exp instanceof CtLiteral && ((CtLiteral<?>) exp).getValue() == null;
+    }
+
+    /**
+     * This visitor replaces the null values assigned to, or returned as, a
+     * primitive type by the 0 value of this type.
+     */
+    private static class NullReplacer extends CtScanner {
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        @Override
+        public <T> void visitCtLiteral( CtLiteral<T> literal ) {
+
+            if( literal.getValue() != null ) {
+                return;
+            }
+
+            CtElement parent = literal.getParent();
+            if( parent instanceof CtVariable ) {
+                CtVariable variable = (CtVariable) parent;
+                if( variable.getDefaultExpression() == literal &&
+                    isPrimitive(variable.getType()) ) {
+                    variable.setDefaultExpression(nil(variable.getType(),parent));
+                }
+            }
+            else if( parent instanceof CtAssignment ) {
+                CtAssignment assignment = (CtAssignment) parent;
+                CtExpression<?> assigned = assignment.getAssigned();
+                if( assignment.getAssignment() == literal &&
+                    assigned != null && isPrimitive(assigned.getType()) ) {
+                    assignment.setAssignment(nil(assigned.getType(),parent));
+                }
+            }
+            else if( parent instanceof CtReturn ) {
+                CtMethod<?> method = parent.getParent(CtMethod.class);
+                if( method != null && isPrimitive(method.getType()) ) {
+                    ((CtReturn) parent).setReturnedExpression(
+                        nil(method.getType(),parent));
+                }
+            }
+        }
+
+        private static boolean isPrimitive( CtTypeReference<?> ctr ) {
+            return ctr != null && ctr.isPrimitive();
+        }
+
+        private static CtLiteral<?> nil( CtTypeReference<?> ctr, CtElement parent ) {
+            CtLiteral<?> nil = SpoonHelper.nil(ctr);
+            nil.setParent(parent);
+            return nil;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtTargetedAccess;
+import spoon.reflect.declaration.CtAnonymousExecutable;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class holds the static state of a mixed class in the shared statics
+ * mode. The static fields and the static initializers of the mixed class are
+ * copied once in a class nested in the mixed class (<code>Statics</code>)
+ * instead of being copied in each target class, and the accesses to the
+ * static fields in the members mixed in the target classes are redirected to
+ * this class. The static state of the target classes then exists once. The
+ * memory used by the static fields and the time spent initializing them no
+ * longer grow with the number of target classes.
+ *
+ * The mixed class keeps its own declarations and accesses, so that its binary
+ * interface is unchanged: only the woven target classes refer to the holder
+ * class. The holder class and its fields are package private, private fields
+ * excepted, and are made public only when a target class of another package
+ * uses them. The static initializers are run when the holder class is
+ * initialized, i.e. on the first access of a target class to a shared field,
+ * not when each target class is initialized.
+ *
+ * The static fields are then shared by all the target classes, e.g. a static
+ * field counting the instances of a target class counts the instances of all
+ * the target classes. The serialVersionUID fields are still copied. Nothing
+ * is shared for nested mixed classes, and for the target classes which can
+ * not access the mixed class.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+class MixinStatics {
+
+    /** The simple name of the class holding the static fields. */
+    final public static String STATICS = "Statics";
+
+    private CtClass<?> src;
+    private Factory factory;
+
+    /** The class holding the static fields (null if none). */
+    private CtClass<?> statics;
+
+    /** The names of the shared static fields. */
+    private Set<String> names = new HashSet<String>();
+
+    /** The number of static initializers. */
+    private int initializers;
+
+    /** The number of target classes using the shared static fields. */
+    private int targets;
+
+    /**
+     * Create the class holding the static fields of the given mixed class
+     * and add it to the class.
+     *
+     * @param template  the template of the mixed class
+     */
+    public MixinStatics( MixinTemplate template ) {
+
+        src = template.getMixedClass();
+        factory = src.getFactory();
+        if( ! src.isTopLevel() || src.getNestedType(STATICS) != null ) {
+            return;
+        }
+
+        statics = factory.Core().createClass();
+        statics.setSimpleName(STATICS);
+        statics.setModifiers(
+            factory.Code().modifiers(ModifierKind.STATIC, ModifierKind.FINAL));
+        statics.setParent(src);
+
+        for (CtField<?> field : template.getFields()) {
+            if( ! field.hasModifier(ModifierKind.STATIC) ||
+                field.getSimpleName().equals("serialVersionUID") ) {
+                continue;
+            }
+            CtField<?> copy = factory.Core().clone(field);
+            Set<ModifierKind> mods = new HashSet<ModifierKind>(copy.getModifiers());
+            mods.remove(ModifierKind.PRIVATE);
+            copy.setModifiers(mods);
+            statics.addField(copy);
+            copy.setParent(statics);
+            names.add(field.getSimpleName());
+        }
+        if( names.isEmpty() ) {
+            statics = null;
+            return;
+        }
+
+        /*
+         * The static initializers may initialize the static fields.
+         */
+        for (CtAnonymousExecutable init : src.getAnonymousExecutables()) {
+            if( init.hasModifier(ModifierKind.STATIC) ) {
+                CtAnonymousExecutable copy = factory.Core().clone(init);
+                statics.addAnonymousExecutable(copy);
+                copy.setParent(statics);
+                initializers++;
+            }
+        }
+
+        redirect(statics,null);
+        src.addNestedType(statics);
+        statics.updateAllParentsBelow();
+    }
+
+    /**
+     * Return whether the static fields can be shared with the given target
+     * class: the holder class must exist and be visible. The holder class
+     * and its fields are made public for a target class of another package.
+     */
+    public synchronized boolean accepts( CtClass<?> target ) {
+        if( statics == null ) {
+            return false;
+        }
+        if( src.getPackage().getQualifiedName().equals(
+                target.getPackage().getQualifiedName()) ) {
+            return true;
+        }
+        if( ! src.hasModifier(ModifierKind.PUBLIC) ) {
+            return false;
+        }
+        if( ! statics.hasModifier(ModifierKind.PUBLIC) ) {
+            statics.addModifier(ModifierKind.PUBLIC);
+            for (CtField<?> field : statics.getFields()) {
+                field.removeModifier(ModifierKind.PROTECTED);
+                field.addModifier(ModifierKind.PUBLIC);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return whether the given field of the mixed class is held by the
+     * shared class instead of being copied.
+     */
+    public boolean isShared( CtField<?> field ) {
+        return
+            field.hasModifier(ModifierKind.STATIC) &&
+            names.contains(field.getSimpleName());
+    }
+
+    /**
+     * Redirect to the shared class the accesses to the static fields of the
+     * mixed class, or of the given target class, in the given element. The
+     * element must be mixed from the mixed class: the accesses are matched by
+     * name.
+     *
+     * @param element  the element
+     * @param target   the target class (may be null)
+     */
+    public void redirect( CtElement element, final CtClass<?> target ) {
+
+        final CtTypeReference<?> ref = statics.getReference();
+        new CtScanner() {
+            @Override
+            public <T> void visitCtTargetedAccess( CtTargetedAccess<T> access ) {
+
+                super.visitCtTargetedAccess(access);
+                if( !(access instanceof CtFieldAccess) ) {
+                    return;
+                }
+
+                CtFieldReference<?> cfr = access.getVariable();
+                if( ! cfr.isStatic() || ! names.contains(cfr.getSimpleName()) ) {
+                    return;
+                }
+                CtTypeReference<?> decl = cfr.getDeclaringType();
+                if( decl != null &&
+                    ! decl.getQualifiedName().equals(src.getQualifiedName()) &&
+                    (target == null ||
+                     ! decl.getQualifiedName().equals(target.getQualifiedName())) ) {
+                    return;
+                }
+
+                /*
+                 * The reference may be shared with the mixed class.
+                 */
+                CtFieldReference<?> shared =
+                    factory.Field().createReference(
+                        factory.Core().clone(ref),
+                        factory.Core().clone(access.getType()),
+                        cfr.getSimpleName() );
+                shared.setStatic(true);
+                access.setVariable((CtFieldReference)shared);
+            }
+        }.scan(element);
+    }
+
+    /**
+     * Return the class holding the static fields or <code>null</code> if the
+     * static fields are copied.
+     */
+    public CtClass<?> getStatics() {
+        return statics;
+    }
+
+    /**
+     * Record that the shared static fields are used by a target class.
+     */
+    public synchronized void applied() {
+        targets++;
+    }
+
+    /**
+     * Return the number of shared static fields.
+     */
+    public int getSharedFields() {
+        return statics == null ? 0 : names.size();
+    }
+
+    /**
+     * Return the number of shared static initializers.
+     */
+    public int getSharedInitializers() {
+        return initializers;
+    }
+
+    /**
+     * Return the number of copies of the static fields saved compared with
+     * the copy mode: one copy per target class instead of a single one.
+     */
+    public synchronized int getSavedCopies() {
+        return targets == 0 ? 0 : getSharedFields() * (targets-1);
+    }
+}
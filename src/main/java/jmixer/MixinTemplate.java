@@ -0,0 +1,236 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtLiteral;
+import spoon.reflect.code.CtReturn;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class holds the parts of a mixed class which do not depend on the
+ * target class: the methods and fields to be mixed, the required _this_ and
+ * _super_ methods, the empty methods closing the _super_ chains, the @see
+ * comments, and the signatures of the methods called with _super_.
+ *
+ * A template is computed once per mixed class and is then reused for all the
+ * target classes. The mixed class must not change while the template is
+ * used.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+class MixinTemplate {
+
+    private CtClass<?> src;
+
+    /** The non abstract methods to be mixed. */
+    private List<CtMethod<?>> methods = new ArrayList<CtMethod<?>>();
+
+    /** The abstract methods. */
+    private List<CtMethod<?>> abstractMethods = new ArrayList<CtMethod<?>>();
+
+    /** The abstract _this_ and _super_ methods. */
+    private List<CtMethod<?>> requiredMethods = new ArrayList<CtMethod<?>>();
+
+    /** The empty methods closing the chains of the _super_ methods. */
+    private List<CtMethod<?>> stubs = new ArrayList<CtMethod<?>>();
+
+    /** The fields to be mixed (i.e. without a _this_ prefix). */
+    private List<CtField<?>> fields = new ArrayList<CtField<?>>();
+
+    /** Mixed method or field -> @see comment. */
+    private Map<Object,String> seeLinks = new HashMap<Object,String>();
+
+    /** _super_ call -> key of the signature of the called method. */
+    private Map<String,String> superCalls = new HashMap<String,String>();
+
+    /** The cloner copying the methods and the stubs in the target classes. */
+    private MixinCloner cloner;
+
+    /**
+     * @param src  the mixed class
+     */
+    public MixinTemplate( CtClass<?> src ) {
+
+        this.src = src;
+        Factory factory = src.getFactory();
+        String className = src.getQualifiedName();
+
+        for (CtMethod<?> method : src.getMethods()) {
+
+            String mname = method.getSimpleName();
+            if( method.hasModifier(ModifierKind.ABSTRACT) ) {
+                abstractMethods.add(method);
+                if( mname.startsWith(MixinClassGenerator.SUPER) ||
+                    mname.startsWith(MixinClassGenerator.THIS) ) {
+                    requiredMethods.add(method);
+                }
+                if( mname.startsWith(MixinClassGenerator.SUPER) ) {
+                    stubs.add(createStub(factory,method));
+                }
+                continue;
+            }
+
+            methods.add(method);
+            seeLinks.put(method,SpoonHelper.toSeeLink(method));
+            new SuperCallScanner().scan(method);
+        }
+
+        for (CtField<?> field : src.getFields()) {
+            if( ! field.getSimpleName().startsWith(MixinClassGenerator.THIS) ) {
+                fields.add(field);
+                seeLinks.put(
+                    field, " @see "+className+"#"+field.getSimpleName());
+            }
+        }
+
+        cloner = new MixinCloner(className);
+        for (CtMethod<?> method : methods) {
+            cloner.share(method);
+        }
+        for (CtMethod<?> stub : stubs) {
+            cloner.share(stub);
+        }
+    }
+
+    /**
+     * Return an empty method for closing the chain of the given abstract
+     * _super_ method:
+     * - remove the _super_ prefix
+     * - remove the abstract modifier
+     * - add an empty body
+     */
+    private static CtMethod<?> createStub( Factory factory, CtMethod<?> method ) {
+
+        CtMethod<?> tmp = factory.Core().clone(method);
+        String name =
+            tmp.getSimpleName().substring(MixinClassGenerator.SUPER.length());
+        tmp.setSimpleName(name);
+        tmp.getModifiers().remove(ModifierKind.ABSTRACT);
+
+        CtBlock<?> body = factory.Core().createBlock();
+        if( ! tmp.getType().getQualifiedName().equals("void") ) {
+            CtReturn<?> retstat = factory.Core().createReturn();
+            CtLiteral<?> lit = SpoonHelper.nil(tmp.getType());
+            retstat.setReturnedExpression((CtLiteral)lit);
+            body.insertBegin(retstat);
+        }
+        tmp.setBody((CtBlock)body);
+
+        return tmp;
+    }
+
+    public CtClass<?> getMixedClass() {
+        return src;
+    }
+
+    public List<CtMethod<?>> getMethods() {
+        return methods;
+    }
+
+    public List<CtMethod<?>> getAbstractMethods() {
+        return abstractMethods;
+    }
+
+    public List<CtMethod<?>> getRequiredMethods() {
+        return requiredMethods;
+    }
+
+    public List<CtMethod<?>> getStubs() {
+        return stubs;
+    }
+
+    public List<CtField<?>> getFields() {
+        return fields;
+    }
+
+    public MixinCloner getCloner() {
+        return cloner;
+    }
+
+    /**
+     * Return the @see comment tracing back a mixed element to its source.
+     */
+    public String getSeeLink( Object methodOrField ) {
+        return seeLinks.get(methodOrField);
+    }
+
+    /**
+     * Return the key, in a {@link SignatureTable}, of the method called by
+     * the given _super_ call, or <code>null</code> if the call has not been
+     * resolved.
+     */
+    public String getSuperCall( CtExecutableReference<?> cer ) {
+        return superCalls.get(key(cer));
+    }
+
+    /**
+     * Return the key of a call site. Copies of a method produce the same keys
+     * for their calls as long as they have not been rewritten.
+     */
+    static String key( CtExecutableReference<?> cer ) {
+        StringBuilder sb = new StringBuilder();
+        CtTypeReference<?> declaring = cer.getDeclaringType();
+        if( declaring != null ) {
+            sb.append(declaring.getQualifiedName());
+        }
+        sb.append('#');
+        sb.append(cer.getSimpleName());
+        sb.append('(');
+        for (CtTypeReference<?> ptype : cer.getParameters()) {
+            sb.append(ptype);
+            sb.append(',');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Resolve the signatures of the methods called with _super_.
+     */
+    private class SuperCallScanner extends CtScanner {
+        @Override
+        public <T> void visitCtInvocation( CtInvocation<T> invocation ) {
+            CtExecutableReference<T> cer = invocation.getExecutable();
+            String name = cer.getSimpleName();
+            if( name.startsWith(MixinClassGenerator.SUPER) &&
+                cer.getDeclaration() != null ) {
+                List<CtTypeReference<?>> ptypes =
+                    SpoonHelper.getParameterTypes(cer);
+                String base =
+                    name.substring(MixinClassGenerator.SUPER.length());
+                superCalls.put(key(cer),SignatureTable.key(base,ptypes));
+            }
+            super.visitCtInvocation(invocation);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
+
+/**
+ * This class caches, for the duration of a run, the mixed classes retrieved
+ * from the model and their {@link MixinTemplate}s. Mixing a class in several
+ * target classes then analyzes the mixed class only once.
+ *
+ * Instances can be shared by several threads weaving different targets.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinTemplateCache {
+
+    private Factory factory;
+
+    /** Mixed class name -> mixed class in the model. */
+    private Map<String,CtClass<?>> classes = new HashMap<String,CtClass<?>>();
+
+    /** Mixed class -> template. */
+    private Map<CtClass<?>,MixinTemplate> templates =
+        new IdentityHashMap<CtClass<?>,MixinTemplate>();
+
+    /** Mixed class -> shared implementations of the delegation mode. */
+    private Map<CtClass<?>,MixinDelegation> delegations =
+        new IdentityHashMap<CtClass<?>,MixinDelegation>();
+
+    /** Mixed class name and type arguments -> specialized mixed class. */
+    private Map<String,MixinSpecialization> specializations =
+        new HashMap<String,MixinSpecialization>();
+
+    /** Mixed class -> shared static fields. */
+    private Map<CtClass<?>,MixinStatics> statics =
+        new IdentityHashMap<CtClass<?>,MixinStatics>();
+
+    /**
+     * @param factory  the factory of the model containing the mixed classes
+     */
+    public MixinTemplateCache( Factory factory ) {
+        this.factory = factory;
+    }
+
+    /**
+     * Return the class of the model corresponding to the given mixed class.
+     */
+    public synchronized CtClass<?> getMixedClass( Class<?> mix ) {
+        String name = mix.getName();
+        CtClass<?> src = classes.get(name);
+        if( src == null ) {
+            src = factory.Class().get(mix);
+            classes.put(name,src);
+        }
+        return src;
+    }
+
+    /**
+     * Return the template of the given mixed class. The template is computed
+     * on the first call.
+     */
+    synchronized MixinTemplate get( CtClass<?> src ) {
+        MixinTemplate template = templates.get(src);
+        if( template == null ) {
+            template = new MixinTemplate(src);
+            templates.put(src,template);
+        }
+        return template;
+    }
+
+    /**
+     * Return the template of the given generic mixed class specialized for
+     * the given type arguments, see {@link MixinSpecialization}. The
+     * specialization is computed on the first call for these arguments.
+     *
+     * @param src        the mixed class
+     * @param arguments  the type arguments (may be null for the template of
+     *                   the raw class)
+     */
+    synchronized MixinTemplate get(
+        CtClass<?> src, List<CtTypeReference<?>> arguments ) {
+
+        if( arguments == null ) {
+            return get(src);
+        }
+        String key = src.getQualifiedName()+arguments;
+        MixinSpecialization specialization = specializations.get(key);
+        if( specialization == null ) {
+            specialization = new MixinSpecialization(src,arguments);
+            specializations.put(key,specialization);
+        }
+        return get(specialization.getMixedClass());
+    }
+
+    /**
+     * Return the shared implementations of the methods of the given mixed
+     * class for the delegation mode. They are created, and added to the mixed
+     * class, on the first call.
+     */
+    synchronized MixinDelegation getDelegation( CtClass<?> src ) {
+        MixinDelegation delegation = delegations.get(src);
+        if( delegation == null ) {
+            delegation = new MixinDelegation(get(src));
+            delegations.put(src,delegation);
+        }
+        return delegation;
+    }
+
+    /**
+     * Return the class holding the static fields of the given mixed class
+     * for the shared statics mode. It is created, and added to the mixed
+     * class, on the first call.
+     */
+    synchronized MixinStatics getStatics( CtClass<?> src ) {
+        MixinStatics shared = statics.get(src);
+        if( shared == null ) {
+            shared = new MixinStatics(get(src));
+            statics.put(src,shared);
+        }
+        return shared;
+    }
+
+    /**
+     * Return the number of methods delegated to shared implementations.
+     */
+    public synchronized int getDelegatedMethods() {
+        int count = 0;
+        for (MixinDelegation delegation : delegations.values()) {
+            count += delegation.getDelegatedMethods();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of elements saved by the delegation mode compared
+     * with the copy mode, see {@link MixinDelegation#getSavedNodes()}.
+     */
+    public synchronized int getSavedNodes() {
+        int count = 0;
+        for (MixinDelegation delegation : delegations.values()) {
+            count += delegation.getSavedNodes();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of specializations of generic mixed classes.
+     */
+    public synchronized int getSpecializations() {
+        return specializations.size();
+    }
+
+    /**
+     * Return the number of type parameters of the specialized classes
+     * replaced by a primitive type.
+     */
+    public synchronized int getPrimitiveSpecializations() {
+        int count = 0;
+        for (MixinSpecialization specialization : specializations.values()) {
+            count += specialization.getPrimitives();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of primitive type arguments replaced by their wrapper
+     * type, see {@link MixinSpecialization}.
+     */
+    public synchronized int getBoxedArguments() {
+        int count = 0;
+        for (MixinSpecialization specialization : specializations.values()) {
+            count += specialization.getBoxed();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of static fields held once by their mixed class.
+     */
+    public synchronized int getSharedStaticFields() {
+        int count = 0;
+        for (MixinStatics shared : statics.values()) {
+            count += shared.getSharedFields();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of copies of static fields saved by the shared
+     * statics mode, see {@link MixinStatics#getSavedCopies()}.
+     */
+    public synchronized int getSavedStaticCopies() {
+        int count = 0;
+        for (MixinStatics shared : statics.values()) {
+            count += shared.getSavedCopies();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of templates computed so far.
+     */
+    public synchronized int size() {
+        return templates.size();
+    }
+
+    /**
+     * Discard all the cached classes and templates, e.g. when the mixed
+     * classes have changed.
+     */
+    public synchronized void clear() {
+        classes.clear();
+        templates.clear();
+        delegations.clear();
+        statics.clear();
+        specializations.clear();
+    }
+}
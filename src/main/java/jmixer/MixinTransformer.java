@@ -0,0 +1,208 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A class file transformer which weaves, at load time, the classes annotated
+ * with @{@link Mixin}. Classes are woven with a {@link BytecodeMixinGenerator}
+ * before being defined. The class files of the mixed classes are retrieved
+ * from the class loader of the target class and are not loaded.
+ *
+ * Woven class files are kept in a bounded in-memory cache, e.g. for classes
+ * defined by several class loaders, and optionally in a persistent
+ * {@link WeavingCache} so that restarts do not weave again.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class MixinTransformer implements ClassFileTransformer {
+
+    /** The default number of entries of the in-memory cache. */
+    final public static int DEFAULT_CACHE_SIZE = 256;
+
+    private WeavingCache cache;
+    private Map<String,byte[]> memory;
+
+    private int woven;
+    private int memoryHits;
+    private int diskHits;
+    private int errors;
+    private long scanNanos;
+    private long weaveNanos;
+
+    /**
+     * @param cache      the persistent cache, or <code>null</code>
+     * @param cacheSize  the maximum number of entries of the in-memory cache
+     */
+    public MixinTransformer( WeavingCache cache, final int cacheSize ) {
+        this.cache = cache;
+        this.memory =
+            new LinkedHashMap<String,byte[]>(16,0.75f,true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String,byte[]> eldest ) {
+                    return size() > cacheSize;
+                }
+            };
+    }
+
+    public byte[] transform(
+            ClassLoader loader, String className, Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain, byte[] classfileBuffer ) {
+
+        if( loader == null || classBeingRedefined != null ) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        try {
+            List<String> mixins =
+                BytecodeMixinGenerator.getMixins(classfileBuffer);
+            long scanned = System.nanoTime();
+            synchronized(this) {
+                scanNanos += scanned - start;
+            }
+            if( mixins.isEmpty() ) {
+                return null;
+            }
+
+            byte[] bytes = weave(loader,className,classfileBuffer,mixins);
+            synchronized(this) {
+                weaveNanos += System.nanoTime() - scanned;
+            }
+            return bytes;
+        }
+        catch( Exception e ) {
+            /*
+             * Exceptions thrown by transformers are silently ignored by the
+             * JVM: report them.
+             */
+            synchronized(this) {
+                errors++;
+            }
+            System.err.println("Error weaving "+className+": "+e);
+            return null;
+        }
+    }
+
+    private byte[] weave(
+            ClassLoader loader, String className, byte[] classfile,
+            List<String> mixins )
+    throws IOException {
+
+        BytecodeMixinGenerator bmg = new BytecodeMixinGenerator(loader);
+        byte[][] contents = new byte[mixins.size()+1][];
+        contents[0] = classfile;
+        for (int i = 0; i < mixins.size(); i++) {
+            byte[] src = bmg.getClassFile(mixins.get(i));
+            if( src == null ) {
+                throw new IOException("Mixed class "+mixins.get(i)+" not found");
+            }
+            contents[i+1] = src;
+        }
+
+        String key = WeavingCache.key(contents);
+
+        /*
+         * Only the in-memory cache and the counters are guarded: the disk
+         * cache is read and written without holding the lock, so that the
+         * classes loaded concurrently do not wait behind the I/O.
+         */
+        synchronized(this) {
+            byte[] bytes = memory.get(key);
+            if( bytes != null ) {
+                memoryHits++;
+                return bytes;
+            }
+        }
+        if( cache != null ) {
+            byte[] bytes = cache.get(key);
+            if( bytes != null ) {
+                synchronized(this) {
+                    diskHits++;
+                    memory.put(key,bytes);
+                }
+                return bytes;
+            }
+        }
+
+        byte[][] srcClasses = new byte[mixins.size()][];
+        System.arraycopy(contents,1,srcClasses,0,srcClasses.length);
+        byte[] bytes = bmg.generate(classfile,srcClasses);
+
+        synchronized(this) {
+            woven++;
+            memory.put(key,bytes);
+        }
+        if( cache != null ) {
+            cache.put(key,bytes);
+        }
+        return bytes;
+    }
+
+    public synchronized int getWoven() {
+        return woven;
+    }
+
+    public synchronized int getMemoryHits() {
+        return memoryHits;
+    }
+
+    public synchronized int getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized int getErrors() {
+        return errors;
+    }
+
+    /**
+     * Return the time spent looking for the @{@link Mixin} annotation in the
+     * loaded classes, in milliseconds.
+     */
+    public synchronized long getScanTime() {
+        return scanNanos / 1000000;
+    }
+
+    /**
+     * Return the time spent weaving the annotated classes or retrieving them
+     * from the caches, in milliseconds.
+     */
+    public synchronized long getWeaveTime() {
+        return weaveNanos / 1000000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return
+            "jmixer: "+woven+" class(es) woven, "+memoryHits+
+            " memory cache hit(s), "+diskHits+" disk cache hit(s), "+
+            errors+" error(s), startup overhead "+
+            (scanNanos+weaveNanos)/1000000+" ms ("+getScanTime()+
+            " ms scanning, "+getWeaveTime()+" ms weaving)";
+    }
+}
@@ -0,0 +1,210 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtParameter;
+import spoon.reflect.reference.CtTypeReference;
+
+/**
+ * This class indexes the methods mixed in a target class by signature. A
+ * signature is made of the base name of the method (without any $99 suffix)
+ * and of the erased types of its parameters. For each signature, the table
+ * records the head of the chain of mixed methods, i.e. the last inserted one.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+class SignatureTable {
+
+    private Map<String,Chain> chains = new HashMap<String,Chain>();
+
+    /**
+     * Return the chain associated with the signature of the given method or
+     * <code>null</code> if no method with this signature has been inserted.
+     */
+    public Chain get( CtMethod<?> method ) {
+        return chains.get(key(method));
+    }
+
+    /**
+     * Return the chain associated with the given method name and parameter
+     * types or <code>null</code> if no method with this signature has been
+     * inserted.
+     */
+    public Chain get( String name, List<CtTypeReference<?>> ptypes ) {
+        return chains.get(key(name,ptypes));
+    }
+
+    /**
+     * Return the chain associated with the given signature key or
+     * <code>null</code> if no method with this signature has been inserted.
+     */
+    public Chain getByKey( String key ) {
+        return chains.get(key);
+    }
+
+    /**
+     * Record that the given method has been inserted as the new head of the
+     * chain of methods sharing its signature.
+     *
+     * @param method  the method (named after its source method)
+     * @param owner   the position of the mixed class defining the method
+     * @return        the name of the inserted method (name or name$99)
+     */
+    public String insert( CtMethod<?> method, int owner ) {
+        return insert(key(method),method.getSimpleName(),owner);
+    }
+
+    /**
+     * Record that a method with the given signature key and name has been
+     * inserted as the new head of the chain of methods sharing its signature.
+     *
+     * @param key    the key of the signature of the method
+     * @param name   the name of the method in the mixed class
+     * @param owner  the position of the mixed class defining the method
+     * @return       the name of the inserted method (name or name$99)
+     */
+    public String insert( String key, String name, int owner ) {
+
+        Chain chain = chains.get(key);
+
+        if( chain == null ) {
+            chain = new Chain(name);
+            chains.put(key,chain);
+        }
+        else {
+            chain.index++;
+        }
+
+        chain.owner = owner;
+        return chain.getHeadName();
+    }
+
+    /**
+     * Return a table containing a copy of the chains whose head has been
+     * inserted by the mixed class at the given position. The copy can be
+     * used to resolve the _super_ calls of this class once other classes
+     * have been mixed.
+     */
+    public SignatureTable snapshot( int owner ) {
+        SignatureTable table = new SignatureTable();
+        for (Map.Entry<String,Chain> entry : chains.entrySet()) {
+            Chain chain = entry.getValue();
+            if( chain.owner == owner ) {
+                Chain copy = new Chain(chain.name);
+                copy.index = chain.index;
+                copy.owner = chain.owner;
+                table.chains.put(entry.getKey(),copy);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Return the key of the signature of the given method.
+     */
+    static String key( CtMethod<?> method ) {
+        List<String> ptypes = new ArrayList<String>();
+        for (CtParameter<?> param : method.getParameters()) {
+            ptypes.add(SpoonHelper.getErasedName(param.getType()));
+        }
+        return key(method.getSimpleName(),ptypes);
+    }
+
+    /**
+     * Return the key of the signature made of the given method name and
+     * parameter types.
+     */
+    static String key( String name, List<CtTypeReference<?>> ptypes ) {
+        List<String> names = new ArrayList<String>();
+        for (CtTypeReference<?> ptype : ptypes) {
+            names.add(SpoonHelper.getErasedName(ptype));
+        }
+        return key(name,names);
+    }
+
+    /**
+     * Return the key of the signature made of the given method name and
+     * qualified names of the erased parameter types.
+     */
+    static String key( String name, Iterable<String> erasedNames ) {
+        StringBuilder sb = new StringBuilder(name);
+        sb.append('(');
+        for (String erasedName : erasedNames) {
+            sb.append(erasedName);
+            sb.append(',');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The chain of mixed methods sharing a same signature.
+     */
+    static class Chain {
+
+        /** The base name of the methods in the chain. */
+        private String name;
+
+        /** The index of the head (-1 when the head is not renamed). */
+        private int index = -1;
+
+        /** The position of the mixed class which defines the head. */
+        private int owner;
+
+        /** Whether the chain has been closed with an empty method. */
+        private boolean closed;
+
+        private Chain( String name ) {
+            this.name = name;
+        }
+
+        /**
+         * Return the name of the last inserted method (name or name$99).
+         */
+        public String getHeadName() {
+            return index == -1 ? name : name + MixinClassGenerator.MIXED_METH_SEP + index;
+        }
+
+        /**
+         * Return the name of the method called by the head when invoking
+         * _super_ (name$0 or name$100).
+         */
+        public String getSuperName() {
+            return name + MixinClassGenerator.MIXED_METH_SEP + (index+1);
+        }
+
+        public int getOwner() {
+            return owner;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -19,15 +19,23 @@
 
 package jmixer;
 
+import java.lang.annotation.Annotation;
 import java.util.ArrayList;
 import java.util.List;
 
+import spoon.reflect.code.CtFieldAccess;
 import spoon.reflect.code.CtLiteral;
+import spoon.reflect.code.CtNewArray;
+import spoon.reflect.declaration.CtAnnotation;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
 import spoon.reflect.declaration.CtExecutable;
 import spoon.reflect.declaration.CtMethod;
 import spoon.reflect.declaration.CtParameter;
 import spoon.reflect.factory.CodeFactory;
+import spoon.reflect.reference.CtArrayTypeReference;
 import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtTypeParameterReference;
 import spoon.reflect.reference.CtTypeReference;
 
 /**
@@ -65,6 +73,24 @@ public class SpoonHelper {
         return cf.createLiteral(null);
     }
 
+    /**
+     * Return the estimated size in bytes of a field of the given type in an
+     * instance, with compressed references.
+     */
+    public static int getFieldSize( CtTypeReference<?> ctr ) {
+        
+        String qname = ctr.getQualifiedName();
+        
+        if( qname.equals("boolean") || qname.equals("byte") )
+            return 1;
+        if( qname.equals("char") || qname.equals("short") )
+            return 2;
+        if( qname.equals("long") || qname.equals("double") )
+            return 8;
+        
+        return 4;
+    }
+
     /**
      * Return a string containing a @see link to reference the specified method.
      */
@@ -105,4 +131,121 @@ public class SpoonHelper {
 		}
     	return trefs;
     }
+
+    /**
+     * Return the qualified name of the erasure of the specified type
+     * reference. Type parameters are erased to their first bound and array
+     * types to the erasure of their component type followed by [].
+     * 
+     * @param ctr  the type reference
+     * @return     the qualified name of the erased type
+     */
+    public static String getErasedName( CtTypeReference<?> ctr ) {
+        if( ctr instanceof CtArrayTypeReference ) {
+            CtTypeReference<?> comp =
+                ((CtArrayTypeReference<?>)ctr).getComponentType();
+            return getErasedName(comp)+"[]";
+        }
+        if( ctr instanceof CtTypeParameterReference ) {
+            List<CtTypeReference<?>> bounds =
+                ((CtTypeParameterReference)ctr).getBounds();
+            if( bounds.isEmpty() ) {
+                return Object.class.getName();
+            }
+            return getErasedName(bounds.get(0));
+        }
+        return ctr.getQualifiedName();
+    }
+
+    /**
+     * Return whether the specified element is annotated with the given
+     * annotation type, without loading the annotation.
+     */
+    public static boolean isAnnotated(
+            CtElement element, Class<? extends Annotation> type ) {
+        for (CtAnnotation<?> annotation : element.getAnnotations()) {
+            if( annotation.getAnnotationType().getQualifiedName().equals(
+                    type.getName()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the qualified names of the classes referenced by the @{@link
+     * Mixin} annotation of the specified class, without loading them, or
+     * <code>null</code> if the class is not annotated.
+     */
+    public static String[] getMixedClassNames( CtClass<?> ctclass ) {
+        CtAnnotation<?> annotation = getMixinAnnotation(ctclass);
+        if( annotation == null ) {
+            return null;
+        }
+        List<CtTypeReference<?>> types = getClassLiterals(annotation,"value");
+        String[] names = new String[types.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = types.get(i).getQualifiedName();
+        }
+        return names;
+    }
+
+    /**
+     * Return the type arguments given by the @{@link Mixin} annotation of the
+     * specified class for its generic mixed classes, without loading them, or
+     * <code>null</code> if the class is not annotated or if the mixed classes
+     * are mixed raw. This is the map value expected by
+     * {@link MixinClassGenerator#setTypeArguments(java.util.Map)}.
+     */
+    public static List<CtTypeReference<?>> getTypeArguments( CtClass<?> ctclass ) {
+        CtAnnotation<?> annotation = getMixinAnnotation(ctclass);
+        if( annotation == null ) {
+            return null;
+        }
+        List<CtTypeReference<?>> types =
+            getClassLiterals(annotation,"typeArguments");
+        if( types.isEmpty() ) {
+            return null;
+        }
+        List<CtTypeReference<?>> arguments = new ArrayList<CtTypeReference<?>>();
+        for (CtTypeReference<?> type : types) {
+            arguments.add(ctclass.getFactory().Core().clone(type));
+        }
+        return arguments;
+    }
+
+    private static CtAnnotation<?> getMixinAnnotation( CtClass<?> ctclass ) {
+        for (CtAnnotation<?> annotation : ctclass.getAnnotations()) {
+            if( annotation.getAnnotationType().getQualifiedName().equals(
+                    Mixin.class.getName()) ) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the types of the class literals given as the value of the
+     * specified element of an annotation.
+     */
+    private static List<CtTypeReference<?>> getClassLiterals(
+            CtAnnotation<?> annotation, String element ) {
+        Object value = annotation.getElementValues().get(element);
+        List<Object> exprs = new ArrayList<Object>();
+        if( value instanceof CtNewArray ) {
+            exprs.addAll(((CtNewArray<?>)value).getElements());
+        }
+        else if( value != null ) {
+            exprs.add(value);
+        }
+        List<CtTypeReference<?>> types = new ArrayList<CtTypeReference<?>>();
+        for (Object expr : exprs) {
+            /*
+             * Class literals are accesses to the class field of the type.
+             */
+            CtFieldAccess<?> fa = (CtFieldAccess<?>) expr;
+            types.add(fa.getVariable().getDeclaringType());
+        }
+        return types;
+    }
 }
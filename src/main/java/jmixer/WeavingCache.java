@@ -0,0 +1,264 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class implements a persistent cache of woven classes. Entries are
+ * stored in a directory, one file per entry, and can be shared between
+ * several builds, e.g. by several continuous integration agents.
+ *
+ * The key of an entry is a content hash of the source code of the target
+ * class, of the source code of the mixed classes (in order) and of the
+ * weaver itself: a hash of the JMixer jar, or of the JMixer class files when
+ * they are not packaged, so that a change to the weaver invalidates the
+ * entries. The value is the woven source code, or the woven class
+ * file, of the target class, stored and returned verbatim.
+ *
+ * Instances can be shared by several threads.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class WeavingCache {
+
+    /** The default extension of the files storing the entries. */
+    final public static String SUFFIX = ".java";
+
+    private File directory;
+    private String suffix;
+    private int hits;
+    private int misses;
+
+    /**
+     * @param directory  the directory where entries are stored
+     */
+    public WeavingCache( File directory ) {
+        this(directory,SUFFIX);
+    }
+
+    /**
+     * @param directory  the directory where entries are stored
+     * @param suffix     the extension of the files storing the entries, e.g.
+     *                   .class for woven class files
+     */
+    public WeavingCache( File directory, String suffix ) {
+        this.directory = directory;
+        this.suffix = suffix;
+    }
+
+    /**
+     * Return the key associated with the given source codes. Each source code
+     * is hashed with its length so that different lists of sources can not
+     * produce the same key.
+     *
+     * @param sources  the source codes of the target class and of the mixed
+     *                 classes, and any setting which changes the output
+     * @return         the key as an hexadecimal string
+     */
+    public String key( List<String> sources ) {
+        Charset utf8 = Charset.forName("UTF-8");
+        byte[][] contents = new byte[sources.size()][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = sources.get(i).getBytes(utf8);
+        }
+        return key(contents);
+    }
+
+    /**
+     * Return the key associated with the given contents, e.g. the class files
+     * of a target class and of its mixed classes.
+     *
+     * @param contents  the contents
+     * @return          the key as an hexadecimal string
+     */
+    public static String key( byte[]... contents ) {
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch( NoSuchAlgorithmException nsae ) {
+            throw new RuntimeException(nsae);
+        }
+
+        update(md,WeaverDigest.DIGEST);
+        for (byte[] content : contents) {
+            update(md,content);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF,16));
+            sb.append(Character.forDigit(b & 0xF,16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Holder of the digest of the weaver, computed once on first use.
+     */
+    private static class WeaverDigest {
+
+        final static byte[] DIGEST = digest();
+
+        /**
+         * Return the hash of the jar containing JMixer, or of the class files
+         * of the jmixer package when JMixer is loaded from a directory. Fall
+         * back to the implementation version of the package when the code
+         * source can not be read.
+         */
+        private static byte[] digest() {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                CodeSource cs =
+                    WeavingCache.class.getProtectionDomain().getCodeSource();
+                if( cs != null && cs.getLocation() != null ) {
+                    File location = new File(cs.getLocation().toURI());
+                    if( location.isFile() ) {
+                        update(md,Files.readAllBytes(location.toPath()));
+                        return md.digest();
+                    }
+                    String pkg = WeavingCache.class.getPackage().getName();
+                    File dir = new File(location,pkg.replace('.',File.separatorChar));
+                    File[] files = dir.listFiles();
+                    if( files != null ) {
+                        Arrays.sort(files);
+                        for (File file : files) {
+                            if( file.getName().endsWith(".class") ) {
+                                update(md,file.getName().getBytes("UTF-8"));
+                                update(md,Files.readAllBytes(file.toPath()));
+                            }
+                        }
+                        return md.digest();
+                    }
+                }
+            }
+            catch( NoSuchAlgorithmException nsae ) {
+                throw new RuntimeException(nsae);
+            }
+            catch( IOException ioe ) {
+                // Fall back to the implementation version
+            }
+            catch( URISyntaxException use ) {
+                // Idem
+            }
+            catch( IllegalArgumentException iae ) {
+                // Idem: the location is not a file, e.g. a nested jar
+            }
+            String version =
+                WeavingCache.class.getPackage().getImplementationVersion();
+            if( version == null ) {
+                throw new IllegalStateException(
+                    "Can not identify the version of the weaver for the cache keys");
+            }
+            return version.getBytes(Charset.forName("UTF-8"));
+        }
+    }
+
+    private static void update( MessageDigest md, byte[] bytes ) {
+        int length = bytes.length;
+        md.update((byte)(length >>> 24));
+        md.update((byte)(length >>> 16));
+        md.update((byte)(length >>> 8));
+        md.update((byte)length);
+        md.update(bytes);
+    }
+
+    /**
+     * Return the woven source code associated with the given key or
+     * <code>null</code> if the cache does not contain any entry for this key.
+     */
+    public byte[] get( String key ) throws IOException {
+        File file = new File(directory,key+suffix);
+        if( ! file.isFile() ) {
+            synchronized(this) {
+                misses++;
+            }
+            return null;
+        }
+        synchronized(this) {
+            hits++;
+        }
+        return Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * Store the woven source code associated with the given key. The entry is
+     * first written to a temporary file and then moved to its final location
+     * so that concurrent builds sharing the directory never read a partially
+     * written entry.
+     */
+    public void put( String key, byte[] woven ) throws IOException {
+
+        if( ! directory.isDirectory() && ! directory.mkdirs() ) {
+            throw new IOException("Error creating cache directory "+directory);
+        }
+
+        File tmp = File.createTempFile(key,".tmp",directory);
+        File file = new File(directory,key+suffix);
+        try {
+            Files.write(tmp.toPath(),woven);
+            try {
+                Files.move(
+                    tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch( AtomicMoveNotSupportedException amnse ) {
+                Files.move(
+                    tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return
+            "weaving cache "+directory+": "+hits+" hit(s), "+
+            misses+" miss(es)";
+    }
+}
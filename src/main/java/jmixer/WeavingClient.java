@@ -0,0 +1,113 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * A thin client for the {@link WeavingDaemon}. The client does not depend on
+ * Spoon and starts quickly.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class WeavingClient {
+
+    /**
+     * Send the given request to the daemon listening on the given port of the
+     * loopback interface and return its answer.
+     *
+     * @param port     the port
+     * @param token    the token of the daemon, see
+     *                 {@link WeavingDaemon#getToken()}
+     * @param request  the request
+     */
+    public static String send( int port, String token, String request )
+    throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(),port);
+        try {
+            Writer out =
+                new OutputStreamWriter(socket.getOutputStream(),"UTF-8");
+            out.write(token);
+            out.write('\t');
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            BufferedReader in =
+                new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(),"UTF-8"));
+            return in.readLine();
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Usage: java jmixer.WeavingClient portFile request [args...]
+     *
+     * e.g. java jmixer.WeavingClient .jmixer-port weave src/main/java target/woven
+     *
+     * The port file contains the port and the token written by the daemon.
+     *
+     * The exit status is 0 when the daemon answers OK.
+     */
+    public static void main( String[] args ) throws IOException {
+
+        if( args.length < 2 ) {
+            System.err.println(
+                "Usage: java jmixer.WeavingClient portFile request [args...]");
+            System.exit(2);
+        }
+
+        List<String> lines =
+            Files.readAllLines(new File(args[0]).toPath(),Charset.forName("UTF-8"));
+        if( lines.size() < 2 ) {
+            System.err.println("Invalid port file "+args[0]);
+            System.exit(2);
+        }
+        int port = Integer.parseInt(lines.get(0).trim());
+        String token = lines.get(1).trim();
+
+        StringBuilder request = new StringBuilder(args[1]);
+        for (int i = 2; i < args.length; i++) {
+            request.append('\t');
+            String arg = args[i];
+            if( i < 4 ) {
+                // Directories are resolved against the working directory of the client
+                arg = new File(arg).getAbsolutePath();
+            }
+            request.append(arg);
+        }
+
+        String answer = send(port,token,request.toString());
+        System.out.println(answer);
+        System.exit(answer != null && answer.startsWith("OK") ? 0 : 1);
+    }
+}
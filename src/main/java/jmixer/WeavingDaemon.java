@@ -0,0 +1,597 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spoon.Launcher;
+import spoon.compiler.Environment;
+import spoon.compiler.SpoonCompiler;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtSimpleType;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.visitor.DefaultJavaPrettyPrinter;
+import spoon.support.JavaOutputProcessor;
+
+/**
+ * A long-lived weaving daemon which keeps the woven models resident between
+ * builds. A model is kept per source directory and output directory, in a
+ * session. The first request of a session builds the model, weaves the
+ * classes annotated with @{@link Mixin} and writes all the classes. The next
+ * requests only parse the changed source files, update the woven classes
+ * with an {@link IncrementalWeaver} and write the changed classes.
+ *
+ * A session is built again from scratch when source files are added or
+ * removed, when the mixed classes of a target change, or after a number of
+ * updates so that the stale compilation units are released. Memory is
+ * bounded by evicting the least recently used sessions, the idle sessions,
+ * and the other sessions when the heap is nearly full.
+ *
+ * Requests are lines of tab-separated words sent on a loopback socket, see
+ * {@link WeavingClient}. The first word is a random token generated when the
+ * daemon starts and written in the port file, readable by the owner only, so
+ * that other local users can not have files read or written with the rights
+ * of the daemon. The other words are:
+ * <ul>
+ * <li>weave sourceDir outputDir [classpath]: answers OK n full|incremental
+ * where n is the number of written classes,</li>
+ * <li>stats: answers OK followed by the counters of the daemon,</li>
+ * <li>stop: stops the daemon.</li>
+ * </ul>
+ * Errors are answered with ERROR followed by a message. Requests are handled
+ * one at a time: a request which is not received within the read timeout is
+ * answered with an error so that an idle connection does not block the
+ * daemon.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class WeavingDaemon {
+
+    final public static int DEFAULT_MAX_SESSIONS = 2;
+
+    /** The default idle time in milliseconds before evicting a session. */
+    final public static long DEFAULT_IDLE_TIMEOUT = 30*60*1000;
+
+    /** The default number of updates before building a session again. */
+    final public static int DEFAULT_MAX_UPDATES = 100;
+
+    /** The ratio of the maximum heap above which other sessions are evicted. */
+    final public static double MAX_HEAP_RATIO = 0.8;
+
+    /** The default time in milliseconds to wait for a request. */
+    final public static int DEFAULT_READ_TIMEOUT = 10*1000;
+
+    private int maxSessions;
+    private long idleTimeout;
+    private int maxUpdates;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    /** Session key -> session, the least recently used first. */
+    private Map<String,Session> sessions =
+        new LinkedHashMap<String,Session>(16,0.75f,true);
+
+    private ServerSocket server;
+    private volatile boolean running;
+
+    /** The token expected as the first word of the requests. */
+    private String token;
+
+    private int requests;
+    private int builds;
+    private int updates;
+    private int evictions;
+
+    public WeavingDaemon() {
+        this(DEFAULT_MAX_SESSIONS,DEFAULT_IDLE_TIMEOUT,DEFAULT_MAX_UPDATES);
+    }
+
+    /**
+     * @param maxSessions  the maximum number of resident sessions
+     * @param idleTimeout  the idle time in milliseconds before evicting a
+     *                     session
+     * @param maxUpdates   the number of incremental updates before building
+     *                     a session again
+     * @throws IllegalArgumentException  if maxSessions is lower than 1
+     */
+    public WeavingDaemon( int maxSessions, long idleTimeout, int maxUpdates ) {
+        if( maxSessions < 1 ) {
+            final String msg =
+                "The maximum number of sessions must be at least 1: "+
+                maxSessions;
+            throw new IllegalArgumentException(msg);
+        }
+        this.maxSessions = maxSessions;
+        this.idleTimeout = idleTimeout;
+        this.maxUpdates = maxUpdates;
+    }
+
+    /**
+     * Listen on the given port of the loopback interface and generate the
+     * token expected in the requests.
+     *
+     * @param port  the port or 0 for any free port
+     * @return      the port
+     */
+    public int start( int port ) throws IOException {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF,16));
+            sb.append(Character.forDigit(b & 0xF,16));
+        }
+        token = sb.toString();
+
+        server = new ServerSocket(port,50,InetAddress.getLoopbackAddress());
+        server.setSoTimeout(1000);
+        running = true;
+        return server.getLocalPort();
+    }
+
+    /**
+     * Return the token expected as the first word of the requests.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Write the given port and the token in the given file, readable and
+     * writable by the owner only when the file system supports it.
+     */
+    public void writePortFile( int port, File file ) throws IOException {
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(
+                path,
+                PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        }
+        catch( UnsupportedOperationException uoe ) {
+            Files.createFile(path);
+        }
+        Files.write(path,(port+"\n"+token+"\n").getBytes("UTF-8"));
+    }
+
+    /**
+     * Handle the requests until the daemon is stopped.
+     */
+    public void serve() throws IOException {
+        try {
+            while( running ) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                }
+                catch( SocketTimeoutException ste ) {
+                    synchronized(this) {
+                        evictIdleSessions();
+                    }
+                    continue;
+                }
+                try {
+                    socket.setSoTimeout(readTimeout);
+                    BufferedReader in =
+                        new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(),"UTF-8"));
+                    Writer out =
+                        new OutputStreamWriter(socket.getOutputStream(),"UTF-8");
+                    String request;
+                    try {
+                        request = in.readLine();
+                    }
+                    catch( SocketTimeoutException ste ) {
+                        out.write("ERROR request timeout\n");
+                        out.flush();
+                        continue;
+                    }
+                    out.write(
+                        request == null ? "ERROR empty request" :
+                        ! isAuthorized(request) ? "ERROR unauthorized request" :
+                        handle(request.substring(token.length()+1)));
+                    out.write('\n');
+                    out.flush();
+                }
+                finally {
+                    socket.close();
+                }
+            }
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Return whether the given request starts with the token. The token is
+     * compared in constant time.
+     */
+    private boolean isAuthorized( String request ) throws IOException {
+        int tab = request.indexOf('\t');
+        if( tab == -1 ) {
+            return false;
+        }
+        return MessageDigest.isEqual(
+            request.substring(0,tab).getBytes("UTF-8"), token.getBytes("UTF-8"));
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Set the time in milliseconds to wait for a request once a connection
+     * is accepted.
+     */
+    public void setReadTimeout( int readTimeout ) {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Handle the given request and return the answer.
+     */
+    public synchronized String handle( String request ) {
+
+        requests++;
+        String[] words = request.split("\t");
+        try {
+            if( words[0].equals("weave") && words.length >= 3 ) {
+                String[] classpath =
+                    words.length > 3 && words[3].length() > 0 ?
+                    words[3].split(File.pathSeparator) : null;
+                return weave(new File(words[1]),new File(words[2]),classpath);
+            }
+            if( words[0].equals("stats") ) {
+                return "OK "+toString();
+            }
+            if( words[0].equals("stop") ) {
+                stop();
+                return "OK";
+            }
+            return "ERROR unknown request "+words[0];
+        }
+        catch( Exception e ) {
+            Launcher.logger.error(e.getMessage(),e);
+            return "ERROR "+e;
+        }
+    }
+
+    private String weave( File srcDir, File outDir, String[] classpath )
+    throws Exception {
+
+        evictIdleSessions();
+
+        String key =
+            srcDir.getCanonicalPath()+File.pathSeparatorChar+
+            outDir.getCanonicalPath()+File.pathSeparatorChar+
+            (classpath == null ? "" : Arrays.toString(classpath));
+        Session session = sessions.get(key);
+        String answer;
+        if( session == null ) {
+            /*
+             * The session is registered once built so that a failed build
+             * is attempted again by the next request.
+             */
+            session = new Session(srcDir,outDir,classpath);
+            answer = "OK "+session.build()+" full";
+            sessions.put(key,session);
+        }
+        else {
+            try {
+                answer = session.update();
+            }
+            catch( Exception e ) {
+                /*
+                 * The model may have been partially updated. Drop the
+                 * session so that the next request builds it again.
+                 */
+                sessions.remove(key);
+                throw e;
+            }
+        }
+        session.lastUsed = System.currentTimeMillis();
+
+        /*
+         * Bound the memory used by the resident sessions.
+         */
+        Iterator<Session> it = sessions.values().iterator();
+        while( sessions.size() > maxSessions ||
+               ( sessions.size() > 1 && isHeapFull() ) ) {
+            if( it.next() != session ) {
+                it.remove();
+                evictions++;
+            }
+        }
+        return answer;
+    }
+
+    private void evictIdleSessions() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Session> it = sessions.values().iterator(); it.hasNext();) {
+            if( now - it.next().lastUsed > idleTimeout ) {
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    private static boolean isHeapFull() {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        return used > MAX_HEAP_RATIO * rt.maxMemory();
+    }
+
+    /**
+     * Return the number of resident sessions.
+     */
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    public synchronized int getBuilds() {
+        return builds;
+    }
+
+    public synchronized int getUpdates() {
+        return updates;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return
+            "sessions="+sessions.size()+" requests="+requests+
+            " builds="+builds+" updates="+updates+" evictions="+evictions;
+    }
+
+    /**
+     * The model of a source directory woven in an output directory.
+     */
+    private class Session {
+
+        private File srcDir;
+        private File outDir;
+        private String[] classpath;
+        private IncrementalWeaver weaver;
+        private int sessionUpdates;
+        private long lastUsed = System.currentTimeMillis();
+
+        /** Source file -> last modification time and length. */
+        private Map<File,String> stamps = new HashMap<File,String>();
+
+        Session( File srcDir, File outDir, String[] classpath ) {
+            this.srcDir = srcDir;
+            this.outDir = outDir;
+            this.classpath = classpath;
+        }
+
+        /**
+         * Build the model, weave it and write all the classes.
+         *
+         * @return  the number of written classes
+         */
+        int build() throws Exception {
+
+            Map<File,String> current = scan();
+
+            SpoonCompiler comp = new Launcher().createCompiler();
+            comp.addInputSource(srcDir);
+            comp.setSourceClasspath(
+                classpath != null ? classpath :
+                System.getProperty("java.class.path").split(File.pathSeparator));
+            comp.build();
+
+            Factory factory = comp.getFactory();
+            Map<CtClass<?>,CtClass<?>[]> targets =
+                new LinkedHashMap<CtClass<?>,CtClass<?>[]>();
+            for (CtSimpleType<?> type : factory.Type().getAll()) {
+                if( !(type instanceof CtClass) ) {
+                    continue;
+                }
+                String[] names = SpoonHelper.getMixedClassNames((CtClass<?>)type);
+                if( names == null ) {
+                    continue;
+                }
+                CtClass<?>[] mixes = new CtClass<?>[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    mixes[i] = factory.Class().get(names[i]);
+                }
+                targets.put((CtClass<?>)type,mixes);
+            }
+
+            IncrementalWeaver weaver = new IncrementalWeaver(factory);
+            weaver.weave(targets,1);
+            int count = write(factory,factory.Type().getAll());
+
+            /*
+             * The session is only updated once the build succeeded so that a
+             * failed build is not mistaken for an up to date model.
+             */
+            this.weaver = weaver;
+            stamps = current;
+            sessionUpdates = 0;
+            builds++;
+            return count;
+        }
+
+        /**
+         * Update the model with the changed source files and write the
+         * changed classes.
+         */
+        String update() throws Exception {
+
+            Map<File,String> current = scan();
+            if( ! current.keySet().equals(stamps.keySet()) ||
+                sessionUpdates >= maxUpdates ) {
+                return "OK "+build()+" full";
+            }
+
+            List<File> changed = new ArrayList<File>();
+            for (Map.Entry<File,String> entry : current.entrySet()) {
+                if( ! entry.getValue().equals(stamps.get(entry.getKey())) ) {
+                    changed.add(entry.getKey());
+                }
+            }
+            if( changed.isEmpty() ) {
+                return "OK 0 incremental";
+            }
+
+            SpoonCompiler comp = new Launcher().createCompiler();
+            comp.getFactory().getEnvironment().setNoClasspath(true);
+            for (File file : changed) {
+                comp.addInputSource(file);
+            }
+            comp.build();
+
+            /*
+             * Classes which are neither mixed nor target classes are written
+             * from the model of the changed files.
+             */
+            Factory factory = weaver.getFactory();
+            Set<CtSimpleType<?>> woven = new LinkedHashSet<CtSimpleType<?>>();
+            List<CtSimpleType<?>> others = new ArrayList<CtSimpleType<?>>();
+            for (CtSimpleType<?> type : comp.getFactory().Type().getAll()) {
+                String name = type.getQualifiedName();
+                String[] names =
+                    type instanceof CtClass ?
+                    SpoonHelper.getMixedClassNames((CtClass<?>)type) : null;
+                String[] before = weaver.getMixedClasses(name);
+                if( names != null || before != null ) {
+                    if( names == null || before == null ||
+                        ! Arrays.equals(names,before) ) {
+                        return "OK "+build()+" full";
+                    }
+                }
+                if( weaver.isTracked(name) ) {
+                    woven.addAll(weaver.update((CtClass<?>)type));
+                    woven.add(factory.Type().get(name));
+                }
+                else {
+                    others.add(type);
+                }
+            }
+
+            sessionUpdates++;
+            updates++;
+            stamps = current;
+            return
+                "OK "+(write(factory,woven)+write(comp.getFactory(),others))+
+                " incremental";
+        }
+
+        /**
+         * Return the last modification time and length of the source files.
+         */
+        private Map<File,String> scan() {
+            Map<File,String> files = new HashMap<File,String>();
+            scan(srcDir,files);
+            return files;
+        }
+
+        private void scan( File dir, Map<File,String> files ) {
+            File[] children = dir.listFiles();
+            if( children == null ) {
+                return;
+            }
+            for (File file : children) {
+                if( file.isDirectory() ) {
+                    scan(file,files);
+                }
+                else if( file.getName().endsWith(".java") ) {
+                    files.put(file,file.lastModified()+":"+file.length());
+                }
+            }
+        }
+
+        /**
+         * Write the given top-level types of the given model.
+         */
+        private int write(
+                Factory factory, Iterable<? extends CtSimpleType<?>> types ) {
+            Environment env = factory.getEnvironment();
+            JavaOutputProcessor jop =
+                new JavaOutputProcessor(outDir,new DefaultJavaPrettyPrinter(env));
+            jop.setFactory(factory);
+            int count = 0;
+            for (CtSimpleType<?> type : types) {
+                if( type.isTopLevel() ) {
+                    jop.createJavaFile(type);
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Start a daemon.
+     *
+     * Usage: java jmixer.WeavingDaemon [port [portFile]]
+     *
+     * The port defaults to 0, i.e. any free port. The port is printed and,
+     * if a file is specified, written with the token in the file for
+     * {@link WeavingClient}. Otherwise the token is printed.
+     */
+    public static void main( String[] args ) throws IOException {
+
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        WeavingDaemon daemon = new WeavingDaemon();
+        port = daemon.start(port);
+        System.out.println("JMixer weaving daemon listening on port "+port);
+        if( args.length > 1 ) {
+            daemon.writePortFile(port,new File(args[1]));
+        }
+        else {
+            System.out.println("Token "+daemon.getToken());
+        }
+        daemon.serve();
+    }
+}
@@ -0,0 +1,440 @@
+/***
+ * JMixer
+ * Copyright (C) 2014 Inria, University Lille 1
+ *
+ * This software is governed by the CeCILL-C License under French law and
+ * abiding by the rules of distribution of free software. You can use, modify
+ * and/or redistribute the software under the terms of the CeCILL-C license as
+ * circulated by CEA, CNRS and INRIA at http://www.cecill.info.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the CeCILL-C License for more details.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * Author: Lionel Seinturier
+ */
+
+package jmixer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.visitor.CtScanner;
+
+/**
+ * This class records the time spent in each phase of the weaving of the
+ * target classes, and some counters. Metrics are collected by
+ * {@link MixinClassGenerator} when an instance is set with
+ * {@link MixinClassGenerator#setMetrics(WeavingMetrics)}, and nothing is
+ * measured otherwise. The cloned nodes are counted out of the timed phases.
+ *
+ * The bytes allocated while weaving a target class are measured when the JVM
+ * supports measuring the memory allocated by a thread (HotSpot does).
+ *
+ * Instances can be shared by several threads weaving different targets.
+ *
+ * @author Lionel Seinturier <Lionel.Seinturier@univ-lille1.fr>
+ */
+public class WeavingMetrics {
+
+    /**
+     * The phases of the weaving of a target class.
+     */
+    public static enum Phase {
+
+        /** Retrieving the templates of the mixed classes. */
+        TEMPLATES,
+
+        /** Cloning and inserting the mixed methods. */
+        METHODS,
+
+        /**
+         * Rewriting the inserted methods and fields: type references, _this_
+         * and _super_ calls and accesses.
+         */
+        REWRITING,
+
+        /** Inserting the mixed fields and interfaces. */
+        FIELDS,
+
+        /** Adding the @see comments. */
+        JAVADOC,
+
+        /** Inserting the empty methods closing the chains. */
+        STUBS,
+
+        /** Flattening the chains. */
+        FLATTENING,
+
+        /** Ordering the fields, see {@link MixinLayout}. */
+        LAYOUT;
+
+        String getKey() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** The number of slowest targets listed in the report. */
+    final public static int SLOWEST = 10;
+
+    private List<Target> targets = new ArrayList<Target>();
+    private List<WeavingListener> listeners = new ArrayList<WeavingListener>();
+
+    public synchronized void addListener( WeavingListener listener ) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener( WeavingListener listener ) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start measuring the weaving of the given target class.
+     */
+    Target start( String name ) {
+        return new Target(name);
+    }
+
+    /**
+     * Record that the given target class has been woven and notify the
+     * listeners.
+     */
+    synchronized void done( Target target ) {
+        target.time = System.nanoTime() - target.start;
+        if( target.startBytes != -1 ) {
+            target.allocatedBytes = allocatedBytes() - target.startBytes;
+        }
+        targets.add(target);
+        for (WeavingListener listener : listeners) {
+            listener.targetWoven(target);
+        }
+    }
+
+    /**
+     * Return the metrics of the target classes woven so far.
+     */
+    public synchronized List<Target> getTargets() {
+        return new ArrayList<Target>(targets);
+    }
+
+    /**
+     * Return the given number of slowest target classes, the slowest first.
+     */
+    public synchronized List<Target> getSlowestTargets( int count ) {
+        List<Target> slowest = new ArrayList<Target>(targets);
+        Collections.sort(
+            slowest,
+            new Comparator<Target>() {
+                public int compare( Target t1, Target t2 ) {
+                    return Long.compare(t2.time,t1.time);
+                }
+            });
+        return slowest.subList(0,Math.min(count,slowest.size()));
+    }
+
+    /**
+     * Return the time in nanoseconds spent in the given phase for all the
+     * target classes.
+     */
+    public synchronized long getTime( Phase phase ) {
+        long time = 0;
+        for (Target target : targets) {
+            time += target.getTime(phase);
+        }
+        return time;
+    }
+
+    /**
+     * Return the time in nanoseconds spent weaving all the target classes.
+     */
+    public synchronized long getTime() {
+        long time = 0;
+        for (Target target : targets) {
+            time += target.time;
+        }
+        return time;
+    }
+
+    /**
+     * Return the number of bytes allocated while weaving all the target
+     * classes, or 0 if allocations are not measured.
+     */
+    public synchronized long getAllocatedBytes() {
+        long bytes = 0;
+        for (Target target : targets) {
+            bytes += target.allocatedBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Return a JSON report with the total time per phase, the total counters
+     * and the {@link #SLOWEST} slowest targets. Times are in milliseconds.
+     */
+    public synchronized String toJson() {
+
+        Target total = new Target(null);
+        for (Target target : targets) {
+            total.time += target.time;
+            for (int i = 0; i < total.times.length; i++) {
+                total.times[i] += target.times[i];
+            }
+            total.methodsInserted += target.methodsInserted;
+            total.chainMethods += target.chainMethods;
+            total.conflicts += target.conflicts;
+            total.clonedNodes += target.clonedNodes;
+            total.allocatedBytes += target.allocatedBytes;
+        }
+
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"targets\": ").append(targets.size()).append(",\n");
+        sb.append("  \"total\": ");
+        total.toJson(sb,"  ");
+        sb.append(",\n  \"slowest\": [");
+        boolean first = true;
+        for (Target target : getSlowestTargets(SLOWEST)) {
+            sb.append(first ? "\n    " : ",\n    ");
+            first = false;
+            target.toJson(sb,"    ");
+        }
+        sb.append(first ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Write the JSON report in the given file.
+     */
+    public void writeReport( File file ) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if( ! dir.isDirectory() && ! dir.mkdirs() ) {
+            throw new IOException("Error creating directory "+dir);
+        }
+        Files.write(file.toPath(),toJson().getBytes("UTF-8"));
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(targets.size()).append(" target(s) woven in ");
+        sb.append(ms(getTime())).append(" ms (");
+        boolean first = true;
+        for (Phase phase : Phase.values()) {
+            if( ! first ) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append(phase.getKey()).append(' ').append(ms(getTime(phase)));
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    /**
+     * Return the number of elements of the given tree.
+     */
+    static int count( CtElement element ) {
+        NodeCounter counter = new NodeCounter();
+        counter.scan(element);
+        return counter.count;
+    }
+
+    /**
+     * Return the number of bytes allocated so far by the current thread, or
+     * -1 if the JVM does not support measuring it.
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if( !(bean instanceof com.sun.management.ThreadMXBean) ) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sun =
+            (com.sun.management.ThreadMXBean) bean;
+        if( ! sun.isThreadAllocatedMemorySupported() ||
+            ! sun.isThreadAllocatedMemoryEnabled() ) {
+            return -1;
+        }
+        return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static String ms( long nanos ) {
+        return String.format(Locale.ROOT,"%.3f",nanos/1e6);
+    }
+
+    /**
+     * The timings and counters of a target class.
+     */
+    public static class Target {
+
+        private String name;
+        private long start = System.nanoTime();
+        private long time;
+        private long[] times = new long[Phase.values().length];
+        private int methodsInserted;
+        private int chainMethods;
+        private int conflicts;
+        private int clonedNodes;
+        private long startBytes;
+        private long allocatedBytes;
+
+        private Target( String name ) {
+            this.name = name;
+            startBytes = name == null ? -1 : allocatedBytes();
+        }
+
+        /**
+         * Add the time elapsed since the given time to the given phase.
+         *
+         * @return  the current time
+         */
+        long add( Phase phase, long since ) {
+            long now = System.nanoTime();
+            times[phase.ordinal()] += now - since;
+            return now;
+        }
+
+        /**
+         * Record that the given method has been inserted.
+         *
+         * @param renamed  whether the method has been renamed, i.e. whether a
+         *                 method with the same signature was already inserted
+         */
+        void methodInserted( CtElement method, boolean renamed ) {
+            methodsInserted++;
+            if( renamed ) {
+                chainMethods++;
+                conflicts++;
+            }
+            cloned(method);
+        }
+
+        /**
+         * Record that the given empty method closing a chain has been
+         * inserted.
+         */
+        void stubInserted( CtElement stub ) {
+            chainMethods++;
+            cloned(stub);
+        }
+
+        /**
+         * Record that the given tree has been cloned.
+         */
+        void cloned( CtElement element ) {
+            clonedNodes += count(element);
+        }
+
+        /**
+         * Return the qualified name of the target class.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Return the time in nanoseconds spent weaving the target class.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Return the time in nanoseconds spent in the given phase.
+         */
+        public long getTime( Phase phase ) {
+            return times[phase.ordinal()];
+        }
+
+        /**
+         * Return the number of methods inserted, including the renamed ones
+         * and excluding the empty methods closing the chains.
+         */
+        public int getMethodsInserted() {
+            return methodsInserted;
+        }
+
+        /**
+         * Return the number of name$99 methods, including the empty methods
+         * closing the chains.
+         */
+        public int getChainMethods() {
+            return chainMethods;
+        }
+
+        /**
+         * Return the number of methods which have been renamed because a
+         * method with the same signature was already inserted.
+         */
+        public int getConflicts() {
+            return conflicts;
+        }
+
+        /**
+         * Return the number of elements cloned from the mixed classes.
+         */
+        public int getClonedNodes() {
+            return clonedNodes;
+        }
+
+        /**
+         * Return the number of bytes allocated while weaving the target
+         * class, or 0 if allocations are not measured.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        private void toJson( StringBuilder sb, String indent ) {
+            sb.append("{\n");
+            if( name != null ) {
+                sb.append(indent).append("  \"target\": \"");
+                for (char c : name.toCharArray()) {
+                    if( c == '"' || c == '\\' ) {
+                        sb.append('\\');
+                    }
+                    sb.append(c);
+                }
+                sb.append("\",\n");
+            }
+            sb.append(indent).append("  \"time\": ").append(ms(time)).append(",\n");
+            sb.append(indent).append("  \"phases\": {");
+            boolean first = true;
+            for (Phase phase : Phase.values()) {
+                sb.append(first ? " " : ", ");
+                first = false;
+                sb.append('"').append(phase.getKey()).append("\": ");
+                sb.append(ms(getTime(phase)));
+            }
+            sb.append(" },\n");
+            sb.append(indent).append("  \"methodsInserted\": ").append(methodsInserted).append(",\n");
+            sb.append(indent).append("  \"chainMethods\": ").append(chainMethods).append(",\n");
+            sb.append(indent).append("  \"conflicts\": ").append(conflicts).append(",\n");
+            sb.append(indent).append("  \"clonedNodes\": ").append(clonedNodes).append(",\n");
+            sb.append(indent).append("  \"allocatedBytes\": ").append(allocatedBytes).append('\n');
+            sb.append(indent).append('}');
+        }
+    }
+
+    /**
+     * A visitor counting the elements of a tree.
+     */
+    private static class NodeCounter extends CtScanner {
+        private int count;
+        @Override
+        protected void enter( CtElement e ) {
+            count++;
+        }
+    }
+}
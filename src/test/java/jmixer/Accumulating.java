@@ -0,0 +1,20 @@
+package jmixer;
+
+public class Accumulating<T> {
+
+	private T last = null;
+	private int count;
+
+	public T accumulate( T value ) {
+		T previous = last;
+		last = value;
+		count++;
+		return previous;
+	}
+
+	public T reset() {
+		last = null;
+		count = 0;
+		return null;
+	}
+}
@@ -0,0 +1,17 @@
+package jmixer;
+
+public class Buffering<V,W> {
+
+	@SuppressWarnings("unchecked")
+	private V[] buffer = (V[]) new Object[16];
+	private int size;
+
+	public void push( V value ) {
+		buffer[size++] = value;
+	}
+
+	@SuppressWarnings("unchecked")
+	public W first( Object[] values ) {
+		return (W) values[0];
+	}
+}
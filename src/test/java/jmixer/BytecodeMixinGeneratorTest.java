@@ -0,0 +1,233 @@
+package jmixer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.tools.ToolProvider;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import spoon.Launcher;
+import spoon.compiler.SpoonCompiler;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+
+public class BytecodeMixinGeneratorTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	@Test
+	public void testSameAsSource() throws Exception {
+		
+		BytecodeMixinGenerator bmg =
+			new BytecodeMixinGenerator(getClass().getClassLoader());
+		
+		byte[] duck = bmg.generate(read(Duck.class),read(Flying.class),read(Swimming.class));
+		Class<?> duckClass = define("jmixer.Duck",duck);
+		Assert.assertEquals(
+			getMethods("jmixer.Duck","jmixer.Flying","jmixer.Swimming"),
+			getMethods(duckClass));
+		Assert.assertEquals(lines("Swimming","Flying"),print(duckClass));
+		
+		byte[] swan = bmg.generate(read(Swan.class),read(Swimming.class),read(Flying.class));
+		Class<?> swanClass = define("jmixer.Swan",swan);
+		Assert.assertEquals(
+			getMethods("jmixer.Swan","jmixer.Swimming","jmixer.Flying"),
+			getMethods(swanClass));
+		Assert.assertEquals(lines("Flying","Swimming"),print(swanClass));
+	}
+	
+	@Test
+	public void testDirectory() throws Exception {
+		
+		File dir = tmp.newFolder("classes");
+		File pkg = new File(dir,"jmixer");
+		pkg.mkdirs();
+		for (Class<?> c : new Class<?>[]{Bird.class,Duck.class,Swan.class,Flying.class}) {
+			Files.write(new File(pkg,c.getSimpleName()+".class").toPath(),read(c));
+		}
+		
+		// Swimming is not in the directory and is retrieved from the class loader
+		BytecodeMixinGenerator bmg =
+			new BytecodeMixinGenerator(getClass().getClassLoader());
+		List<File> woven = bmg.generate(dir);
+		
+		Assert.assertEquals(2,woven.size());
+		byte[] duck = Files.readAllBytes(new File(pkg,"Duck.class").toPath());
+		Assert.assertEquals(
+			lines("Swimming","Flying"), print(define("jmixer.Duck",duck)));
+	}
+	
+	@Test
+	public void testDirectoryTwice() throws Exception {
+		
+		File dir = tmp.newFolder("classes");
+		File pkg = new File(dir,"jmixer");
+		pkg.mkdirs();
+		for (Class<?> c : new Class<?>[]{Bird.class,Duck.class,Swan.class,Flying.class,Swimming.class}) {
+			Files.write(new File(pkg,c.getSimpleName()+".class").toPath(),read(c));
+		}
+		
+		BytecodeMixinGenerator bmg =
+			new BytecodeMixinGenerator(getClass().getClassLoader());
+		Assert.assertEquals(2,bmg.generate(dir).size());
+		byte[] duck = Files.readAllBytes(new File(pkg,"Duck.class").toPath());
+		byte[] swan = Files.readAllBytes(new File(pkg,"Swan.class").toPath());
+		Assert.assertTrue(BytecodeMixinGenerator.getMixins(duck).isEmpty());
+		
+		// Woven classes are left unchanged by a second run
+		Assert.assertTrue(bmg.generate(dir).isEmpty());
+		Assert.assertArrayEquals(
+			duck, Files.readAllBytes(new File(pkg,"Duck.class").toPath()));
+		Assert.assertArrayEquals(
+			swan, Files.readAllBytes(new File(pkg,"Swan.class").toPath()));
+		Assert.assertEquals(
+			lines("Swimming","Flying"), print(define("jmixer.Duck",duck)));
+		Assert.assertEquals(
+			lines("Flying","Swimming"), print(define("jmixer.Swan",swan)));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testTypeArguments() throws Exception {
+		
+		// Generic mixed classes are only specialized with the source model
+		byte[] tally = compile(
+			"Tally",
+			"package jmixer; @Mixin(value={Accumulating.class}, typeArguments={long.class}) "+
+			"public class Tally {}");
+		BytecodeMixinGenerator.getMixins(tally);
+	}
+	
+	/**
+	 * Compile the given source code of a class of the jmixer package.
+	 */
+	private byte[] compile( String name, String code ) throws Exception {
+		File src = tmp.newFolder("src");
+		File file = new File(src,name+".java");
+		Files.write(file.toPath(),code.getBytes("UTF-8"));
+		File out = tmp.newFolder("out");
+		int status =
+			ToolProvider.getSystemJavaCompiler().run(
+				null, null, null,
+				"-cp", System.getProperty("java.class.path"),
+				"-d", out.getPath(), file.getPath());
+		Assert.assertEquals(0,status);
+		return Files.readAllBytes(new File(out,"jmixer/"+name+".class").toPath());
+	}
+	
+	static String print( Class<?> c ) throws Exception {
+		Object o = c.getDeclaredConstructor().newInstance();
+		PrintStream out = System.out;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(baos,true));
+		try {
+			c.getMethod("print").invoke(o);
+		}
+		finally {
+			System.setOut(out);
+		}
+		return baos.toString();
+	}
+	
+	static String lines( String... lines ) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line);
+			sb.append(System.getProperty("line.separator"));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Return the methods of the given class woven with the source model.
+	 */
+	private static Set<String> getMethods( String name, String... mixins )
+	throws Exception {
+		
+		SpoonCompiler comp = new Launcher().createCompiler();
+		comp.addInputSource(new File("./src/test/java/jmixer/Bird.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Duck.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Swan.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Flying.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Swimming.java"));
+		comp.addInputSource(new File("./src/main/java/jmixer/Mixin.java"));
+		comp.build();
+		
+		Factory factory = comp.getFactory();
+		CtClass<?> target = factory.Class().get(name);
+		CtClass<?>[] srcClasses = new CtClass<?>[mixins.length];
+		for (int i = 0; i < mixins.length; i++) {
+			srcClasses[i] = factory.Class().get(mixins[i]);
+		}
+		new MixinClassGenerator(factory).generate(target,srcClasses);
+		
+		Set<String> methods = new TreeSet<String>();
+		for (CtMethod<?> method : target.getMethods()) {
+			boolean priv = method.hasModifier(ModifierKind.PRIVATE);
+			methods.add(method.getSimpleName()+(priv?" private":""));
+		}
+		return methods;
+	}
+	
+	private static Set<String> getMethods( Class<?> c ) {
+		Set<String> methods = new TreeSet<String>();
+		for (Method method : c.getDeclaredMethods()) {
+			boolean priv = Modifier.isPrivate(method.getModifiers());
+			methods.add(method.getName()+(priv?" private":""));
+		}
+		return methods;
+	}
+	
+	static byte[] read( Class<?> c ) throws Exception {
+		InputStream is = c.getResourceAsStream(c.getSimpleName()+".class");
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			for (int n = is.read(buf); n != -1; n = is.read(buf)) {
+				baos.write(buf,0,n);
+			}
+			return baos.toByteArray();
+		}
+		finally {
+			is.close();
+		}
+	}
+	
+	/**
+	 * Define the given woven class in a new class loader.
+	 */
+	static Class<?> define( final String name, final byte[] bytes )
+	throws Exception {
+		ClassLoader cl =
+			new ClassLoader(BytecodeMixinGeneratorTest.class.getClassLoader()) {
+				@Override
+				protected synchronized Class<?> loadClass(
+					String n, boolean resolve )
+				throws ClassNotFoundException {
+					if( ! n.equals(name) ) {
+						return super.loadClass(n,resolve);
+					}
+					Class<?> c = findLoadedClass(n);
+					if( c == null ) {
+						c = defineClass(n,bytes,0,bytes.length);
+					}
+					return c;
+				}
+			};
+		return cl.loadClass(name);
+	}
+}
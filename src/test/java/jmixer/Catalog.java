@@ -0,0 +1,10 @@
+package jmixer;
+
+public class Catalog {
+
+	private static int lookups;
+
+	public int getLookups() {
+		return lookups;
+	}
+}
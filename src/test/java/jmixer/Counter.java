@@ -0,0 +1,8 @@
+package jmixer;
+
+public class Counter {
+
+	public String getName() {
+		return "counter";
+	}
+}
@@ -0,0 +1,33 @@
+package jmixer;
+
+public abstract class Counting {
+
+	private int total;
+	protected String unit = " letter(s)";
+
+	public int count( String s, char c ) {
+		int n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			if( s.charAt(i) == c ) {
+				n++;
+			}
+		}
+		return n + _super_count(s,c);
+	}
+
+	public String describe( String s ) {
+		return _this_getName()+": "+count(s,'a')+" a, "+count(s,'e')+" e";
+	}
+
+	public int add( String s ) {
+		total += count(s,'a') + count(s,'e');
+		return total;
+	}
+	
+	public String summary() {
+		return total+unit;
+	}
+
+	protected abstract int _super_count( String s, char c );
+	protected abstract String _this_getName();
+}
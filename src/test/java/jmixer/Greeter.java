@@ -0,0 +1,4 @@
+package jmixer;
+
+public class Greeter {
+}
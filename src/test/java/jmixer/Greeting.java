@@ -0,0 +1,11 @@
+package jmixer;
+
+public abstract class Greeting {
+
+	public String greet( String name ) {
+		String s = "Hello "+name;
+		return _super_greet(s);
+	}
+
+	protected abstract String _super_greet( String name );
+}
@@ -0,0 +1,186 @@
+package jmixer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import spoon.Launcher;
+import spoon.compiler.SpoonCompiler;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
+
+public class IncrementalWeaverTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	@Test
+	public void testMethodBodyChanged() throws Exception {
+		
+		IncrementalWeaver weaver = weave();
+		Factory factory = weaver.getFactory();
+		CtClass<?> duck = factory.Class().get("jmixer.Duck");
+		CtClass<?> swan = factory.Class().get("jmixer.Swan");
+		
+		File flying = change("System.out.println(\"Flying\");","System.out.println(\"Flown\");");
+		Set<CtClass<?>> updated = weaver.update(Arrays.asList(flying));
+		
+		Assert.assertEquals(2,updated.size());
+		Assert.assertTrue(duck.getMethod("print$0").getBody().toString().contains("Flown"));
+		Assert.assertTrue(duck.getMethod("print$0").getBody().toString().contains("print$1()"));
+		Assert.assertTrue(swan.getMethod("print").getBody().toString().contains("Flown"));
+		Assert.assertTrue(swan.getMethod("print").getBody().toString().contains("print$0()"));
+		Assert.assertTrue(duck.getMethod("print").getBody().toString().contains("Swimming"));
+	}
+	
+	@Test
+	public void testMethodAdded() throws Exception {
+		
+		IncrementalWeaver weaver = weave();
+		Factory factory = weaver.getFactory();
+		CtClass<?> duck = factory.Class().get("jmixer.Duck");
+		
+		File flying = change("public void fly() {}","public void fly() {}\n\tpublic void land() {}");
+		weaver.update(Arrays.asList(flying));
+		
+		Assert.assertNotNull(duck.getMethod("land"));
+		Assert.assertNotNull(duck.getMethod("print$1"));
+		Assert.assertNull(duck.getMethod("print$2"));
+	}
+	
+	@Test
+	public void testTargetChanged() throws Exception {
+		
+		IncrementalWeaver weaver = weave();
+		Factory factory = weaver.getFactory();
+		CtClass<?> duck = factory.Class().get("jmixer.Duck");
+		Assert.assertNotNull(duck.getMethod("fly"));
+		
+		String src = new String(Files.readAllBytes(new File("./src/test/java/jmixer/Duck.java").toPath()));
+		File dir = tmp.newFolder("jmixer");
+		File changed = new File(dir,"Duck.java");
+		Files.write(
+			changed.toPath(),
+			src.replace("{Flying.class, Swimming.class}","{Swimming.class}").getBytes());
+		Set<CtClass<?>> updated = weaver.update(Arrays.asList(changed));
+		
+		// Duck is woven with its new mixed classes only
+		Assert.assertEquals(1,updated.size());
+		Assert.assertArrayEquals(
+			new String[]{"jmixer.Swimming"}, weaver.getMixedClasses("jmixer.Duck"));
+		Assert.assertNull(duck.getMethod("fly"));
+		Assert.assertNull(duck.getMethod("print$1"));
+		Assert.assertTrue(duck.getMethod("print").getBody().toString().contains("Swimming"));
+		Assert.assertTrue(duck.getMethod("print$0").getBody().getStatements().isEmpty());
+		Assert.assertFalse(duck.toString(), duck.toString().contains("Flying"));
+		Assert.assertFalse(weaver.getDependencyGraph().getTargets("jmixer.Flying").contains(duck));
+		Assert.assertTrue(weaver.getDependencyGraph().getTargets("jmixer.Swimming").contains(duck));
+	}
+	
+	@Test
+	public void testFlattened() throws Exception {
+		
+		IncrementalWeaver weaver = weave(new File("./src/test/java/jmixer/Flying.java"),true);
+		File flying = change("System.out.println(\"Flying\");","System.out.println(\"Flown\");");
+		Assert.assertEquals(2,weaver.update(Arrays.asList(flying)).size());
+		
+		// The updated classes are the ones of a full weave
+		IncrementalWeaver full = weave(flying,true);
+		for (String name : new String[]{"jmixer.Duck","jmixer.Swan"}) {
+			String woven = weaver.getFactory().Class().get(name).toString();
+			Assert.assertEquals(full.getFactory().Class().get(name).toString(),woven);
+			Assert.assertTrue(woven, woven.contains("Flown"));
+			Assert.assertFalse(woven, woven.contains("print$0"));
+		}
+	}
+	
+	@Test
+	public void testSpecialized() throws Exception {
+		
+		File dir = tmp.newFolder("src");
+		File tally = new File(dir,"Tally.java");
+		Files.write(
+			tally.toPath(),
+			("package jmixer; @Mixin(value={Accumulating.class}, typeArguments={long.class}) "+
+			 "public class Tally {}").getBytes("UTF-8"));
+		
+		SpoonCompiler comp = new Launcher().createCompiler();
+		comp.addInputSource(tally);
+		comp.addInputSource(new File("./src/test/java/jmixer/Accumulating.java"));
+		comp.addInputSource(new File("./src/main/java/jmixer/Mixin.java"));
+		comp.build();
+		
+		Factory factory = comp.getFactory();
+		CtClass<?> target = factory.Class().get("jmixer.Tally");
+		Map<CtClass<?>,CtClass<?>[]> targets =
+			new LinkedHashMap<CtClass<?>,CtClass<?>[]>();
+		targets.put(target,new CtClass<?>[]{factory.Class().get("jmixer.Accumulating")});
+		IncrementalWeaver weaver = new IncrementalWeaver(factory);
+		weaver.weave(targets,1);
+		
+		// The type arguments of the annotation are applied
+		CtTypeReference<?> l = factory.Type().LONG_PRIMITIVE;
+		Assert.assertEquals("long",target.getField("last").getType().toString());
+		Assert.assertNotNull(target.getMethod("accumulate",l));
+		
+		// And still are once the mixed class changed
+		String src = new String(Files.readAllBytes(new File("./src/test/java/jmixer/Accumulating.java").toPath()));
+		File accumulating = new File(dir,"Accumulating.java");
+		Files.write(accumulating.toPath(),src.replace("count++;","count += 2;").getBytes());
+		Assert.assertEquals(1,weaver.update(Arrays.asList(accumulating)).size());
+		Assert.assertEquals("long",target.getField("last").getType().toString());
+		String body = target.getMethod("accumulate",l).getBody().toString();
+		Assert.assertTrue(body, body.contains("long previous"));
+		Assert.assertTrue(body, body.contains("+= 2"));
+	}
+	
+	private File change( String from, String to ) throws Exception {
+		String src = new String(Files.readAllBytes(new File("./src/test/java/jmixer/Flying.java").toPath()));
+		File dir = tmp.newFolder("jmixer");
+		File flying = new File(dir,"Flying.java");
+		Files.write(flying.toPath(),src.replace(from,to).getBytes());
+		return flying;
+	}
+	
+	private static IncrementalWeaver weave() throws Exception {
+		return weave(new File("./src/test/java/jmixer/Flying.java"),false);
+	}
+	
+	private static IncrementalWeaver weave( File flyingSrc, boolean flatten ) throws Exception {
+		
+		SpoonCompiler comp = new Launcher().createCompiler();
+		comp.addInputSource(new File("./src/test/java/jmixer/Bird.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Duck.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Swan.java"));
+		comp.addInputSource(flyingSrc);
+		comp.addInputSource(new File("./src/test/java/jmixer/Swimming.java"));
+		comp.addInputSource(new File("./src/main/java/jmixer/Mixin.java"));
+		comp.build();
+		
+		Factory factory = comp.getFactory();
+		CtClass<?> flying = factory.Class().get("jmixer.Flying");
+		CtClass<?> swimming = factory.Class().get("jmixer.Swimming");
+		Map<CtClass<?>,CtClass<?>[]> targets =
+			new LinkedHashMap<CtClass<?>,CtClass<?>[]>();
+		targets.put(
+			factory.Class().get("jmixer.Duck"),
+			new CtClass<?>[]{flying,swimming});
+		targets.put(
+			factory.Class().get("jmixer.Swan"),
+			new CtClass<?>[]{swimming,flying});
+		
+		IncrementalWeaver weaver = new IncrementalWeaver(factory);
+		weaver.setFlattenChains(flatten);
+		weaver.weave(targets,1);
+		return weaver;
+	}
+}
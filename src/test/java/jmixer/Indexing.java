@@ -0,0 +1,11 @@
+package jmixer;
+
+public class Indexing {
+
+	private static int lookups;
+
+	public int index( int i ) {
+		lookups++;
+		return i;
+	}
+}
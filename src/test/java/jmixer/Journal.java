@@ -0,0 +1,19 @@
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Journal {
+
+	private List<String> entries = new ArrayList<String>();
+
+	public synchronized void log( String entry ) {
+		entries.add(entry);
+	}
+
+	public int size() {
+		synchronized(this) {
+			return entries.size();
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package jmixer;
+
+public class Ledger {
+
+	private int balance;
+
+	public synchronized int deposit( int amount ) {
+		balance += amount;
+		return balance;
+	}
+
+	@ReadMostly
+	public synchronized int balance() {
+		return balance;
+	}
+}
@@ -0,0 +1,13 @@
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Listing<E> {
+
+	private List<E> items = new ArrayList<E>();
+
+	public E item( int i ) {
+		return items.get(i);
+	}
+}
@@ -0,0 +1,18 @@
+package jmixer;
+
+public class Lookup {
+
+	private static final int[] SQUARES = new int[16];
+	private static int lookups;
+
+	static {
+		for (int i = 0; i < SQUARES.length; i++) {
+			SQUARES[i] = i*i;
+		}
+	}
+
+	public int square( int i ) {
+		lookups++;
+		return SQUARES[i];
+	}
+}
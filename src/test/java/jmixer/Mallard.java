@@ -0,0 +1,8 @@
+package jmixer;
+
+public class Mallard extends Duck {
+
+	public void swim() {
+		System.out.println("Mallard");
+	}
+}
@@ -0,0 +1,74 @@
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MixerTest {
+
+	@Test
+	public void testCompose() throws Exception {
+		
+		Class<? extends Bird> c = Mixer.compose(Bird.class,Flying.class,Swimming.class);
+		Assert.assertEquals(
+			BytecodeMixinGeneratorTest.lines("Swimming","Flying"),
+			BytecodeMixinGeneratorTest.print(c));
+		Assert.assertSame(c,Mixer.compose(Bird.class,Flying.class,Swimming.class));
+		
+		Class<? extends Bird> d = Mixer.compose(Bird.class,Swimming.class,Flying.class);
+		Assert.assertNotSame(c,d);
+		Assert.assertEquals(
+			BytecodeMixinGeneratorTest.lines("Flying","Swimming"),
+			BytecodeMixinGeneratorTest.print(d));
+	}
+	
+	@Test
+	public void testEviction() throws Exception {
+		
+		Mixer mixer = new Mixer(1);
+		mixer.get(Bird.class,Flying.class,Swimming.class);
+		mixer.get(Bird.class,Swimming.class,Flying.class);
+		Assert.assertEquals(1,mixer.size());
+		mixer.get(Bird.class,Flying.class,Swimming.class);
+		Assert.assertEquals(3,mixer.getGenerated());
+	}
+	
+	@Test
+	public void testConcurrentCompose() throws Exception {
+		
+		final Mixer mixer = new Mixer(8);
+		final CountDownLatch latch = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Class<?>>> futures = new ArrayList<Future<Class<?>>>();
+			for (int i = 0; i < 8; i++) {
+				futures.add(
+					executor.submit(
+						new Callable<Class<?>>() {
+							public Class<?> call() throws Exception {
+								latch.await();
+								return mixer.get(Bird.class,Flying.class,Swimming.class);
+							}
+						}
+					)
+				);
+			}
+			latch.countDown();
+			Class<?> c = futures.get(0).get();
+			for (Future<Class<?>> future : futures) {
+				Assert.assertSame(c,future.get());
+			}
+			Assert.assertEquals(1,mixer.getGenerated());
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -1,15 +1,25 @@
 package jmixer;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import spoon.Launcher;
 import spoon.compiler.SpoonCompiler;
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.code.CtInvocation;
 import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtField;
 import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.ModifierKind;
 import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
 
 public class MixinClassGeneratorTest {
 
@@ -38,4 +48,610 @@ public class MixinClassGeneratorTest {
 		CtMethod<?> swim = duck.getMethod("swim");
 		Assert.assertEquals("void",swim.getType().toString());
 	}
+
+	@Test
+	public void testSuperChain() throws Exception {
+		
+		SpoonCompiler comp = new Launcher().createCompiler();
+		comp.addInputSource(new File("./src/test/java/jmixer/Bird.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Duck.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Flying.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Swimming.java"));
+		comp.addInputSource(new File("./src/main/java/jmixer/Mixin.java"));
+		comp.build();
+		
+		Factory factory = comp.getFactory();
+		CtClass<?> duck = factory.Class().get("jmixer.Duck");
+		CtClass<?> flying = factory.Class().get("jmixer.Flying");
+		CtClass<?> swimming = factory.Class().get("jmixer.Swimming");
+		
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.generate(duck,flying,swimming);
+		
+		// Swimming#print() -> Flying#print() -> empty method
+		CtMethod<?> print = duck.getMethod("print");
+		Assert.assertTrue(print.hasModifier(ModifierKind.PUBLIC));
+		Assert.assertTrue(print.getBody().toString().contains("print$0()"));
+		
+		CtMethod<?> print0 = duck.getMethod("print$0");
+		Assert.assertTrue(print0.hasModifier(ModifierKind.PRIVATE));
+		Assert.assertTrue(print0.getBody().toString().contains("print$1()"));
+		
+		CtMethod<?> print1 = duck.getMethod("print$1");
+		Assert.assertEquals(0,print1.getBody().getStatements().size());
+		Assert.assertNull(duck.getMethod("print$2"));
+		Assert.assertNull(duck.getMethod("_super_print"));
+	}
+
+	@Test
+	public void testFlattenChains() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> duck = factory.Class().get("jmixer.Duck");
+		CtClass<?> greeter = factory.Class().get("jmixer.Greeter");
+		
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setFlattenChains(true);
+		mcg.generate(
+			duck,
+			factory.Class().get("jmixer.Flying"),
+			factory.Class().get("jmixer.Swimming"));
+		mcg.generate(
+			greeter,
+			factory.Class().get("jmixer.Greeting"),
+			factory.Class().get("jmixer.Polite"));
+		
+		// Statement position: print$0 is inlined, the empty print$1 is removed
+		String print = duck.getMethod("print").getBody().toString();
+		Assert.assertTrue(print.contains("\"Swimming\""));
+		Assert.assertTrue(print.contains("\"Flying\""));
+		Assert.assertFalse(print.contains("print$"));
+		Assert.assertNull(duck.getMethod("print$0"));
+		Assert.assertNull(duck.getMethod("print$1"));
+		
+		// Tail position: the variables of greet$0 are renamed
+		CtMethod<?> greet = greeter.getMethod("greet",factory.Type().createReference(String.class));
+		String body = greet.getBody().toString();
+		Assert.assertTrue(body.contains("java.lang.String name$0 = s;"));
+		Assert.assertTrue(body.contains("java.lang.String s$0 = \"Hello \" + name$0;"));
+		Assert.assertTrue(body.contains("return null;"));
+		Assert.assertFalse(body.contains("greet$"));
+		Assert.assertEquals(1,greeter.getMethods().size());
+		
+		// The field hidden by the parameter of the caller is qualified
+		CtClass<?> account = factory.Class().get("jmixer.Account");
+		mcg.generate(
+			account,
+			factory.Class().get("jmixer.Tally"),
+			factory.Class().get("jmixer.Scoring"));
+		body = account.getMethod("tally",factory.Type().INTEGER_PRIMITIVE).getBody().toString();
+		Assert.assertTrue(body, body.contains("this.count += n;"));
+		Assert.assertNull(account.getMethod("tally$0"));
+	}
+
+	@Test
+	public void testDelegation() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> counter = factory.Class().get("jmixer.Counter");
+		CtClass<?> counting = factory.Class().get("jmixer.Counting");
+		CtTypeReference<?> string = factory.Type().createReference(String.class);
+		CtTypeReference<?> chr = factory.Type().CHARACTER_PRIMITIVE;
+		
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setDelegation(true);
+		mcg.generate(counter,counting);
+		
+		// count and describe are forwarded to their shared implementations
+		CtClass<?> shared = counting.getNestedType(MixinDelegation.SHARED);
+		Assert.assertEquals(2,shared.getMethods().size());
+		Assert.assertEquals(
+			"return jmixer.Counting.Shared.describe(this, s)",
+			counter.getMethod("describe",string).getBody().getStatements().get(0).toString());
+		Assert.assertTrue(
+			shared.getMethod("count",shared.getNestedType(MixinDelegation.HOST).getReference(),string,chr)
+				.getBody().toString().contains("self.Counting$_super_count(s, c)"));
+		
+		// add accesses a field and is copied
+		Assert.assertTrue(
+			counter.getMethod("add",string).getBody().toString().contains("total +="));
+		
+		// _this_ and _super_ calls are resolved in the target by the accessors
+		Assert.assertEquals(
+			"return count$0(s, c)",
+			counter.getMethod("Counting$_super_count",string,chr).getBody().getStatements().get(0).toString());
+		Assert.assertEquals(
+			"return getName()",
+			counter.getMethod("Counting$_this_getName").getBody().getStatements().get(0).toString());
+		
+		// The shared implementations are not duplicated in other targets
+		int saved = mcg.getTemplateCache().getSavedNodes();
+		mcg.generate(factory.Class().get("jmixer.Greeter"),counting);
+		Assert.assertEquals(1,counting.getNestedTypes().size());
+		Assert.assertEquals(2,mcg.getTemplateCache().getDelegatedMethods());
+		Assert.assertTrue(mcg.getTemplateCache().getSavedNodes() > saved);
+	}
+
+	@Test
+	public void testGenerateAll() throws Exception {
+		
+		Factory seq = build();
+		MixinClassGenerator mcg = new MixinClassGenerator(seq);
+		mcg.generate(
+			seq.Class().get("jmixer.Duck"),
+			seq.Class().get("jmixer.Flying"),seq.Class().get("jmixer.Swimming"));
+		mcg.generate(
+			seq.Class().get("jmixer.Swan"),
+			seq.Class().get("jmixer.Swimming"),seq.Class().get("jmixer.Flying"));
+		
+		Factory par = build();
+		Map<CtClass<?>,CtClass<?>[]> targets =
+			new LinkedHashMap<CtClass<?>,CtClass<?>[]>();
+		targets.put(
+			par.Class().get("jmixer.Duck"),
+			new CtClass<?>[]{
+				par.Class().get("jmixer.Flying"),
+				par.Class().get("jmixer.Swimming")});
+		targets.put(
+			par.Class().get("jmixer.Swan"),
+			new CtClass<?>[]{
+				par.Class().get("jmixer.Swimming"),
+				par.Class().get("jmixer.Flying")});
+		new MixinClassGenerator(par).generateAll(targets,2);
+		
+		Assert.assertEquals(
+			seq.Class().get("jmixer.Duck").toString(),
+			par.Class().get("jmixer.Duck").toString());
+		Assert.assertEquals(
+			seq.Class().get("jmixer.Swan").toString(),
+			par.Class().get("jmixer.Swan").toString());
+	}
+
+	@Test
+	public void testGenerateAllTargetIsMixed() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> account = factory.Class().get("jmixer.Account");
+		CtClass<?> versioning = factory.Class().get("jmixer.Versioning");
+		CtTypeReference<?> i = factory.Type().INTEGER_PRIMITIVE;
+		Map<CtClass<?>,CtClass<?>[]> targets =
+			new LinkedHashMap<CtClass<?>,CtClass<?>[]>();
+		targets.put(account,new CtClass<?>[]{versioning});
+		targets.put(
+			versioning,new CtClass<?>[]{factory.Class().get("jmixer.Lookup")});
+		new MixinClassGenerator(factory).generateAll(targets,2);
+		
+		// Versioning is woven first and Account mixes the woven Versioning
+		Assert.assertNotNull(versioning.getMethod("square",i));
+		Assert.assertNotNull(account.getMethod("nextVersion"));
+		Assert.assertNotNull(account.getMethod("square",i));
+	}
+	
+	@Test
+	public void testTemplateCache() throws Exception {
+		
+		Factory ref = build();
+		new MixinClassGenerator(ref).generate(
+			ref.Class().get("jmixer.Duck"),
+			ref.Class().get("jmixer.Flying"),ref.Class().get("jmixer.Swimming"));
+		new MixinClassGenerator(ref).generate(
+			ref.Class().get("jmixer.Swan"),
+			ref.Class().get("jmixer.Swimming"),ref.Class().get("jmixer.Flying"));
+		
+		Factory factory = build();
+		MixinTemplateCache templates = new MixinTemplateCache(factory);
+		CtClass<?> flying = templates.getMixedClass(Flying.class);
+		CtClass<?> swimming = templates.getMixedClass(Swimming.class);
+		Assert.assertSame(factory.Class().get("jmixer.Flying"),flying);
+		Assert.assertSame(flying,templates.getMixedClass(Flying.class));
+		
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setTemplateCache(templates);
+		mcg.generate(factory.Class().get("jmixer.Duck"),flying,swimming);
+		mcg = new MixinClassGenerator(factory);
+		mcg.setTemplateCache(templates);
+		mcg.generate(factory.Class().get("jmixer.Swan"),swimming,flying);
+		
+		Assert.assertEquals(2,templates.size());
+		Assert.assertEquals(
+			ref.Class().get("jmixer.Duck").toString(),
+			factory.Class().get("jmixer.Duck").toString());
+		Assert.assertEquals(
+			ref.Class().get("jmixer.Swan").toString(),
+			factory.Class().get("jmixer.Swan").toString());
+	}
+	
+	@Test
+	public void testCloner() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> flying = factory.Class().get("jmixer.Flying");
+		MixinTemplate template = new MixinTemplate(flying);
+		CtMethod<?> print = flying.getMethod("print");
+		
+		CtMethod<?> copy = template.getCloner().clone(print);
+		CtMethod<?> deep = factory.Core().clone(print);
+		copy.setParent(flying);
+		deep.setParent(flying);
+		Assert.assertEquals(deep.toString(),copy.toString());
+		Assert.assertSame(copy,copy.getBody().getParent());
+		
+		/*
+		 * The reference to System.out is shared, the call to _super_print is
+		 * copied since it is rewritten once mixed.
+		 */
+		CtInvocation<?> println = print.getBody().getStatement(0);
+		CtInvocation<?> println2 = copy.getBody().getStatement(0);
+		Assert.assertNotSame(println,println2);
+		Assert.assertSame(
+			((CtFieldAccess<?>)println.getTarget()).getVariable(),
+			((CtFieldAccess<?>)println2.getTarget()).getVariable());
+		CtInvocation<?> sup = print.getBody().getStatement(1);
+		CtInvocation<?> sup2 = copy.getBody().getStatement(1);
+		Assert.assertNotSame(sup.getExecutable(),sup2.getExecutable());
+		Assert.assertTrue(template.getCloner().getSharedReferences() > 0);
+	}
+	
+	@Test
+	public void testFinalizer() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> duck = factory.Class().get("jmixer.Duck");
+		CtClass<?> counter = factory.Class().get("jmixer.Counter");
+		MixinFinalizer finalizer = new MixinFinalizer(factory);
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setFinalizer(finalizer);
+		mcg.generate(
+			duck,factory.Class().get("jmixer.Flying"),
+			factory.Class().get("jmixer.Swimming"));
+		mcg.generate(counter,factory.Class().get("jmixer.Counting"));
+		finalizer.finalizeTargets();
+		
+		// swim is overridden in Mallard
+		Assert.assertTrue(duck.getMethod("fly").hasModifier(ModifierKind.FINAL));
+		Assert.assertFalse(duck.getMethod("swim").hasModifier(ModifierKind.FINAL));
+		Assert.assertTrue(duck.getMethod("print$0").hasModifier(ModifierKind.PRIVATE));
+		
+		// unit is initialized and never assigned, total is assigned
+		CtField<?> unit = counter.getField("unit");
+		Assert.assertTrue(unit.hasModifier(ModifierKind.PRIVATE));
+		Assert.assertTrue(unit.hasModifier(ModifierKind.FINAL));
+		Assert.assertFalse(counter.getField("total").hasModifier(ModifierKind.FINAL));
+		
+		String report = finalizer.getReport();
+		Assert.assertTrue(report.contains("final method jmixer.Duck#fly()\n"));
+		Assert.assertTrue(report.contains("private field jmixer.Counter#unit\n"));
+		Assert.assertTrue(report.contains(
+			"call jmixer.Duck#print (Swimming.java:8) -> jmixer.Duck#print$0()\n"));
+		Assert.assertTrue(report.contains(
+			"call jmixer.Counter#describe (Counting.java:19) -> jmixer.Counter#count(java.lang.String,char)\n"));
+		Assert.assertEquals(1,finalizer.getFinalFields());
+	}
+
+	@Test
+	public void testFinalizerOpenWorld() throws Exception {
+
+		Factory factory = build();
+		CtClass<?> duck = factory.Class().get("jmixer.Duck");
+		CtClass<?> counter = factory.Class().get("jmixer.Counter");
+		MixinFinalizer finalizer = new MixinFinalizer(factory);
+		finalizer.setClosedWorld(false);
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setFinalizer(finalizer);
+		mcg.generate(
+			duck,factory.Class().get("jmixer.Flying"),
+			factory.Class().get("jmixer.Swimming"));
+		mcg.generate(counter,factory.Class().get("jmixer.Counting"));
+		finalizer.finalizeTargets();
+
+		// classes outside the model may extend Duck or access unit
+		Assert.assertFalse(duck.getMethod("fly").hasModifier(ModifierKind.FINAL));
+		Assert.assertFalse(counter.getField("unit").hasModifier(ModifierKind.PRIVATE));
+		Assert.assertEquals(0,finalizer.getFinalMethods());
+		Assert.assertEquals(0,finalizer.getPrivateFields());
+		Assert.assertTrue(finalizer.getReport().contains(
+			"call jmixer.Duck#print (Swimming.java:8) -> jmixer.Duck#print$0()\n"));
+	}
+
+	@Test
+	public void testHierarchy() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> bird = factory.Class().get("jmixer.Bird");
+		CtClass<?> duck = factory.Class().get("jmixer.Duck");
+		CtClass<?> flying = factory.Class().get("jmixer.Flying");
+		CtClass<?> swimming = factory.Class().get("jmixer.Swimming");
+		
+		MixinHierarchy hierarchy = new MixinHierarchy();
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setHierarchy(hierarchy);
+		mcg.generate(bird,flying);
+		Assert.assertEquals(0,hierarchy.getSkippedClasses());
+		
+		// Flying is inherited from Bird
+		Assert.assertEquals(1,hierarchy.getInherited(duck,new CtClass<?>[]{flying,swimming}));
+		Assert.assertEquals(0,hierarchy.getInherited(duck,new CtClass<?>[]{swimming,flying}));
+		mcg.generate(duck,flying,swimming);
+		Assert.assertNull(duck.getMethod("fly"));
+		Assert.assertNotNull(duck.getMethod("swim"));
+		
+		// The chain of print ends in Bird
+		Assert.assertEquals(
+			"super.print()",
+			duck.getMethod("print$0").getBody().getStatements().get(0).toString());
+		Assert.assertEquals(1,hierarchy.getSkippedClasses());
+		Assert.assertEquals(2,hierarchy.getSavedMethods());
+		Assert.assertTrue(hierarchy.getSavedBytes() > 0);
+
+		// A generic class is inherited with the same type arguments only
+		CtClass<?>[] mixes = new CtClass<?>[]{factory.Class().get("jmixer.Accumulating")};
+		List<CtTypeReference<?>> ints =
+			Arrays.<CtTypeReference<?>>asList(factory.Type().INTEGER_PRIMITIVE);
+		List<CtTypeReference<?>> integers =
+			Arrays.<CtTypeReference<?>>asList(factory.Type().INTEGER);
+		hierarchy = new MixinHierarchy();
+		hierarchy.addTarget(bird,mixes,ints);
+		Assert.assertEquals(1,hierarchy.getInherited(duck,mixes,ints));
+		Assert.assertEquals(0,hierarchy.getInherited(duck,mixes,integers));
+		Assert.assertEquals(0,hierarchy.getInherited(duck,mixes));
+		hierarchy.addTarget(bird,mixes);
+		Assert.assertEquals(1,hierarchy.getInherited(duck,mixes));
+		Assert.assertEquals(0,hierarchy.getInherited(duck,mixes,ints));
+	}
+
+	@Test
+	public void testLocks() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> account = factory.Class().get("jmixer.Account");
+		CtClass<?> ledger = factory.Class().get("jmixer.Ledger");
+		CtClass<?> journal = factory.Class().get("jmixer.Journal");
+		
+		MixinLocks locks = new MixinLocks(factory);
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setLocks(locks);
+		mcg.generate(account,ledger,journal);
+		
+		// Ledger marks balance() as read-mostly
+		Assert.assertEquals(
+			"java.util.concurrent.locks.ReentrantReadWriteLock",
+			account.getField("Ledger$lock").getType().getQualifiedName());
+		CtMethod<?> balance = account.getMethod("balance");
+		Assert.assertFalse(balance.hasModifier(ModifierKind.SYNCHRONIZED));
+		Assert.assertTrue(balance.getAnnotations().isEmpty());
+		Assert.assertTrue(balance.getBody().toString().contains("Ledger$lock.readLock().lock()"));
+		Assert.assertTrue(balance.getBody().toString().contains("Ledger$lock.readLock().unlock()"));
+		Assert.assertTrue(account.getMethod("deposit",factory.Type().INTEGER_PRIMITIVE).getBody().toString().contains("Ledger$lock.writeLock().lock()"));
+		
+		// Journal locks a private object
+		Assert.assertEquals(
+			"java.lang.Object",
+			account.getField("Journal$lock").getType().getQualifiedName());
+		CtMethod<?> log = account.getMethod("log",factory.Type().STRING);
+		Assert.assertFalse(log.hasModifier(ModifierKind.SYNCHRONIZED));
+		Assert.assertTrue(log.getBody().toString().contains("synchronized(Journal$lock)"));
+		Assert.assertTrue(account.getMethod("size").getBody().toString().contains("synchronized(Journal$lock)"));
+		
+		Assert.assertEquals(2,locks.getLocks());
+		Assert.assertEquals(1,locks.getReadWriteLocks());
+		Assert.assertEquals(3,locks.getMethods());
+		Assert.assertEquals(1,locks.getBlocks());
+		Assert.assertEquals(0,locks.getMonitors());
+	}
+	
+	@Test
+	public void testHolders() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> account = factory.Class().get("jmixer.Account");
+		CtClass<?> tagging = factory.Class().get("jmixer.Tagging");
+		
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.generate(account,tagging);
+		MixinHolders holders = mcg.getHolders();
+		
+		// The fields of Tagging are moved to a nested holder
+		Assert.assertNull(account.getField("tags"));
+		CtClass<?> holder = (CtClass<?>) account.getNestedType("Tagging$State");
+		Assert.assertNotNull(holder.getField("tags"));
+		Assert.assertNotNull(holder.getField("version"));
+		Assert.assertTrue(account.getField("Tagging$state").hasModifier(ModifierKind.VOLATILE));
+		Assert.assertNotNull(account.getMethod("Tagging$state"));
+		
+		Assert.assertEquals(
+			"Tagging$state().tags.add(tag)",
+			account.getMethod("tag",factory.Type().STRING).getBody().getStatements().get(0).toString());
+		Assert.assertEquals(
+			"return this.Tagging$state().version",
+			account.getMethod("getVersion").getBody().getStatements().get(0).toString());
+		
+		Assert.assertEquals(1,holders.getHolders());
+		Assert.assertEquals(2,holders.getMovedFields());
+		Assert.assertEquals(4,holders.getSavedBytes("jmixer.Account"));
+		
+		// The fields of other mixed classes with the same names stay in place
+		CtClass<?> counter = factory.Class().get("jmixer.Counter");
+		mcg.generate(counter,tagging,factory.Class().get("jmixer.Versioning"));
+		Assert.assertNotNull(counter.getField("version"));
+		Assert.assertEquals(
+			"return ++(version)",
+			counter.getMethod("nextVersion").getBody().getStatements().get(0).toString());
+		Assert.assertEquals(
+			"return this.Tagging$state().version",
+			counter.getMethod("getVersion").getBody().getStatements().get(0).toString());
+	}
+	
+	@Test
+	public void testLayout() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> account = factory.Class().get("jmixer.Account");
+		CtClass<?> ledger = factory.Class().get("jmixer.Ledger");
+		CtClass<?> ticking = factory.Class().get("jmixer.Ticking");
+		CtClass<?> journal = factory.Class().get("jmixer.Journal");
+		
+		MixinLayout layout = new MixinLayout(factory);
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setLayout(layout);
+		mcg.generate(account,ledger,ticking,journal);
+		
+		// The mixed fields are declared by decreasing size
+		Assert.assertEquals("ticks",account.getFields().get(0).getSimpleName());
+		Assert.assertEquals("balance",account.getFields().get(1).getSimpleName());
+		Assert.assertEquals("entries",account.getFields().get(2).getSimpleName());
+		
+		// The fields of Ticking are isolated
+		Assert.assertEquals(
+			MixinLayout.CONTENDED,
+			account.getField("ticks").getAnnotations().get(0).getAnnotationType().getQualifiedName());
+		Assert.assertTrue(account.getField("balance").getAnnotations().isEmpty());
+		
+		// header, balance, entries, padding, ticks, padding
+		Assert.assertEquals(288,layout.getInstanceSize("jmixer.Account"));
+		Assert.assertTrue(layout.getReport().contains("line 0: [balance (Ledger) @12, entries (Journal) @16]"));
+		Assert.assertTrue(layout.getReport().contains("line 2: [ticks (Ticking) @152]"));
+		Assert.assertEquals(1,layout.getReordered());
+		Assert.assertEquals(1,layout.getContendedFields());
+	}
+	
+	@Test
+	public void testStatics() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> account = factory.Class().get("jmixer.Account");
+		CtClass<?> counter = factory.Class().get("jmixer.Counter");
+		CtClass<?> lookup = factory.Class().get("jmixer.Lookup");
+		
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setSharedStatics(true);
+		mcg.generate(account,lookup);
+		mcg.generate(counter,lookup);
+		
+		// The static fields and initializer are held once by Lookup.Statics
+		CtClass<?> statics = (CtClass<?>) lookup.getNestedType(MixinStatics.STATICS);
+		Assert.assertNotNull(statics);
+		Assert.assertEquals(2,statics.getFields().size());
+		Assert.assertEquals(1,statics.getAnonymousExecutables().size());
+		Assert.assertNull(account.getField("SQUARES"));
+		Assert.assertNull(counter.getField("lookups"));
+		
+		// Lookup keeps its own declarations and accesses
+		Assert.assertNotNull(lookup.getField("SQUARES"));
+		Assert.assertTrue(lookup.getField("lookups").hasModifier(ModifierKind.PRIVATE));
+		Assert.assertEquals(1,lookup.getAnonymousExecutables().size());
+		String own = lookup.getMethod("square",factory.Type().INTEGER_PRIMITIVE).getBody().toString();
+		Assert.assertFalse(own, own.contains("Statics"));
+		
+		// The targets share the package of Lookup: nothing is public
+		Assert.assertFalse(statics.hasModifier(ModifierKind.PUBLIC));
+		Assert.assertFalse(statics.getField("lookups").hasModifier(ModifierKind.PUBLIC));
+		Assert.assertFalse(statics.getField("lookups").hasModifier(ModifierKind.PRIVATE));
+		
+		// They are made public for a target of another package
+		CtClass<?> remote = factory.Class().create("jmixer.remote.Remote");
+		MixinStatics shared = mcg.getTemplateCache().getStatics(lookup);
+		Assert.assertTrue(shared.accepts(remote));
+		Assert.assertTrue(statics.hasModifier(ModifierKind.PUBLIC));
+		Assert.assertTrue(statics.getField("lookups").hasModifier(ModifierKind.PUBLIC));
+		Assert.assertTrue(lookup.getField("lookups").hasModifier(ModifierKind.PRIVATE));
+		
+		// The mixed methods access the shared fields
+		String body = account.getMethod("square",factory.Type().INTEGER_PRIMITIVE).getBody().toString();
+		Assert.assertTrue(body, body.contains("jmixer.Lookup.Statics.SQUARES[i]"));
+		Assert.assertEquals(2,mcg.getTemplateCache().getSharedStaticFields());
+		Assert.assertEquals(2,mcg.getTemplateCache().getSavedStaticCopies());
+		
+		// Only the accesses of the members mixed from a class are redirected
+		CtClass<?> catalog = factory.Class().get("jmixer.Catalog");
+		mcg.generate(catalog,lookup,factory.Class().get("jmixer.Indexing"));
+		body = catalog.getMethod("square",factory.Type().INTEGER_PRIMITIVE).getBody().toString();
+		Assert.assertTrue(body, body.contains("(jmixer.Lookup.Statics.lookups)++"));
+		body = catalog.getMethod("index",factory.Type().INTEGER_PRIMITIVE).getBody().toString();
+		Assert.assertTrue(body, body.contains("(jmixer.Indexing.Statics.lookups)++"));
+		body = catalog.getMethod("getLookups").getBody().toString();
+		Assert.assertFalse(body, body.contains("Statics"));
+	}
+	
+	@Test
+	public void testSpecialization() throws Exception {
+		
+		Factory factory = build();
+		CtClass<?> account = factory.Class().get("jmixer.Account");
+		CtClass<?> accumulating = factory.Class().get("jmixer.Accumulating");
+		CtClass<?> listing = factory.Class().get("jmixer.Listing");
+		CtClass<?> buffering = factory.Class().get("jmixer.Buffering");
+		CtTypeReference<?> i = factory.Type().INTEGER_PRIMITIVE;
+		
+		Map<CtClass<?>,List<CtTypeReference<?>>> arguments =
+			new HashMap<CtClass<?>,List<CtTypeReference<?>>>();
+		arguments.put(account,Arrays.<CtTypeReference<?>>asList(i,i,i,i));
+		MixinClassGenerator mcg = new MixinClassGenerator(factory);
+		mcg.setTypeArguments(arguments);
+		mcg.generate(account,accumulating,listing,buffering);
+		
+		// Accumulating is specialized for int
+		CtField<?> last = account.getField("last");
+		Assert.assertEquals("int",last.getType().toString());
+		Assert.assertEquals("0",last.getDefaultExpression().toString());
+		CtMethod<?> accumulate = account.getMethod("accumulate",i);
+		Assert.assertNotNull(accumulate);
+		Assert.assertEquals("int",accumulate.getType().toString());
+		String reset = account.getMethod("reset").getBody().toString();
+		Assert.assertTrue(reset, reset.contains("last = 0"));
+		Assert.assertTrue(reset, reset.contains("return 0"));
+		
+		// The elements of a list are boxed
+		Assert.assertEquals(
+			"java.util.List<java.lang.Integer>",
+			account.getField("items").getType().toString());
+		Assert.assertEquals("java.lang.Integer",account.getMethod("item",i).getType().toString());
+		
+		// So are the elements of an array and the values of a cast
+		Assert.assertEquals(
+			"java.lang.Integer[]",account.getField("buffer").getType().toString());
+		Assert.assertNotNull(account.getMethod("push",factory.Type().INTEGER));
+		Assert.assertEquals("java.lang.Integer",account.getMethod("first",
+			factory.Type().createArrayReference(factory.Type().OBJECT)).getType().toString());
+		
+		// The mixed classes are not modified
+		Assert.assertEquals("T",accumulating.getField("last").getType().toString());
+		Assert.assertEquals(3,mcg.getTemplateCache().getSpecializations());
+		Assert.assertEquals(1,mcg.getTemplateCache().getPrimitiveSpecializations());
+		Assert.assertEquals(3,mcg.getTemplateCache().getBoxedArguments());
+	}
+	
+	private static Factory build() throws Exception {
+		SpoonCompiler comp = new Launcher().createCompiler();
+		comp.addInputSource(new File("./src/test/java/jmixer/Bird.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Duck.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Swan.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Mallard.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Flying.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Swimming.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Greeter.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Greeting.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Polite.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Counter.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Counting.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Account.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Ledger.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Journal.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Tagging.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Ticking.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Lookup.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Accumulating.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Listing.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Buffering.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Tally.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Scoring.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Indexing.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Catalog.java"));
+		comp.addInputSource(new File("./src/test/java/jmixer/Versioning.java"));
+		comp.addInputSource(new File("./src/main/java/jmixer/Mixin.java"));
+		comp.addInputSource(new File("./src/main/java/jmixer/ReadMostly.java"));
+		comp.addInputSource(new File("./src/main/java/jmixer/LazyState.java"));
+		comp.addInputSource(new File("./src/main/java/jmixer/HotState.java"));
+		comp.build();
+		return comp.getFactory();
+	}
 }
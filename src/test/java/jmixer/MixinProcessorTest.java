@@ -0,0 +1,215 @@
+package jmixer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import spoon.Launcher;
+import spoon.OutputType;
+import spoon.compiler.Environment;
+import spoon.compiler.SpoonCompiler;
+import spoon.reflect.visitor.DefaultJavaPrettyPrinter;
+import spoon.support.JavaOutputProcessor;
+import spoon.support.QueueProcessingManager;
+
+public class MixinProcessorTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	@Test
+	public void testCache() throws Exception {
+		
+		File cacheDir = tmp.newFolder("cache");
+		
+		File out1 = tmp.newFolder("out1");
+		MixinProcessor p1 = new MixinProcessor();
+		p1.setCacheDirectory(cacheDir.getPath());
+		run(p1,out1);
+		Assert.assertEquals(0,p1.getCache().getHits());
+		Assert.assertEquals(2,p1.getCache().getMisses());
+		Assert.assertEquals(2,cacheDir.list().length);
+		
+		File out2 = tmp.newFolder("out2");
+		MixinProcessor p2 = new MixinProcessor();
+		p2.setCacheDirectory(cacheDir.getPath());
+		run(p2,out2);
+		Assert.assertEquals(2,p2.getCache().getHits());
+		Assert.assertEquals(0,p2.getCache().getMisses());
+		
+		for (String name : new String[]{"Duck.java","Swan.java"}) {
+			byte[] woven = Files.readAllBytes(new File(out1,"jmixer/"+name).toPath());
+			byte[] cached = Files.readAllBytes(new File(out2,"jmixer/"+name).toPath());
+			Assert.assertArrayEquals(woven,cached);
+			Assert.assertTrue(new String(cached).contains("print$0"));
+		}
+	}
+	
+	@Test
+	public void testCacheMixedTarget() throws Exception {
+		
+		File src = tmp.newFolder("src");
+		File pkg = new File(src,"jmixer");
+		pkg.mkdirs();
+		for (String name : new String[]{"Bird","Duck","Swan","Flying","Swimming"}) {
+			File file = new File("./src/test/java/jmixer/"+name+".java");
+			Files.copy(file.toPath(),new File(pkg,file.getName()).toPath());
+		}
+		Files.write(
+			new File(pkg,"Toy.java").toPath(),
+			"package jmixer; @Mixin({Duck.class}) public class Toy {}".getBytes("UTF-8"));
+		File mixin = new File("./src/main/java/jmixer/Mixin.java");
+		File cacheDir = tmp.newFolder("cache");
+		
+		// Duck is mixed in Toy and is not cached
+		File out1 = tmp.newFolder("out1");
+		MixinProcessor p1 = new MixinProcessor();
+		p1.setCacheDirectory(cacheDir.getPath());
+		process(p1,out1,src,mixin);
+		Assert.assertEquals(0,p1.getCache().getHits());
+		Assert.assertEquals(2,p1.getCache().getMisses());
+		
+		File out2 = tmp.newFolder("out2");
+		MixinProcessor p2 = new MixinProcessor();
+		p2.setCacheDirectory(cacheDir.getPath());
+		process(p2,out2,src,mixin);
+		Assert.assertEquals(2,p2.getCache().getHits());
+		Assert.assertEquals(0,p2.getCache().getMisses());
+		for (String name : new String[]{"Duck.java","Swan.java","Toy.java"}) {
+			byte[] woven = Files.readAllBytes(new File(out1,"jmixer/"+name).toPath());
+			byte[] cached = Files.readAllBytes(new File(out2,"jmixer/"+name).toPath());
+			Assert.assertArrayEquals(woven,cached);
+		}
+		
+		// Flying is only mixed in Toy through Duck
+		File flying = new File(pkg,"Flying.java");
+		String code = new String(Files.readAllBytes(flying.toPath()),"UTF-8");
+		Files.write(flying.toPath(),code.replace("\"Flying\"","\"Soaring\"").getBytes("UTF-8"));
+		
+		File out3 = tmp.newFolder("out3");
+		MixinProcessor p3 = new MixinProcessor();
+		p3.setCacheDirectory(cacheDir.getPath());
+		process(p3,out3,src,mixin);
+		Assert.assertEquals(0,p3.getCache().getHits());
+		Assert.assertEquals(2,p3.getCache().getMisses());
+		for (String name : new String[]{"Duck.java","Toy.java"}) {
+			String woven =
+				new String(Files.readAllBytes(new File(out3,"jmixer/"+name).toPath()),"UTF-8");
+			Assert.assertTrue(woven, woven.contains("\"Soaring\""));
+		}
+	}
+	
+	@Test
+	public void testStreaming() throws Exception {
+		
+		File out1 = tmp.newFolder("out1");
+		run(new MixinProcessor(),out1);
+		
+		File out2 = tmp.newFolder("out2");
+		MixinProcessor p = new MixinProcessor();
+		p.setBatchSize(1);
+		run(p,out2);
+		Assert.assertEquals(2,p.getBatches());
+		Assert.assertTrue(p.getPeakHeap() > 0);
+		
+		for (String name : new String[]{"Duck.java","Swan.java"}) {
+			byte[] woven = Files.readAllBytes(new File(out1,"jmixer/"+name).toPath());
+			byte[] streamed = Files.readAllBytes(new File(out2,"jmixer/"+name).toPath());
+			Assert.assertArrayEquals(woven,streamed);
+		}
+	}
+	
+	@Test
+	public void testStreamingMixedTarget() throws Exception {
+		
+		File src = tmp.newFolder("src");
+		File toy = new File(src,"Toy.java");
+		Files.write(
+			toy.toPath(),
+			"package jmixer; @Mixin({Duck.class}) public class Toy {}".getBytes("UTF-8"));
+		
+		// Duck is still mixed in Toy once its batch is written
+		File out = tmp.newFolder("out");
+		MixinProcessor p = new MixinProcessor();
+		p.setBatchSize(1);
+		run(p,out,toy);
+		Assert.assertEquals(3,p.getBatches());
+		String woven =
+			new String(Files.readAllBytes(new File(out,"jmixer/Toy.java").toPath()),"UTF-8");
+		Assert.assertTrue(woven, woven.contains("fly()"));
+	}
+	
+	@Test
+	public void testMetrics() throws Exception {
+		
+		final List<WeavingMetrics.Target> woven =
+			new ArrayList<WeavingMetrics.Target>();
+		WeavingMetrics metrics = new WeavingMetrics();
+		metrics.addListener(
+			new WeavingListener() {
+				public void targetWoven( WeavingMetrics.Target target ) {
+					woven.add(target);
+				}
+			});
+		
+		File report = new File(tmp.getRoot(),"metrics.json");
+		MixinProcessor p = new MixinProcessor();
+		p.setMetrics(metrics);
+		p.setMetricsReport(report.getPath());
+		run(p,tmp.newFolder("out"));
+		
+		Assert.assertEquals(2,woven.size());
+		WeavingMetrics.Target duck = woven.get(0);
+		Assert.assertEquals("jmixer.Duck",duck.getName());
+		Assert.assertEquals(4,duck.getMethodsInserted());
+		Assert.assertEquals(2,duck.getChainMethods());
+		Assert.assertEquals(1,duck.getConflicts());
+		Assert.assertTrue(duck.getClonedNodes() > 0);
+		Assert.assertTrue(duck.getAllocatedBytes() > 0);
+		Assert.assertTrue(duck.getTime(WeavingMetrics.Phase.REWRITING) > 0);
+		Assert.assertEquals(0,duck.getTime(WeavingMetrics.Phase.FLATTENING));
+		
+		String json = new String(Files.readAllBytes(report.toPath()),"UTF-8");
+		Assert.assertTrue(json.contains("\"targets\": 2,"));
+		Assert.assertTrue(json.contains("\"target\": \"jmixer.Duck\""));
+		Assert.assertTrue(json.contains("\"conflicts\": 2,"));
+	}
+	
+	static void run( MixinProcessor p, File out, File... sources ) throws Exception {
+		
+		List<File> files = new ArrayList<File>(Arrays.asList(sources));
+		files.add(new File("./src/test/java/jmixer/Bird.java"));
+		files.add(new File("./src/test/java/jmixer/Duck.java"));
+		files.add(new File("./src/test/java/jmixer/Swan.java"));
+		files.add(new File("./src/test/java/jmixer/Flying.java"));
+		files.add(new File("./src/test/java/jmixer/Swimming.java"));
+		files.add(new File("./src/main/java/jmixer/Mixin.java"));
+		process(p,out,files.toArray(new File[files.size()]));
+	}
+	
+	static void process( MixinProcessor p, File out, File... sources ) throws Exception {
+		
+		SpoonCompiler comp = new Launcher().createCompiler();
+		for (File source : sources) {
+			comp.addInputSource(source);
+		}
+		comp.build();
+		
+		Environment env = comp.getFactory().getEnvironment();
+		env.setDefaultFileGenerator(
+			new JavaOutputProcessor(out,new DefaultJavaPrettyPrinter(env)));
+		
+		QueueProcessingManager qpm =
+			new QueueProcessingManager(comp.getFactory());
+		qpm.addProcessor(p);
+		qpm.process();
+		comp.generateProcessedSourceFiles(OutputType.CLASSES);
+	}
+}
@@ -0,0 +1,69 @@
+package jmixer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import spoon.Launcher;
+import spoon.compiler.SpoonCompiler;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.factory.Factory;
+
+public class MixinScannerTest {
+
+	@Test
+	public void testScan() throws Exception {
+		
+		File root = new File("./src/test/java");
+		MixinScanner scanner = new MixinScanner(root);
+		scanner.setDepth(0);
+		Assert.assertEquals(
+			names("Duck","Flying","Swimming","Swan"),names(scanner.scan()));
+		
+		scanner = new MixinScanner(root);
+		Assert.assertEquals(
+			names("Bird","Duck","Flying","Swimming","Swan"),names(scanner.scan()));
+		Assert.assertEquals(2,scanner.getTargets().size());
+		Assert.assertArrayEquals(
+			new String[]{"jmixer.Flying","jmixer.Swimming"},
+			scanner.getTargets().get("jmixer.Duck"));
+		
+		SpoonCompiler comp = new Launcher().createCompiler();
+		scanner.addInputSources(comp);
+		comp.addInputSource(new File("./src/main/java/jmixer/Mixin.java"));
+		comp.build();
+		
+		Factory factory = comp.getFactory();
+		Assert.assertNull(factory.Class().get("jmixer.Greeter"));
+		CtClass<?> duck = factory.Class().get("jmixer.Duck");
+		new MixinClassGenerator(factory).generate(
+			duck,
+			factory.Class().get("jmixer.Flying"),
+			factory.Class().get("jmixer.Swimming"));
+		Assert.assertNotNull(duck.getMethod("print$0"));
+	}
+	
+	@Test
+	public void testStrip() {
+		Assert.assertEquals(
+			"class A {   String s = \"\"; char c = ''; \n}",
+			MixinScanner.strip(
+				"class A { /* @Mixin(B.class) */ String s = \"@Mixin(\\\"C\\\")\"; char c = '\\''; // D.class\n}"));
+	}
+	
+	private static Set<String> names( String... names ) {
+		return new HashSet<String>(Arrays.asList(names));
+	}
+	
+	private static Set<String> names( Set<File> files ) {
+		Set<String> names = new HashSet<String>();
+		for (File file : files) {
+			names.add(file.getName().replace(".java",""));
+		}
+		return names;
+	}
+}
@@ -0,0 +1,48 @@
+package jmixer;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MixinTransformerTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	@Test
+	public void testTransform() throws Exception {
+		
+		ClassLoader loader = getClass().getClassLoader();
+		byte[] duck = BytecodeMixinGeneratorTest.read(Duck.class);
+		File dir = tmp.newFolder("cache");
+		
+		MixinTransformer mt =
+			new MixinTransformer(new WeavingCache(dir,".class"),16);
+		Assert.assertNull(
+			mt.transform(
+				loader, "jmixer/Bird", null, null,
+				BytecodeMixinGeneratorTest.read(Bird.class) ));
+		
+		byte[] woven = mt.transform(loader,"jmixer/Duck",null,null,duck);
+		Assert.assertEquals(
+			BytecodeMixinGeneratorTest.lines("Swimming","Flying"),
+			BytecodeMixinGeneratorTest.print(
+				BytecodeMixinGeneratorTest.define("jmixer.Duck",woven)));
+		Assert.assertSame(woven,mt.transform(loader,"jmixer/Duck",null,null,duck));
+		Assert.assertNull(mt.transform(loader,"jmixer/Duck",null,null,woven));
+		Assert.assertEquals(1,mt.getWoven());
+		Assert.assertEquals(1,mt.getMemoryHits());
+		
+		/*
+		 * Warm restart.
+		 */
+		mt = new MixinTransformer(new WeavingCache(dir,".class"),16);
+		Assert.assertArrayEquals(
+			woven, mt.transform(loader,"jmixer/Duck",null,null,duck));
+		Assert.assertEquals(0,mt.getWoven());
+		Assert.assertEquals(1,mt.getDiskHits());
+	}
+}
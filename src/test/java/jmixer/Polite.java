@@ -0,0 +1,11 @@
+package jmixer;
+
+public abstract class Polite {
+
+	public String greet( String name ) {
+		String s = name+", please";
+		return _super_greet(s);
+	}
+
+	protected abstract String _super_greet( String name );
+}
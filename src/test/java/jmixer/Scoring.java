@@ -0,0 +1,10 @@
+package jmixer;
+
+public abstract class Scoring {
+
+	public int tally( int count ) {
+		return _super_tally(count+1);
+	}
+
+	protected abstract int _super_tally( int n );
+}
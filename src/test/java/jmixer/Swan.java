@@ -0,0 +1,5 @@
+package jmixer;
+
+@Mixin(value={Swimming.class, Flying.class})
+public class Swan extends Bird {
+}
@@ -0,0 +1,24 @@
+package jmixer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@LazyState
+public class Tagging {
+
+	private List<String> tags = new ArrayList<String>();
+	private int version;
+
+	public void tag( String tag ) {
+		tags.add(tag);
+		version++;
+	}
+
+	public boolean isTagged( String tag ) {
+		return tags.contains(tag);
+	}
+
+	public int getVersion() {
+		return this.version;
+	}
+}
@@ -0,0 +1,13 @@
+package jmixer;
+
+public abstract class Tally {
+
+	private int count;
+
+	public int tally( int n ) {
+		count += n;
+		return _super_tally(count);
+	}
+
+	protected abstract int _super_tally( int n );
+}
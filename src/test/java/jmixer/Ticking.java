@@ -0,0 +1,11 @@
+package jmixer;
+
+@HotState
+public class Ticking {
+
+	private long ticks;
+
+	public long tick() {
+		return ++ticks;
+	}
+}
@@ -0,0 +1,10 @@
+package jmixer;
+
+public class Versioning {
+
+	private int version;
+
+	public int nextVersion() {
+		return ++version;
+	}
+}
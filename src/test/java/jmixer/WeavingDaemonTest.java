@@ -0,0 +1,130 @@
+package jmixer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WeavingDaemonTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	@Test
+	public void testDaemon() throws Exception {
+		
+		File src = tmp.newFolder("src");
+		File pkg = new File(src,"jmixer");
+		pkg.mkdirs();
+		for (String name : new String[]{"Bird","Duck","Swan","Flying","Swimming"}) {
+			File file = new File("./src/test/java/jmixer/"+name+".java");
+			Files.copy(file.toPath(),new File(pkg,file.getName()).toPath());
+		}
+		File out = tmp.newFolder("out");
+		
+		final WeavingDaemon daemon = new WeavingDaemon();
+		daemon.setReadTimeout(200);
+		int port = daemon.start(0);
+		Thread thread =
+			new Thread() {
+				public void run() {
+					try {
+						daemon.serve();
+					}
+					catch( Exception e ) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		thread.start();
+		
+		File portFile = new File(tmp.getRoot(),"port");
+		daemon.writePortFile(port,portFile);
+		String token = Files.readAllLines(portFile.toPath()).get(1);
+		Assert.assertEquals(daemon.getToken(),token);
+		
+		// Requests without the token are rejected
+		String weave = "weave\t"+src.getPath()+"\t"+out.getPath();
+		Assert.assertEquals(
+			"ERROR unauthorized request",WeavingClient.send(port,"0",weave));
+		
+		// An idle connection does not block the daemon
+		Socket idle = new Socket(InetAddress.getLoopbackAddress(),port);
+		try {
+			BufferedReader in =
+				new BufferedReader(new InputStreamReader(idle.getInputStream(),"UTF-8"));
+			Assert.assertEquals("ERROR request timeout",in.readLine());
+		}
+		finally {
+			idle.close();
+		}
+		
+		Assert.assertEquals("OK 5 full",WeavingClient.send(port,token,weave));
+		File duck = new File(out,"jmixer/Duck.java");
+		Assert.assertTrue(new String(Files.readAllBytes(duck.toPath())).contains("\"Flying\""));
+		
+		Assert.assertEquals("OK 0 incremental",WeavingClient.send(port,token,weave));
+		
+		File flying = new File(pkg,"Flying.java");
+		String code = new String(Files.readAllBytes(flying.toPath()),"UTF-8");
+		Files.write(flying.toPath(),code.replace("\"Flying\"","\"Soaring\"").getBytes("UTF-8"));
+		flying.setLastModified(flying.lastModified()+10000);
+		
+		// Flying, Duck and Swan are written again
+		Assert.assertEquals("OK 3 incremental",WeavingClient.send(port,token,weave));
+		Assert.assertTrue(new String(Files.readAllBytes(duck.toPath())).contains("\"Soaring\""));
+		Assert.assertEquals(1,daemon.getBuilds());
+		Assert.assertEquals(1,daemon.getUpdates());
+		
+		Assert.assertTrue(WeavingClient.send(port,token,"stats").startsWith("OK sessions=1 "));
+		Assert.assertEquals("OK",WeavingClient.send(port,token,"stop"));
+		thread.join();
+	}
+	
+	@Test
+	public void testFailedBuild() throws Exception {
+		
+		File src = tmp.newFolder("src");
+		File pkg = new File(src,"jmixer");
+		pkg.mkdirs();
+		for (String name : new String[]{"Bird","Duck","Swan","Flying","Swimming"}) {
+			File file = new File("./src/test/java/jmixer/"+name+".java");
+			Files.copy(file.toPath(),new File(pkg,file.getName()).toPath());
+		}
+		File out = tmp.newFolder("out");
+		
+		File flying = new File(pkg,"Flying.java");
+		String code = new String(Files.readAllBytes(flying.toPath()),"UTF-8");
+		Files.write(flying.toPath(),code.replace("\"Flying\");","\"Flying\")").getBytes("UTF-8"));
+		
+		// A failed build does not leave a session behind
+		WeavingDaemon daemon = new WeavingDaemon();
+		String weave = "weave\t"+src.getPath()+"\t"+out.getPath();
+		Assert.assertTrue(daemon.handle(weave).startsWith("ERROR "));
+		Assert.assertEquals(0,daemon.size());
+		Assert.assertTrue(daemon.handle(weave).startsWith("ERROR "));
+		Assert.assertEquals(0,daemon.getBuilds());
+		Assert.assertFalse(new File(out,"jmixer/Duck.java").exists());
+		
+		Files.write(flying.toPath(),code.getBytes("UTF-8"));
+		flying.setLastModified(flying.lastModified()+10000);
+		
+		Assert.assertEquals("OK 5 full",daemon.handle(weave));
+		Assert.assertEquals(1,daemon.size());
+		Assert.assertEquals(1,daemon.getBuilds());
+		Assert.assertTrue(new File(out,"jmixer/Duck.java").exists());
+		Assert.assertEquals("OK 0 incremental",daemon.handle(weave));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoSession() {
+		new WeavingDaemon(0,WeavingDaemon.DEFAULT_IDLE_TIMEOUT,WeavingDaemon.DEFAULT_MAX_UPDATES);
+	}
+}